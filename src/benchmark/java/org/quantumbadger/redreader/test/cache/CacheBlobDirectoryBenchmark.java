@@ -0,0 +1,80 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.rules.TemporaryFolder;
+import org.quantumbadger.redreader.cache.CacheBlobDirectory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class CacheBlobDirectoryBenchmark {
+
+	private static final int BLOB_COUNT = 20000;
+	private static final int ROUNDS = 9;
+
+	private static long median(final long[] values) {
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2];
+	}
+
+	// Compares reading one sixteenth of the blobs when they all share one directory (filtering the full listing by
+	// prefix, as before) against listing a single bucket directory. Both layouts are real directories on disk.
+	public static void main(final String[] args) throws IOException {
+
+		final TemporaryFolder folder = new TemporaryFolder();
+		folder.create();
+
+		try {
+			final File flatRoot = folder.newFolder("flat");
+			final File bucketedRoot = folder.newFolder("bucketed");
+
+			final CacheBlobDirectory flat = new CacheBlobDirectory(flatRoot);
+			final CacheBlobDirectory bucketed = new CacheBlobDirectory(bucketedRoot);
+
+			for(int i = 0; i < BLOB_COUNT; i++) {
+				final String hash = CacheBlobDirectoryTest.hash(i);
+				if(!flat.getLegacyFile(hash).createNewFile()) throw new IOException("Couldn't create " + hash);
+				bucketed.moveIntoPlace(folder.newFile(i + ".rr_cache_data_tmp"), hash);
+			}
+
+			final FilenameFilter prefixFilter = new FilenameFilter() {
+				public boolean accept(final File dir, final String filename) {
+					return filename.startsWith("7") && CacheBlobDirectory.getHash(filename) != null;
+				}
+			};
+
+			final long[] flatTimes = new long[ROUNDS];
+			final long[] bucketTimes = new long[ROUNDS];
+
+			for(int round = 0; round < ROUNDS; round++) {
+
+				// Alternate the order, so neither layout always benefits from the other warming the caches
+				for(int pass = 0; pass < 2; pass++) {
+
+					final long startTime = System.nanoTime();
+
+					if((round + pass) % 2 == 0) {
+						final File[] files = flatRoot.listFiles(prefixFilter);
+						flatTimes[round] = System.nanoTime() - startTime;
+
+						if(!CacheBlobDirectoryTest.hashesOf(files).equals(CacheBlobDirectoryTest.hashesOf(bucketed.listBucket(7)))) {
+							throw new IllegalStateException("The layouts list different blobs");
+						}
+
+					} else {
+						bucketed.listBucket(7);
+						bucketTimes[round] = System.nanoTime() - startTime;
+					}
+				}
+			}
+
+			System.out.println(String.format("%d blobs: one prefix of a flat directory %.3f ms, one bucket %.3f ms (medians of %d)",
+					BLOB_COUNT, median(flatTimes) / 1000000.0, median(bucketTimes) / 1000000.0, ROUNDS));
+
+		} finally {
+			folder.delete();
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.quantumbadger.redreader.cache.CacheFileCodec;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class CacheFileCodecBenchmark {
+
+	private static long timeToFirstPost(final InputStream is) throws Exception {
+
+		final long start = System.nanoTime();
+
+		final JsonValue value = new JsonValue(is);
+		final Thread builder = new Thread() {
+			@Override
+			public void run() {
+				try {
+					value.buildInThisThread();
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+		builder.start();
+
+		value.asObject().getObject("data").getArray("children").get(0).asObject().getObject("data").getString("title");
+		final long result = System.nanoTime() - start;
+
+		builder.join();
+		is.close();
+
+		return result;
+	}
+
+	// Returns the time to the first post, and the time to the end of the parse
+	private static long[] timeOpen(final File file, final boolean oldPath) throws Exception {
+
+		final long start = System.nanoTime();
+
+		final InputStream is = oldPath
+				? new BufferedInputStream(CacheFileCodec.GZIP.wrapInput(new FileInputStream(file)), 8 * 1024)
+				: CacheFileCodec.GZIP.openForParsing(file, 4 * 1024 * 1024);
+
+		final long first = timeToFirstPost(is);
+		return new long[] {first, System.nanoTime() - start};
+	}
+
+	private static double median(final long[] values) {
+		final long[] sorted = values.clone();
+		Arrays.sort(sorted);
+		return sorted[sorted.length / 2] / 1e6;
+	}
+
+	// Each path gets its own copy of the file, so neither reads a file the other has just read, and the order
+	// alternates between rounds. The first rounds warm up the JIT for both paths, and aren't counted.
+	public static void main(final String[] args) throws Exception {
+
+		// Roughly 3 MB of JSON, a large comment page
+		final byte[] encoded = CacheFileCodecTest.encode(CacheFileCodec.GZIP, CacheFileCodecTest.generateListing(30000), 64 * 1024);
+
+		final int warmupRounds = 4, rounds = 12;
+
+		final long[] oldFirst = new long[rounds], oldTotal = new long[rounds];
+		final long[] newFirst = new long[rounds], newTotal = new long[rounds];
+
+		for(int round = -warmupRounds; round < rounds; round++) {
+
+			final File oldFile = CacheFileCodecTest.writeTempFile(encoded);
+			final File newFile = CacheFileCodecTest.writeTempFile(encoded);
+
+			final boolean oldFirstInRound = (round & 1) == 0;
+
+			final long[] oldResult, newResult;
+
+			if(oldFirstInRound) {
+				oldResult = timeOpen(oldFile, true);
+				newResult = timeOpen(newFile, false);
+			} else {
+				newResult = timeOpen(newFile, false);
+				oldResult = timeOpen(oldFile, true);
+			}
+
+			oldFile.delete();
+			newFile.delete();
+
+			if(round < 0) continue;
+
+			oldFirst[round] = oldResult[0];
+			oldTotal[round] = oldResult[1];
+			newFirst[round] = newResult[0];
+			newTotal[round] = newResult[1];
+
+			System.out.println(String.format("Round %d (%s first): first post %.2f ms -> %.2f ms, full parse %.1f ms -> %.1f ms",
+					round, oldFirstInRound ? "old" : "new",
+					oldResult[0] / 1e6, newResult[0] / 1e6, oldResult[1] / 1e6, newResult[1] / 1e6));
+		}
+
+		System.out.println(String.format("Median of %d rounds: first post %.2f ms -> %.2f ms, full parse %.1f ms -> %.1f ms",
+				rounds, median(oldFirst), median(newFirst), median(oldTotal), median(newTotal)));
+	}
+}
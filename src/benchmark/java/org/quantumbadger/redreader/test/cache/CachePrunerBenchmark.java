@@ -0,0 +1,25 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.quantumbadger.redreader.cache.CachePruner;
+
+public class CachePrunerBenchmark {
+
+	// Compares the longest time the lock is held when pruning everything at once (as the full table scan did)
+	// against pruning in batches
+	public static void main(final String[] args) {
+
+		for(final int batchSize : new int[] {Integer.MAX_VALUE, 4096, 1024, 256, 64}) {
+
+			final CachePruner<?> pruner = CachePrunerTest.largeCachePruner(batchSize);
+
+			final long startTime = System.nanoTime();
+			final CachePruner.Stats stats = pruner.prune();
+			final long totalTime = System.nanoTime() - startTime;
+
+			System.out.println(String.format(
+					"Batch size %10d: %6d entries, %5d batches, max pause %8.3f ms, mean pause %8.3f ms, total %8.3f ms",
+					batchSize, stats.entriesDeleted, stats.batches, stats.maxPauseNanos / 1000000.0,
+					stats.totalPauseNanos / 1000000.0 / stats.batches, totalTime / 1000000.0));
+		}
+	}
+}
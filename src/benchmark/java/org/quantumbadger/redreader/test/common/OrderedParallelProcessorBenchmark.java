@@ -0,0 +1,40 @@
+package org.quantumbadger.redreader.test.common;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class OrderedParallelProcessorBenchmark {
+
+	public static void main(final String[] args) throws Exception {
+
+		final int comments = 2000;
+		final byte[] data = OrderedParallelProcessorTest.generateCommentPage(comments, 1);
+
+		System.out.println("Comment preparation, " + Runtime.getRuntime().availableProcessors() + " cores available");
+
+		for(final int workers : new int[] {1, 2, 4, 8}) {
+
+			final ExecutorService executor = Executors.newFixedThreadPool(workers);
+
+			// Warm up
+			OrderedParallelProcessorTest.parseAndPrepare(data, executor);
+
+			long best = Long.MAX_VALUE;
+
+			for(int run = 0; run < 3; run++) {
+
+				final long start = System.nanoTime();
+
+				if(OrderedParallelProcessorTest.parseAndPrepare(data, executor) != comments) {
+					throw new IllegalStateException("Not every comment was prepared");
+				}
+
+				best = Math.min(best, System.nanoTime() - start);
+			}
+
+			executor.shutdown();
+
+			System.out.println(String.format("%d workers: %.0f comments/s", workers, comments / (best / 1e9)));
+		}
+	}
+}
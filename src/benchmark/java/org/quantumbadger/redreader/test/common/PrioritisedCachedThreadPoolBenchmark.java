@@ -0,0 +1,170 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+import org.quantumbadger.redreader.test.common.PrioritisedCachedThreadPoolTest.BlockingTask;
+import org.quantumbadger.redreader.test.common.PrioritisedCachedThreadPoolTest.TestTask;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class PrioritisedCachedThreadPoolBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException {
+		dequeue();
+		redditQueueDispatch();
+	}
+
+	// Records when it ran, so that the time spent choosing tasks can be measured without the thread wakeup
+	private static final class TimedTask extends TestTask {
+
+		private final long[] runTimes;
+		private final int[] runCount;
+
+		private TimedTask(final int primary, final int secondary, final long[] runTimes, final int[] runCount,
+						  final CountDownLatch done) {
+			super("t", primary, secondary, null, done);
+			this.runTimes = runTimes;
+			this.runCount = runCount;
+		}
+
+		@Override
+		public void run() {
+			runTimes[runCount[0]++] = System.nanoTime();
+			super.run();
+		}
+	}
+
+	// How the queue used to choose a task: a scan of every queued task, followed by an O(n) removal
+	private static void runLinearScan(final ArrayList<TestTask> queue) {
+
+		while(!queue.isEmpty()) {
+
+			TestTask taskToRun = null;
+			int taskIndex = -1;
+
+			for(int i = 0; i < queue.size(); i++) {
+				if(taskToRun == null || queue.get(i).isHigherPriorityThan(taskToRun)) {
+					taskToRun = queue.get(i);
+					taskIndex = i;
+				}
+			}
+
+			queue.remove(taskIndex);
+			taskToRun.run();
+		}
+	}
+
+	private static void dequeue() throws InterruptedException {
+
+		final Random random = new Random(1);
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Benchmark pool");
+
+		for(final int queued : new int[] {10, 100, 1000}) {
+
+			final int rounds = 200000 / queued;
+
+			final long[] runTimes = new long[queued];
+			final int[] runCount = new int[1];
+
+			long linearNanos = 0, heapNanos = 0;
+
+			for(int round = 0; round < rounds; round++) {
+
+				final ArrayList<TestTask> tasks = new ArrayList<TestTask>(queued);
+
+				for(int i = 0; i < queued; i++) {
+					tasks.add(new TimedTask(500 + random.nextInt(3), random.nextInt(100), runTimes, runCount,
+							new CountDownLatch(1)));
+				}
+
+				runCount[0] = 0;
+				runLinearScan(new ArrayList<TestTask>(tasks));
+				linearNanos += runTimes[queued - 1] - runTimes[0];
+
+				final CountDownLatch done = new CountDownLatch(queued);
+				final ArrayList<TestTask> heapTasks = new ArrayList<TestTask>(queued);
+
+				for(final TestTask task : tasks) {
+					heapTasks.add(new TimedTask(task.primary, task.secondary, runTimes, runCount, done));
+				}
+
+				final BlockingTask blocker = PrioritisedCachedThreadPoolTest.block(pool);
+
+				for(final TestTask task : heapTasks) {
+					pool.add(task);
+				}
+
+				runCount[0] = 0;
+				blocker.release.countDown();
+
+				if(!done.await(10, TimeUnit.SECONDS)) {
+					throw new IllegalStateException("Tasks didn't finish");
+				}
+
+				heapNanos += runTimes[queued - 1] - runTimes[0];
+			}
+
+			System.out.println(String.format("%d queued: linear scan %.0f ns per task, heap %.0f ns per task",
+					queued,
+					(double)linearNanos / (rounds * (queued - 1)),
+					(double)heapNanos / (rounds * (queued - 1))));
+		}
+	}
+
+	private static void redditQueueDispatch() {
+
+		final Random random = new Random(3);
+
+		for(final int queued : new int[] {10, 100, 1000}) {
+
+			final int rounds = 200000 / queued;
+			long scanNanos = 0, heapNanos = 0;
+
+			for(int round = 0; round < rounds; round++) {
+
+				final ArrayList<TestTask> tasks = new ArrayList<TestTask>(queued);
+
+				for(int i = 0; i < queued; i++) {
+					tasks.add(new TestTask("t", random.nextInt(2) == 0 ? 500 : -300, random.nextInt(100), null, null));
+				}
+
+				// How the reddit queue used to dispatch: a scan of a HashSet, then a removal
+				final HashSet<TestTask> set = new HashSet<TestTask>(tasks);
+				long start = System.nanoTime();
+
+				while(!set.isEmpty()) {
+
+					TestTask next = null;
+
+					for(final TestTask task : set) {
+						if(next == null || task.isHigherPriorityThan(next)) {
+							next = task;
+						}
+					}
+
+					set.remove(next);
+				}
+
+				scanNanos += System.nanoTime() - start;
+
+				final PrioritisedCachedThreadPool.TaskQueue queue = new PrioritisedCachedThreadPool.TaskQueue();
+
+				for(final TestTask task : tasks) {
+					queue.add(task);
+				}
+
+				start = System.nanoTime();
+				while(queue.poll() != null);
+				heapNanos += System.nanoTime() - start;
+			}
+
+			System.out.println(String.format("%d queued: HashSet scan %.0f ns per dispatch, heap %.0f ns per dispatch",
+					queued,
+					(double)scanNanos / (rounds * queued),
+					(double)heapNanos / (rounds * queued)));
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package org.quantumbadger.redreader.test.common;
+
+import java.util.Locale;
+
+public class PrioritisedKeyedDispatcherBenchmark {
+
+	public static void main(final String[] args) throws InterruptedException {
+
+		for(final int threads : new int[] {1, 2, 3, 4, 8}) {
+
+			final long[] latencies = PrioritisedKeyedDispatcherTest.runDispatch(threads);
+
+			System.out.println(String.format(Locale.US, "%d worker(s): p50 %.2f ms, p99 %.2f ms",
+					threads,
+					latencies[latencies.length / 2] / 1000000.0,
+					latencies[(latencies.length * 99) / 100] / 1000000.0));
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package org.quantumbadger.redreader.test.http;
+
+import java.io.IOException;
+import java.util.Locale;
+
+public class OKHTTPBackendBenchmark {
+
+	private static final int REQUEST_COUNT = 500;
+
+	public static void main(final String[] args) throws IOException {
+
+		final OKHTTPBackendTest server = new OKHTTPBackendTest();
+		server.startServer();
+
+		try {
+			// Warm up both paths
+			for(int i = 0; i < 50; i++) {
+				server.fetchWithNewClient();
+				server.fetchWithSharedBackend();
+			}
+
+			final long newClientStart = System.nanoTime();
+			for(int i = 0; i < REQUEST_COUNT; i++) {
+				server.fetchWithNewClient();
+			}
+			final long newClientNanos = System.nanoTime() - newClientStart;
+
+			final long sharedStart = System.nanoTime();
+			for(int i = 0; i < REQUEST_COUNT; i++) {
+				server.fetchWithSharedBackend();
+			}
+			final long sharedNanos = System.nanoTime() - sharedStart;
+
+			System.out.println(String.format(Locale.US, "Client per request: %.0f requests/s",
+					REQUEST_COUNT / (newClientNanos / 1000000000.0)));
+
+			System.out.println(String.format(Locale.US, "Shared client: %.0f requests/s",
+					REQUEST_COUNT / (sharedNanos / 1000000000.0)));
+
+		} finally {
+			server.stopServer();
+		}
+	}
+}
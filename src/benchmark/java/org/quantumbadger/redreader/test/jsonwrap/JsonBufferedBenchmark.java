@@ -0,0 +1,103 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+public class JsonBufferedBenchmark {
+
+	public static void main(final String[] args) throws Exception {
+		throughput();
+		retainedHeap();
+	}
+
+	// Parses comment pages while a second thread walks the tree as it arrives, and also after it has been built
+	private static void throughput() throws Exception {
+
+		final byte[] data = JsonBufferedTest.generateCommentPage(500, 5, 4);
+		final int iterations = 50;
+
+		for(int round = 0; round < 5; round++) {
+
+			long concurrentNanos = 0, afterNanos = 0;
+			long comments = 0;
+
+			for(int i = 0; i < iterations; i++) {
+
+				final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+				final long startTime = System.nanoTime();
+
+				final JsonValue value = new JsonValue(data);
+				final Thread parser = JsonBufferedTest.buildInBackground(value, error);
+				comments += JsonBufferedTest.consumePage(value)[0];
+				parser.join();
+
+				final long midTime = System.nanoTime();
+
+				JsonBufferedTest.consumePage(value);
+
+				final long endTime = System.nanoTime();
+
+				if(error.get() != null) {
+					throw new RuntimeException(error.get());
+				}
+
+				concurrentNanos += midTime - startTime;
+				afterNanos += endTime - midTime;
+			}
+
+			System.out.println(String.format(
+					"Round %d: %d KB page, %d comments. Parse with concurrent reader: %.0f pages/s. Read after build: %.0f pages/s",
+					round, data.length / 1024, comments / iterations,
+					iterations / (concurrentNanos / 1e9), iterations / (afterNanos / 1e9)));
+		}
+	}
+
+	private static long usedHeap() {
+
+		final Runtime runtime = Runtime.getRuntime();
+
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Heap held by fully built trees. Many trees are kept at once, so that the difference is large compared
+	// to the noise in a single reading, and nothing but the trees is allocated between the two readings.
+	private static void retainedHeap() throws Exception {
+
+		final byte[] data = JsonBufferedTest.generateCommentPage(100, 5, 5);
+		final JsonValue[] trees = new JsonValue[50];
+
+		final JsonValue sample = new JsonValue(data);
+		sample.buildInThisThread();
+		final long comments = JsonBufferedTest.consumePage(sample)[0];
+
+		for(int round = 0; round < 3; round++) {
+
+			final long before = usedHeap();
+
+			for(int i = 0; i < trees.length; i++) {
+				trees[i] = new JsonValue(data);
+				trees[i].buildInThisThread();
+			}
+
+			final long retained = (usedHeap() - before) / trees.length;
+
+			// Keeps the trees reachable until after the second reading
+			long checksum = 0;
+
+			for(int i = 0; i < trees.length; i++) {
+				checksum += trees[i].asArray().getStatus().ordinal();
+				trees[i] = null;
+			}
+
+			System.out.println(String.format(
+					"Round %d: %d KB page, %d comments. Each tree retains %d KB, %d bytes per comment (checksum %d)",
+					round, data.length / 1024, comments, retained / 1024, retained / comments, checksum));
+		}
+	}
+}
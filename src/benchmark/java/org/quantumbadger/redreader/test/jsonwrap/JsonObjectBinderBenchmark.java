@@ -0,0 +1,34 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+public class JsonObjectBinderBenchmark {
+
+	private static final int COMMENT_COUNT = 10000;
+
+	public static void main(final String[] args) throws Exception {
+
+		final JsonBufferedArray comments = JsonObjectBinderTest.parse(
+				JsonObjectBinderTest.generateComments(COMMENT_COUNT)).asArray();
+
+		for(int round = 0; round < 10; round++) {
+
+			long checksum = 0;
+
+			final long startTime = System.nanoTime();
+
+			for(final JsonValue value : comments) {
+				final RedditComment comment = value.asObject(RedditThing.class).asComment();
+				checksum += comment.ups + comment.created_utc + comment.author.length();
+			}
+
+			final long duration = System.nanoTime() - startTime;
+
+			System.out.println(String.format("Round %d: bound %d comments in %.2f ms (%.0f comments/s, checksum %d)",
+					round, COMMENT_COUNT, duration / 1e6, COMMENT_COUNT / (duration / 1e9), checksum));
+		}
+	}
+}
@@ -0,0 +1,28 @@
+package org.quantumbadger.redreader.test.reddit;
+
+public class CommentListingSnapshotBenchmark {
+
+	// Compares reopening a thread from its JSON, including preparing the markdown, against reading its snapshot
+	public static void main(final String[] args) throws Exception {
+
+		final byte[] json = CommentListingSnapshotTest.generateCommentPage(400, 4, 5);
+		final byte[] snapshot = CommentListingSnapshotTest.write(CommentListingSnapshotTest.parseJson(json, true));
+		final int items = CommentListingSnapshotTest.read(snapshot).items.size();
+
+		for(int round = 0; round < 5; round++) {
+
+			long start = System.nanoTime();
+			for(int i = 0; i < 10; i++) CommentListingSnapshotTest.parseJson(json, true);
+			final long jsonNanos = (System.nanoTime() - start) / 10;
+
+			start = System.nanoTime();
+			for(int i = 0; i < 10; i++) CommentListingSnapshotTest.read(snapshot);
+			final long snapshotNanos = (System.nanoTime() - start) / 10;
+
+			System.out.println(String.format("Round %d, %d items: JSON + markdown %.1f ms (%d KiB), snapshot %.1f ms (%d KiB)",
+					round, items,
+					jsonNanos / 1e6, json.length / 1024,
+					snapshotNanos / 1e6, snapshot.length / 1024));
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.quantumbadger.redreader.test.reddit;
+
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+public class RedditListingParserBenchmark {
+
+	private static long allocatedBytes() {
+
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if(bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+
+		return -1;
+	}
+
+	private static long heapAfterGc() {
+
+		final Runtime runtime = Runtime.getRuntime();
+
+		for(int i = 0; i < 3; i++) {
+			System.gc();
+		}
+
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static void main(final String[] args) throws Exception {
+
+		final byte[] data = RedditListingParserTest.generateCommentPage(400, 5, 4);
+		final int items = RedditListingParserTest.parseStream(data).items.size();
+
+		for(int round = 0; round < 5; round++) {
+
+			long start = System.nanoTime();
+			long allocStart = allocatedBytes();
+			for(int i = 0; i < 10; i++) RedditListingParserTest.parseTree(data);
+			final long treeNanos = (System.nanoTime() - start) / 10;
+			final long treeAlloc = (allocatedBytes() - allocStart) / 10;
+
+			start = System.nanoTime();
+			allocStart = allocatedBytes();
+			for(int i = 0; i < 10; i++) RedditListingParserTest.parseStream(data);
+			final long streamNanos = (System.nanoTime() - start) / 10;
+			final long streamAlloc = (allocatedBytes() - allocStart) / 10;
+
+			System.out.println(String.format("Round %d, %d items, %d KiB: tree %.1f ms / %d KiB allocated, stream %.1f ms / %d KiB allocated",
+					round, items, data.length / 1024,
+					treeNanos / 1e6, treeAlloc / 1024,
+					streamNanos / 1e6, streamAlloc / 1024));
+		}
+
+		// Heap still reachable once the whole page has been read: the tree keeps every field until the listing is
+		// gone. Several copies are kept, so that the difference is large compared to the noise in one reading.
+		final JsonValue[] trees = new JsonValue[10];
+		final RedditListingParserTest.RecordingListener[] streamed = new RedditListingParserTest.RecordingListener[10];
+
+		final long baseline = heapAfterGc();
+
+		for(int i = 0; i < trees.length; i++) {
+			trees[i] = new JsonValue(data);
+			trees[i].buildInThisThread();
+		}
+
+		final long withTrees = heapAfterGc();
+
+		for(int i = 0; i < streamed.length; i++) {
+			streamed[i] = RedditListingParserTest.parseStream(data);
+		}
+
+		final long withStreamed = heapAfterGc();
+
+		System.out.println(String.format("Retained per page: tree %d KiB (%s), streamed items %d KiB (%d)",
+				(withTrees - baseline) / trees.length / 1024, trees[0].getType(),
+				(withStreamed - withTrees) / streamed.length / 1024, streamed[0].items.size()));
+	}
+}
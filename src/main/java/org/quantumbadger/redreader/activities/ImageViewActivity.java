@@ -37,6 +37,7 @@ import org.quantumbadger.redreader.R;
 import org.quantumbadger.redreader.account.RedditAccountManager;
 import org.quantumbadger.redreader.cache.CacheManager;
 import org.quantumbadger.redreader.cache.CacheRequest;
+import org.quantumbadger.redreader.cache.PartialDownload;
 import org.quantumbadger.redreader.cache.RequestFailureType;
 import org.quantumbadger.redreader.common.*;
 import org.quantumbadger.redreader.fragments.ImageInfoDialog;
@@ -68,7 +69,8 @@ public class ImageViewActivity extends BaseActivity implements RedditPostView.Po
 
 	GLSurfaceView surfaceView;
 	private ImageView imageView;
-	private GifDecoderThread gifThread;
+	// Set from the download thread, and stopped from the UI thread
+	private volatile GifDecoderThread gifThread;
 
 	private String mUrl;
 
@@ -227,6 +229,26 @@ public class ImageViewActivity extends BaseActivity implements RedditPostView.Po
 							protected void onDownloadStarted() {
 							}
 
+							// The legacy decoder shows each frame as it's decoded, so it can start before the
+							// download finishes
+							@Override
+							protected void onPartialDataAvailable(final PartialDownload partial, final String mimetype) {
+
+								if(mimetype == null || !Constants.Mime.isImageGif(mimetype) || mIsDestroyed) return;
+
+								final PrefsUtility.GifViewMode gifViewMode = PrefsUtility.pref_behaviour_gifview_mode(
+										context,
+										PreferenceManager.getDefaultSharedPreferences(context));
+
+								if(gifViewMode != PrefsUtility.GifViewMode.INTERNAL_LEGACY) return;
+
+								try {
+									startGifDecoder(partial.openPrefixStream(), true);
+								} catch(IOException e) {
+									Log.w("ImageViewActivity", "Could not stream partial GIF", e);
+								}
+							}
+
 							@Override
 							protected void onFailure(final RequestFailureType type, Throwable t, Integer status, final String readableMessage) {
 
@@ -355,6 +377,42 @@ public class ImageViewActivity extends BaseActivity implements RedditPostView.Po
 		v.getLayoutParams().height = ViewGroup.LayoutParams.MATCH_PARENT;
 	}
 
+	// While streaming, the request is kept so that it can be cancelled if the activity is closed
+	private void startGifDecoder(final InputStream is, final boolean streaming) {
+
+		gifThread = new GifDecoderThread(is, new GifDecoderThread.OnGifLoadedListener() {
+
+			public void onGifLoaded() {
+				AndroidApi.UI_THREAD_HANDLER.post(new Runnable() {
+					public void run() {
+
+						if(mIsDestroyed) return;
+						if(!streaming) mRequest = null;
+
+						imageView = new ImageView(ImageViewActivity.this);
+						imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
+						setMainView(imageView);
+						gifThread.setView(imageView);
+
+						imageView.setOnTouchListener(new BasicGestureHandler(ImageViewActivity.this));
+					}
+				});
+			}
+
+			public void onOutOfMemory() {
+				General.quickToast(ImageViewActivity.this, R.string.imageview_oom);
+				revertToWeb();
+			}
+
+			public void onGifInvalid() {
+				General.quickToast(ImageViewActivity.this, R.string.imageview_invalid_gif);
+				revertToWeb();
+			}
+		});
+
+		gifThread.start();
+	}
+
 	protected void onImageLoaded(
 			final CacheManager.ReadableCacheFile cacheFile,
 			final String mimetype) {
@@ -541,40 +599,23 @@ public class ImageViewActivity extends BaseActivity implements RedditPostView.Po
 					}
 				});
 
-			} else {
-
-				gifThread = new GifDecoderThread(cacheFileInputStream, new GifDecoderThread.OnGifLoadedListener() {
-
-					public void onGifLoaded() {
-						AndroidApi.UI_THREAD_HANDLER.post(new Runnable() {
-							public void run() {
-
-								if(mIsDestroyed) return;
-								mRequest = null;
-
-								imageView = new ImageView(ImageViewActivity.this);
-								imageView.setScaleType(ImageView.ScaleType.FIT_CENTER);
-								setMainView(imageView);
-								gifThread.setView(imageView);
-
-								imageView.setOnTouchListener(new BasicGestureHandler(ImageViewActivity.this));
-							}
-						});
-					}
+			} else if(gifThread != null) {
 
-					public void onOutOfMemory() {
-						General.quickToast(ImageViewActivity.this, R.string.imageview_oom);
-						revertToWeb();
-					}
+				// Already playing from the partial download
+				try {
+					cacheFileInputStream.close();
+				} catch(IOException e) {
+					// Ignore
+				}
 
-					public void onGifInvalid() {
-						General.quickToast(ImageViewActivity.this, R.string.imageview_invalid_gif);
-						revertToWeb();
+				AndroidApi.UI_THREAD_HANDLER.post(new Runnable() {
+					public void run() {
+						mRequest = null;
 					}
 				});
 
-				gifThread.start();
-
+			} else {
+				startGifDecoder(cacheFileInputStream, false);
 			}
 
 		} else {
@@ -692,7 +733,8 @@ public class ImageViewActivity extends BaseActivity implements RedditPostView.Po
 		super.onDestroy();
 		mIsDestroyed = true;
 		if(mRequest != null) mRequest.cancel();
-		if(gifThread != null) gifThread.stopPlaying();
+		final GifDecoderThread thread = gifThread;
+		if(thread != null) thread.stopPlaying();
 	}
 
 	@Override
@@ -1,14 +1,10 @@
 package org.quantumbadger.redreader.adapters;
 
 import android.app.Activity;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.BaseAdapter;
 import android.widget.ListView;
-import org.quantumbadger.redreader.common.General;
 import org.quantumbadger.redreader.fragments.PostListingFragment;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedPost;
 import org.quantumbadger.redreader.views.RedditPostView;
@@ -28,33 +24,23 @@ public final class PostListingAdapter extends BaseAdapter {
 	private final ListView listViewParent;
 	private final PostListingFragment fragmentParent;
 
-	private final Handler postsAddedHandler;
-
 	public PostListingAdapter(final ListView listViewParent, final PostListingFragment fragmentParent, final Activity activity) {
 
 		this.listViewParent = listViewParent;
 		this.fragmentParent = fragmentParent;
 		mActivity = activity;
+	}
 
-		postsAddedHandler = new Handler(Looper.getMainLooper()) {
-			@Override
-			public void handleMessage(final Message msg) {
-
-				final ArrayList<RedditPreparedPost> posts = (ArrayList<RedditPreparedPost>)msg.obj;
-
-				for(final RedditPreparedPost post : posts) {
-					if(postIds.add(post.idAlone)) {
-						mPosts.add(post);
-					}
-				}
+	// Called from the UI thread
+	public void onPostsDownloaded(final ArrayList<RedditPreparedPost> posts) {
 
-				notifyDataSetChanged();
+		for(final RedditPreparedPost post : posts) {
+			if(postIds.add(post.idAlone)) {
+				mPosts.add(post);
 			}
-		};
-	}
+		}
 
-	public void onPostsDownloaded(final ArrayList<RedditPreparedPost> posts) {
-		postsAddedHandler.sendMessage(General.handlerMessage(0, posts));
+		notifyDataSetChanged();
 	}
 
 	public int getCount() {
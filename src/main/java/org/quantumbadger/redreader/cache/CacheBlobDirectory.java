@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.cache;
+
+import org.quantumbadger.redreader.common.General;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+
+// Blobs are stored in one subdirectory per leading hex digit of their hash, so that a single bucket can be listed
+// without reading the whole cache directory. Older versions stored blobs directly in the cache directory.
+public final class CacheBlobDirectory {
+
+	public static final int BUCKET_COUNT = 16;
+
+	private static final String EXTENSION = ".rr_cache_data";
+	private static final String BLOB_DIR = "rr_blobs";
+
+	private static final FilenameFilter BLOB_FILTER = new FilenameFilter() {
+		public boolean accept(final File dir, final String filename) {
+			return getHash(filename) != null;
+		}
+	};
+
+	private final File cacheDir;
+
+	public CacheBlobDirectory(final File cacheDir) {
+		this.cacheDir = cacheDir;
+	}
+
+	// Returns the name of the blob stored in the file, or null if it isn't a blob
+	public static String getHash(final String filename) {
+
+		if(!filename.endsWith(EXTENSION)) return null;
+
+		final String[] fileSplit = filename.split("\\.");
+		if(fileSplit.length != 2) return null;
+
+		return fileSplit[0];
+	}
+
+	// Hashes are upper case hex, as written by General.hexEncode()
+	public static String getBucketPrefix(final int bucket) {
+		return String.valueOf(Character.toUpperCase(Character.forDigit(bucket, 16)));
+	}
+
+	private File getBucketDir(final String prefix) {
+		return new File(new File(cacheDir, BLOB_DIR), prefix);
+	}
+
+	public File getFile(final String hash) {
+		return new File(getBucketDir(hash.substring(0, 1)), hash + EXTENSION);
+	}
+
+	public File getLegacyFile(final String hash) {
+		return new File(cacheDir, hash + EXTENSION);
+	}
+
+	// Moves a completed file to where the blob with the given hash belongs
+	public File moveIntoPlace(final File src, final String hash) throws IOException {
+
+		final File dst = getFile(hash);
+		final File bucketDir = dst.getParentFile();
+
+		if(!bucketDir.mkdirs() && !bucketDir.isDirectory()) {
+			throw new IOException("Couldn't create " + bucketDir);
+		}
+
+		General.moveFile(src, dst);
+		return dst;
+	}
+
+	public File[] listBucket(final int bucket) {
+		final File[] files = getBucketDir(getBucketPrefix(bucket)).listFiles(BLOB_FILTER);
+		return files == null ? new File[0] : files;
+	}
+
+	public File[] listLegacyFiles() {
+		final File[] files = cacheDir.listFiles(BLOB_FILTER);
+		return files == null ? new File[0] : files;
+	}
+}
@@ -17,11 +17,11 @@
 
 package org.quantumbadger.redreader.cache;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.RRTime;
@@ -41,19 +41,55 @@ final class CacheDbManager extends SQLiteOpenHelper {
 			FIELD_USER = "user",
 			FIELD_STATUS = "status",
 			FIELD_TYPE = "type",
-			FIELD_MIMETYPE = "mimetype";
+			FIELD_MIMETYPE = "mimetype",
+			FIELD_HASH = "hash",
+			FIELD_CODEC = "codec",
+			FIELD_SIZE = "size",
+			FIELD_LAST_ACCESS = "last_access";
 
 	private static final int STATUS_MOVING = 1, STATUS_DONE = 2;
 
-	private static final int CACHE_DB_VERSION = 1;
+	private static final int CACHE_DB_VERSION = 5;
+
+	private static final String[] ENTRY_FIELDS = {FIELD_ID, FIELD_URL, FIELD_USER, FIELD_SESSION, FIELD_TIMESTAMP, FIELD_STATUS, FIELD_TYPE, FIELD_MIMETYPE, FIELD_HASH, FIELD_CODEC, FIELD_SIZE};
 
 	private final Context context;
 
+	// Held by every method which modifies the table, and while using the statements and state below. Methods
+	// which only read from the table don't take it, so lookups aren't held up by writes.
+	private final Object writeLock = new Object();
+
+	// Guards the index. Always taken after writeLock, never before.
+	private final Object indexLock = new Object();
+
+	// Loaded lazily on first lookup, and kept in sync with the table by every method which modifies it
+	private CacheEntryIndex index;
+
+	// Entries which have been inserted by this process, but not yet marked as done
+	private final HashMap<Long, CacheEntry> pendingEntries = new HashMap<Long, CacheEntry>();
+
+	// Total bytes stored for each file type. Loaded lazily, and discarded after bulk deletions. Blobs are shared
+	// between entries with the same content, so each blob is counted once, against the type of the oldest entry
+	// which references it.
+	private HashMap<Integer, Long> usageByType;
+
+	private SQLiteStatement insertStatement, setDoneStatement, referenceCountStatement;
+
 	CacheDbManager(final Context context) {
 		super(context, CACHE_DB_FILENAME, null, CACHE_DB_VERSION);
 		this.context = context;
 	}
 
+	@Override
+	public void onOpen(final SQLiteDatabase db) {
+		super.onOpen(db);
+
+		// Lets lookups run alongside writes, rather than waiting for them
+		if(!db.isReadOnly()) {
+			db.enableWriteAheadLogging();
+		}
+	}
+
 	@Override
 	public void onCreate(final SQLiteDatabase db) {
 
@@ -67,6 +103,10 @@ final class CacheDbManager extends SQLiteOpenHelper {
 						"%s INTEGER," +
 						"%s INTEGER," +
 						"%s TEXT," +
+						"%s TEXT," +
+						"%s INTEGER NOT NULL DEFAULT 0," +
+						"%s INTEGER NOT NULL DEFAULT 0," +
+						"%s INTEGER NOT NULL DEFAULT 0," +
 						"UNIQUE (%s, %s, %s) ON CONFLICT REPLACE)",
 				TABLE,
 				FIELD_ID,
@@ -77,168 +117,575 @@ final class CacheDbManager extends SQLiteOpenHelper {
 				FIELD_STATUS,
 				FIELD_TYPE,
 				FIELD_MIMETYPE,
+				FIELD_HASH,
+				FIELD_CODEC,
+				FIELD_SIZE,
+				FIELD_LAST_ACCESS,
 				FIELD_USER, FIELD_URL, FIELD_SESSION);
 
 		db.execSQL(queryString);
+
+		db.execSQL(String.format("CREATE INDEX %s_%s ON %s (%s)", TABLE, FIELD_HASH, TABLE, FIELD_HASH));
+		db.execSQL(String.format("CREATE INDEX %s_%s ON %s (%s)", TABLE, FIELD_LAST_ACCESS, TABLE, FIELD_LAST_ACCESS));
+		db.execSQL(String.format("CREATE INDEX %s_%s_%s ON %s (%s, %s)", TABLE, FIELD_TYPE, FIELD_TIMESTAMP, TABLE, FIELD_TYPE, FIELD_TIMESTAMP));
 	}
 
 	@Override
 	public void onUpgrade(final SQLiteDatabase db, final int oldVersion, final int newVersion) {
-		throw new RuntimeException("Attempt to upgrade database in first version of the app!");
+
+		if(oldVersion < 2) {
+
+			// Version 1 stored files by row ID rather than by content hash. The old rows are discarded, and their
+			// files are removed by the next prune, as nothing references them.
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s TEXT", TABLE, FIELD_HASH));
+			db.execSQL(String.format("DELETE FROM %s", TABLE));
+			db.execSQL(String.format("CREATE INDEX %s_%s ON %s (%s)", TABLE, FIELD_HASH, TABLE, FIELD_HASH));
+		}
+
+		if(oldVersion < 3) {
+			// Existing entries were all stored uncompressed
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT %d",
+					TABLE, FIELD_CODEC, CacheFileCodec.NONE.dbValue));
+		}
+
+		if(oldVersion < 4) {
+			// The size of existing entries is unknown, so they don't count towards the size limit until they expire
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0", TABLE, FIELD_SIZE));
+			db.execSQL(String.format("ALTER TABLE %s ADD COLUMN %s INTEGER NOT NULL DEFAULT 0", TABLE, FIELD_LAST_ACCESS));
+			db.execSQL(String.format("UPDATE %s SET %s=%s", TABLE, FIELD_LAST_ACCESS, FIELD_TIMESTAMP));
+			db.execSQL(String.format("CREATE INDEX %s_%s ON %s (%s)", TABLE, FIELD_LAST_ACCESS, TABLE, FIELD_LAST_ACCESS));
+		}
+
+		if(oldVersion < 5) {
+			db.execSQL(String.format("CREATE INDEX %s_%s_%s ON %s (%s, %s)", TABLE, FIELD_TYPE, FIELD_TIMESTAMP, TABLE, FIELD_TYPE, FIELD_TIMESTAMP));
+		}
 	}
 
-	synchronized LinkedList<CacheEntry> select(final URI url, final String user, final UUID session) {
+	// Must be called while holding indexLock
+	private CacheEntryIndex getIndex() {
 
-		final String[] fields = {FIELD_ID, FIELD_URL, FIELD_USER, FIELD_SESSION, FIELD_TIMESTAMP, FIELD_STATUS, FIELD_TYPE, FIELD_MIMETYPE};
+		if(index != null) return index;
 
 		final SQLiteDatabase db = this.getReadableDatabase();
 
-		final String queryString;
-		final String[] queryParams;
+		final Cursor cursor = db.query(TABLE, ENTRY_FIELDS, FIELD_STATUS + "=" + STATUS_DONE, null, null, null, null);
+
+		final CacheEntryIndex result = new CacheEntryIndex();
+
+		if(cursor == null) {
+			BugReportActivity.handleGlobalError(context, "Cursor was null after query");
+			return result;
+		}
+
+		try {
+			while(cursor.moveToNext()) {
+				result.put(new CacheEntry(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		index = result;
+		return result;
+	}
+
+	LinkedList<CacheEntry> select(final URI url, final String user, final UUID session) {
+		synchronized(indexLock) {
+			return getIndex().getAll(url, user, session);
+		}
+	}
+
+	CacheEntry selectMostRecent(final URI url, final String user, final UUID session) {
+		synchronized(indexLock) {
+			return getIndex().getMostRecent(url, user, session);
+		}
+	}
+
+	long newEntry(final CacheRequest request, final UUID session, final String mimetype, final String hash,
+						final CacheFileCodec codec, final long size) throws IOException {
 
 		if(session == null) {
-			queryString = String.format("%s=%d AND %s=? AND %s=?", FIELD_STATUS, STATUS_DONE, FIELD_URL, FIELD_USER);
-			queryParams = new String[] {url.toString(), user};
+			throw new RuntimeException("No session to write");
+		}
+
+		final String url = request.url.toString();
+		final long timestamp = RRTime.utcCurrentTimeMillis();
+
+		synchronized(writeLock) {
+
+			final SQLiteDatabase db = this.getWritableDatabase();
+
+			if(insertStatement == null) {
+				insertStatement = db.compileStatement(String.format(
+						"INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s, %s, %s, %s, %s) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+						TABLE,
+						FIELD_URL,
+						FIELD_USER,
+						FIELD_SESSION,
+						FIELD_TYPE,
+						FIELD_STATUS,
+						FIELD_TIMESTAMP,
+						FIELD_LAST_ACCESS,
+						FIELD_MIMETYPE,
+						FIELD_HASH,
+						FIELD_CODEC,
+						FIELD_SIZE));
+			}
+
+			// The insert replaces any existing row for this (user, url, session), which may release that row's blob
+			HashMap<String, BlobOwner> blobOwners = null;
 
-		} else {
-			queryString = String.format("%s=%d AND %s=? AND %s=? AND %s=?", FIELD_STATUS, STATUS_DONE, FIELD_URL, FIELD_USER, FIELD_SESSION);
-			queryParams = new String[] {url.toString(), user, session.toString()};
+			if(usageByType != null) {
+
+				final HashSet<String> hashes = new HashSet<String>();
+				if(hash != null) hashes.add(hash);
+
+				final Cursor cursor = db.query(TABLE, new String[] {FIELD_HASH},
+						String.format("%s=? AND %s=? AND %s=?", FIELD_USER, FIELD_URL, FIELD_SESSION),
+						new String[] {request.user.username, url, session.toString()}, null, null, null);
+
+				try {
+					if(cursor.moveToNext() && !cursor.isNull(0)) {
+						hashes.add(cursor.getString(0));
+					}
+				} finally {
+					cursor.close();
+				}
+
+				blobOwners = getBlobOwners(db, hashes);
+			}
+
+			insertStatement.clearBindings();
+			insertStatement.bindString(1, url);
+			insertStatement.bindString(2, request.user.username);
+			insertStatement.bindString(3, session.toString());
+			insertStatement.bindLong(4, request.fileType);
+			insertStatement.bindLong(5, STATUS_MOVING);
+			insertStatement.bindLong(6, timestamp);
+			insertStatement.bindLong(7, timestamp);
+			if(mimetype != null) insertStatement.bindString(8, mimetype);
+			if(hash != null) insertStatement.bindString(9, hash);
+			insertStatement.bindLong(10, codec.dbValue);
+			insertStatement.bindLong(11, size);
+
+			final long result = insertStatement.executeInsert();
+
+			if(result < 0) throw new IOException("DB insert failed");
+
+			if(blobOwners != null) updateBlobUsage(db, blobOwners);
+
+			synchronized(indexLock) {
+				if(index != null) index.removeConflicting(url, request.user.username, session);
+			}
+
+			pendingEntries.put(result, new CacheEntry(
+					result,
+					request.url,
+					request.user.username,
+					session,
+					timestamp,
+					STATUS_MOVING,
+					request.fileType,
+					mimetype,
+					hash,
+					codec,
+					size));
+
+			return result;
 		}
+	}
 
-		final Cursor cursor = db.query(TABLE, fields, queryString, queryParams, null, null, FIELD_TIMESTAMP + " DESC");
+	void setEntryDone(final long id) {
 
-		final LinkedList<CacheEntry> result = new LinkedList<CacheEntry>();
+		synchronized(writeLock) {
 
-		// TODO can this even happen?
-		if (cursor == null) {
-			BugReportActivity.handleGlobalError(context, "Cursor was null after query");
-			return null;
+			if(setDoneStatement == null) {
+				setDoneStatement = this.getWritableDatabase().compileStatement(String.format(
+						"UPDATE %s SET %s=%d WHERE %s=?", TABLE, FIELD_STATUS, STATUS_DONE, FIELD_ID));
+			}
+
+			setDoneStatement.bindLong(1, id);
+			setDoneStatement.executeUpdateDelete();
+
+			final CacheEntry pending = pendingEntries.remove(id);
+
+			if(pending != null) {
+				synchronized(indexLock) {
+					if(index != null) {
+						index.put(new CacheEntry(
+								pending.id,
+								pending.url,
+								pending.user,
+								pending.session,
+								pending.timestamp,
+								STATUS_DONE,
+								pending.type,
+								pending.mimetype,
+								pending.hash,
+								pending.codec,
+								pending.size));
+					}
+				}
+			}
 		}
+	}
+
+	int delete(final long id) {
+
+		synchronized(writeLock) {
+
+			final SQLiteDatabase db = this.getWritableDatabase();
+
+			HashMap<String, BlobOwner> blobOwners = null;
 
-		while(cursor.moveToNext()) {
-			result.add(new CacheEntry(cursor));
+			if(usageByType != null) {
+
+				final HashSet<String> hashes = new HashSet<String>();
+
+				final Cursor cursor = db.query(TABLE, new String[] {FIELD_HASH}, FIELD_ID + "=?",
+						new String[] {String.valueOf(id)}, null, null, null);
+
+				try {
+					if(cursor.moveToNext() && !cursor.isNull(0)) {
+						hashes.add(cursor.getString(0));
+					}
+				} finally {
+					cursor.close();
+				}
+
+				blobOwners = getBlobOwners(db, hashes);
+			}
+
+			final int result = db.delete(TABLE, FIELD_ID + "=?", new String[] {String.valueOf(id)});
+
+			if(blobOwners != null) updateBlobUsage(db, blobOwners);
+
+			forgetEntry(id);
+
+			return result;
 		}
+	}
 
-		cursor.close();
+	// Must be called while holding writeLock
+	private void addUsage(final int type, final long bytes) {
 
-		return result;
+		if(usageByType == null) return;
+
+		final Long current = usageByType.get(type);
+		usageByType.put(type, (current == null ? 0 : current) + bytes);
 	}
 
-	synchronized long newEntry(final CacheRequest request, final UUID session, final String mimetype) throws IOException {
+	private static final class BlobOwner {
 
-		if(session == null) {
-			throw new RuntimeException("No session to write");
+		public final int type;
+		public final long size;
+
+		private BlobOwner(final int type, final long size) {
+			this.type = type;
+			this.size = size;
 		}
+	}
 
-		final SQLiteDatabase db = this.getWritableDatabase();
+	// Must be called while holding writeLock. Returns the oldest entry referencing each blob, or null for blobs
+	// which aren't referenced.
+	private HashMap<String, BlobOwner> getBlobOwners(final SQLiteDatabase db, final Collection<String> hashes) {
 
-		final ContentValues row = new ContentValues();
+		final HashMap<String, BlobOwner> result = new HashMap<String, BlobOwner>();
 
-		row.put(FIELD_URL, request.url.toString());
-		row.put(FIELD_USER, request.user.username);
-		row.put(FIELD_SESSION, session.toString());
-		row.put(FIELD_TYPE, request.fileType);
-		row.put(FIELD_STATUS, STATUS_MOVING);
-		row.put(FIELD_TIMESTAMP, RRTime.utcCurrentTimeMillis());
-		row.put(FIELD_MIMETYPE, mimetype);
+		for(final String hash : hashes) {
 
-		final long result = db.insert(TABLE, null, row);
+			final Cursor cursor = db.query(TABLE, new String[] {FIELD_TYPE, FIELD_SIZE}, FIELD_HASH + "=?",
+					new String[] {hash}, null, null, FIELD_ID + " ASC", "1");
 
-		if(result < 0) throw new IOException("DB insert failed");
+			try {
+				result.put(hash, cursor.moveToNext() ? new BlobOwner(cursor.getInt(0), cursor.getLong(1)) : null);
+			} finally {
+				cursor.close();
+			}
+		}
 
 		return result;
 	}
 
-	synchronized void setEntryDone(final long id) {
-		final SQLiteDatabase db = this.getWritableDatabase();
+	// Must be called while holding writeLock, after modifying the table. Moves each blob's size from its previous
+	// owner to its current one, so a blob only stops counting once its last reference is gone.
+	private void updateBlobUsage(final SQLiteDatabase db, final HashMap<String, BlobOwner> previousOwners) {
+
+		final HashMap<String, BlobOwner> currentOwners = getBlobOwners(db, previousOwners.keySet());
+
+		for(final Map.Entry<String, BlobOwner> previous : previousOwners.entrySet()) {
 
-		final ContentValues row = new ContentValues();
-		row.put(FIELD_STATUS, STATUS_DONE);
+			final BlobOwner current = currentOwners.get(previous.getKey());
 
-		db.update(TABLE, row, FIELD_ID + "=?", new String[] {String.valueOf(id)});
+			if(previous.getValue() != null) addUsage(previous.getValue().type, -previous.getValue().size);
+			if(current != null) addUsage(current.type, current.size);
+		}
 	}
 
-	synchronized int delete(final long id) {
-		final SQLiteDatabase db = this.getWritableDatabase();
-		return db.delete(TABLE, FIELD_ID + "=?", new String[] {String.valueOf(id)});
+	long getUsage(final int[] types) {
+
+		synchronized(writeLock) {
+
+			if(usageByType == null) {
+
+				final HashMap<Integer, Long> result = new HashMap<Integer, Long>();
+
+				// One row per blob: the oldest entry referencing it
+				final Cursor cursor = this.getReadableDatabase().rawQuery(String.format(
+						"SELECT %s, SUM(%s) FROM %s WHERE %s IN (SELECT MIN(%s) FROM %s WHERE %s IS NOT NULL GROUP BY %s) GROUP BY %s",
+						FIELD_TYPE, FIELD_SIZE, TABLE, FIELD_ID, FIELD_ID, TABLE, FIELD_HASH, FIELD_HASH, FIELD_TYPE), null);
+
+				try {
+					while(cursor.moveToNext()) {
+						result.put(cursor.getInt(0), cursor.getLong(1));
+					}
+				} finally {
+					cursor.close();
+				}
+
+				usageByType = result;
+			}
+
+			long total = 0;
+
+			for(final int type : types) {
+				final Long usage = usageByType.get(type);
+				if(usage != null) total += usage;
+			}
+
+			return total;
+		}
+	}
+
+	ArrayList<CacheEntry> getLeastRecentlyUsed(final int[] types, final int limit) {
+
+		final StringBuilder selection = new StringBuilder(FIELD_STATUS).append('=').append(STATUS_DONE)
+				.append(" AND ").append(FIELD_TYPE).append(" IN (");
+
+		for(int i = 0; i < types.length; i++) {
+			if(i > 0) selection.append(',');
+			selection.append(types[i]);
+		}
+
+		selection.append(')');
+
+		final Cursor cursor = this.getReadableDatabase().query(TABLE, ENTRY_FIELDS, selection.toString(), null, null, null,
+				FIELD_LAST_ACCESS + " ASC", String.valueOf(limit));
+
+		final ArrayList<CacheEntry> result = new ArrayList<CacheEntry>(limit);
+
+		try {
+			while(cursor.moveToNext()) {
+				result.add(new CacheEntry(cursor));
+			}
+		} finally {
+			cursor.close();
+		}
+
+		return result;
 	}
 
-	protected synchronized int deleteAllBeforeTimestamp(final long timestamp) {
-		final SQLiteDatabase db = this.getWritableDatabase();
-		return db.delete(TABLE, FIELD_TIMESTAMP + "<?", new String[] {String.valueOf(timestamp)});
+	void setLastAccess(final Collection<Long> ids, final long timestamp) {
+
+		if(ids.isEmpty()) return;
+
+		final StringBuilder query = new StringBuilder(String.format("UPDATE %s SET %s=%d WHERE %s IN (",
+				TABLE, FIELD_LAST_ACCESS, timestamp, FIELD_ID));
+
+		boolean first = true;
+
+		for(final long id : ids) {
+			if(!first) query.append(',');
+			query.append(id);
+			first = false;
+		}
+
+		query.append(')');
+
+		synchronized(writeLock) {
+			this.getWritableDatabase().execSQL(query.toString());
+		}
 	}
 
-	public synchronized ArrayList<Long> getFilesToPrune(HashSet<Long> currentFiles, final HashMap<Integer, Long> maxAge, final long defaultMaxAge) {
+	long getReferenceCount(final String hash) {
 
-		final SQLiteDatabase db = this.getWritableDatabase();
+		final SQLiteStatement statement;
 
-		final long currentTime = RRTime.utcCurrentTimeMillis();
+		synchronized(writeLock) {
 
-		final Cursor cursor = db.query(TABLE, new String[] {FIELD_ID, FIELD_TIMESTAMP, FIELD_TYPE}, null, null, null, null, null, null);
+			if(referenceCountStatement == null) {
+				referenceCountStatement = this.getWritableDatabase().compileStatement(String.format(
+						"SELECT COUNT(*) FROM %s WHERE %s=?", TABLE, FIELD_HASH));
+			}
+
+			statement = referenceCountStatement;
+		}
+
+		synchronized(statement) {
+			statement.bindString(1, hash);
+			return statement.simpleQueryForLong();
+		}
+	}
 
-		final HashSet<Long> currentEntries = new HashSet<Long>();
-		final ArrayList<Long> entriesToDelete = new ArrayList<Long>();
-		final ArrayList<Long> filesToDelete = new ArrayList<Long>(32);
+	protected int deleteAllBeforeTimestamp(final long timestamp) {
 
-		while(cursor.moveToNext()) {
+		synchronized(writeLock) {
 
-			final long id = cursor.getLong(0);
-			final long timestamp = cursor.getLong(1);
-			final int type = cursor.getInt(2);
+			final SQLiteDatabase db = this.getWritableDatabase();
+			final int result = db.delete(TABLE, FIELD_TIMESTAMP + "<?", new String[] {String.valueOf(timestamp)});
 
-			final long pruneIfBeforeMs;
+			// Rebuilt on next use
+			usageByType = null;
 
-			if(maxAge.containsKey(type)) {
-				pruneIfBeforeMs = currentTime - maxAge.get(type);
-			} else {
-				Log.e("RR DEBUG cache", "Using default age! Filetype " + type);
-				pruneIfBeforeMs = currentTime - defaultMaxAge;
+			synchronized(indexLock) {
+				index = null;
 			}
 
-			if(!currentFiles.contains(id)) {
-				entriesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED ENTRY " + id + "(type " + type + ") since it had no matching file");
+			return result;
+		}
+	}
+
+	// Returns up to "limit" entries which are older than the maximum age for their type. Served by the type/timestamp index.
+	ArrayList<CacheEntry> getExpiredEntries(final HashMap<Integer, Long> maxAge, final long defaultMaxAge, final int limit) {
+
+		final long currentTime = RRTime.utcCurrentTimeMillis();
+
+		final StringBuilder selection = new StringBuilder();
+		final StringBuilder knownTypes = new StringBuilder();
 
-			} else if(timestamp < pruneIfBeforeMs) {
-				entriesToDelete.add(id);
-				filesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED ENTRY " + id + "(type " + type + ") since was too old");
+		for(final Map.Entry<Integer, Long> typeMaxAge : maxAge.entrySet()) {
 
-			} else {
-				currentEntries.add(id);
+			if(selection.length() > 0) {
+				selection.append(" OR ");
+				knownTypes.append(',');
 			}
+
+			selection.append(String.format("(%s=%d AND %s<%d)",
+					FIELD_TYPE, typeMaxAge.getKey(), FIELD_TIMESTAMP, currentTime - typeMaxAge.getValue()));
+
+			knownTypes.append(typeMaxAge.getKey());
 		}
 
-		for(final long id : currentFiles) {
-			if(!currentEntries.contains(id)) {
-				filesToDelete.add(id);
-				//Log.i("RR DEBUG cache", "DELETED FILE " + id + " since it had no matching entry");
+		if(selection.length() > 0) selection.append(" OR ");
+
+		selection.append(String.format("(%s NOT IN (%s) AND %s<%d)",
+				FIELD_TYPE, knownTypes, FIELD_TIMESTAMP, currentTime - defaultMaxAge));
+
+		final Cursor cursor = this.getReadableDatabase().query(TABLE, ENTRY_FIELDS, selection.toString(), null, null, null,
+				null, String.valueOf(limit));
+
+		final ArrayList<CacheEntry> result = new ArrayList<CacheEntry>(limit);
+
+		try {
+			while(cursor.moveToNext()) {
+				result.add(new CacheEntry(cursor));
 			}
+		} finally {
+			cursor.close();
 		}
 
-		if(!entriesToDelete.isEmpty()) {
+		return result;
+	}
+
+	// Returns every entry whose hash starts with the given prefix, optionally including those with no hash. The range
+	// comparison is served by the hash index.
+	ArrayList<CacheEntry> getEntriesWithHashPrefix(final String prefix, final boolean includeWithoutHash) {
+
+		final String prefixEnd = prefix.substring(0, prefix.length() - 1) + (char)(prefix.charAt(prefix.length() - 1) + 1);
 
-			final StringBuilder query = new StringBuilder(String.format("DELETE FROM %s WHERE %s IN (", TABLE, FIELD_ID));
+		String selection = String.format("(%s>=? AND %s<?)", FIELD_HASH, FIELD_HASH);
+		if(includeWithoutHash) selection += String.format(" OR %s IS NULL", FIELD_HASH);
 
-			query.append(entriesToDelete.remove(entriesToDelete.size() - 1));
+		final Cursor cursor = this.getReadableDatabase().query(TABLE, ENTRY_FIELDS, selection,
+				new String[] {prefix, prefixEnd}, null, null, null);
 
-			for(final long id : entriesToDelete) {
-				query.append(",").append(id);
-				if(query.length() > 512 * 1024) break;
+		final ArrayList<CacheEntry> result = new ArrayList<CacheEntry>();
+
+		try {
+			while(cursor.moveToNext()) {
+				result.add(new CacheEntry(cursor));
 			}
+		} finally {
+			cursor.close();
+		}
+
+		return result;
+	}
+
+	// Returns the hashes of the blobs which are no longer referenced by any entry
+	ArrayList<String> deleteEntries(final List<CacheEntry> entries) {
+
+		final ArrayList<String> unreferencedBlobs = new ArrayList<String>();
+
+		if(entries.isEmpty()) return unreferencedBlobs;
+
+		final StringBuilder ids = new StringBuilder();
+		final HashSet<String> hashes = new HashSet<String>();
+
+		for(final CacheEntry entry : entries) {
+
+			if(ids.length() > 0) ids.append(',');
+			ids.append(entry.id);
 
-			query.append(')');
+			if(entry.hash != null) hashes.add(entry.hash);
+		}
+
+		synchronized(writeLock) {
+
+			final SQLiteDatabase db = this.getWritableDatabase();
+
+			db.beginTransaction();
+
+			try {
+				final HashMap<String, BlobOwner> blobOwners = usageByType != null ? getBlobOwners(db, hashes) : null;
+
+				db.execSQL(String.format("DELETE FROM %s WHERE %s IN (%s)", TABLE, FIELD_ID, ids));
+
+				if(blobOwners != null) updateBlobUsage(db, blobOwners);
+
+				for(final String hash : hashes) {
+					if(getReferenceCount(hash) == 0) {
+						unreferencedBlobs.add(hash);
+					}
+				}
+
+				db.setTransactionSuccessful();
+
+			} finally {
+				db.endTransaction();
+			}
 
-			db.execSQL(query.toString());
+			for(final CacheEntry entry : entries) {
+				forgetEntry(entry.id);
+			}
 		}
 
-		cursor.close();
+		return unreferencedBlobs;
+	}
+
+	// Must be called while holding writeLock
+	private void forgetEntry(final long id) {
 
-		return filesToDelete;
+		pendingEntries.remove(id);
+
+		synchronized(indexLock) {
+			if(index != null) index.remove(id);
+		}
 	}
 
-	public synchronized void emptyTheWholeCache() {
-		final SQLiteDatabase db = this.getWritableDatabase();
-		db.execSQL(String.format("DELETE FROM %s", TABLE));
+	public void emptyTheWholeCache() {
+
+		synchronized(writeLock) {
+
+			final SQLiteDatabase db = this.getWritableDatabase();
+			db.execSQL(String.format("DELETE FROM %s", TABLE));
+
+			pendingEntries.clear();
+			usageByType = null;
+
+			synchronized(indexLock) {
+				if(index != null) index.clear();
+			}
+		}
 	}
-}
\ No newline at end of file
+}
@@ -18,6 +18,8 @@
 package org.quantumbadger.redreader.cache;
 
 import org.quantumbadger.redreader.activities.BugReportActivity;
+import org.quantumbadger.redreader.common.Constants;
+import org.quantumbadger.redreader.common.General;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
 import org.quantumbadger.redreader.common.RRTime;
 import org.quantumbadger.redreader.http.HTTPBackend;
@@ -28,10 +30,18 @@ import org.quantumbadger.redreader.reddit.api.RedditOAuth;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.UUID;
 
 public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
+	// Large files being viewed straight away are fetched as up to this many segments in parallel
+	private static final int MAX_SEGMENTS = 3;
+	private static final long MIN_SEGMENT_BYTES = 4 * 1024 * 1024;
+
+	// Smaller images aren't worth the bookkeeping needed to resume them
+	private static final long MIN_RESUMABLE_BYTES = 1024 * 1024;
+
 	private final CacheRequest mInitiator;
 	private final CacheManager manager;
 	private final UUID session;
@@ -41,6 +51,15 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 	private final PrioritisedDownloadQueue mQueue;
 
+	// Every request which is waiting on this download, including the initiator. Requests for the same data
+	// which arrive while this download is in flight are attached here rather than downloading it again.
+	private final ArrayList<CacheRequest> mRequests = new ArrayList<CacheRequest>(2);
+
+	private boolean mStarted = false, mDownloadStarted = false, mFinished = false;
+	private ResumableDownload mResumable;
+	private JsonValue mJsonValue;
+	private long mJsonTimestamp;
+
 	public CacheDownload(final CacheRequest initiator, final CacheManager manager, final PrioritisedDownloadQueue queue) {
 
 		this.mInitiator = initiator;
@@ -48,8 +67,11 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 		this.manager = manager;
 		this.mQueue = queue;
 
-		if(!initiator.setDownload(this)) {
-			cancel();
+		if(initiator.setDownload(this)) {
+			mRequests.add(initiator);
+		} else {
+			mCancelled = true;
+			notifyCancelledAsync(initiator);
 		}
 
 		if(initiator.requestSession != null) {
@@ -58,26 +80,186 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 			session = UUID.randomUUID();
 		}
 
-		mRequest = new OKHTTPBackend().prepareRequest(
+		mRequest = OKHTTPBackend.getHttpBackend().prepareRequest(
 				initiator.context,
 				new HTTPBackend.RequestDetails(mInitiator.url, mInitiator.postFields));
 	}
 
-	public synchronized void cancel() {
+	// Returns false if the request can't share this download, and needs one of its own
+	boolean attach(final CacheRequest request) {
+
+		final boolean downloadStarted;
+		final JsonValue jsonValue;
+		final long jsonTimestamp;
+
+		synchronized(this) {
+
+			if(mFinished || mCancelled) return false;
+
+			if(request.isJson != mInitiator.isJson
+					|| request.cache != mInitiator.cache
+					|| request.isJsonStreamed() != mInitiator.isJsonStreamed()
+					|| (request.isJsonStreamed() && !request.cache)
+					|| (request.requestSession != null && !request.requestSession.equals(session))) {
+				return false;
+			}
+
+			if(!request.setDownload(this)) {
+				notifyCancelledAsync(request);
+				return true;
+			}
+
+			mRequests.add(request);
+
+			downloadStarted = mDownloadStarted;
+			jsonValue = mJsonValue;
+			jsonTimestamp = mJsonTimestamp;
+		}
+
+		// Catch the new request up on anything it missed
+
+		if(downloadStarted) {
+			request.notifyDownloadStarted();
+		}
+
+		if(jsonValue != null) {
+			request.notifyJsonParseStarted(jsonValue, jsonTimestamp, session, false);
+		}
+
+		return true;
+	}
+
+	CacheRequest getInitiator() {
+		return mInitiator;
+	}
+
+	synchronized boolean isStarted() {
+		return mStarted;
+	}
+
+	// Called when the priority of an attached request changes
+	void onRequestPriorityChanged() {
+		mQueue.onPriorityChanged(this);
+	}
+
+	void cancel(final CacheRequest request) {
+		cancel(request, false);
+	}
+
+	// Detaches the request, unless the download has already started. Returns true if the request was detached.
+	boolean cancelIfNotStarted(final CacheRequest request) {
+		return cancel(request, true);
+	}
+
+	private boolean cancel(final CacheRequest request, final boolean onlyIfNotStarted) {
+
+		final boolean cancelDownload;
+		final ResumableDownload resumable;
+
+		synchronized(this) {
+			if(onlyIfNotStarted && mStarted) return false;
+			mRequests.remove(request);
+			cancelDownload = mRequests.isEmpty() && !mFinished;
+			if(cancelDownload) mCancelled = true;
+			resumable = mResumable;
+		}
+
+		if(cancelDownload) {
+			mQueue.onDownloadCancelled(this);
+		}
+
+		new Thread() {
+			public void run() {
+				if(cancelDownload) {
+					mRequest.cancel();
+					if(resumable != null) resumable.cancel();
+				}
+				request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+			}
+		}.start();
 
-		mCancelled = true;
+		return true;
+	}
 
+	private static void notifyCancelledAsync(final CacheRequest request) {
 		new Thread() {
 			public void run() {
-				mRequest.cancel();
-				mInitiator.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
 			}
 		}.start();
 	}
 
+	private synchronized ArrayList<CacheRequest> getRequests() {
+		return new ArrayList<CacheRequest>(mRequests);
+	}
+
+	// After this is called, no further requests can attach to this download
+	private synchronized ArrayList<CacheRequest> finishAndGetRequests() {
+		mFinished = true;
+		return new ArrayList<CacheRequest>(mRequests);
+	}
+
+	private void notifyFailure(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+		for(final CacheRequest request : finishAndGetRequests()) {
+			request.notifyFailure(type, t, httpStatus, readableMessage);
+		}
+	}
+
+	private void notifySuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final String mimetype) {
+		for(final CacheRequest request : finishAndGetRequests()) {
+			request.notifySuccess(cacheFile, timestamp, session, false, mimetype);
+		}
+	}
+
+	private void notifyProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {
+		for(final CacheRequest request : getRequests()) {
+			request.notifyProgress(authorizationInProgress, bytesRead, totalBytes);
+		}
+	}
+
+	private void notifyDownloadStarted() {
+
+		final ArrayList<CacheRequest> requests;
+
+		synchronized(this) {
+			mDownloadStarted = true;
+			requests = new ArrayList<CacheRequest>(mRequests);
+		}
+
+		for(final CacheRequest request : requests) {
+			request.notifyDownloadStarted();
+		}
+	}
+
+	private void notifyJsonParseStarted(final JsonValue value, final long timestamp) {
+
+		final ArrayList<CacheRequest> requests;
+
+		synchronized(this) {
+			mJsonValue = value;
+			mJsonTimestamp = timestamp;
+			requests = new ArrayList<CacheRequest>(mRequests);
+		}
+
+		for(final CacheRequest request : requests) {
+			request.notifyJsonParseStarted(value, timestamp, session, false);
+		}
+	}
+
 	public void doDownload() {
 
-		if(mCancelled) {
+		final boolean cancelled;
+
+		synchronized(this) {
+			// The same download may be started both from a queue and directly, if an immediate request attaches to it
+			if(mStarted) return;
+			mStarted = true;
+			cancelled = mCancelled;
+		}
+
+		if(cancelled) {
+			finishAndGetRequests();
+			mQueue.onDownloadFinished(this);
 			return;
 		}
 
@@ -86,6 +268,30 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 		} catch(Throwable t) {
 			BugReportActivity.handleGlobalError(mInitiator.context, t);
+
+		} finally {
+			finishAndGetRequests();
+			mQueue.onDownloadFinished(this);
+		}
+	}
+
+	private void onResponseHeaders(final HTTPBackend.Request request) {
+
+		if(mInitiator.queueType != CacheRequest.DownloadQueueType.REDDIT_API) return;
+
+		final String remaining = request.getResponseHeader("X-Ratelimit-Remaining");
+		final String reset = request.getResponseHeader("X-Ratelimit-Reset");
+
+		if(remaining == null || reset == null) return;
+
+		try {
+			// Reddit sends the remaining count as a decimal, and the reset time in seconds
+			mQueue.onRedditRateLimit(
+					(long)Double.parseDouble(remaining),
+					(long)(Double.parseDouble(reset) * 1000));
+
+		} catch(NumberFormatException e) {
+			// Ignore
 		}
 	}
 
@@ -97,7 +303,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 			if(accessToken == null || accessToken.isExpired()) {
 
-				mInitiator.notifyProgress(true, 0, 0);
+				notifyProgress(true, 0, 0);
 
 				final RedditOAuth.FetchAccessTokenResult result;
 
@@ -109,7 +315,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 				}
 
 				if(result.status != RedditOAuth.FetchAccessTokenResultStatus.SUCCESS) {
-					mInitiator.notifyFailure(RequestFailureType.REQUEST, result.error.t, result.error.httpStatus, result.error.title + ": " + result.error.message);
+					notifyFailure(RequestFailureType.REQUEST, result.error.t, result.error.httpStatus, result.error.title + ": " + result.error.message);
 					return;
 				}
 
@@ -121,17 +327,33 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 
 		}
 
-		mInitiator.notifyDownloadStarted();
+		notifyDownloadStarted();
+
+		if(isResumable()) {
+
+			final PartialDownload partial = PartialDownload.open(
+					General.getBestCacheDir(mInitiator.context),
+					mInitiator.url.toString());
+
+			// Null if the same URL is already being downloaded, in which case this download starts from scratch
+			if(partial != null) {
+				performResumableDownload(request, partial);
+				return;
+			}
+		}
 
 		request.executeInThisThread(new HTTPBackend.Listener() {
 			@Override
 			public void onError(final RequestFailureType failureType, final Throwable exception, final Integer httpStatus) {
-				mInitiator.notifyFailure(failureType, exception, httpStatus, "");
+				onResponseHeaders(request);
+				notifyFailure(failureType, exception, httpStatus, "");
 			}
 
 			@Override
 			public void onSuccess(final String mimetype, final Long bodyBytes, final InputStream is) {
 
+				onResponseHeaders(request);
+
 				final NotifyOutputStream cacheOs;
 				final CacheManager.WritableCacheFile cacheFile;
 				if(mInitiator.cache) {
@@ -140,7 +362,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 						cacheOs = cacheFile.getOutputStream();
 					} catch (IOException e) {
 						e.printStackTrace();
-						mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
+						notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
 						return;
 					}
 				} else {
@@ -157,7 +379,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 						bis = new BufferedInputStream(new CachingInputStream(is, cacheOs, new CachingInputStream.BytesReadListener() {
 							public void onBytesRead(final long total) {
 								if(bodyBytes != null) {
-									mInitiator.notifyProgress(false, total, bodyBytes);
+									notifyProgress(false, total, bodyBytes);
 								}
 							}
 						}), 64 * 1024);
@@ -166,31 +388,34 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 						bis = new BufferedInputStream(is, 64 * 1024);
 					}
 
+					if(mInitiator.isJsonStreamed()) {
+						readJsonStream(bis, cacheFile, mimetype);
+						return;
+					}
+
 					final JsonValue value;
 
 					try {
 						value = new JsonValue(bis);
 
-						synchronized(this) {
-							mInitiator.notifyJsonParseStarted(value, RRTime.utcCurrentTimeMillis(), session, false);
-						}
+						notifyJsonParseStarted(value, RRTime.utcCurrentTimeMillis());
 
 						value.buildInThisThread();
 
 					} catch (Throwable t) {
 						t.printStackTrace();
-						mInitiator.notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
+						notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
 						return;
 					}
 
 					if(mInitiator.cache && cacheFile != null) {
 						try {
-							mInitiator.notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, false, mimetype);
+							notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), mimetype);
 						} catch(IOException e) {
 							if(e.getMessage().contains("ENOSPC")) {
-								mInitiator.notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+								notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
 							} else {
-								mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+								notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
 							}
 						}
 					}
@@ -211,7 +436,7 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 							totalBytesRead += bytesRead;
 							cacheOs.write(buf, 0, bytesRead);
 							if(bodyBytes != null) {
-								mInitiator.notifyProgress(false, totalBytesRead, bodyBytes);
+								notifyProgress(false, totalBytesRead, bodyBytes);
 							}
 						}
 
@@ -219,46 +444,209 @@ public final class CacheDownload extends PrioritisedCachedThreadPool.Task {
 						cacheOs.close();
 
 						try {
-							mInitiator.notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), session, false, mimetype);
+							notifySuccess(cacheFile.getReadableCacheFile(), RRTime.utcCurrentTimeMillis(), mimetype);
 						} catch(IOException e) {
 							if(e.getMessage().contains("ENOSPC")) {
-								mInitiator.notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+								notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
 							} else {
-								mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+								notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
 							}
 						}
 
 					} catch(IOException e) {
 
 						if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
-							mInitiator.notifyFailure(RequestFailureType.STORAGE, e, null, "Out of disk space");
+							notifyFailure(RequestFailureType.STORAGE, e, null, "Out of disk space");
 
 						} else {
 							e.printStackTrace();
-							mInitiator.notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
+							notifyFailure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
 						}
 
 					} catch(Throwable t) {
 						t.printStackTrace();
-						mInitiator.notifyFailure(RequestFailureType.CONNECTION, t, null, "The connection was interrupted");
+						notifyFailure(RequestFailureType.CONNECTION, t, null, "The connection was interrupted");
 					}
 				}
 			}
 		});
 	}
 
+	// Large images and videos are kept when the download is interrupted, and resumed next time. Thumbnails and
+	// other small files are written straight to the cache.
+	private boolean isResumable() {
+		return mInitiator.fileType == Constants.FileType.IMAGE
+				&& !mInitiator.isJson
+				&& mInitiator.cache
+				&& mInitiator.postFields == null
+				&& mInitiator.queueType != CacheRequest.DownloadQueueType.REDDIT_API;
+	}
+
+	private void performResumableDownload(final HTTPBackend.Request request, final PartialDownload partial) {
+
+		final ResumableDownload resumable = new ResumableDownload(
+				OKHTTPBackend.getHttpBackend(),
+				mInitiator.context,
+				mInitiator.url,
+				partial,
+				mInitiator.queueType == CacheRequest.DownloadQueueType.IMMEDIATE ? MAX_SEGMENTS : 1,
+				MIN_SEGMENT_BYTES,
+				MIN_RESUMABLE_BYTES);
+
+		final boolean cancelled;
+
+		synchronized(this) {
+			mResumable = resumable;
+			cancelled = mCancelled;
+		}
+
+		try {
+			if(cancelled) return;
+
+			resumable.execute(request, new ResumableDownload.Listener() {
+
+				public void onDataAvailable(final String mimetype) {
+					for(final CacheRequest cacheRequest : getRequests()) {
+						cacheRequest.notifyPartialDataAvailable(partial, mimetype);
+					}
+				}
+
+				public void onProgress(final long bytesDone, final long totalBytes) {
+					if(totalBytes > 0) {
+						notifyProgress(false, bytesDone, totalBytes);
+					}
+				}
+
+				public void onError(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+					notifyFailure(type, t, httpStatus, readableMessage);
+				}
+
+				public void onComplete(final String mimetype) {
+
+					final CacheManager.ReadableCacheFile readableCacheFile;
+
+					try {
+						readableCacheFile = manager.adoptCacheFile(mInitiator, session, mimetype, partial.finishWriting());
+
+					} catch(IOException e) {
+						if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
+							notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+						} else {
+							notifyFailure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
+						}
+						return;
+					}
+
+					partial.delete();
+					notifySuccess(readableCacheFile, RRTime.utcCurrentTimeMillis(), mimetype);
+				}
+			});
+
+		} finally {
+			// Keeps whatever arrived for next time, unless the data has been moved into the cache
+			partial.close();
+		}
+	}
+
+	// Only one request can read the stream as it arrives. Any others read it back from the cache afterwards.
+	private void readJsonStream(final InputStream bis, final CacheManager.WritableCacheFile cacheFile, final String mimetype) {
+
+		final long jsonTimestamp = RRTime.utcCurrentTimeMillis();
+
+		final boolean initiatorAttached;
+		synchronized(this) {
+			initiatorAttached = mRequests.contains(mInitiator);
+		}
+
+		try {
+			if(initiatorAttached) {
+				mInitiator.notifyJsonStream(bis, jsonTimestamp, session, false);
+			}
+
+			// Read anything the parser didn't, so that the cache file is complete
+			final byte[] buf = new byte[8 * 1024];
+			while(bis.read(buf) >= 0) {
+				// Discard
+			}
+
+		} catch(Throwable t) {
+			t.printStackTrace();
+			notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
+			return;
+		}
+
+		if(!mInitiator.cache || cacheFile == null) return;
+
+		final CacheManager.ReadableCacheFile readableCacheFile;
+
+		try {
+			readableCacheFile = cacheFile.getReadableCacheFile();
+		} catch(IOException e) {
+			if(e.getMessage().contains("ENOSPC")) {
+				notifyFailure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+			} else {
+				notifyFailure(RequestFailureType.STORAGE, e, null, "Cache file not found");
+			}
+			return;
+		}
+
+		final long timestamp = RRTime.utcCurrentTimeMillis();
+
+		for(final CacheRequest request : finishAndGetRequests()) {
+
+			if(request != mInitiator || !initiatorAttached) {
+
+				InputStream cached = null;
+
+				try {
+					cached = readableCacheFile.getInputStream();
+					request.notifyJsonStream(cached, jsonTimestamp, session, false);
+
+				} catch(IOException e) {
+					request.notifyFailure(RequestFailureType.PARSE, e, null, "Error parsing the JSON stream");
+					continue;
+
+				} finally {
+					if(cached != null) {
+						try {
+							cached.close();
+						} catch(IOException e) {
+							// Ignore
+						}
+					}
+				}
+			}
+
+			request.notifySuccess(readableCacheFile, timestamp, session, false, mimetype);
+		}
+	}
+
 	@Override
-	public int getPrimaryPriority() {
-		return mInitiator.priority;
+	public synchronized int getPrimaryPriority() {
+		return getHighestPriorityRequest().priority;
 	}
 
 	@Override
-	public int getSecondaryPriority() {
-		return mInitiator.listId;
+	public synchronized int getSecondaryPriority() {
+		return getHighestPriorityRequest().getSecondaryPriority();
+	}
+
+	// Attached requests can raise the priority of the download above that of the initiator
+	private CacheRequest getHighestPriorityRequest() {
+
+		CacheRequest result = mInitiator;
+
+		for(final CacheRequest request : mRequests) {
+			if(request.isHigherPriorityThan(result)) {
+				result = request;
+			}
+		}
+
+		return result;
 	}
 
 	@Override
 	public void run() {
 		doDownload();
 	}
-}
\ No newline at end of file
+}
@@ -26,14 +26,17 @@ import java.util.UUID;
 public final class CacheEntry {
 
 	public final long id;
-	private final URI url;
-	private final String user;
+	final URI url;
+	final String user;
 	public final UUID session;
 
 	public final long timestamp;
 	private final int status;
-	private final int type;
+	final int type;
 	public final String mimetype;
+	final String hash;
+	final CacheFileCodec codec;
+	final long size;
 
 	CacheEntry(final Cursor cursor) {
 
@@ -45,5 +48,25 @@ public final class CacheEntry {
 		status = cursor.getInt(5);
 		type = cursor.getInt(6);
 		mimetype = cursor.getString(7);
+		hash = cursor.getString(8);
+		codec = CacheFileCodec.fromDbValue(cursor.getInt(9));
+		size = cursor.getLong(10);
+	}
+
+	CacheEntry(final long id, final URI url, final String user, final UUID session, final long timestamp,
+			   final int status, final int type, final String mimetype, final String hash,
+			   final CacheFileCodec codec, final long size) {
+
+		this.id = id;
+		this.url = url;
+		this.user = user;
+		this.session = session;
+		this.timestamp = timestamp;
+		this.status = status;
+		this.type = type;
+		this.mimetype = mimetype;
+		this.hash = hash;
+		this.codec = codec;
+		this.size = size;
 	}
 }
@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.net.URI;
+import java.util.*;
+
+// In-memory mirror of the DONE rows in the cache database, keyed by (user, url, session). Not thread safe:
+// all access happens while holding the CacheDbManager index lock.
+final class CacheEntryIndex {
+
+	private final HashMap<Key, Group> groups = new HashMap<Key, Group>();
+	private final HashMap<Long, CacheEntry> entriesById = new HashMap<Long, CacheEntry>();
+
+	private static final class Key {
+
+		private final String user;
+		private final String url;
+
+		private Key(final String user, final String url) {
+			this.user = user;
+			this.url = url;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if(this == o) return true;
+			if(!(o instanceof Key)) return false;
+
+			final Key other = (Key)o;
+			return user.equals(other.user) && url.equals(other.url);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * user.hashCode() + url.hashCode();
+		}
+	}
+
+	// All sessions for a single (user, url) pair, plus a pointer to the newest one
+	private static final class Group {
+
+		private final HashMap<UUID, CacheEntry> bySession = new HashMap<UUID, CacheEntry>(4);
+		private CacheEntry newest;
+
+		private void recalculateNewest() {
+
+			newest = null;
+
+			for(final CacheEntry entry : bySession.values()) {
+				if(newest == null || newest.timestamp < entry.timestamp) {
+					newest = entry;
+				}
+			}
+		}
+	}
+
+	private static Key keyFor(final CacheEntry entry) {
+		return new Key(entry.user, entry.url.toString());
+	}
+
+	public CacheEntry getMostRecent(final URI url, final String user, final UUID session) {
+
+		final Group group = groups.get(new Key(user, url.toString()));
+		if(group == null) return null;
+
+		if(session == null) {
+			return group.newest;
+		} else {
+			return group.bySession.get(session);
+		}
+	}
+
+	public LinkedList<CacheEntry> getAll(final URI url, final String user, final UUID session) {
+
+		final LinkedList<CacheEntry> result = new LinkedList<CacheEntry>();
+
+		final Group group = groups.get(new Key(user, url.toString()));
+		if(group == null) return result;
+
+		if(session == null) {
+			result.addAll(group.bySession.values());
+
+			Collections.sort(result, new Comparator<CacheEntry>() {
+				public int compare(final CacheEntry lhs, final CacheEntry rhs) {
+					return lhs.timestamp < rhs.timestamp ? 1 : (lhs.timestamp > rhs.timestamp ? -1 : 0);
+				}
+			});
+
+		} else {
+			final CacheEntry entry = group.bySession.get(session);
+			if(entry != null) result.add(entry);
+		}
+
+		return result;
+	}
+
+	public void put(final CacheEntry entry) {
+
+		final Key key = keyFor(entry);
+
+		Group group = groups.get(key);
+
+		if(group == null) {
+			group = new Group();
+			groups.put(key, group);
+		}
+
+		final CacheEntry replaced = group.bySession.put(entry.session, entry);
+
+		if(replaced != null) {
+			entriesById.remove(replaced.id);
+		}
+
+		entriesById.put(entry.id, entry);
+
+		if(replaced != null && replaced == group.newest) {
+			group.recalculateNewest();
+
+		} else if(group.newest == null || group.newest.timestamp < entry.timestamp) {
+			group.newest = entry;
+		}
+	}
+
+	// Mirrors the "ON CONFLICT REPLACE" behaviour of the table when a new row is inserted. Returns the replaced entry.
+	public CacheEntry removeConflicting(final String url, final String user, final UUID session) {
+
+		final Key key = new Key(user, url);
+		final Group group = groups.get(key);
+		if(group == null) return null;
+
+		final CacheEntry entry = group.bySession.get(session);
+
+		if(entry != null) {
+			removeFromGroup(key, group, entry);
+		}
+
+		return entry;
+	}
+
+	public void remove(final long id) {
+
+		final CacheEntry entry = entriesById.get(id);
+		if(entry == null) return;
+
+		final Key key = keyFor(entry);
+		final Group group = groups.get(key);
+
+		if(group != null) {
+			removeFromGroup(key, group, entry);
+		} else {
+			entriesById.remove(id);
+		}
+	}
+
+	private void removeFromGroup(final Key key, final Group group, final CacheEntry entry) {
+
+		group.bySession.remove(entry.session);
+		entriesById.remove(entry.id);
+
+		if(group.bySession.isEmpty()) {
+			groups.remove(key);
+
+		} else if(group.newest == entry) {
+			group.recalculateNewest();
+		}
+	}
+
+	public void clear() {
+		groups.clear();
+		entriesById.clear();
+	}
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+// How the data in a cache file is encoded. The value is stored in the cache database alongside each entry.
+public enum CacheFileCodec {
+
+	NONE(0),
+	GZIP(1);
+
+	public final int dbValue;
+
+	CacheFileCodec(final int dbValue) {
+		this.dbValue = dbValue;
+	}
+
+	public static CacheFileCodec fromDbValue(final int dbValue) {
+
+		for(final CacheFileCodec codec : values()) {
+			if(codec.dbValue == dbValue) return codec;
+		}
+
+		throw new RuntimeException("Unknown cache file codec: " + dbValue);
+	}
+
+	// JSON is very compressible, but images and videos are already compressed
+	public static CacheFileCodec forRequest(final boolean isJson) {
+		return isJson ? GZIP : NONE;
+	}
+
+	public OutputStream wrapOutput(final OutputStream out) throws IOException {
+
+		switch(this) {
+			case GZIP:
+				return new GZIPOutputStream(out, 8 * 1024);
+			default:
+				return out;
+		}
+	}
+
+	public InputStream wrapInput(final InputStream in) throws IOException {
+
+		switch(this) {
+			case GZIP:
+				return new GZIPInputStream(in, 8 * 1024);
+			default:
+				return in;
+		}
+	}
+
+	// Opens a cache file for parsing. Files no larger than maxInMemorySize are read in a single call, and then
+	// decoded from memory as the parser asks for more, so the first values are available straight away. Larger
+	// files are streamed from disk.
+	public InputStream openForParsing(final File file, final int maxInMemorySize) throws IOException {
+
+		final long fileLength = file.length();
+
+		if(fileLength > maxInMemorySize) {
+			final InputStream fileInputStream = new FileInputStream(file);
+
+			try {
+				return new BufferedInputStream(wrapInput(fileInputStream), 8 * 1024);
+
+			} catch(IOException e) {
+				fileInputStream.close();
+				throw e;
+			}
+		}
+
+		final InputStream in = new ByteArrayInputStream(readFile(file, (int)fileLength));
+
+		switch(this) {
+			case GZIP:
+				return new GZIPInputStream(in, 64 * 1024);
+			default:
+				return in;
+		}
+	}
+
+	private static byte[] readFile(final File file, final int length) throws IOException {
+
+		final byte[] result = new byte[length];
+		final FileInputStream fileInputStream = new FileInputStream(file);
+
+		try {
+			int offset = 0;
+
+			while(offset < length) {
+
+				final int bytesRead = fileInputStream.read(result, offset, length - offset);
+
+				if(bytesRead < 0) {
+					throw new IOException("Cache file was truncated while reading");
+				}
+
+				offset += bytesRead;
+			}
+
+		} finally {
+			fileInputStream.close();
+		}
+
+		return result;
+	}
+}
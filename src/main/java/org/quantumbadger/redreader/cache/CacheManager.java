@@ -24,32 +24,74 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import org.quantumbadger.redreader.account.RedditAccount;
 import org.quantumbadger.redreader.activities.BugReportActivity;
+import org.quantumbadger.redreader.common.Constants;
 import org.quantumbadger.redreader.common.General;
 import org.quantumbadger.redreader.common.PrefsUtility;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+import org.quantumbadger.redreader.common.PrioritisedKeyedDispatcher;
+import org.quantumbadger.redreader.common.RRTime;
+import org.quantumbadger.redreader.common.TriggerableThread;
+import org.quantumbadger.redreader.common.UniqueSynchronizedQueue;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 
 import java.io.*;
 import java.net.URI;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // TODO consider moving to service
 public final class CacheManager {
 
-	private static final String ext = ".rr_cache_data", tempExt = ".rr_cache_data_tmp";
+	private static final String tempExt = ".rr_cache_data_tmp";
 
 	private static final AtomicBoolean isAlreadyInitialized = new AtomicBoolean(false);
 	private final CacheDbManager dbManager;
 
-	private final PriorityBlockingQueue<CacheRequest> requests = new PriorityBlockingQueue<CacheRequest>();
+	private static final int REQUEST_DISPATCH_THREADS = 3;
+
+	private final RequestDispatcher requestDispatcher;
 
 	private final PrioritisedDownloadQueue downloadQueue;
 	private final PrioritisedCachedThreadPool mDiskCacheThreadPool = new PrioritisedCachedThreadPool(2, "Disk Cache");
 
 	private final Context context;
 
+	// Held while a blob is being created or deleted
+	private final Object mBlobLock = new Object();
+
+	// Once a size limit is exceeded, entries are evicted until usage falls to this fraction of the limit
+	private static final double EVICTION_TARGET = 0.9;
+	private static final int EVICTION_BATCH_SIZE = 32;
+
+	private final AtomicBoolean mEvictionQueued = new AtomicBoolean(false);
+
+	private static final int PRUNE_BATCH_SIZE = 256;
+	private static final String PREFS_ORPHAN_SCAN_BUCKET = "cache_orphan_scan_bucket";
+	private static final String PREFS_LEGACY_BLOBS_MIGRATED = "cache_legacy_blobs_migrated";
+
+	// Until this is set, blobs may still be found directly in the cache directory
+	private volatile boolean mLegacyBlobsMigrated;
+
+	private final AtomicBoolean mPruneRunning = new AtomicBoolean(false);
+
+	// Interrupted downloads are kept this long for resuming
+	private static final long PARTIAL_DOWNLOAD_MAX_AGE = 3L * 24L * 60L * 60L * 1000L;
+
+	// Cached JSON files up to this size are read into memory in one go before parsing
+	private static final int MAX_IN_MEMORY_JSON_FILE_SIZE = 4 * 1024 * 1024;
+
+	// Last access times are written to the database in batches
+	private final UniqueSynchronizedQueue<Long> mAccessedEntries = new UniqueSynchronizedQueue<Long>();
+	private final TriggerableThread mAccessTimeWriter = new TriggerableThread(new Runnable() {
+		public void run() {
+			writeAccessTimes();
+		}
+	}, 5000);
+
 	private static CacheManager singleton;
 
 	public static synchronized CacheManager getInstance(final Context context) {
@@ -65,41 +107,26 @@ public final class CacheManager {
 
 		this.context = context;
 
+		mLegacyBlobsMigrated = PreferenceManager.getDefaultSharedPreferences(context)
+				.getBoolean(PREFS_LEGACY_BLOBS_MIGRATED, false);
+
 		dbManager = new CacheDbManager(context);
 
 		downloadQueue = new PrioritisedDownloadQueue(context);
 
-		final RequestHandlerThread requestHandler = new RequestHandlerThread();
-		requestHandler.start();
+		requestDispatcher = new RequestDispatcher();
 	}
 
-	private Long isCacheFile(final String file) {
-
-		if(!file.endsWith(ext)) return null;
+	private CacheBlobDirectory[] getBlobDirectories() {
 
-		final String[] fileSplit = file.split("\\.");
-		if(fileSplit.length != 2) return null;
+		final File externalCacheDir = context.getExternalCacheDir();
+		final File internalCacheDir = context.getCacheDir();
 
-		try {
-			return Long.parseLong(fileSplit[0]);
-		} catch(Exception e) {
-			return null;
+		if(externalCacheDir == null) {
+			return new CacheBlobDirectory[] {new CacheBlobDirectory(internalCacheDir)};
 		}
-	}
-
-	private void getCacheFileList(final File dir, final HashSet<Long> currentFiles) {
-
-		final String[] list = dir.list();
-		if(list == null) return;
-
-		for(final String file : list) {
 
-			final Long cacheFileId = isCacheFile(file);
-
-			if(cacheFileId != null) {
-				currentFiles.add(cacheFileId);
-			}
-		}
+		return new CacheBlobDirectory[] {new CacheBlobDirectory(externalCacheDir), new CacheBlobDirectory(internalCacheDir)};
 	}
 
 	private static void pruneTemp(final File dir) {
@@ -113,6 +140,8 @@ public final class CacheManager {
 				new File(dir, file).delete();
 			}
 		}
+
+		PartialDownload.prune(dir, PARTIAL_DOWNLOAD_MAX_AGE);
 	}
 
 	public void pruneTemp() {
@@ -129,39 +158,233 @@ public final class CacheManager {
 		}
 	}
 
-	public synchronized void pruneCache() {
+	public void pruneCache() {
+
+		if(!mPruneRunning.compareAndSet(false, true)) return;
 
 		try {
 
-			final HashSet<Long> currentFiles = new HashSet<Long>(128);
+			final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+			final HashMap<Integer, Long> maxAge = PrefsUtility.pref_cache_maxage(context, prefs);
+
+			final CachePruner.Stats stats = new CachePruner<CacheEntry>(mBlobLock, PRUNE_BATCH_SIZE) {
+
+				@Override
+				protected List<CacheEntry> getExpiredEntries(final int limit) {
+					return dbManager.getExpiredEntries(maxAge, 72, limit);
+				}
+
+				@Override
+				protected Collection<String> deleteEntries(final List<CacheEntry> entries) {
+					return dbManager.deleteEntries(entries);
+				}
+
+				@Override
+				protected void deleteBlob(final String hash) {
+					final File file = getExistingCacheFile(hash);
+					if(file != null) file.delete();
+				}
+			}.prune();
+
+			Log.i("CacheManager", String.format("Pruned %d entries and %d files in %d batches, longest pause %d ms",
+					stats.entriesDeleted, stats.blobsDeleted, stats.batches, stats.maxPauseNanos / 1000000));
+
+			reconcileOrphanedFiles(prefs);
+
+		} catch(Throwable t) {
+			BugReportActivity.handleGlobalError(context, t);
+
+		} finally {
+			mPruneRunning.set(false);
+		}
+	}
+
+	// Blobs written by older versions are moved into their buckets once, a batch at a time
+	private void migrateLegacyBlobs(final SharedPreferences prefs) throws IOException {
+
+		if(mLegacyBlobsMigrated) return;
+
+		int filesMoved = 0;
+
+		for(final CacheBlobDirectory dir : getBlobDirectories()) {
+
+			final File[] files = dir.listLegacyFiles();
+
+			for(int i = 0; i < files.length; i += PRUNE_BATCH_SIZE) {
 
-			final File externalCacheDir = context.getExternalCacheDir();
-			final File internalCacheDir = context.getCacheDir();
+				synchronized(mBlobLock) {
+					for(int j = i; j < Math.min(i + PRUNE_BATCH_SIZE, files.length); j++) {
 
-			if(externalCacheDir != null) {
-				getCacheFileList(externalCacheDir, currentFiles);
+						final String hash = CacheBlobDirectory.getHash(files[j].getName());
+
+						if(dir.getFile(hash).exists()) {
+							files[j].delete();
+						} else {
+							dir.moveIntoPlace(files[j], hash);
+							filesMoved++;
+						}
+					}
+				}
+			}
+		}
+
+		prefs.edit().putBoolean(PREFS_LEGACY_BLOBS_MIGRATED, true).commit();
+		mLegacyBlobsMigrated = true;
+
+		Log.i("CacheManager", "Moved " + filesMoved + " blobs into buckets");
+	}
+
+	// Each prune reconciles one bucket of blobs with the database. Files which no entry refers to (for example, left
+	// behind when the app was killed mid-write) are removed, as are entries whose file has gone missing. Only that
+	// bucket's directory is listed, so each prune reads a sixteenth of the blobs.
+	private void reconcileOrphanedFiles(final SharedPreferences prefs) throws IOException {
+
+		migrateLegacyBlobs(prefs);
+
+		final int bucket = prefs.getInt(PREFS_ORPHAN_SCAN_BUCKET, 0) % CacheBlobDirectory.BUCKET_COUNT;
+
+		int filesDeleted = 0;
+
+		for(final CacheBlobDirectory dir : getBlobDirectories()) {
+
+			final File[] files = dir.listBucket(bucket);
+
+			for(int i = 0; i < files.length; i += PRUNE_BATCH_SIZE) {
+
+				synchronized(mBlobLock) {
+					for(int j = i; j < Math.min(i + PRUNE_BATCH_SIZE, files.length); j++) {
+
+						final String hash = CacheBlobDirectory.getHash(files[j].getName());
+
+						if(dbManager.getReferenceCount(hash) == 0 && files[j].delete()) {
+							filesDeleted++;
+						}
+					}
+				}
 			}
+		}
 
-			if(internalCacheDir != null) {
-				getCacheFileList(internalCacheDir, currentFiles);
+		// Entries without a hash have no file at all, so they're removed along with the first bucket
+		final ArrayList<CacheEntry> missing = new ArrayList<CacheEntry>();
+
+		for(final CacheEntry entry : dbManager.getEntriesWithHashPrefix(CacheBlobDirectory.getBucketPrefix(bucket), bucket == 0)) {
+			if(entry.hash == null || getExistingCacheFile(entry.hash) == null) {
+				missing.add(entry);
 			}
+		}
 
-			final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-			final HashMap<Integer, Long> maxAge = PrefsUtility.pref_cache_maxage(context, prefs);
+		int entriesDeleted = 0;
+
+		for(int i = 0; i < missing.size(); i += PRUNE_BATCH_SIZE) {
 
-			final ArrayList<Long> filesToDelete = dbManager.getFilesToPrune(currentFiles, maxAge, 72);
+			synchronized(mBlobLock) {
 
-			Log.i("CacheManager", "Pruning " + filesToDelete.size() + " files");
+				// The same content may have been downloaded again since the check above
+				final ArrayList<CacheEntry> batch = new ArrayList<CacheEntry>(PRUNE_BATCH_SIZE);
 
-			for(final long id : filesToDelete) {
-				final File file = getExistingCacheFile(id);
-				if(file != null) file.delete();
+				for(final CacheEntry entry : missing.subList(i, Math.min(i + PRUNE_BATCH_SIZE, missing.size()))) {
+					if(entry.hash == null || getExistingCacheFile(entry.hash) == null) {
+						batch.add(entry);
+					}
+				}
+
+				dbManager.deleteEntries(batch);
+				entriesDeleted += batch.size();
 			}
+		}
+
+		prefs.edit().putInt(PREFS_ORPHAN_SCAN_BUCKET, (bucket + 1) % CacheBlobDirectory.BUCKET_COUNT).commit();
+
+		Log.i("CacheManager", String.format("Removed %d orphaned files and %d entries with missing files from bucket %s",
+				filesDeleted, entriesDeleted, CacheBlobDirectory.getBucketPrefix(bucket)));
+	}
 
+	private void onCacheEntryAccessed(final long id) {
+		mAccessedEntries.enqueue(id);
+		mAccessTimeWriter.trigger();
+	}
+
+	private void writeAccessTimes() {
+
+		final ArrayList<Long> ids = new ArrayList<Long>();
+
+		Long id;
+		while((id = mAccessedEntries.dequeue()) != null) {
+			ids.add(id);
+		}
+
+		try {
+			dbManager.setLastAccess(ids, RRTime.utcCurrentTimeMillis());
 		} catch(Throwable t) {
 			BugReportActivity.handleGlobalError(context, t);
 		}
+	}
+
+	// Called after each write. If the file type's group is over its size limit, the least recently used entries
+	// in that group are evicted in the background.
+	private void checkCacheSize(final int fileType) {
+
+		final PrefsUtility.CacheSizeGroup group = PrefsUtility.CacheSizeGroup.forFileType(fileType);
+		if(group == null) return;
+
+		final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+		final long maxSize = PrefsUtility.pref_cache_maxsize(context, prefs).get(group);
+
+		if(dbManager.getUsage(group.fileTypes) <= maxSize) return;
+
+		if(!mEvictionQueued.compareAndSet(false, true)) return;
+
+		mDiskCacheThreadPool.add(new PrioritisedCachedThreadPool.Task() {
 
+			@Override
+			public int getPrimaryPriority() {
+				return Constants.Priority.CACHE_EVICTION;
+			}
+
+			@Override
+			public int getSecondaryPriority() {
+				return 0;
+			}
+
+			@Override
+			public void run() {
+				try {
+					evictLeastRecentlyUsed(group, (long)(maxSize * EVICTION_TARGET));
+				} catch(Throwable t) {
+					BugReportActivity.handleGlobalError(context, t);
+				} finally {
+					mEvictionQueued.set(false);
+				}
+			}
+		});
+	}
+
+	private void evictLeastRecentlyUsed(final PrefsUtility.CacheSizeGroup group, final long targetSize) {
+
+		int entriesEvicted = 0;
+
+		while(dbManager.getUsage(group.fileTypes) > targetSize) {
+
+			final ArrayList<CacheEntry> entries = dbManager.getLeastRecentlyUsed(group.fileTypes, EVICTION_BATCH_SIZE);
+			if(entries.isEmpty()) break;
+
+			synchronized(mBlobLock) {
+
+				for(final CacheEntry entry : entries) {
+
+					dbManager.delete(entry.id);
+
+					if(entry.hash != null && dbManager.getReferenceCount(entry.hash) == 0) {
+						final File file = getExistingCacheFile(entry.hash);
+						if(file != null) file.delete();
+					}
+				}
+			}
+
+			entriesEvicted += entries.size();
+		}
+
+		Log.i("CacheManager", "Evicted " + entriesEvicted + " entries from " + group.name());
 	}
 
 	public synchronized void emptyTheWholeCache() {
@@ -169,13 +392,18 @@ public final class CacheManager {
 	}
 
 	public void makeRequest(final CacheRequest request) {
-		requests.put(request);
+		request.setDispatcher(requestDispatcher);
+		requestDispatcher.add(request);
 	}
 
 	public LinkedList<CacheEntry> getSessions(URI url, RedditAccount user) {
 		return dbManager.select(url, user.username, null);
 	}
 
+	public CacheEntry getMostRecentEntry(final URI url, final RedditAccount user) {
+		return dbManager.selectMostRecent(url, user.username, null);
+	}
+
 	public class WritableCacheFile {
 
 		private final NotifyOutputStream os;
@@ -190,19 +418,31 @@ public final class CacheManager {
 			final File tmpFile = new File(General.getBestCacheDir(context), UUID.randomUUID().toString() + tempExt);
 			final FileOutputStream fos = new FileOutputStream(tmpFile);
 
-			final OutputStream bufferedOs = new BufferedOutputStream(fos, 64 * 1024);
+			final MessageDigest digest;
+
+			try {
+				digest = MessageDigest.getInstance("SHA-1");
+			} catch(NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+
+			// The hash covers the bytes as stored, so blobs with different codecs never share a file
+			final CacheFileCodec codec = CacheFileCodec.forRequest(request.isJson);
+			final OutputStream encodedOs = codec.wrapOutput(new DigestOutputStream(fos, digest));
+
+			final OutputStream bufferedOs = new BufferedOutputStream(encodedOs, 64 * 1024);
 
 			final NotifyOutputStream.Listener listener = new NotifyOutputStream.Listener() {
 				public void onClose() throws IOException {
 
-					cacheFileId = dbManager.newEntry(request, session, mimetype);
+					// Files are named after their contents, so identical downloads share a single file
+					final String hash = General.hexEncode(digest.digest());
 
-					final File dstFile = new File(General.getBestCacheDir(context), cacheFileId + ext);
-					General.moveFile(tmpFile, dstFile);
+					cacheFileId = storeBlob(request, session, mimetype, hash, codec, tmpFile);
 
-					dbManager.setEntryDone(cacheFileId);
+					readableCacheFile = new ReadableCacheFile(cacheFileId, hash, codec);
 
-					readableCacheFile = new ReadableCacheFile(cacheFileId);
+					checkCacheSize(request.fileType);
 				}
 			};
 
@@ -237,26 +477,33 @@ public final class CacheManager {
 	public class ReadableCacheFile {
 
 		private final long id;
+		private final String hash;
+		private final CacheFileCodec codec;
 
-		private ReadableCacheFile(final long id) {
+		private ReadableCacheFile(final long id, final String hash, final CacheFileCodec codec) {
 			this.id = id;
+			this.hash = hash;
+			this.codec = codec;
 		}
 
+		// Returns the decoded data
 		public InputStream getInputStream() throws IOException {
-			return getCacheFileInputStream(id);
+			onCacheEntryAccessed(id);
+			return getCacheFileInputStream(hash, codec);
 		}
 
 		public Uri getUri() throws IOException {
-			return getCacheFileUri(id);
+			onCacheEntryAccessed(id);
+			return getCacheFileUri(hash);
 		}
 
 		@Override
 		public String toString() {
-			return String.format("[ReadableCacheFile : id %d]", id);
+			return String.format("[ReadableCacheFile : hash %s]", hash);
 		}
 
 		public long getSize() {
-			return getExistingCacheFile(id).length();
+			return getExistingCacheFile(hash).length();
 		}
 	}
 
@@ -264,41 +511,111 @@ public final class CacheManager {
 		return new WritableCacheFile(request, session, mimetype);
 	}
 
-	private File getExistingCacheFile(final long id) {
+	// Adds an entry for a completed file, which is moved into place (or deleted, if the same blob already exists)
+	private long storeBlob(final CacheRequest request, final UUID session, final String mimetype, final String hash,
+							final CacheFileCodec codec, final File file) throws IOException {
 
-		final File externalCacheDir = context.getExternalCacheDir();
+		synchronized(mBlobLock) {
 
-		if(externalCacheDir != null) {
-			final File fExternal = new File(externalCacheDir, id + ext);
+			final long id = dbManager.newEntry(request, session, mimetype, hash, codec, file.length());
+
+			if(getExistingCacheFile(hash) != null) {
+				file.delete();
 
-			if(fExternal.exists()) {
-				return fExternal;
+			} else {
+				new CacheBlobDirectory(General.getBestCacheDir(context)).moveIntoPlace(file, hash);
 			}
+
+			dbManager.setEntryDone(id);
+			return id;
 		}
+	}
+
+	// Takes ownership of a complete, uncompressed file in the cache directory, and moves it into the cache rather than
+	// copying it. Only reads the file, to find its hash.
+	public ReadableCacheFile adoptCacheFile(final CacheRequest request, final UUID session, final String mimetype, final File file) throws IOException {
+
+		final MessageDigest digest;
+
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch(NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		final InputStream is = new FileInputStream(file);
 
-		final File fInternal = new File(context.getCacheDir(), id + ext);
+		try {
+			final byte[] buf = new byte[64 * 1024];
+
+			int bytesRead;
+			while((bytesRead = is.read(buf)) > 0) {
+				digest.update(buf, 0, bytesRead);
+			}
 
-		if(fInternal.exists()) {
-			return fInternal;
+		} finally {
+			is.close();
+		}
+
+		final String hash = General.hexEncode(digest.digest());
+		final long id = storeBlob(request, session, mimetype, hash, CacheFileCodec.NONE, file);
+
+		checkCacheSize(request.fileType);
+
+		return new ReadableCacheFile(id, hash, CacheFileCodec.NONE);
+	}
+
+	private File getExistingCacheFile(final String hash) {
+
+		for(final CacheBlobDirectory dir : getBlobDirectories()) {
+
+			// Checked first, so that a blob which is migrated between the two checks is still found
+			if(!mLegacyBlobsMigrated) {
+				final File legacyFile = dir.getLegacyFile(hash);
+				if(legacyFile.exists()) return legacyFile;
+			}
+
+			final File file = dir.getFile(hash);
+			if(file.exists()) return file;
 		}
 
 		return null;
 	}
 
-	private InputStream getCacheFileInputStream(final long id) throws IOException {
+	private InputStream getCacheFileInputStream(final String hash, final CacheFileCodec codec) throws IOException {
+
+		final File cacheFile = getExistingCacheFile(hash);
+
+		if(cacheFile == null) {
+			return null;
+		}
+
+		final InputStream fileInputStream = new FileInputStream(cacheFile);
+
+		try {
+			return new BufferedInputStream(codec.wrapInput(fileInputStream), 8 * 1024);
+
+		} catch(IOException e) {
+			fileInputStream.close();
+			throw e;
+		}
+	}
+
+	// For cached JSON, which is parsed straight away
+	private InputStream getCacheFileParseStream(final String hash, final CacheFileCodec codec) throws IOException {
 
-		final File cacheFile = getExistingCacheFile(id);
+		final File cacheFile = getExistingCacheFile(hash);
 
 		if(cacheFile == null) {
 			return null;
 		}
 
-		return new BufferedInputStream(new FileInputStream(cacheFile), 8 * 1024);
+		return codec.openForParsing(cacheFile, MAX_IN_MEMORY_JSON_FILE_SIZE);
 	}
 
-	private Uri getCacheFileUri(final long id) throws IOException {
+	private Uri getCacheFileUri(final String hash) throws IOException {
 
-		final File cacheFile = getExistingCacheFile(id);
+		final File cacheFile = getExistingCacheFile(hash);
 
 		if(cacheFile == null) {
 			return null;
@@ -307,30 +624,48 @@ public final class CacheManager {
 		return Uri.fromFile(cacheFile);
 	}
 
-	private class RequestHandlerThread extends Thread {
+	// Requests for the same URL are handled one at a time, in priority order
+	private class RequestDispatcher extends PrioritisedKeyedDispatcher<URI, CacheRequest> {
 
-		public RequestHandlerThread() {
-			super("Request Handler Thread");
+		public RequestDispatcher() {
+			super(REQUEST_DISPATCH_THREADS, "Request Handler Thread");
 		}
 
 		@Override
-		public void run() {
-
+		protected void onWorkerStarted() {
 			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		}
 
-			try {
+		@Override
+		protected URI getKey(final CacheRequest request) {
+			return request.url;
+		}
 
-				CacheRequest request;
-				while((request = requests.take()) != null) {
-					handleRequest(request);
-				}
+		@Override
+		protected int getPrimaryPriority(final CacheRequest request) {
+			return request.priority;
+		}
 
-			} catch (InterruptedException e) {
-				throw new RuntimeException(e);
-			}
+		@Override
+		protected int getSecondaryPriority(final CacheRequest request) {
+			return request.getSecondaryPriority();
+		}
+
+		@Override
+		protected void onHandlerException(final CacheRequest request, final Throwable t) {
+			BugReportActivity.handleGlobalError(context, t);
 		}
 
-		private void handleRequest(final CacheRequest request) {
+		@Override
+		protected void handle(final CacheRequest request) {
+
+			request.setDispatcher(null);
+
+			// Cancelled while queued, for example a precache which the list has scrolled away from
+			if(request.isCancelled()) {
+				request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				return;
+			}
 
 			if(request.url == null) {
 				request.notifyFailure(RequestFailureType.MALFORMED_URL, new NullPointerException("URL was null"), null, "URL was null");
@@ -341,13 +676,12 @@ public final class CacheManager {
 
 				case NEVER: {
 
-					final LinkedList<CacheEntry> result = dbManager.select(request.url, request.user.username, request.requestSession);
+					final CacheEntry entry = dbManager.selectMostRecent(request.url, request.user.username, request.requestSession);
 
-					if(result.size() == 0) {
+					if(entry == null) {
 						request.notifyFailure(RequestFailureType.CACHE_MISS, null, null, "Could not find this data in the cache");
 
 					} else {
-						final CacheEntry entry = mostRecentFromList(result);
 						handleCacheEntryFound(entry, request);
 					}
 
@@ -356,13 +690,12 @@ public final class CacheManager {
 
 				case IF_NECESSARY: {
 
-					final LinkedList<CacheEntry> result = dbManager.select(request.url, request.user.username, request.requestSession);
+					final CacheEntry entry = dbManager.selectMostRecent(request.url, request.user.username, request.requestSession);
 
-					if(result.size() == 0) {
+					if(entry == null) {
 						queueDownload(request);
 
 					} else {
-						final CacheEntry entry = mostRecentFromList(result);
 						handleCacheEntryFound(entry, request);
 					}
 
@@ -372,34 +705,48 @@ public final class CacheManager {
 				case FORCE:
 					queueDownload(request);
 					break;
-			}
-		}
 
-		private CacheEntry mostRecentFromList(final LinkedList<CacheEntry> list) {
+				case STALE_WHILE_REVALIDATE: {
 
-			CacheEntry entry = null;
+					final CacheEntry entry = dbManager.selectMostRecent(request.url, request.user.username, request.requestSession);
 
-			for(final CacheEntry e : list) {
-				if(entry == null || entry.timestamp < e.timestamp) {
-					entry = e;
+					if(entry == null) {
+						queueDownload(request);
+
+					} else {
+						final boolean fresh = RRTime.since(entry.timestamp) < Constants.FileType.getFreshnessWindow(request.fileType);
+						handleCacheEntryFound(entry, request, !fresh);
+					}
+
+					break;
 				}
 			}
-
-			return entry;
 		}
 
 		private void queueDownload(final CacheRequest request) {
+
+			// May have been cancelled during the cache lookup
+			if(request.isCancelled()) {
+				request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+				return;
+			}
+
 			request.notifyDownloadNecessary();
 			downloadQueue.add(request, CacheManager.this);
 		}
 
 		private void handleCacheEntryFound(final CacheEntry entry, final CacheRequest request) {
+			handleCacheEntryFound(entry, request, false);
+		}
+
+		// If "revalidate" is true, a download is queued once the cached copy has been delivered
+		private void handleCacheEntryFound(final CacheEntry entry, final CacheRequest request, final boolean revalidate) {
 
-			final File cacheFile = getExistingCacheFile(entry.id);
+			final File cacheFile = getExistingCacheFile(entry.hash);
 
 			if(cacheFile == null) {
 
-				if(request.downloadType == CacheRequest.DownloadType.IF_NECESSARY) {
+				if(request.downloadType != CacheRequest.DownloadType.NEVER) {
 					queueDownload(request);
 				} else {
 					request.notifyFailure(RequestFailureType.STORAGE, null, null, "A cache entry was found in the database, but the actual data couldn't be found. Press refresh to download the content again.");
@@ -408,6 +755,19 @@ public final class CacheManager {
 				return;
 			}
 
+			// The refresh is only started once every callback for the cached copy has returned, so that none of them
+			// sees isRevalidating(). Parsed JSON is delivered twice: onJsonParseStarted, from another thread, and onSuccess.
+			final AtomicInteger deliveriesPending = new AtomicInteger(request.isJson && !request.isJsonStreamed() ? 2 : 1);
+
+			final Runnable onDelivered = new Runnable() {
+				public void run() {
+					if(revalidate && deliveriesPending.decrementAndGet() == 0) {
+						request.setRevalidating();
+						queueDownload(request);
+					}
+				}
+			};
+
 			mDiskCacheThreadPool.add(new PrioritisedCachedThreadPool.Task() {
 
 				@Override
@@ -417,27 +777,39 @@ public final class CacheManager {
 
 				@Override
 				public int getSecondaryPriority() {
-					return request.listId;
+					return request.getSecondaryPriority();
 				}
 
 				@Override
 				public void run() {
 
+					if(request.isCancelled()) {
+						request.notifyFailure(RequestFailureType.CANCELLED, null, null, "Cancelled");
+						return;
+					}
+
 					if(request.isJson) {
 
 						InputStream cacheFileInputStream = null;
 
 						try {
-							cacheFileInputStream = getCacheFileInputStream(entry.id);
+							onCacheEntryAccessed(entry.id);
+							cacheFileInputStream = getCacheFileParseStream(entry.hash, entry.codec);
 
 							if(cacheFileInputStream == null) {
 								request.notifyFailure(RequestFailureType.CACHE_MISS, null, null, "Couldn't retrieve cache file");
 								return;
 							}
 
-							final JsonValue value = new JsonValue(cacheFileInputStream);
-							request.notifyJsonParseStarted(value, entry.timestamp, entry.session, true);
-							value.buildInThisThread();
+							if(request.isJsonStreamed()) {
+								request.notifyJsonStream(cacheFileInputStream, entry.timestamp, entry.session, true);
+								cacheFileInputStream.close();
+
+							} else {
+								final JsonValue value = new JsonValue(cacheFileInputStream);
+								request.notifyJsonParseStarted(value, entry.timestamp, entry.session, true, onDelivered);
+								value.buildInThisThread();
+							}
 
 						} catch(Throwable t) {
 
@@ -449,14 +821,20 @@ public final class CacheManager {
 								}
 							}
 
-							dbManager.delete(entry.id);
+							synchronized(mBlobLock) {
+
+								dbManager.delete(entry.id);
 
-							final File existingCacheFile = getExistingCacheFile(entry.id);
-							if(existingCacheFile != null) {
-								existingCacheFile.delete();
+								// Other entries may still point at the same blob
+								if(dbManager.getReferenceCount(entry.hash) == 0) {
+									final File existingCacheFile = getExistingCacheFile(entry.hash);
+									if(existingCacheFile != null) {
+										existingCacheFile.delete();
+									}
+								}
 							}
 
-							if(request.downloadType == CacheRequest.DownloadType.IF_NECESSARY) {
+							if(request.downloadType != CacheRequest.DownloadType.NEVER) {
 								queueDownload(request);
 							} else {
 								request.notifyFailure(RequestFailureType.PARSE, t, null, "Error parsing the JSON stream");
@@ -466,7 +844,8 @@ public final class CacheManager {
 						}
 					}
 
-					request.notifySuccess(new ReadableCacheFile(entry.id), entry.timestamp, entry.session, true, entry.mimetype);
+					request.notifySuccess(new ReadableCacheFile(entry.id, entry.hash, entry.codec), entry.timestamp, entry.session, true, entry.mimetype);
+					onDelivered.run();
 				}
 			});
 		}
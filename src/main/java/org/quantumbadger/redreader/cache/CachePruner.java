@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.cache;
+
+import java.util.Collection;
+import java.util.List;
+
+// Removes expired entries a batch at a time, so that the lock is only held briefly. Each batch is committed
+// independently, so a prune which is interrupted simply continues from where it stopped on the next run.
+public abstract class CachePruner<E> {
+
+	public static final class Stats {
+		public int batches = 0;
+		public int entriesDeleted = 0;
+		public int blobsDeleted = 0;
+		public long maxPauseNanos = 0;
+		public long totalPauseNanos = 0;
+	}
+
+	private final Object lock;
+	private final int batchSize;
+
+	protected CachePruner(final Object lock, final int batchSize) {
+		this.lock = lock;
+		this.batchSize = batchSize;
+	}
+
+	// Returns up to "limit" expired entries
+	protected abstract List<E> getExpiredEntries(int limit);
+
+	// Returns the blobs which are no longer referenced after the entries are deleted
+	protected abstract Collection<String> deleteEntries(List<E> entries);
+
+	protected abstract void deleteBlob(String hash);
+
+	public final Stats prune() {
+
+		final Stats stats = new Stats();
+
+		while(!Thread.currentThread().isInterrupted()) {
+
+			final List<E> batch = getExpiredEntries(batchSize);
+			if(batch.isEmpty()) break;
+
+			final long startTime = System.nanoTime();
+
+			// The lock stops a new entry from being pointed at a blob which is about to be deleted
+			synchronized(lock) {
+
+				final Collection<String> unreferencedBlobs = deleteEntries(batch);
+
+				for(final String hash : unreferencedBlobs) {
+					deleteBlob(hash);
+				}
+
+				stats.blobsDeleted += unreferencedBlobs.size();
+			}
+
+			final long pause = System.nanoTime() - startTime;
+
+			stats.batches++;
+			stats.entriesDeleted += batch.size();
+			stats.totalPauseNanos += pause;
+			stats.maxPauseNanos = Math.max(stats.maxPauseNanos, pause);
+
+			// Let any waiting cache operations take the lock
+			Thread.yield();
+		}
+
+		return stats;
+	}
+}
@@ -22,10 +22,13 @@ import android.util.Log;
 import org.quantumbadger.redreader.account.RedditAccount;
 import org.quantumbadger.redreader.activities.BugReportActivity;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+import org.quantumbadger.redreader.common.PrioritisedKeyedDispatcher;
 import org.quantumbadger.redreader.common.RRError;
 import org.quantumbadger.redreader.http.HTTPBackend;
 import org.quantumbadger.redreader.jsonwrap.JsonValue;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.util.List;
 import java.util.UUID;
@@ -54,10 +57,26 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 	private CacheDownload download;
 	private boolean cancelled;
 
+	// Set while the request is waiting in the CacheManager's dispatcher, before it has been looked up in the cache
+	private PrioritisedKeyedDispatcher<URI, CacheRequest> dispatcher;
+
+	// Starts as the list ID, and can be changed while the request is queued
+	private volatile int secondaryPriority;
+
+	// Set once stale data has been delivered, and a refresh is in progress
+	private volatile boolean revalidating;
+
+	// Set once data or a failure has been delivered
+	private volatile boolean completed;
+
 	public final Context context;
 
 	public enum DownloadType {
-		NEVER, IF_NECESSARY, FORCE
+		NEVER, IF_NECESSARY, FORCE,
+
+		// Delivers the newest cached copy immediately, then downloads and delivers a fresh copy unless the
+		// cached one is within the freshness window for the file type
+		STALE_WHILE_REVALIDATE
 	}
 
 	public enum DownloadQueueType {
@@ -73,15 +92,73 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		return true;
 	}
 
+	// Called by CacheManager
+	synchronized void setDispatcher(final PrioritisedKeyedDispatcher<URI, CacheRequest> dispatcher) {
+		this.dispatcher = dispatcher;
+	}
+
+	// Called by CacheManager, once every callback for the cached copy has returned
+	void setRevalidating() {
+		revalidating = true;
+	}
+
+	// True if the cached copy has already been delivered, and any further updates are from the refresh
+	public final boolean isRevalidating() {
+		return revalidating;
+	}
+
+	public final boolean isCompleted() {
+		return completed;
+	}
+
+	public final synchronized boolean isCancelled() {
+		return cancelled;
+	}
+
+	// Cancels the request unless its download is already in progress. Returns true if the request was cancelled.
+	public final boolean cancelIfNotStarted() {
+
+		final CacheDownload currentDownload;
+
+		synchronized(this) {
+
+			if(completed) return false;
+
+			// Not yet queued, so no download can start for this request once it's marked as cancelled
+			if(download == null) {
+				cancelled = true;
+				return true;
+			}
+
+			currentDownload = download;
+		}
+
+		// The download decides under its own lock, so it can't start between the check and the cancellation
+		if(!currentDownload.cancelIfNotStarted(this)) return false;
+
+		synchronized(this) {
+			cancelled = true;
+			if(download == currentDownload) download = null;
+		}
+
+		return true;
+	}
+
 	// Can be called to cancel the request
-	public synchronized void cancel() {
+	public void cancel() {
 
-		cancelled = true;
+		final CacheDownload currentDownload;
 
-		if(download != null) {
-			download.cancel();
+		synchronized(this) {
+			cancelled = true;
+			currentDownload = download;
 			download = null;
 		}
+
+		// Other requests may be sharing the download, so only this request is detached from it
+		if(currentDownload != null) {
+			currentDownload.cancel(this);
+		}
 	}
 
 	protected CacheRequest(final URI url, final RedditAccount user, final UUID requestSession, final int priority,
@@ -121,6 +198,7 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		this.requestSession = requestSession;
 		this.priority = priority;
 		this.listId = listId;
+		this.secondaryPriority = listId;
 		this.downloadType = downloadType;
 		this.fileType = fileType;
 		this.queueType = queueType;
@@ -136,12 +214,39 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 
 	// Queue helpers
 
+	public final int getSecondaryPriority() {
+		return secondaryPriority;
+	}
+
+	// Moves the request within whichever queue it's waiting in. Lower values are handled sooner.
+	public final void setSecondaryPriority(final int secondaryPriority) {
+
+		final CacheDownload currentDownload;
+		final PrioritisedKeyedDispatcher<URI, CacheRequest> currentDispatcher;
+
+		synchronized(this) {
+			if(this.secondaryPriority == secondaryPriority) return;
+			this.secondaryPriority = secondaryPriority;
+			currentDownload = download;
+			currentDispatcher = dispatcher;
+		}
+
+		// The queues only read the priority when an item is added, so they have to be told it's changed
+		if(currentDispatcher != null) {
+			currentDispatcher.updatePriority(this);
+		}
+
+		if(currentDownload != null) {
+			currentDownload.onRequestPriorityChanged();
+		}
+	}
+
 	public final boolean isHigherPriorityThan(final CacheRequest another) {
 
 		if(priority != another.priority) {
 			return priority < another.priority;
 		} else {
-			return listId < another.listId;
+			return secondaryPriority < another.secondaryPriority;
 		}
 	}
 
@@ -164,9 +269,35 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		throw new RuntimeException("CacheRequest method has not been overridden");
 	}
 
+	// JSON requests which return true here receive onJsonStream instead of onJsonParseStarted, and read the
+	// data themselves rather than having a JsonValue tree built for them
+	public boolean isJsonStreamed() {
+		return false;
+	}
+
+	// Called in the thread which is reading the data. An IOException means the data was bad or truncated.
+	public void onJsonStream(final InputStream stream, final long timestamp, final UUID session, final boolean fromCache) throws IOException {
+		throw new RuntimeException("CacheRequest method has not been overridden");
+	}
+
+	// For downloads of non-JSON files, called once data starts arriving. The partial data may already include a
+	// prefix kept from an earlier attempt, and can be read with PartialDownload.openPrefixStream while the rest
+	// arrives.
+	protected void onPartialDataAvailable(final PartialDownload partial, final String mimetype) {}
+
+	// Called instead of onFailure when the refresh after a stale delivery fails, as the stale data is still usable
+	protected void onRevalidationFailure(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+		Log.w("CacheRequest", "Failed to refresh " + url + ": " + readableMessage, t);
+	}
+
 	public final void notifyFailure(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+		completed = true;
 		try {
-			onFailure(type, t, httpStatus, readableMessage);
+			if(revalidating) {
+				onRevalidationFailure(type, t, httpStatus, readableMessage);
+			} else {
+				onFailure(type, t, httpStatus, readableMessage);
+			}
 		} catch(Throwable t1) {
 
 			Log.e("CacheRequest", "Exception thrown by onFailure", t1);
@@ -199,6 +330,7 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 	}
 
 	public final void notifySuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
+		completed = true;
 		try {
 			onSuccess(cacheFile, timestamp, session, fromCache, mimetype);
 		} catch(Throwable t1) {
@@ -216,6 +348,13 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 	}
 
 	public final void notifyJsonParseStarted(final JsonValue result, final long timestamp, final UUID session, final boolean fromCache) {
+		notifyJsonParseStarted(result, timestamp, session, fromCache, null);
+	}
+
+	// The callback is made in another thread. If given, "onDelivered" runs in that thread once it has returned.
+	final void notifyJsonParseStarted(final JsonValue result, final long timestamp, final UUID session, final boolean fromCache,
+									  final Runnable onDelivered) {
+		completed = true;
 
 		JSON_NOTIFY_THREADS.add(new PrioritisedCachedThreadPool.Task() {
 
@@ -226,7 +365,7 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 
 			@Override
 			public int getSecondaryPriority() {
-				return listId;
+				return secondaryPriority;
 			}
 
 			@Override
@@ -246,10 +385,37 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 						BugReportActivity.handleGlobalError(context, t2);
 					}
 				}
+
+				if(onDelivered != null) {
+					onDelivered.run();
+				}
 			}
 		});
 	}
 
+	// Blocks until the stream has been read. IOExceptions are passed on, so that the caller can treat the data as bad.
+	public final void notifyJsonStream(final InputStream stream, final long timestamp, final UUID session, final boolean fromCache) throws IOException {
+		completed = true;
+		try {
+			onJsonStream(stream, timestamp, session, fromCache);
+
+		} catch(IOException e) {
+			throw e;
+
+		} catch(Throwable t1) {
+
+			Log.e("CacheRequest", "Exception thrown by onJsonStream", t1);
+
+			try {
+				onCallbackException(t1);
+			} catch(Throwable t2) {
+				Log.e("CacheRequest", "Exception thrown by onCallbackException", t2);
+				BugReportActivity.addGlobalError(new RRError(null, null, t1));
+				BugReportActivity.handleGlobalError(context, t2);
+			}
+		}
+	}
+
 	public final void notifyDownloadNecessary() {
 		try {
 			onDownloadNecessary();
@@ -267,6 +433,23 @@ public abstract class CacheRequest implements Comparable<CacheRequest> {
 		}
 	}
 
+	public final void notifyPartialDataAvailable(final PartialDownload partial, final String mimetype) {
+		try {
+			onPartialDataAvailable(partial, mimetype);
+		} catch(Throwable t1) {
+
+			Log.e("CacheRequest", "Exception thrown by onPartialDataAvailable", t1);
+
+			try {
+				onCallbackException(t1);
+			} catch(Throwable t2) {
+				Log.e("CacheRequest", "Exception thrown by onCallbackException", t2);
+				BugReportActivity.addGlobalError(new RRError(null, null, t1));
+				BugReportActivity.handleGlobalError(context, t2);
+			}
+		}
+	}
+
 	public final void notifyDownloadStarted() {
 		try {
 			onDownloadStarted();
@@ -0,0 +1,508 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.cache;
+
+import org.quantumbadger.redreader.common.General;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+// The part of a non-JSON download which has arrived so far, kept on disk so that an interrupted download can be
+// resumed with a range request. The data may be fetched as several segments at once, each of which is written
+// at its own offset in the file.
+public final class PartialDownload {
+
+	private static final String DATA_EXT = ".rr_partial_data", META_EXT = ".rr_partial_meta", TMP_EXT = ".tmp";
+
+	private static final int META_MAGIC = 0x52525044, META_VERSION = 1;
+
+	// The metadata is rewritten after this much data, so at most this much is downloaded again after a crash
+	private static final long META_SAVE_INTERVAL_BYTES = 512 * 1024;
+
+	// Only one download of each URL may use the files at once
+	private static final HashSet<String> sOpenKeys = new HashSet<String>();
+
+	private static final class Segment {
+
+		private final long start;
+
+		// Exclusive, or -1 if the length of the data isn't known
+		private long end;
+
+		private long written;
+
+		private Segment(final long start, final long end, final long written) {
+			this.start = start;
+			this.end = end;
+			this.written = written;
+		}
+
+		private boolean isComplete() {
+			return end >= 0 && start + written >= end;
+		}
+	}
+
+	private final String mKey, mUrl;
+	private final File mDataFile, mMetaFile;
+
+	private String mValidator, mMimetype;
+	private long mTotalLength = -1;
+	private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+
+	private RandomAccessFile mFile;
+	private long mUnsavedBytes = 0;
+	private boolean mClosed = false;
+
+	private PartialDownload(final File dir, final String url) {
+		mUrl = url;
+		mKey = General.sha1(url.getBytes());
+		mDataFile = new File(dir, mKey + DATA_EXT);
+		mMetaFile = new File(dir, mKey + META_EXT);
+	}
+
+	// Returns null if another download of the same URL is already using the files
+	public static PartialDownload open(final File dir, final String url) {
+
+		final PartialDownload result = new PartialDownload(dir, url);
+
+		synchronized(sOpenKeys) {
+			if(!sOpenKeys.add(result.mKey)) return null;
+		}
+
+		try {
+			if(!result.readMeta()) {
+				result.mDataFile.delete();
+				result.mMetaFile.delete();
+			}
+
+		} catch(IOException e) {
+			result.clearState();
+			result.mDataFile.delete();
+			result.mMetaFile.delete();
+		}
+
+		return result;
+	}
+
+	// Deletes partial downloads which haven't been touched for the given time
+	public static void prune(final File dir, final long maxAgeMillis) {
+
+		final String[] list = dir.list();
+		if(list == null) return;
+
+		final long now = System.currentTimeMillis();
+
+		for(final String file : list) {
+
+			if(!file.endsWith(DATA_EXT) && !file.endsWith(META_EXT) && !file.endsWith(META_EXT + TMP_EXT)) continue;
+
+			final String key = file.substring(0, file.indexOf('.'));
+
+			synchronized(sOpenKeys) {
+				if(sOpenKeys.contains(key)) continue;
+
+				final File f = new File(dir, file);
+
+				if(now - f.lastModified() > maxAgeMillis) {
+					f.delete();
+				}
+			}
+		}
+	}
+
+	private void clearState() {
+		mValidator = null;
+		mMimetype = null;
+		mTotalLength = -1;
+		mSegments.clear();
+	}
+
+	private boolean readMeta() throws IOException {
+
+		if(!mMetaFile.exists() || !mDataFile.exists()) return false;
+
+		final DataInputStream dis = new DataInputStream(new FileInputStream(mMetaFile));
+
+		try {
+			if(dis.readInt() != META_MAGIC || dis.readInt() != META_VERSION) return false;
+			if(!mUrl.equals(dis.readUTF())) return false;
+
+			mValidator = dis.readUTF();
+			mMimetype = dis.readBoolean() ? dis.readUTF() : null;
+			mTotalLength = dis.readLong();
+
+			final int segmentCount = dis.readInt();
+			long dataEnd = 0;
+
+			for(int i = 0; i < segmentCount; i++) {
+				final Segment segment = new Segment(dis.readLong(), dis.readLong(), dis.readLong());
+				mSegments.add(segment);
+
+				if(segment.written > 0) {
+					dataEnd = Math.max(dataEnd, segment.start + segment.written);
+				}
+			}
+
+			// The metadata is only written after the data it describes
+			if(mDataFile.length() < dataEnd) {
+				clearState();
+				return false;
+			}
+
+			return true;
+
+		} finally {
+			dis.close();
+		}
+	}
+
+	private void writeMeta() throws IOException {
+
+		final File tmpFile = new File(mMetaFile.getPath() + TMP_EXT);
+		final DataOutputStream dos = new DataOutputStream(new FileOutputStream(tmpFile));
+
+		try {
+			dos.writeInt(META_MAGIC);
+			dos.writeInt(META_VERSION);
+			dos.writeUTF(mUrl);
+			dos.writeUTF(mValidator);
+
+			dos.writeBoolean(mMimetype != null);
+			if(mMimetype != null) dos.writeUTF(mMimetype);
+
+			dos.writeLong(mTotalLength);
+			dos.writeInt(mSegments.size());
+
+			for(final Segment segment : mSegments) {
+				dos.writeLong(segment.start);
+				dos.writeLong(segment.end);
+				dos.writeLong(segment.written);
+			}
+
+		} finally {
+			dos.close();
+		}
+
+		if(!tmpFile.renameTo(mMetaFile)) {
+			tmpFile.delete();
+			throw new IOException("Could not save partial download metadata");
+		}
+
+		mUnsavedBytes = 0;
+	}
+
+	private RandomAccessFile getFile() throws IOException {
+		if(mFile == null) mFile = new RandomAccessFile(mDataFile, "rw");
+		return mFile;
+	}
+
+	// Data is only kept for resuming if the server identified its version of it
+	public synchronized boolean canResume() {
+		return mValidator != null && !mSegments.isEmpty() && getBytesDone() > 0;
+	}
+
+	// Discards any existing data, and starts again with a single segment covering everything
+	public synchronized void reset(final String validator, final String mimetype, final long totalLength) throws IOException {
+
+		mValidator = validator;
+		mMimetype = mimetype;
+		mTotalLength = totalLength;
+
+		mSegments.clear();
+		mSegments.add(new Segment(0, totalLength, 0));
+
+		getFile().setLength(0);
+
+		if(mValidator != null) {
+			writeMeta();
+		} else {
+			mMetaFile.delete();
+		}
+	}
+
+	// Splits the data into the given number of segments of roughly equal size. Must be called before any
+	// data is written.
+	public synchronized void split(final int count) {
+
+		if(mTotalLength < 0 || mSegments.size() != 1 || mSegments.get(0).written != 0) {
+			throw new IllegalStateException("Cannot split this download");
+		}
+
+		mSegments.clear();
+
+		for(int i = 0; i < count; i++) {
+			mSegments.add(new Segment((mTotalLength * i) / count, (mTotalLength * (i + 1)) / count, 0));
+		}
+	}
+
+	public synchronized String getValidator() {
+		return mValidator;
+	}
+
+	public synchronized String getMimetype() {
+		return mMimetype;
+	}
+
+	// -1 if unknown
+	public synchronized long getTotalLength() {
+		return mTotalLength;
+	}
+
+	public synchronized long getBytesDone() {
+
+		long result = 0;
+
+		for(final Segment segment : mSegments) {
+			result += segment.written;
+		}
+
+		return result;
+	}
+
+	public synchronized int getSegmentCount() {
+		return mSegments.size();
+	}
+
+	// The offset at which the rest of the segment starts
+	public synchronized long getSegmentResumeOffset(final int segment) {
+		final Segment s = mSegments.get(segment);
+		return s.start + s.written;
+	}
+
+	// Exclusive, or -1 if unknown
+	public synchronized long getSegmentEnd(final int segment) {
+		return mSegments.get(segment).end;
+	}
+
+	public synchronized boolean isSegmentComplete(final int segment) {
+		return mSegments.get(segment).isComplete();
+	}
+
+	public synchronized boolean isComplete() {
+
+		if(mSegments.isEmpty()) return false;
+
+		for(final Segment segment : mSegments) {
+			if(!segment.isComplete()) return false;
+		}
+
+		return true;
+	}
+
+	// The length of the data which is present without gaps from the start of the file
+	public synchronized long getPrefixLength() {
+
+		long result = 0;
+
+		for(final Segment segment : mSegments) {
+			if(segment.start != result) break;
+			result += segment.written;
+			if(!segment.isComplete()) break;
+		}
+
+		return result;
+	}
+
+	public synchronized void write(final int segment, final byte[] buf, final int offset, final int length) throws IOException {
+
+		if(mClosed) throw new IOException("Partial download closed");
+
+		final Segment s = mSegments.get(segment);
+
+		if(s.end >= 0 && s.start + s.written + length > s.end) {
+			throw new IOException("Data past the end of the segment");
+		}
+
+		final RandomAccessFile file = getFile();
+		file.seek(s.start + s.written);
+		file.write(buf, offset, length);
+
+		s.written += length;
+		mUnsavedBytes += length;
+
+		if(mValidator != null && mUnsavedBytes >= META_SAVE_INTERVAL_BYTES) {
+			writeMeta();
+		}
+
+		notifyAll();
+	}
+
+	// For data of unknown length, called when the server has sent all of it
+	public synchronized void onEndOfData() {
+
+		if(mSegments.size() != 1) throw new IllegalStateException("Data of unknown length must be a single segment");
+
+		final Segment segment = mSegments.get(0);
+		segment.end = segment.written;
+		mTotalLength = segment.written;
+
+		notifyAll();
+	}
+
+	public File getDataFile() {
+		return mDataFile;
+	}
+
+	// Keeps the data for resuming later, if possible, and releases the files
+	public synchronized void close() {
+
+		if(mClosed) return;
+
+		try {
+			if(mFile != null) mFile.close();
+
+			if(canResume()) {
+				writeMeta();
+			} else {
+				mDataFile.delete();
+				mMetaFile.delete();
+			}
+
+		} catch(IOException e) {
+			mDataFile.delete();
+			mMetaFile.delete();
+		}
+
+		release();
+	}
+
+	// Closes the data file once the download is complete, so that it can be moved into the cache rather than
+	// copied. The files stay reserved until delete() is called.
+	public synchronized File finishWriting() throws IOException {
+
+		if(mClosed || !isComplete()) throw new IOException("Download not complete");
+
+		if(mFile != null) {
+			mFile.close();
+			mFile = null;
+		}
+
+		mMetaFile.delete();
+		return mDataFile;
+	}
+
+	// Discards the data, for example once it has been moved into the cache
+	public synchronized void delete() {
+
+		if(mClosed) return;
+
+		try {
+			if(mFile != null) mFile.close();
+		} catch(IOException e) {
+			// Ignore
+		}
+
+		mDataFile.delete();
+		mMetaFile.delete();
+
+		release();
+	}
+
+	private void release() {
+
+		mClosed = true;
+		mFile = null;
+
+		synchronized(sOpenKeys) {
+			sOpenKeys.remove(mKey);
+		}
+
+		notifyAll();
+	}
+
+	// Reads the data from the start, as the prefix grows. Reads wait for more data until the download is complete,
+	// and fail if the download is closed before then.
+	public InputStream openPrefixStream() throws IOException {
+		return new PrefixInputStream(new RandomAccessFile(mDataFile, "r"));
+	}
+
+	private final class PrefixInputStream extends InputStream {
+
+		private final RandomAccessFile mReader;
+		private long mPosition = 0;
+		private boolean mStreamClosed = false;
+
+		private PrefixInputStream(final RandomAccessFile file) {
+			mReader = file;
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] buf = new byte[1];
+			return read(buf, 0, 1) < 0 ? -1 : buf[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] buf, final int offset, final int length) throws IOException {
+
+			if(length == 0) return 0;
+
+			final long available;
+
+			synchronized(PartialDownload.this) {
+
+				while(true) {
+
+					if(mStreamClosed) throw new IOException("Stream closed");
+
+					final long prefix = getPrefixLength();
+
+					if(prefix > mPosition) {
+						available = prefix - mPosition;
+						break;
+					}
+
+					if(isComplete() && mPosition >= mTotalLength) return -1;
+					if(mClosed) throw new IOException("Download did not complete");
+
+					try {
+						PartialDownload.this.wait();
+					} catch(InterruptedException e) {
+						throw new IOException("Interrupted while waiting for data");
+					}
+				}
+			}
+
+			mReader.seek(mPosition);
+			final int bytesRead = mReader.read(buf, offset, (int)Math.min(length, available));
+
+			if(bytesRead > 0) mPosition += bytesRead;
+			return bytesRead;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			synchronized(PartialDownload.this) {
+				mStreamClosed = true;
+				PartialDownload.this.notifyAll();
+			}
+
+			mReader.close();
+		}
+	}
+}
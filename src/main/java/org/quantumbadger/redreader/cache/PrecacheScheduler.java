@@ -0,0 +1,146 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.cache;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Only runs precache requests for items near the visible part of a list, nearest first. As the list scrolls, queued
+// requests are re-prioritised by their distance from the visible items. Requests which haven't started by the time
+// the list has scrolled well away from them are cancelled, and made again if the list scrolls back.
+public final class PrecacheScheduler {
+
+	public interface Precache {
+		// Makes the request with the given list ID, and returns it. Called again if the request is cancelled and later
+		// needed again. The list ID is the item's distance from the visible items, so that nearer items are handled first.
+		CacheRequest start(int listId);
+	}
+
+	private static final class Entry {
+
+		private final Precache precache;
+
+		// Null while the item is outside the window
+		private CacheRequest request;
+
+		private Entry(final Precache precache) {
+			this.precache = precache;
+		}
+	}
+
+	private final int mBehind, mAhead;
+
+	private final TreeMap<Integer, ArrayList<Entry>> mEntries = new TreeMap<Integer, ArrayList<Entry>>();
+
+	private int mFirstVisible = 0, mLastVisible = 0;
+
+	// Items up to "behind" positions before the first visible item, and "ahead" positions after the last, are
+	// precached. Requests are only cancelled once they are twice that distance away, so that small movements
+	// back and forth don't cancel and remake them.
+	public PrecacheScheduler(final int behind, final int ahead) {
+		mBehind = behind;
+		mAhead = ahead;
+	}
+
+	public synchronized void add(final int position, final Precache precache) {
+
+		final Entry entry = new Entry(precache);
+
+		ArrayList<Entry> entries = mEntries.get(position);
+
+		if(entries == null) {
+			entries = new ArrayList<Entry>(2);
+			mEntries.put(position, entries);
+		}
+
+		entries.add(entry);
+
+		if(isInWindow(position)) {
+			start(entry, position);
+		}
+	}
+
+	public synchronized void onViewportChanged(final int firstVisible, final int lastVisible) {
+
+		if(firstVisible == mFirstVisible && lastVisible == mLastVisible) return;
+
+		mFirstVisible = firstVisible;
+		mLastVisible = lastVisible;
+
+		final Iterator<Map.Entry<Integer, ArrayList<Entry>>> positions = mEntries.entrySet().iterator();
+
+		while(positions.hasNext()) {
+
+			final Map.Entry<Integer, ArrayList<Entry>> position = positions.next();
+			final boolean inWindow = isInWindow(position.getKey());
+			final boolean farAway = isFarAway(position.getKey());
+
+			final Iterator<Entry> entries = position.getValue().iterator();
+
+			while(entries.hasNext()) {
+
+				final Entry entry = entries.next();
+
+				if(entry.request != null && entry.request.isCompleted()) {
+					entries.remove();
+
+				} else if(entry.request == null) {
+					if(inWindow) start(entry, position.getKey());
+
+				} else if(!farAway) {
+					entry.request.setSecondaryPriority(getDistance(position.getKey()));
+
+				} else if(entry.request.cancelIfNotStarted()) {
+					entry.request = null;
+				}
+			}
+
+			if(position.getValue().isEmpty()) {
+				positions.remove();
+			}
+		}
+	}
+
+	private boolean isInWindow(final int position) {
+		return position >= mFirstVisible - mBehind && position <= mLastVisible + mAhead;
+	}
+
+	private boolean isFarAway(final int position) {
+		return position < mFirstVisible - 2 * mBehind || position > mLastVisible + 2 * mAhead;
+	}
+
+	// Zero for visible items
+	private int getDistance(final int position) {
+
+		if(position < mFirstVisible) {
+			return mFirstVisible - position;
+		} else if(position > mLastVisible) {
+			return position - mLastVisible;
+		} else {
+			return 0;
+		}
+	}
+
+	private void start(final Entry entry, final int position) {
+		// Passed in rather than set afterwards, as the request is queued straight away
+		entry.request = entry.precache.start(getDistance(position));
+	}
+}
@@ -19,13 +19,33 @@ package org.quantumbadger.redreader.cache;
 
 import android.content.Context;
 import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+import org.quantumbadger.redreader.common.TokenBucket;
+import org.quantumbadger.redreader.http.HTTPBackend;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 
 
 class PrioritisedDownloadQueue {
 
-	private final HashSet<CacheDownload> redditDownloadsQueued = new HashSet<CacheDownload>();
+	// The reddit API allows 60 requests a minute. Short bursts are fine, as long as the average is kept to.
+	private static final int REDDIT_BURST = 5, REDDIT_RESERVED_FOR_USER = 2, REDDIT_WORKERS = 3;
+	private static final long REDDIT_REFILL_INTERVAL_MS = 1000;
+
+	private final TokenBucket mRedditRateLimit = new TokenBucket(
+			TokenBucket.SYSTEM_CLOCK,
+			REDDIT_BURST,
+			REDDIT_REFILL_INTERVAL_MS,
+			REDDIT_RESERVED_FOR_USER);
+
+	// One worker is always left free for requests the user is waiting for
+	private final HashSet<CacheDownload> mBackgroundRedditDownloads = new HashSet<CacheDownload>();
+
+	private final PrioritisedCachedThreadPool.TaskQueue mRedditQueue = new PrioritisedCachedThreadPool.TaskQueue();
+
+	// Downloads which have been queued or started, but not yet finished
+	private final HashMap<DownloadKey, CacheDownload> mInFlight = new HashMap<DownloadKey, CacheDownload>();
 
 	private final PrioritisedCachedThreadPool mDownloadThreadPool = new PrioritisedCachedThreadPool(5, "Download");
 
@@ -33,15 +53,36 @@ class PrioritisedDownloadQueue {
 
 	public PrioritisedDownloadQueue(final Context context) {
 		mContext = context;
-		new RedditQueueProcessor().start();
+
+		for(int i = 0; i < REDDIT_WORKERS; i++) {
+			new RedditWorker(i).start();
+		}
 	}
 
 	public synchronized void add(final CacheRequest request, final CacheManager manager) {
 
+		final DownloadKey key = new DownloadKey(request);
+		final CacheDownload existing = mInFlight.get(key);
+
+		if(existing != null && existing.attach(request)) {
+
+			// An interactive request shouldn't wait behind a precache of the same data
+			if(request.queueType == CacheRequest.DownloadQueueType.IMMEDIATE && !existing.isStarted()) {
+				new CacheDownloadThread(existing, true, "Cache Download Thread: Immediate");
+			}
+
+			// The new request may have raised the priority of a queued download, for example when the user
+			// opens a post whose comments are waiting to be precached
+			onPriorityChanged(existing);
+
+			return;
+		}
+
 		final CacheDownload download = new CacheDownload(request, manager, this);
+		mInFlight.put(key, download);
 
 		if(request.queueType == CacheRequest.DownloadQueueType.REDDIT_API) {
-			redditDownloadsQueued.add(download);
+			mRedditQueue.add(download);
 			notifyAll();
 
 		} else if(request.queueType == CacheRequest.DownloadQueueType.IMMEDIATE) {
@@ -52,48 +93,152 @@ class PrioritisedDownloadQueue {
 		}
 	}
 
-	private synchronized CacheDownload getNextRedditInQueue() {
+	synchronized void onDownloadFinished(final CacheDownload download) {
+
+		final DownloadKey key = new DownloadKey(download.getInitiator());
 
-		while(redditDownloadsQueued.isEmpty()) {
-			try { wait(); } catch (InterruptedException e) { throw new RuntimeException(e); }
+		if(mInFlight.get(key) == download) {
+			mInFlight.remove(key);
 		}
+	}
 
-		CacheDownload next = null;
+	// Re-sorts the download if it's still queued
+	synchronized void onPriorityChanged(final CacheDownload download) {
 
-		for(final CacheDownload entry : redditDownloadsQueued) {
-			if(next == null || entry.isHigherPriorityThan(next)) {
-				next = entry;
-			}
+		if(mRedditQueue.updatePriority(download)) {
+			notifyAll();
+		} else {
+			mDownloadThreadPool.updatePriority(download);
+		}
+	}
+
+	// Called once every request for a download has been cancelled
+	synchronized void onDownloadCancelled(final CacheDownload download) {
+
+		// Downloads which are still queued are dropped now, rather than holding a thread when they reach the front
+		if(mRedditQueue.remove(download) || mDownloadThreadPool.remove(download)) {
+			onDownloadFinished(download);
+		}
+	}
+
+	// From the rate limit headers of a reddit API response
+	synchronized void onRedditRateLimit(final long remaining, final long resetMillis) {
+		mRedditRateLimit.onServerLimit(remaining, resetMillis);
+		notifyAll();
+	}
+
+	private synchronized void onRedditDownloadFinished(final CacheDownload download) {
+
+		if(mBackgroundRedditDownloads.remove(download)) {
+			notifyAll();
 		}
+	}
+
+	// Precaching uses positive priorities, and anything the user is waiting for uses negative ones
+	private static boolean isBackground(final CacheDownload download) {
+		return download.getPrimaryPriority() >= 0;
+	}
 
-		redditDownloadsQueued.remove(next);
+	private synchronized CacheDownload takeNextRedditDownload() throws InterruptedException {
 
-		return next;
+		while(true) {
+
+			if(mRedditQueue.isEmpty()) {
+				wait();
+				continue;
+			}
+
+			final CacheDownload next = (CacheDownload)mRedditQueue.peek();
+
+			// Already started directly by an immediate request for the same data
+			if(next.isStarted()) {
+				mRedditQueue.poll();
+				continue;
+			}
+
+			final boolean background = isBackground(next);
+
+			if(background && mBackgroundRedditDownloads.size() >= REDDIT_WORKERS - 1) {
+				wait();
+				continue;
+			}
+
+			final long delay = mRedditRateLimit.tryAcquire(background);
+
+			if(delay == 0) {
+				mRedditQueue.poll();
+				if(background) mBackgroundRedditDownloads.add(next);
+				return next;
+			}
+
+			// Anything added in the meantime may be more urgent, or allowed to use the reserved budget
+			wait(delay);
+		}
 	}
 
-	private class RedditQueueProcessor extends Thread {
+	private class RedditWorker extends Thread {
 
-		public RedditQueueProcessor() {
-			super("Reddit Queue Processor");
+		public RedditWorker(final int id) {
+			super("Reddit API Worker " + id);
+			setDaemon(true);
 		}
 
 		@Override
 		public void run() {
 
+			android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
 			while(true) {
 
-				synchronized(this) {
-					final CacheDownload download = getNextRedditInQueue();
-					new CacheDownloadThread(download, true, "Cache Download Thread: Reddit");
-				}
+				final CacheDownload download;
 
 				try {
-					sleep(1200); // Delay imposed by reddit API restrictions.
-				} catch (InterruptedException e) {
+					download = takeNextRedditDownload();
+				} catch(InterruptedException e) {
 					throw new RuntimeException(e);
 				}
+
+				try {
+					download.doDownload();
+
+				} finally {
+					onRedditDownloadFinished(download);
+				}
 			}
+		}
+	}
+
+	private static final class DownloadKey {
+
+		private final String url;
+		private final String user;
+		private final List<HTTPBackend.PostField> postFields;
+
+		private DownloadKey(final CacheRequest request) {
+			url = request.url.toString();
+			user = request.user.username;
+			postFields = request.postFields;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+
+			if(this == o) return true;
+			if(!(o instanceof DownloadKey)) return false;
 
+			final DownloadKey other = (DownloadKey)o;
+
+			return url.equals(other.url)
+					&& user.equals(other.user)
+					&& (postFields == null ? other.postFields == null : postFields.equals(other.postFields));
+		}
+
+		@Override
+		public int hashCode() {
+			int result = url.hashCode();
+			result = 31 * result + user.hashCode();
+			result = 31 * result + (postFields == null ? 0 : postFields.hashCode());
+			return result;
 		}
 	}
 }
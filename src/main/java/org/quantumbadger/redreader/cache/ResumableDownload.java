@@ -0,0 +1,410 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.cache;
+
+import android.content.Context;
+import org.quantumbadger.redreader.http.HTTPBackend;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Downloads a non-JSON file into a PartialDownload, resuming from any data kept from an earlier attempt using
+// range requests. If the server accepts ranges, large files may be fetched as several segments in parallel.
+public final class ResumableDownload {
+
+	public interface Listener {
+
+		// Data has started arriving, and any earlier data is still valid
+		void onDataAvailable(String mimetype);
+
+		void onProgress(long bytesDone, long totalBytes);
+
+		void onError(RequestFailureType type, Throwable t, Integer httpStatus, String readableMessage);
+
+		// The whole file is in the PartialDownload
+		void onComplete(String mimetype);
+	}
+
+	private static final class Failure {
+
+		private final RequestFailureType type;
+		private final Throwable t;
+		private final Integer httpStatus;
+		private final String readableMessage;
+
+		private Failure(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+			this.type = type;
+			this.t = t;
+			this.httpStatus = httpStatus;
+			this.readableMessage = readableMessage;
+		}
+	}
+
+	// Thrown when writing to the file fails, rather than reading from the connection
+	private static final class StorageException extends IOException {
+
+		private static final long serialVersionUID = 1L;
+
+		private StorageException(final IOException cause) {
+			super(cause.getMessage(), cause);
+		}
+	}
+
+	private final HTTPBackend mBackend;
+	private final Context mContext;
+	private final URI mUrl;
+	private final PartialDownload mPartial;
+
+	private final int mMaxSegments;
+	private final long mMinSegmentBytes;
+
+	// Smaller files are downloaded from scratch each time, so their progress isn't saved
+	private final long mMinResumableBytes;
+
+	private final ArrayList<HTTPBackend.Request> mRequests = new ArrayList<HTTPBackend.Request>();
+	private boolean mCancelled = false;
+
+	// Set if the server's copy changed part way through, so the data we have can't be resumed
+	private final AtomicBoolean mInvalidated = new AtomicBoolean(false);
+
+	public ResumableDownload(
+			final HTTPBackend backend,
+			final Context context,
+			final URI url,
+			final PartialDownload partial,
+			final int maxSegments,
+			final long minSegmentBytes,
+			final long minResumableBytes) {
+
+		mBackend = backend;
+		mContext = context;
+		mUrl = url;
+		mPartial = partial;
+		mMaxSegments = maxSegments;
+		mMinSegmentBytes = minSegmentBytes;
+		mMinResumableBytes = minResumableBytes;
+	}
+
+	public void cancel() {
+
+		final ArrayList<HTTPBackend.Request> requests;
+
+		synchronized(this) {
+			mCancelled = true;
+			requests = new ArrayList<HTTPBackend.Request>(mRequests);
+		}
+
+		for(final HTTPBackend.Request request : requests) {
+			request.cancel();
+		}
+	}
+
+	private synchronized boolean addRequest(final HTTPBackend.Request request) {
+		if(mCancelled) return false;
+		mRequests.add(request);
+		return true;
+	}
+
+	// Strong ETags are preferred, as weak ones can't be used to resume
+	private static String getValidator(final HTTPBackend.Request request) {
+
+		final String etag = request.getResponseHeader("ETag");
+		if(etag != null && !etag.startsWith("W/")) return etag;
+
+		return request.getResponseHeader("Last-Modified");
+	}
+
+	// Returns the first byte of a "bytes first-last/total" header, or -1 if it can't be parsed
+	private static long getContentRangeStart(final String contentRange) {
+
+		if(contentRange == null || !contentRange.startsWith("bytes ")) return -1;
+
+		final int dash = contentRange.indexOf('-');
+		if(dash < 0) return -1;
+
+		try {
+			return Long.parseLong(contentRange.substring(6, dash).trim());
+		} catch(NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private void addRangeHeaders(final HTTPBackend.Request request, final int segment) {
+
+		final long end = mPartial.getSegmentEnd(segment);
+
+		request.addHeader("Range", "bytes=" + mPartial.getSegmentResumeOffset(segment) + "-" + (end >= 0 ? String.valueOf(end - 1) : ""));
+		request.addHeader("If-Range", mPartial.getValidator());
+	}
+
+	private static Failure failureFor(final IOException e) {
+
+		if(e instanceof StorageException) {
+
+			if(e.getMessage() != null && e.getMessage().contains("ENOSPC")) {
+				return new Failure(RequestFailureType.DISK_SPACE, e, null, "Out of disk space");
+			} else {
+				return new Failure(RequestFailureType.STORAGE, e, null, "Could not access the local cache");
+			}
+
+		} else {
+			return new Failure(RequestFailureType.CONNECTION, e, null, "The connection was interrupted");
+		}
+	}
+
+	// Copies the body into the segment, until the segment is complete
+	private void readSegment(final int segment, final InputStream is, final Listener listener) throws IOException {
+
+		final byte[] buf = new byte[64 * 1024];
+		final long end = mPartial.getSegmentEnd(segment);
+
+		while(!mPartial.isSegmentComplete(segment)) {
+
+			final int maxRead = end >= 0
+					? (int)Math.min(buf.length, end - mPartial.getSegmentResumeOffset(segment))
+					: buf.length;
+
+			final int bytesRead = is.read(buf, 0, maxRead);
+
+			if(bytesRead < 0) {
+
+				if(end < 0) {
+					mPartial.onEndOfData();
+					break;
+				}
+
+				throw new IOException("Connection closed before the end of the data");
+			}
+
+			try {
+				mPartial.write(segment, buf, 0, bytesRead);
+			} catch(IOException e) {
+				throw new StorageException(e);
+			}
+
+			listener.onProgress(mPartial.getBytesDone(), mPartial.getTotalLength());
+		}
+	}
+
+	private Thread startSegmentThread(final int segment, final Listener listener, final AtomicReference<Failure> failure) {
+
+		final HTTPBackend.Request request = mBackend.prepareRequest(mContext, new HTTPBackend.RequestDetails(mUrl, null));
+		addRangeHeaders(request, segment);
+
+		final Thread thread = new Thread("Segment download") {
+			@Override
+			public void run() {
+
+				if(!addRequest(request)) {
+					failure.compareAndSet(null, new Failure(RequestFailureType.CANCELLED, null, null, "Cancelled"));
+					return;
+				}
+
+				request.executeInThisThread(new HTTPBackend.Listener() {
+
+					public void onError(final RequestFailureType failureType, final Throwable exception, final Integer httpStatus) {
+						failure.compareAndSet(null, new Failure(failureType, exception, httpStatus, ""));
+						cancel();
+					}
+
+					public void onSuccess(final String mimetype, final Long bodyBytes, final InputStream body) {
+
+						try {
+							if(getContentRangeStart(request.getResponseHeader("Content-Range"))
+									!= mPartial.getSegmentResumeOffset(segment)) {
+
+								mInvalidated.set(true);
+								failure.compareAndSet(null, new Failure(RequestFailureType.CONNECTION, null, null, "The file changed during the download"));
+								cancel();
+								return;
+							}
+
+							readSegment(segment, body, listener);
+
+						} catch(IOException e) {
+							failure.compareAndSet(null, failureFor(e));
+							cancel();
+
+						} finally {
+							try {
+								body.close();
+							} catch(IOException e) {
+								// Ignore
+							}
+						}
+					}
+				});
+			}
+		};
+
+		thread.start();
+		return thread;
+	}
+
+	public void execute(final HTTPBackend.Request request, final Listener listener) {
+
+		final boolean resuming = mPartial.canResume();
+
+		if(resuming && mPartial.isComplete()) {
+			listener.onDataAvailable(mPartial.getMimetype());
+			listener.onComplete(mPartial.getMimetype());
+			return;
+		}
+
+		int firstSegment = 0;
+
+		if(resuming) {
+
+			while(mPartial.isSegmentComplete(firstSegment)) {
+				firstSegment++;
+			}
+
+			addRangeHeaders(request, firstSegment);
+		}
+
+		if(!addRequest(request)) {
+			listener.onError(RequestFailureType.CANCELLED, null, null, "Cancelled");
+			return;
+		}
+
+		final AtomicReference<Failure> failure = new AtomicReference<Failure>();
+		final AtomicReference<String> mimetypeRef = new AtomicReference<String>();
+		final int initialFirstSegment = firstSegment;
+
+		request.executeInThisThread(new HTTPBackend.Listener() {
+
+			public void onError(final RequestFailureType failureType, final Throwable exception, final Integer httpStatus) {
+
+				// The data we have doesn't match what the server has
+				if(httpStatus != null && httpStatus == 416) {
+					mInvalidated.set(true);
+				}
+
+				failure.set(new Failure(failureType, exception, httpStatus, ""));
+			}
+
+			public void onSuccess(final String mimetype, final Long bodyBytes, final InputStream body) {
+
+				try {
+					int segment = initialFirstSegment;
+					final String contentRange = request.getResponseHeader("Content-Range");
+
+					if(resuming && contentRange != null) {
+
+						if(getContentRangeStart(contentRange) != mPartial.getSegmentResumeOffset(segment)) {
+							mInvalidated.set(true);
+							failure.set(new Failure(RequestFailureType.CONNECTION, null, null, "The server sent the wrong range"));
+							return;
+						}
+
+						mimetypeRef.set(mPartial.getMimetype() != null ? mPartial.getMimetype() : mimetype);
+
+					} else {
+
+						// The server sent the whole file, either because it changed or because it ignores ranges
+						segment = 0;
+						mimetypeRef.set(mimetype);
+
+						final long totalLength = bodyBytes != null ? bodyBytes : -1;
+
+						// Without a validator, no metadata is written and nothing is kept if the download fails
+						final String validator = totalLength >= 0 && totalLength < mMinResumableBytes
+								? null
+								: getValidator(request);
+
+						try {
+							mPartial.reset(validator, mimetype, totalLength);
+
+							final int segments = (int)Math.min(mMaxSegments, totalLength / mMinSegmentBytes);
+
+							if(segments > 1 && validator != null && "bytes".equals(request.getResponseHeader("Accept-Ranges"))) {
+								mPartial.split(segments);
+							}
+
+						} catch(IOException e) {
+							throw new StorageException(e);
+						}
+					}
+
+					listener.onDataAvailable(mimetypeRef.get());
+					listener.onProgress(mPartial.getBytesDone(), mPartial.getTotalLength());
+
+					final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+					for(int i = 0; i < mPartial.getSegmentCount(); i++) {
+						if(i != segment && !mPartial.isSegmentComplete(i)) {
+							threads.add(startSegmentThread(i, listener, failure));
+						}
+					}
+
+					try {
+						readSegment(segment, body, listener);
+
+					} catch(IOException e) {
+						failure.compareAndSet(null, failureFor(e));
+						cancel();
+					}
+
+					for(final Thread thread : threads) {
+						try {
+							thread.join();
+						} catch(InterruptedException e) {
+							failure.compareAndSet(null, new Failure(RequestFailureType.CANCELLED, e, null, "Cancelled"));
+							cancel();
+						}
+					}
+
+				} catch(IOException e) {
+					failure.compareAndSet(null, failureFor(e));
+
+				} finally {
+					try {
+						body.close();
+					} catch(IOException e) {
+						// Ignore
+					}
+				}
+			}
+		});
+
+		if(mInvalidated.get()) {
+			try {
+				mPartial.reset(null, null, -1);
+			} catch(IOException e) {
+				// The data won't be kept, as there's no validator
+			}
+		}
+
+		if(failure.get() == null && mPartial.isComplete()) {
+			listener.onComplete(mimetypeRef.get());
+
+		} else {
+
+			final Failure f = failure.get() != null
+					? failure.get()
+					: new Failure(RequestFailureType.CONNECTION, null, null, "The connection was interrupted");
+
+			listener.onError(f.type, f.t, f.httpStatus, f.readableMessage);
+		}
+	}
+}
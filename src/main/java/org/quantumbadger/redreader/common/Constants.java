@@ -182,7 +182,8 @@ public final class Constants {
 				COMMENT_PRECACHE = 500,
 				IMAGE_VIEW = -400,
 				API_USER_ABOUT = -500,
-				API_INBOX_LIST = -500;
+				API_INBOX_LIST = -500,
+				CACHE_EVICTION = 1000;
 	}
 
 	public static final class FileType {
@@ -191,11 +192,41 @@ public final class Constants {
 				SUBREDDIT_ABOUT = 101,
 				POST_LIST = 110,
 				COMMENT_LIST = 120,
+				COMMENT_SNAPSHOT = 121,
 				USER_ABOUT = 130,
 				INBOX_LIST = 140,
 				THUMBNAIL = 200,
 				IMAGE = 201,
 				CAPTCHA = 202,
 				IMAGE_INFO = 300;
+
+		// How long a cached copy is considered fresh enough that a STALE_WHILE_REVALIDATE request won't refresh it
+		public static long getFreshnessWindow(final int fileType) {
+
+			switch(fileType) {
+
+				case INBOX_LIST:
+					return 60L * 1000L;
+
+				case POST_LIST:
+				case COMMENT_LIST:
+					return 5L * 60L * 1000L;
+
+				case USER_ABOUT:
+				case SUBREDDIT_ABOUT:
+					return 30L * 60L * 1000L;
+
+				case SUBREDDIT_LIST:
+					return 6L * 60L * 60L * 1000L;
+
+				case THUMBNAIL:
+				case IMAGE:
+				case IMAGE_INFO:
+					return 7L * 24L * 60L * 60L * 1000L;
+
+				default:
+					return 0;
+			}
+		}
 	}
 }
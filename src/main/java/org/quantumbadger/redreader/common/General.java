@@ -384,9 +384,12 @@ public final class General {
 		}
 
 		digest.update(plaintext, 0, plaintext.length);
-		final byte[] hash = digest.digest();
-		final StringBuilder result = new StringBuilder(hash.length * 2);
-		for(byte b : hash) result.append(String.format("%02X", b));
+		return hexEncode(digest.digest());
+	}
+
+	public static String hexEncode(final byte[] bytes) {
+		final StringBuilder result = new StringBuilder(bytes.length * 2);
+		for(byte b : bytes) result.append(String.format("%02X", b));
 		return result.toString();
 	}
 
@@ -457,4 +460,31 @@ public final class General {
 
 		return new String(chars);
 	}
+
+	// Writes the string as length-prefixed UTF-8, without writeUTF()'s 64 KB limit. The string may be null.
+	public static void writeUtf8String(final DataOutput out, final String value) throws IOException {
+
+		if(value == null) {
+			out.writeInt(-1);
+
+		} else {
+			final byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	public static String readUtf8String(final DataInput in) throws IOException {
+
+		final int length = in.readInt();
+
+		if(length < 0) {
+			return null;
+		}
+
+		final byte[] bytes = new byte[length];
+		in.readFully(bytes);
+
+		return new String(bytes, "UTF-8");
+	}
 }
@@ -0,0 +1,160 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.common;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+// Groups items produced on a background thread into batches for the UI thread, so that a long listing doesn't
+// flood the main looper with one message per item. The first item after a quiet period is sent straight away.
+// After that, items are held until the batch is full, or until the time window since the last batch has passed.
+public final class ItemBatcher<E> {
+
+	public interface Listener<E> {
+		// Called on the scheduler's thread
+		void onItemBatch(ArrayList<E> items);
+	}
+
+	public interface Scheduler {
+		long currentTimeMillis();
+		void post(Runnable runnable, long delayMillis);
+	}
+
+	public static final Scheduler UI_THREAD = new Scheduler() {
+
+		public long currentTimeMillis() {
+			return SystemClock.uptimeMillis();
+		}
+
+		public void post(final Runnable runnable, final long delayMillis) {
+			AndroidApi.UI_THREAD_HANDLER.postDelayed(runnable, delayMillis);
+		}
+	};
+
+	public static final class Limits {
+
+		public final int maxItems;
+		public final long windowMillis;
+
+		public Limits(final int maxItems, final long windowMillis) {
+			this.maxItems = maxItems;
+			this.windowMillis = windowMillis;
+		}
+	}
+
+	private final Limits mLimits;
+	private final Scheduler mScheduler;
+	private final Listener<E> mListener;
+
+	private ArrayList<E> mPending;
+
+	private boolean mImmediateDeliveryPosted = false, mDelayedDeliveryPosted = false;
+
+	private boolean mDelivered = false;
+	private long mLastDeliveryTime;
+
+	private final Runnable mImmediateDelivery = new Runnable() {
+		public void run() {
+			synchronized(ItemBatcher.this) {
+				mImmediateDeliveryPosted = false;
+			}
+			deliver();
+		}
+	};
+
+	private final Runnable mDelayedDelivery = new Runnable() {
+		public void run() {
+			synchronized(ItemBatcher.this) {
+				mDelayedDeliveryPosted = false;
+			}
+			deliver();
+		}
+	};
+
+	public ItemBatcher(final Limits limits, final Scheduler scheduler, final Listener<E> listener) {
+		mLimits = limits;
+		mScheduler = scheduler;
+		mListener = listener;
+		mPending = new ArrayList<E>(limits.maxItems);
+	}
+
+	public void add(final E item) {
+
+		synchronized(this) {
+			mPending.add(item);
+			scheduleDelivery(false);
+		}
+	}
+
+	public void addAll(final Collection<E> items) {
+
+		synchronized(this) {
+			mPending.addAll(items);
+			scheduleDelivery(false);
+		}
+	}
+
+	// Sends everything added so far without waiting, ahead of anything posted to the scheduler afterwards
+	public void flush() {
+
+		synchronized(this) {
+			if(!mPending.isEmpty()) scheduleDelivery(true);
+		}
+	}
+
+	// Must hold the lock
+	private void scheduleDelivery(final boolean immediately) {
+
+		if(immediately || mPending.size() >= mLimits.maxItems) {
+
+			if(!mImmediateDeliveryPosted) {
+				mScheduler.post(mImmediateDelivery, 0);
+				mImmediateDeliveryPosted = true;
+			}
+
+		} else if(!mDelayedDeliveryPosted && !mImmediateDeliveryPosted) {
+
+			final long delay = mDelivered
+					? Math.max(0, mLimits.windowMillis - (mScheduler.currentTimeMillis() - mLastDeliveryTime))
+					: 0;
+
+			mScheduler.post(mDelayedDelivery, delay);
+			mDelayedDeliveryPosted = true;
+		}
+	}
+
+	private void deliver() {
+
+		final ArrayList<E> items;
+
+		synchronized(this) {
+
+			if(mPending.isEmpty()) return;
+
+			items = mPending;
+			mPending = new ArrayList<E>(mLimits.maxItems);
+			mDelivered = true;
+			mLastDeliveryTime = mScheduler.currentTimeMillis();
+		}
+
+		mListener.onItemBatch(items);
+	}
+}
@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.common;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Processes items on a pool of worker threads, and delivers the results in batches, in the order in which the
+// items were added. Items must all be added from the same thread, which then calls finish().
+public abstract class OrderedParallelProcessor<I, O> {
+
+	private final Executor mExecutor;
+	private final int mBatchSize;
+
+	// Stops the producer getting too far ahead of the workers
+	private final Semaphore mCapacity;
+
+	// Items which have been added but not yet delivered, in order
+	private final LinkedList<Slot> mPending = new LinkedList<Slot>();
+	private ArrayList<O> mBatch;
+
+	private Throwable mFailure = null;
+	private boolean mCancelled = false;
+
+	public OrderedParallelProcessor(final Executor executor, final int batchSize, final int maxItemsInProgress) {
+		mExecutor = executor;
+		mBatchSize = batchSize;
+		mCapacity = new Semaphore(maxItemsInProgress);
+		mBatch = new ArrayList<O>(batchSize);
+	}
+
+	// A pool with one thread per core, to be shared between processors
+	public static ExecutorService createWorkerPool(final String threadName) {
+
+		final AtomicInteger threadCount = new AtomicInteger(0);
+
+		return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			public Thread newThread(final Runnable runnable) {
+				final Thread thread = new Thread(runnable, threadName + " " + threadCount.getAndIncrement());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	// Called on a worker thread
+	protected abstract O process(I item);
+
+	// Called with each batch of results, in order. Never called concurrently, but may be called from any thread.
+	protected abstract void onBatch(ArrayList<O> results);
+
+	private final class Slot implements Runnable {
+
+		private final I item;
+		private O result;
+		private boolean done = false;
+
+		private Slot(final I item) {
+			this.item = item;
+		}
+
+		public void run() {
+
+			O result = null;
+			Throwable failure = null;
+
+			try {
+				result = process(item);
+			} catch(Throwable t) {
+				failure = t;
+			}
+
+			synchronized(mPending) {
+
+				this.result = result;
+				done = true;
+
+				if(failure != null && mFailure == null) {
+					mFailure = failure;
+				}
+
+				deliverCompleted();
+			}
+		}
+	}
+
+	public final void add(final I item) {
+
+		mCapacity.acquireUninterruptibly();
+
+		final Slot slot = new Slot(item);
+
+		synchronized(mPending) {
+			mPending.addLast(slot);
+		}
+
+		mExecutor.execute(slot);
+	}
+
+	// Waits for every item to be processed, and delivers the final batch. Rethrows the first exception thrown
+	// by process(), in which case nothing after the failed item is delivered.
+	public final void finish() throws InterruptedException {
+
+		synchronized(mPending) {
+
+			while(!mPending.isEmpty()) {
+				mPending.wait();
+			}
+
+			if(mFailure != null) {
+				if(mFailure instanceof RuntimeException) throw (RuntimeException)mFailure;
+				if(mFailure instanceof Error) throw (Error)mFailure;
+				throw new RuntimeException(mFailure);
+			}
+
+			if(!mCancelled && !mBatch.isEmpty()) {
+				onBatch(mBatch);
+				mBatch = new ArrayList<O>(mBatchSize);
+			}
+		}
+	}
+
+	// Nothing more will be delivered. Items already added are still processed, but their results are dropped.
+	public final void cancel() {
+		synchronized(mPending) {
+			mCancelled = true;
+		}
+	}
+
+	// Must hold the lock on mPending
+	private void deliverCompleted() {
+
+		boolean delivered = false;
+
+		while(!mPending.isEmpty() && mPending.getFirst().done) {
+
+			final Slot slot = mPending.removeFirst();
+			mCapacity.release();
+			delivered = true;
+
+			if(mFailure != null || mCancelled) continue;
+
+			mBatch.add(slot.result);
+
+			if(mBatch.size() >= mBatchSize) {
+				onBatch(mBatch);
+				mBatch = new ArrayList<O>(mBatchSize);
+			}
+		}
+
+		if(delivered) {
+			mPending.notifyAll();
+		}
+	}
+}
@@ -347,6 +347,7 @@ public final class PrefsUtility {
 
 		result.put(Constants.FileType.POST_LIST, maxAgeListing);
 		result.put(Constants.FileType.COMMENT_LIST, maxAgeListing);
+		result.put(Constants.FileType.COMMENT_SNAPSHOT, maxAgeListing);
 		result.put(Constants.FileType.SUBREDDIT_LIST, maxAgeListing);
 		result.put(Constants.FileType.SUBREDDIT_ABOUT, maxAgeListing);
 		result.put(Constants.FileType.USER_ABOUT, maxAgeListing);
@@ -359,6 +360,57 @@ public final class PrefsUtility {
 		return result;
 	}
 
+	// pref_cache_maxsize
+
+	public static enum CacheSizeGroup {
+
+		LISTING(Constants.FileType.POST_LIST,
+				Constants.FileType.COMMENT_LIST,
+				Constants.FileType.COMMENT_SNAPSHOT,
+				Constants.FileType.SUBREDDIT_LIST,
+				Constants.FileType.SUBREDDIT_ABOUT,
+				Constants.FileType.USER_ABOUT,
+				Constants.FileType.INBOX_LIST,
+				Constants.FileType.IMAGE_INFO),
+
+		THUMBNAIL(Constants.FileType.THUMBNAIL),
+
+		IMAGE(Constants.FileType.IMAGE,
+				Constants.FileType.CAPTCHA);
+
+		public final int[] fileTypes;
+
+		CacheSizeGroup(final int... fileTypes) {
+			this.fileTypes = fileTypes;
+		}
+
+		public static CacheSizeGroup forFileType(final int fileType) {
+
+			for(final CacheSizeGroup group : values()) {
+				for(final int groupFileType : group.fileTypes) {
+					if(groupFileType == fileType) return group;
+				}
+			}
+
+			return null;
+		}
+	}
+
+	public static EnumMap<CacheSizeGroup, Long> pref_cache_maxsize(final Context context, final SharedPreferences sharedPreferences) {
+
+		final EnumMap<CacheSizeGroup, Long> result = new EnumMap<CacheSizeGroup, Long>(CacheSizeGroup.class);
+
+		final long maxSizeListing = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_listing_key, "50", context, sharedPreferences));
+		final long maxSizeThumb = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_thumb_key, "50", context, sharedPreferences));
+		final long maxSizeImage = 1024L * 1024L * Long.valueOf(getString(R.string.pref_cache_maxsize_image_key, "250", context, sharedPreferences));
+
+		result.put(CacheSizeGroup.LISTING, maxSizeListing);
+		result.put(CacheSizeGroup.THUMBNAIL, maxSizeThumb);
+		result.put(CacheSizeGroup.IMAGE, maxSizeImage);
+
+		return result;
+	}
+
 	// pref_cache_precache_images
 
 	public static enum CachePrecacheImages {
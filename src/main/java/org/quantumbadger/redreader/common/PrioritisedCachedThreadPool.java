@@ -17,11 +17,28 @@
 
 package org.quantumbadger.redreader.common;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 
+// Runs tasks in priority order (lowest primary priority first, then lowest secondary, then first added), on up
+// to the given number of threads.
 public class PrioritisedCachedThreadPool {
 
-	private final ArrayList<Task> mTasks = new ArrayList<Task>(16);
+	public static final class Stats {
+		public int queued = 0;
+		public int maxQueued = 0;
+		public long tasksRun = 0;
+		public long tasksRemoved = 0;
+		public long totalWaitNanos = 0;
+		public long maxWaitNanos = 0;
+		public long totalRunNanos = 0;
+		public long maxRunNanos = 0;
+	}
+
+	private final Object mLock = new Object();
+
+	private final TaskQueue mTasks = new TaskQueue();
+
+	private final Stats mStats = new Stats();
 	private final Executor mExecutor = new Executor();
 
 	private final int mMaxThreads;
@@ -37,9 +54,12 @@ public class PrioritisedCachedThreadPool {
 
 	public void add(Task task) {
 
-		synchronized(mTasks) {
+		synchronized(mLock) {
+
 			mTasks.add(task);
-			mTasks.notifyAll();
+			mStats.maxQueued = Math.max(mStats.maxQueued, mTasks.size());
+
+			mLock.notify();
 
 			if(mIdleThreads < 1 && mRunningThreads < mMaxThreads) {
 				mRunningThreads++;
@@ -48,11 +68,220 @@ public class PrioritisedCachedThreadPool {
 		}
 	}
 
+	// Returns false if the task had already been taken off the queue to run, or was never added
+	public boolean remove(Task task) {
+
+		synchronized(mLock) {
+
+			if(!mTasks.remove(task)) {
+				return false;
+			}
+
+			mStats.tasksRemoved++;
+			return true;
+		}
+	}
+
+	// Should be called when the priority of a queued task changes, as the queue only reads it when the task is added
+	public void updatePriority(Task task) {
+
+		synchronized(mLock) {
+			mTasks.updatePriority(task);
+		}
+	}
+
+	public Stats getStats() {
+
+		synchronized(mLock) {
+
+			final Stats result = new Stats();
+			result.queued = mTasks.size();
+			result.maxQueued = mStats.maxQueued;
+			result.tasksRun = mStats.tasksRun;
+			result.tasksRemoved = mStats.tasksRemoved;
+			result.totalWaitNanos = mStats.totalWaitNanos;
+			result.maxWaitNanos = mStats.maxWaitNanos;
+			result.totalRunNanos = mStats.totalRunNanos;
+			result.maxRunNanos = mStats.maxRunNanos;
+			return result;
+		}
+	}
+
+	// A binary heap in the same order as the pool. Each task knows its position in the heap, so adding, removing
+	// and reprioritising a task are all O(log n). A task can only be in one queue at a time. Not thread safe.
+	public static final class TaskQueue {
+
+		private Task[] mHeap = new Task[16];
+		private int mSize = 0;
+		private long mSequence = 0;
+
+		public void add(final Task task) {
+
+			if(task.mHeapIndex >= 0) {
+				throw new IllegalStateException("Task is already queued");
+			}
+
+			task.mPrimary = task.getPrimaryPriority();
+			task.mSecondary = task.getSecondaryPriority();
+			task.mSequence = mSequence++;
+			task.mQueuedAt = System.nanoTime();
+
+			if(mSize == mHeap.length) {
+				mHeap = Arrays.copyOf(mHeap, mHeap.length * 2);
+			}
+
+			place(task, mSize);
+			mSize++;
+			siftUp(task.mHeapIndex);
+		}
+
+		public boolean isEmpty() {
+			return mSize == 0;
+		}
+
+		public int size() {
+			return mSize;
+		}
+
+		public boolean contains(final Task task) {
+			return task.mHeapIndex >= 0 && task.mHeapIndex < mSize && mHeap[task.mHeapIndex] == task;
+		}
+
+		// Null if empty
+		public Task peek() {
+			return mSize == 0 ? null : mHeap[0];
+		}
+
+		// Null if empty
+		public Task poll() {
+			return mSize == 0 ? null : removeAt(0);
+		}
+
+		// Returns false if the task wasn't queued
+		public boolean remove(final Task task) {
+
+			if(!contains(task)) {
+				return false;
+			}
+
+			removeAt(task.mHeapIndex);
+			return true;
+		}
+
+		// Re-reads the priorities of the task. Returns false if the task wasn't queued.
+		public boolean updatePriority(final Task task) {
+
+			if(!contains(task)) {
+				return false;
+			}
+
+			task.mPrimary = task.getPrimaryPriority();
+			task.mSecondary = task.getSecondaryPriority();
+
+			siftDown(siftUp(task.mHeapIndex));
+			return true;
+		}
+
+		private static boolean isQueuedBefore(final Task a, final Task b) {
+
+			if(a.mPrimary != b.mPrimary) {
+				return a.mPrimary < b.mPrimary;
+
+			} else if(a.mSecondary != b.mSecondary) {
+				return a.mSecondary < b.mSecondary;
+
+			} else {
+				return a.mSequence < b.mSequence;
+			}
+		}
+
+		private void place(final Task task, final int index) {
+			mHeap[index] = task;
+			task.mHeapIndex = index;
+		}
+
+		// Both return the new index of the task
+		private int siftUp(int index) {
+
+			final Task task = mHeap[index];
+
+			while(index > 0) {
+
+				final int parentIndex = (index - 1) / 2;
+				final Task parent = mHeap[parentIndex];
+
+				if(!isQueuedBefore(task, parent)) break;
+
+				place(parent, index);
+				index = parentIndex;
+			}
+
+			place(task, index);
+			return index;
+		}
+
+		private int siftDown(int index) {
+
+			final Task task = mHeap[index];
+
+			while(true) {
+
+				int childIndex = index * 2 + 1;
+				if(childIndex >= mSize) break;
+
+				if(childIndex + 1 < mSize && isQueuedBefore(mHeap[childIndex + 1], mHeap[childIndex])) {
+					childIndex++;
+				}
+
+				final Task child = mHeap[childIndex];
+
+				if(!isQueuedBefore(child, task)) break;
+
+				place(child, index);
+				index = childIndex;
+			}
+
+			place(task, index);
+			return index;
+		}
+
+		private Task removeAt(final int index) {
+
+			final Task task = mHeap[index];
+			task.mHeapIndex = -1;
+
+			mSize--;
+
+			if(index != mSize) {
+				place(mHeap[mSize], index);
+				mHeap[mSize] = null;
+				siftDown(siftUp(index));
+
+			} else {
+				mHeap[mSize] = null;
+			}
+
+			return task;
+		}
+	}
+
 	public static abstract class Task {
 
+		// Owned by the TaskQueue the task is in
+		private int mHeapIndex = -1;
+		private int mPrimary, mSecondary;
+		private long mSequence;
+		private long mQueuedAt;
+
 		public boolean isHigherPriorityThan(Task o) {
-			return getPrimaryPriority() < o.getPrimaryPriority()
-					|| getSecondaryPriority() < o.getSecondaryPriority();
+
+			final int primary = getPrimaryPriority(), otherPrimary = o.getPrimaryPriority();
+
+			if(primary != otherPrimary) {
+				return primary < otherPrimary;
+			} else {
+				return getSecondaryPriority() < o.getSecondaryPriority();
+			}
 		}
 
 		public abstract int getPrimaryPriority();
@@ -67,16 +296,16 @@ public class PrioritisedCachedThreadPool {
 
 			while(true) {
 
-				Task taskToRun = null;
+				final Task taskToRun;
 
-				synchronized(mTasks) {
+				synchronized(mLock) {
 
 					if(mTasks.isEmpty()) {
 
 						mIdleThreads++;
 
 						try {
-							mTasks.wait(30000);
+							mLock.wait(30000);
 						} catch(InterruptedException e) {
 							throw new RuntimeException(e);
 						} finally {
@@ -89,19 +318,28 @@ public class PrioritisedCachedThreadPool {
 						}
 					}
 
-					int taskIndex = -1;
-					for(int i = 0; i < mTasks.size(); i++) {
-						if(taskToRun == null || mTasks.get(i).isHigherPriorityThan(taskToRun)) {
-							taskToRun = mTasks.get(i);
-							taskIndex = i;
-						}
-					}
+					taskToRun = mTasks.poll();
 
-					mTasks.remove(taskIndex);
+					final long wait = System.nanoTime() - taskToRun.mQueuedAt;
+					mStats.totalWaitNanos += wait;
+					mStats.maxWaitNanos = Math.max(mStats.maxWaitNanos, wait);
 				}
 
-				assert taskToRun != null;
-				taskToRun.run();
+				final long startTime = System.nanoTime();
+
+				try {
+					taskToRun.run();
+
+				} finally {
+
+					final long runTime = System.nanoTime() - startTime;
+
+					synchronized(mLock) {
+						mStats.tasksRun++;
+						mStats.totalRunNanos += runTime;
+						mStats.maxRunNanos = Math.max(mStats.maxRunNanos, runTime);
+					}
+				}
 			}
 		}
 	}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.common;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands items to a fixed set of worker threads in priority order (FIFO among equal priorities). Items which
+// share a key are never handled concurrently, and are handled in the order in which they were taken from the queue.
+// An item's priorities are read when it is added, so they must only change through updatePriority().
+public abstract class PrioritisedKeyedDispatcher<K, E> {
+
+	private final PriorityBlockingQueue<QueuedItem> mQueue = new PriorityBlockingQueue<QueuedItem>(64);
+	private final AtomicLong mSequence = new AtomicLong(0);
+
+	// Keys which are currently being handled, and the items waiting behind them
+	private final HashMap<K, LinkedList<E>> mActiveKeys = new HashMap<K, LinkedList<E>>();
+
+	public PrioritisedKeyedDispatcher(final int threads, final String threadName) {
+
+		for(int i = 0; i < threads; i++) {
+			new Worker(threadName + " " + i).start();
+		}
+	}
+
+	protected abstract K getKey(E item);
+
+	// Lower values are handled sooner, as in PrioritisedCachedThreadPool
+	protected abstract int getPrimaryPriority(E item);
+
+	protected abstract int getSecondaryPriority(E item);
+
+	protected abstract void handle(E item);
+
+	protected abstract void onHandlerException(E item, Throwable t);
+
+	protected void onWorkerStarted() {}
+
+	public final void add(final E item) {
+		mQueue.put(new QueuedItem(item, mSequence.getAndIncrement()));
+	}
+
+	// Re-reads the priorities of an item which is still queued, keeping its place among equal priorities. Does
+	// nothing if a worker has already taken the item.
+	public final void updatePriority(final E item) {
+
+		for(final QueuedItem queued : mQueue) {
+
+			if(queued.item == item) {
+
+				if(mQueue.remove(queued)) {
+					mQueue.put(new QueuedItem(item, queued.sequence));
+				}
+
+				return;
+			}
+		}
+	}
+
+	private final class QueuedItem implements Comparable<QueuedItem> {
+
+		private final E item;
+		private final int primary, secondary;
+		private final long sequence;
+
+		private QueuedItem(final E item, final long sequence) {
+			this.item = item;
+			this.primary = getPrimaryPriority(item);
+			this.secondary = getSecondaryPriority(item);
+			this.sequence = sequence;
+		}
+
+		@Override
+		public int compareTo(final QueuedItem another) {
+
+			if(primary != another.primary) {
+				return primary < another.primary ? -1 : 1;
+			}
+
+			if(secondary != another.secondary) {
+				return secondary < another.secondary ? -1 : 1;
+			}
+
+			return sequence < another.sequence ? -1 : (sequence > another.sequence ? 1 : 0);
+		}
+	}
+
+	private final class Worker extends Thread {
+
+		public Worker(final String name) {
+			super(name);
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+
+			onWorkerStarted();
+
+			while(true) {
+
+				E item;
+
+				try {
+					item = mQueue.take().item;
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+
+				final K key = getKey(item);
+
+				synchronized(mActiveKeys) {
+
+					final LinkedList<E> waiting = mActiveKeys.get(key);
+
+					if(waiting != null) {
+						// Another worker is handling this key, and will pick this item up when it finishes
+						waiting.addLast(item);
+						continue;
+					}
+
+					mActiveKeys.put(key, new LinkedList<E>());
+				}
+
+				while(item != null) {
+
+					try {
+						handle(item);
+					} catch(Throwable t) {
+						onHandlerException(item, t);
+					}
+
+					synchronized(mActiveKeys) {
+
+						final LinkedList<E> waiting = mActiveKeys.get(key);
+
+						if(waiting.isEmpty()) {
+							mActiveKeys.remove(key);
+							item = null;
+
+						} else {
+							item = waiting.removeFirst();
+						}
+					}
+				}
+			}
+		}
+	}
+}
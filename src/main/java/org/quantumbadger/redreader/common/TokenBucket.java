@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.common;
+
+import android.os.SystemClock;
+
+// Allows bursts of up to "capacity" requests, refilled at one token per interval. Background requests leave
+// "reserved" tokens untouched, so that a burst of precaching can't delay something the user is waiting for.
+// The server's own count of remaining requests, if known, is also respected until it resets.
+public final class TokenBucket {
+
+	public interface Clock {
+		long currentTimeMillis();
+	}
+
+	public static final Clock SYSTEM_CLOCK = new Clock() {
+		public long currentTimeMillis() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+
+	private final Clock mClock;
+	private final int mCapacity;
+	private final long mRefillIntervalMillis;
+	private final int mReserved;
+
+	private int mTokens;
+	private long mLastRefill;
+
+	// -1 if unknown
+	private long mServerRemaining = -1;
+	private long mServerResetTime;
+
+	public TokenBucket(final Clock clock, final int capacity, final long refillIntervalMillis, final int reserved) {
+
+		if(reserved >= capacity) {
+			throw new IllegalArgumentException("Background requests must be able to use at least one token");
+		}
+
+		mClock = clock;
+		mCapacity = capacity;
+		mRefillIntervalMillis = refillIntervalMillis;
+		mReserved = reserved;
+
+		mTokens = capacity;
+		mLastRefill = clock.currentTimeMillis();
+	}
+
+	// Returns 0 if a token was taken, otherwise the time to wait before trying again
+	public synchronized long tryAcquire(final boolean background) {
+
+		final long now = mClock.currentTimeMillis();
+		refill(now);
+
+		final int keep = background ? mReserved : 0;
+
+		if(mServerRemaining >= 0) {
+
+			if(now >= mServerResetTime) {
+				mServerRemaining = -1;
+
+			} else if(mServerRemaining <= keep) {
+				return mServerResetTime - now;
+			}
+		}
+
+		if(mTokens <= keep) {
+			return (keep + 1 - mTokens) * mRefillIntervalMillis - (now - mLastRefill);
+		}
+
+		mTokens--;
+
+		if(mServerRemaining > 0) {
+			mServerRemaining--;
+		}
+
+		return 0;
+	}
+
+	// From the server's rate limit headers: the requests left, and the time until that count resets
+	public synchronized void onServerLimit(final long remaining, final long resetMillis) {
+		mServerRemaining = Math.max(0, remaining);
+		mServerResetTime = mClock.currentTimeMillis() + resetMillis;
+	}
+
+	private void refill(final long now) {
+
+		if(mTokens >= mCapacity) {
+			mLastRefill = now;
+			return;
+		}
+
+		final long intervals = (now - mLastRefill) / mRefillIntervalMillis;
+
+		if(intervals > 0) {
+			mTokens = (int)Math.min(mCapacity, mTokens + intervals);
+			mLastRefill = mTokens >= mCapacity ? now : mLastRefill + intervals * mRefillIntervalMillis;
+		}
+	}
+}
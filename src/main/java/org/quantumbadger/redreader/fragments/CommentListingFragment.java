@@ -126,7 +126,7 @@ public class CommentListingFragment extends RRFragment
 				}
 
 				RedditCommentListItem cmt = (RedditCommentListItem)item;
-				if(cmt.isComment() && cmt.asComment() == comment) {
+				if(cmt.isComment() && cmt.isPrepared() && cmt.asComment() == comment) {
 
 					if(i == lv.getFirstVisiblePosition()) {
 						lv.smoothScrollToPosition(i);
@@ -301,6 +301,9 @@ public class CommentListingFragment extends RRFragment
 		return outerFrame;
 	}
 
+	// The first comments are shown straight away, and the rest at most every 50 ms
+	private static final ItemBatcher.Limits ITEM_BATCH_LIMITS = new ItemBatcher.Limits(100, 50);
+
 	private void makeNextRequest(final Context context) {
 
 		if(!mUrlsToDownload.isEmpty()) {
@@ -312,6 +315,7 @@ public class CommentListingFragment extends RRFragment
 					mUser,
 					session,
 					downloadType,
+					ITEM_BATCH_LIMITS,
 					this
 			);
 		}
@@ -433,24 +437,14 @@ public class CommentListingFragment extends RRFragment
 		}
 	}
 
-	private final ArrayList<RedditCommentListItem> mItemBuffer = new ArrayList<RedditCommentListItem>(64);
-
 	@Override
-	public void onCommentListingRequestItemDownloaded(final RedditCommentListItem item) {
-
-		mItemBuffer.add(item);
-
-		if(mItemBuffer.size() >= 20) {
-			commentListAdapter.addItems(mItemBuffer);
-			outerAdapter.notifyDataSetChanged();
-			mItemBuffer.clear();
-		}
+	public void onCommentListingRequestItemsDownloaded(final ArrayList<RedditCommentListItem> items) {
+		commentListAdapter.addItems(items);
+		outerAdapter.notifyDataSetChanged();
 	}
 
 	@Override
 	public void onCommentListingRequestComplete() {
-		commentListAdapter.addItems(mItemBuffer);
-		mItemBuffer.clear();
 
 		if(mUrlsToDownload.isEmpty()) {
 
@@ -39,24 +39,24 @@ import org.quantumbadger.redreader.activities.SessionChangeListener;
 import org.quantumbadger.redreader.adapters.PostListingAdapter;
 import org.quantumbadger.redreader.cache.CacheManager;
 import org.quantumbadger.redreader.cache.CacheRequest;
+import org.quantumbadger.redreader.cache.PrecacheScheduler;
 import org.quantumbadger.redreader.cache.RequestFailureType;
 import org.quantumbadger.redreader.common.*;
 import org.quantumbadger.redreader.image.GetImageInfoListener;
 import org.quantumbadger.redreader.image.ImageInfo;
 import org.quantumbadger.redreader.io.RequestResponseHandler;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
-import org.quantumbadger.redreader.jsonwrap.JsonValue;
 import org.quantumbadger.redreader.listingcontrollers.CommentListingController;
 import org.quantumbadger.redreader.listingcontrollers.PostListingController;
+import org.quantumbadger.redreader.reddit.RedditListingParser;
 import org.quantumbadger.redreader.reddit.RedditSubredditManager;
 import org.quantumbadger.redreader.reddit.api.RedditSubredditSubscriptionManager;
 import org.quantumbadger.redreader.reddit.api.SubredditRequestFailure;
 import org.quantumbadger.redreader.reddit.prepared.RedditChangeDataManager;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedPost;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
 import org.quantumbadger.redreader.reddit.things.RedditPost;
 import org.quantumbadger.redreader.reddit.things.RedditSubreddit;
-import org.quantumbadger.redreader.reddit.things.RedditThing;
 import org.quantumbadger.redreader.reddit.url.PostCommentListingURL;
 import org.quantumbadger.redreader.reddit.url.PostListingURL;
 import org.quantumbadger.redreader.reddit.url.RedditURLParser;
@@ -68,6 +68,8 @@ import org.quantumbadger.redreader.views.RedditPostView;
 import org.quantumbadger.redreader.views.list.ListOverlayView;
 import org.quantumbadger.redreader.views.liststatus.ErrorView;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.text.NumberFormat;
 import java.util.ArrayList;
@@ -102,6 +104,13 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 	private int postCount = 0;
 	private int postRefreshCount = 0;
 
+	// Posts which are shown, as opposed to filtered out, so that each post's adapter position is known
+	private int shownPostCount = 0;
+
+	// Comments and images are only precached for posts near those on screen
+	private static final int PRECACHE_BEHIND = 5, PRECACHE_AHEAD = 30;
+	private final PrecacheScheduler precacheScheduler = new PrecacheScheduler(PRECACHE_BEHIND, PRECACHE_AHEAD);
+
 	private static final int
 			NOTIF_AGE = 0,
 			NOTIF_ERROR = 1,
@@ -109,6 +118,9 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 			NOTIF_SHOW_LOADING_SPINNER = 3,
 			NOTIF_HIDE_LOADING_SPINNER = 4;
 
+	// The first posts are shown as soon as they're prepared, rather than when the whole page has been read
+	private static final ItemBatcher.Limits POST_BATCH_LIMITS = new ItemBatcher.Limits(10, 50);
+
 	private final Activity mActivity;
 
 	private final Handler notificationHandler = new Handler(Looper.getMainLooper()) {
@@ -393,6 +405,11 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 	public void onScrollStateChanged(AbsListView view, int scrollState) {}
 
 	public void onScroll(AbsListView view, int firstVisibleItem, int visibleItemCount, int totalItemCount) {
+
+		final int headerCount = lv.getHeaderViewsCount();
+		precacheScheduler.onViewportChanged(firstVisibleItem - headerCount,
+				firstVisibleItem + visibleItemCount - 1 - headerCount);
+
 		onLoadMoreItemsCheck();
 	}
 
@@ -499,7 +516,12 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 		@Override protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {}
 
 		@Override
-		public void onJsonParseStarted(final JsonValue value, final long timestamp, final UUID session, final boolean fromCache) {
+		public boolean isJsonStreamed() {
+			return true;
+		}
+
+		@Override
+		public void onJsonStream(final InputStream stream, final long timestamp, final UUID session, final boolean fromCache) throws IOException {
 
 			// TODO pref (currently 10 mins)
 			if(firstDownload && fromCache && RRTime.since(timestamp) > 10 * 60 * 1000) {
@@ -517,9 +539,6 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 			try {
 
 				final Context context = getActivity();
-				final JsonBufferedObject thing = value.asObject();
-				final JsonBufferedObject listing = thing.getObject("data");
-				final JsonBufferedArray posts = listing.getArray("children");
 
 				final boolean isNsfwAllowed = PrefsUtility.pref_behaviour_nsfw(context, sharedPrefs);
 				final boolean isConnectionWifi = General.isConnectionWifi(context);
@@ -553,124 +572,157 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 						&& postListingURL.pathType() == RedditURLParser.PathType.SubredditPostListingURL
 						&& postListingURL.asSubredditPostListURL().type == SubredditPostListURL.Type.SUBREDDIT);
 
-				final ArrayList<RedditPreparedPost> downloadedPosts = new ArrayList<RedditPreparedPost>(25);
+				final ItemBatcher<RedditPreparedPost> postBatcher = new ItemBatcher<RedditPreparedPost>(
+						POST_BATCH_LIMITS,
+						ItemBatcher.UI_THREAD,
+						new ItemBatcher.Listener<RedditPreparedPost>() {
+							public void onItemBatch(final ArrayList<RedditPreparedPost> posts) {
+								adapter.onPostsDownloaded(posts);
+							}
+						});
 
-				for(final JsonValue postThingValue : posts) {
+				RedditListingParser.parse(stream, new RedditListingParser.Listener<Object>() {
 
-					final RedditThing postThing = postThingValue.asObject(RedditThing.class);
+					public void onPost(final RedditPost post) {
 
-					if(!postThing.getKind().equals(RedditThing.Kind.POST)) continue;
+						after = post.name;
 
-					final RedditPost post = postThing.asPost();
+						if(!post.over_18 || isNsfwAllowed) {
 
-					after = post.name;
+							final boolean downloadThisThumbnail = downloadThumbnails && (!post.over_18 || showNsfwThumbnails);
 
-					if(!post.over_18 || isNsfwAllowed) {
+							final int positionInList = postCount;
 
-						final boolean downloadThisThumbnail = downloadThumbnails && (!post.over_18 || showNsfwThumbnails);
+							final RedditPreparedPost preparedPost = new RedditPreparedPost(context, cm, positionInList, post, timestamp, showSubredditName, needsChanging.contains(post.name), downloadThisThumbnail, precacheImages, user, false);
 
-						final int positionInList = postCount;
+							final int adapterPosition = shownPostCount;
 
-						final RedditPreparedPost preparedPost = new RedditPreparedPost(context, cm, positionInList, post, timestamp, showSubredditName, needsChanging.contains(post.name), downloadThisThumbnail, precacheImages, user, false);
+							if(precacheComments) {
 
-						if(precacheComments) {
+								final CommentListingController controller = new CommentListingController(
+										PostCommentListingURL.forPostId(preparedPost.idAlone),
+										context);
 
-							final CommentListingController controller = new CommentListingController(
-									PostCommentListingURL.forPostId(preparedPost.idAlone),
-									context);
+								precacheScheduler.add(adapterPosition, new PrecacheScheduler.Precache() {
+									public CacheRequest start(final int listId) {
 
-							CacheManager.getInstance(context).makeRequest(new CacheRequest(
-									General.uriFromString(controller.getUri().toString()),
-									RedditAccountManager.getInstance(context).getDefaultAccount(),
-									null,
-									Constants.Priority.COMMENT_PRECACHE,
-									positionInList,
-									DownloadType.IF_NECESSARY,
-									Constants.FileType.COMMENT_LIST,
-									DownloadQueueType.REDDIT_API,
-									false, // Don't parse the JSON
-									false,
-									context) {
+										final CacheRequest commentRequest = new CacheRequest(
+												General.uriFromString(controller.getUri().toString()),
+												RedditAccountManager.getInstance(context).getDefaultAccount(),
+												null,
+												Constants.Priority.COMMENT_PRECACHE,
+												listId,
+												DownloadType.IF_NECESSARY,
+												Constants.FileType.COMMENT_LIST,
+												DownloadQueueType.REDDIT_API,
+												false, // Don't parse the JSON
+												false,
+												context) {
 
-								@Override
-								protected void onCallbackException(final Throwable t) {}
+											@Override
+											protected void onCallbackException(final Throwable t) {}
 
-								@Override
-								protected void onDownloadNecessary() {}
+											@Override
+											protected void onDownloadNecessary() {}
 
-								@Override
-								protected void onDownloadStarted() {}
+											@Override
+											protected void onDownloadStarted() {}
 
-								@Override
-								protected void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {
-									Log.e("PostListingFragment", "Failed to precache " + url.toString() + "(" + type.toString() + ")");
-								}
+											@Override
+											protected void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {
+												if(type != RequestFailureType.CANCELLED) {
+													Log.e("PostListingFragment", "Failed to precache " + url.toString() + "(" + type.toString() + ")");
+												}
+											}
 
-								@Override
-								protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+											@Override
+											protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
 
-								@Override
-								protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
-									Log.i("PostListingFragment", "Successfully precached " + url.toString());
-								}
-							});
-						}
+											@Override
+											protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
+												Log.i("PostListingFragment", "Successfully precached " + url.toString());
+											}
+										};
+
+										cm.makeRequest(commentRequest);
+										return commentRequest;
+									}
+								});
+							}
 						
-						LinkHandler.getImageInfo(context, post.url, Constants.Priority.IMAGE_PRECACHE, positionInList, new GetImageInfoListener() {
+							LinkHandler.getImageInfo(context, post.url, Constants.Priority.IMAGE_PRECACHE, positionInList, new GetImageInfoListener() {
 							
-							@Override public void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {}
-							@Override public void onNotAnImage() {}
+								@Override public void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {}
+								@Override public void onNotAnImage() {}
 
-							@Override
-							public void onSuccess(final ImageInfo info) {
+								@Override
+								public void onSuccess(final ImageInfo info) {
 
-								if(!precacheImages) return;
+									if(!precacheImages) return;
 
-								// Don't precache huge images
-								if(info.width != null && info.width > 2500) return;
-								if(info.height != null && info.height > 2500) return;
-								if(info.size != null && info.size > 10 * 1024 * 1024) return;
+									// Don't precache huge images
+									if(info.width != null && info.width > 2500) return;
+									if(info.height != null && info.height > 2500) return;
+									if(info.size != null && info.size > 10 * 1024 * 1024) return;
 								
-								final URI uri = General.uriFromString(info.urlOriginal);
-								if(uri == null) return;
+									final URI uri = General.uriFromString(info.urlOriginal);
+									if(uri == null) return;
 								
-								CacheManager.getInstance(context).makeRequest(new CacheRequest(
-										uri,
-										RedditAccountManager.getAnon(),
-										null,
-										Constants.Priority.IMAGE_PRECACHE,
-										positionInList,
-										DownloadType.IF_NECESSARY,
-										Constants.FileType.IMAGE,
-										DownloadQueueType.QUEUE_IMAGE_PRECACHE,
-										false,
-										false,
-										context
-								) {
-									@Override protected void onCallbackException(final Throwable t) {}
-									@Override protected void onDownloadNecessary() {}
-									@Override protected void onDownloadStarted() {}
-
-									@Override protected void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {
-										Log.e("PostListingFragment", "Failed to precache " + info.urlOriginal + "(" + type.toString() + ")");
-									}
-									@Override protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+									precacheScheduler.add(adapterPosition, new PrecacheScheduler.Precache() {
+										public CacheRequest start(final int listId) {
+
+											final CacheRequest imageRequest = new CacheRequest(
+													uri,
+													RedditAccountManager.getAnon(),
+													null,
+													Constants.Priority.IMAGE_PRECACHE,
+													listId,
+													DownloadType.IF_NECESSARY,
+													Constants.FileType.IMAGE,
+													DownloadQueueType.QUEUE_IMAGE_PRECACHE,
+													false,
+													false,
+													context
+											) {
+												@Override protected void onCallbackException(final Throwable t) {}
+												@Override protected void onDownloadNecessary() {}
+												@Override protected void onDownloadStarted() {}
+
+												@Override protected void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {
+													if(type != RequestFailureType.CANCELLED) {
+														Log.e("PostListingFragment", "Failed to precache " + info.urlOriginal + "(" + type.toString() + ")");
+													}
+												}
+												@Override protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+
+												@Override protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
+													Log.i("PostListingFragment", "Successfully precached " + info.urlOriginal);
+												}
+											};
+
+											cm.makeRequest(imageRequest);
+											return imageRequest;
+										}
+									});
+								}
+							});
 
-									@Override protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
-										Log.i("PostListingFragment", "Successfully precached " + info.urlOriginal);
-									}
-								});
-							}
-						});
+							postBatcher.add(preparedPost);
+							shownPostCount++;
+						}
 
-						downloadedPosts.add(preparedPost);
+						postCount++;
+						postRefreshCount--;
 					}
 
-					postCount++;
-					postRefreshCount--;
-				}
+					public Object onComment(final RedditComment comment, final int replyCount, final Object parent) {
+						return null;
+					}
 
-				adapter.onPostsDownloaded(downloadedPosts);
+					public void onMoreComments(final RedditMoreComments moreComments, final Object parent) {}
+				});
+
+				postBatcher.flush();
 
 				notificationHandler.sendEmptyMessage(NOTIF_HIDE_LOADING_SPINNER);
 
@@ -678,6 +730,10 @@ public class PostListingFragment extends RRFragment implements RedditPostView.Po
 				readyToDownloadMore = true;
 				onLoadMoreItemsCheck();
 
+			} catch(IOException e) {
+				// Let the cache discard the bad data
+				throw e;
+
 			} catch (Throwable t) {
 				notifyFailure(RequestFailureType.PARSE, t, null, "Parse failure");
 			}
@@ -65,6 +65,21 @@ public interface HTTPBackend {
 			}
 		}
 
+		@Override
+		public boolean equals(final Object o) {
+
+			if(this == o) return true;
+			if(!(o instanceof PostField)) return false;
+
+			final PostField other = (PostField)o;
+			return name.equals(other.name) && value.equals(other.value);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * name.hashCode() + value.hashCode();
+		}
+
 		public static String encodeList(final List<PostField> fields) {
 
 			final StringBuilder result = new StringBuilder();
@@ -89,6 +104,9 @@ public interface HTTPBackend {
 		void cancel();
 
 		void addHeader(String name, String value);
+
+		// Null if there's no such header, or no response has been received yet
+		String getResponseHeader(String name);
 	}
 
 	interface Listener {
@@ -24,28 +24,43 @@ import org.quantumbadger.redreader.http.HTTPBackend;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class OKHTTPBackend implements HTTPBackend {
 
+	// Enough idle connections for the reddit API host plus the various image hosts and CDNs
+	private static final int MAX_IDLE_CONNECTIONS = 10;
+	private static final long KEEP_ALIVE_DURATION_MS = 5 * 60 * 1000;
+
+	private static OKHTTPBackend httpBackend;
+
 	private final OkHttpClient mClient;
 
-	public OKHTTPBackend() {
+	// All requests share the same client, so that connections and configuration are reused
+	public static synchronized HTTPBackend getHttpBackend() {
+		if(httpBackend == null) httpBackend = new OKHTTPBackend();
+		return httpBackend;
+	}
+
+	private OKHTTPBackend() {
 
 		mClient = new OkHttpClient();
 
 		mClient.setFollowRedirects(true);
 		mClient.setFollowSslRedirects(true);
 
-		mClient.setConnectTimeout(15000, TimeUnit.SECONDS);
-		mClient.setReadTimeout(10000, TimeUnit.SECONDS);
+		mClient.setConnectTimeout(15, TimeUnit.SECONDS);
+		mClient.setReadTimeout(10, TimeUnit.SECONDS);
 
 		mClient.setRetryOnConnectionFailure(true);
 
-		// TODO Is this necessary?
-		mClient.setConnectionPool(ConnectionPool.getDefault());
+		mClient.setConnectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_DURATION_MS));
+
+		// HTTP/2 is only used if the server offers it, otherwise we fall back to HTTP/1.1
+		mClient.setProtocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
 	}
 
 	@Override
@@ -68,6 +83,7 @@ public class OKHTTPBackend implements HTTPBackend {
 		builder.cacheControl(CacheControl.FORCE_NETWORK);
 
 		final AtomicReference<Call> callRef = new AtomicReference<Call>();
+		final AtomicReference<Response> responseRef = new AtomicReference<Response>();
 
 		return new Request() {
 
@@ -87,9 +103,12 @@ public class OKHTTPBackend implements HTTPBackend {
 						return;
 					}
 
+					responseRef.set(response);
+
 					final int status = response.code();
 
-					if(status == 200 || status == 202) {
+					// 206 is the response to a range request, which only resumable downloads make
+					if(status == 200 || status == 202 || status == 206) {
 
 						final ResponseBody body = response.body();
 						final InputStream bodyStream;
@@ -130,6 +149,12 @@ public class OKHTTPBackend implements HTTPBackend {
 			public void addHeader(final String name, final String value) {
 				builder.addHeader(name, value);
 			}
+
+			@Override
+			public String getResponseHeader(final String name) {
+				final Response response = responseRef.get();
+				return response == null ? null : response.header(name);
+			}
 		};
 	}
 }
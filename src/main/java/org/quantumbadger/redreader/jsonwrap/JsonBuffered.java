@@ -18,7 +18,6 @@
 package org.quantumbadger.redreader.jsonwrap;
 
 import com.fasterxml.jackson.core.JsonParseException;
-import com.fasterxml.jackson.core.JsonParser;
 
 import java.io.IOException;
 
@@ -53,7 +52,22 @@ public abstract class JsonBuffered {
 	}
 	
 	private volatile Status status = Status.LOADING;
+
+	// Only used by the parsing thread, until the build is complete
+	private JsonParseContext context;
+
 	private Throwable failReason = null;
+
+	// The number of readers which may be about to block. Only modified while holding the monitor.
+	private volatile int waitingReaders = 0;
+
+	// Waking a blocked reader is much more expensive than letting the parser
+	// run on briefly, so readers which get ahead yield a few times first
+	protected static final int YIELDS_BEFORE_WAITING = 4;
+
+	JsonBuffered(final JsonParseContext context) {
+		this.context = context;
+	}
 	
 	/**
 	 * @return The current status of this object: LOADING, LOADED, or FAILED.
@@ -78,6 +92,38 @@ public abstract class JsonBuffered {
 		return status;
 	}
 	
+	/**
+	 * Called by the parsing thread after it has published more data. Readers
+	 * only block when they are ahead of the parser, so the monitor is only
+	 * taken if one of them is waiting.
+	 *
+	 * The data is published before waitingReaders is read, and readers
+	 * register before checking for the data, so either the reader sees the
+	 * data or the parser sees the reader.
+	 */
+	protected final void notifyReaders() {
+
+		if(waitingReaders > 0) {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Registers the current thread as a reader which may block. Must be called
+	 * while holding the monitor, before checking whether the required data is
+	 * available, and followed by removeWaitingReader() once the thread has
+	 * stopped waiting.
+	 */
+	protected final void addWaitingReader() {
+		waitingReaders++;
+	}
+
+	protected final void removeWaitingReader() {
+		waitingReaders--;
+	}
+
 	private synchronized void setLoaded() {
 		status = Status.LOADED;
 		notifyAll();
@@ -112,10 +158,13 @@ public abstract class JsonBuffered {
 			throw new RuntimeException(t);
 	}
 	
-	protected final void build(final JsonParser jp) throws IOException {
+	protected final void build() throws IOException {
+
+		final JsonParseContext context = this.context;
+		this.context = null;
 		
 		try {
-			buildBuffered(jp);
+			buildBuffered(context);
 			setLoaded();
 			
 		} catch (final IOException e) {
@@ -128,7 +177,7 @@ public abstract class JsonBuffered {
 		}
 	}
 	
-	protected abstract void buildBuffered(JsonParser jp) throws IOException;
+	protected abstract void buildBuffered(JsonParseContext context) throws IOException;
 	
 	@Override
 	public String toString() {
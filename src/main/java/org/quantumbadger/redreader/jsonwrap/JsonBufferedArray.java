@@ -22,7 +22,6 @@ import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
-import java.util.ArrayList;
 import java.util.Iterator;
 
 
@@ -31,26 +30,46 @@ import java.util.Iterator;
  */
 public final class JsonBufferedArray extends JsonBuffered implements Iterable<JsonValue> {
 	
-	private final ArrayList<JsonValue> contents = new ArrayList<JsonValue>(16);
-	private int items = 0;
+	// Only written by the parsing thread. Each item is stored before "items" is
+	// incremented, so readers may access any index below "items" without locking.
+	private volatile JsonValue[] contents = new JsonValue[16];
+	private volatile int items = 0;
 	
+	JsonBufferedArray(final JsonParseContext context) {
+		super(context);
+	}
+
 	@Override
-	protected void buildBuffered(final JsonParser jp) throws IOException {
+	protected void buildBuffered(final JsonParseContext context) throws IOException {
 		
+		final JsonParser jp = context.jp;
 		JsonToken jt;
 		
 		while((jt = jp.nextToken()) != JsonToken.END_ARRAY) {
 			
-			final JsonValue value = new JsonValue(jp, jt);
-			
-			synchronized(this) {
-				contents.add(value);
-				items++;
-				notifyAll();
+			final JsonValue value = new JsonValue(context, jt);
+
+			JsonValue[] currentContents = contents;
+
+			if(items == currentContents.length) {
+				final JsonValue[] newContents = new JsonValue[currentContents.length * 2];
+				System.arraycopy(currentContents, 0, newContents, 0, items);
+				contents = currentContents = newContents;
 			}
+
+			currentContents[items] = value;
+			items++;
+			notifyReaders();
 			
 			value.buildInThisThread();
 		}
+
+		// Readers never index beyond "items", so the array can be swapped for an exact copy
+		if(items < contents.length) {
+			final JsonValue[] trimmed = new JsonValue[items];
+			System.arraycopy(contents, 0, trimmed, 0, items);
+			contents = trimmed;
+		}
 	}
 	
 	/**
@@ -69,15 +88,30 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 		
 		if(id < 0)
 			throw new ArrayIndexOutOfBoundsException(id);
+
+		for(int i = 0; i < YIELDS_BEFORE_WAITING && id >= items && getStatus() == Status.LOADING; i++) {
+			Thread.yield();
+		}
+
+		if(id < items) {
+			return contents[id];
+		}
 		
 		synchronized(this) {
-			
-			while(getStatus() == Status.LOADING && items <= id) {
-				wait();
+
+			addWaitingReader();
+
+			try {
+				while(getStatus() == Status.LOADING && items <= id) {
+					wait();
+				}
+
+			} finally {
+				removeWaitingReader();
 			}
 
-			if(getStatus() != Status.FAILED || items > id) {
-				return contents.get(id);
+			if(items > id) {
+				return contents[id];
 			}
 
 			if(getStatus() == Status.FAILED) {
@@ -197,15 +231,29 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 		private int currentId = 0;
 
 		public boolean hasNext() {
+
+			for(int i = 0; i < YIELDS_BEFORE_WAITING && currentId >= items && getStatus() == Status.LOADING; i++) {
+				Thread.yield();
+			}
+
+			if(currentId < items) {
+				return true;
+			}
 			
 			synchronized(JsonBufferedArray.this) {
-				
-				while(getStatus() == Status.LOADING && items <= currentId) {
-					try {
+
+				addWaitingReader();
+
+				try {
+					while(getStatus() == Status.LOADING && items <= currentId) {
 						JsonBufferedArray.this.wait();
-					} catch (final InterruptedException e) {
-						throw new RuntimeException(e);
 					}
+
+				} catch (final InterruptedException e) {
+					throw new RuntimeException(e);
+
+				} finally {
+					removeWaitingReader();
 				}
 				
 				if(getStatus() == Status.FAILED) {
@@ -221,7 +269,7 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 		}
 
 		public JsonValue next() {
-			return contents.get(currentId++);
+			return contents[currentId++];
 		}
 
 		public void remove() {
@@ -238,11 +286,11 @@ public final class JsonBufferedArray extends JsonBuffered implements Iterable<Js
 
 		sb.append('[');
 
-		for(int item = 0; item < contents.size(); item++) {
+		for(int item = 0; item < items; item++) {
 			if(item != 0) sb.append(',');
 			sb.append('\n');
 			for(int i = 0; i < indent + 1; i++) sb.append("   ");
-			contents.get(item).prettyPrint(indent + 1, sb);
+			contents[item].prettyPrint(indent + 1, sb);
 		}
 
 		sb.append('\n');
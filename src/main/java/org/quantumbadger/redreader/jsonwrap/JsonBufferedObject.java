@@ -22,13 +22,11 @@ import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonToken;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Modifier;
-import java.util.HashMap;
+import java.util.AbstractMap;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.Set;
 
 
 /**
@@ -36,11 +34,29 @@ import java.util.Set;
  */
 public final class JsonBufferedObject extends JsonBuffered implements Iterable<Map.Entry<String, JsonValue>> {
 	
-	private final HashMap<String, JsonValue> properties = new HashMap<String, JsonValue>();
+	// Only written by the parsing thread. Each field is stored before "fieldCount"
+	// is incremented, so readers may access any field below "fieldCount" without
+	// locking. Once the object is fully received, the arrays are replaced by
+	// copies of the exact size, and the names are shared with other objects of
+	// the same shape.
+	private volatile String[] fieldNames = new String[INITIAL_CAPACITY];
+	private volatile JsonValue[] fieldValues = new JsonValue[INITIAL_CAPACITY];
+	private volatile int fieldCount = 0;
+
+	// Null if the object has repeated field names
+	private JsonObjectShape shape;
+	private volatile boolean propertiesComplete = false;
+
+	private static final int INITIAL_CAPACITY = 8;
 	
+	JsonBufferedObject(final JsonParseContext context) {
+		super(context);
+	}
+
 	@Override
-	protected void buildBuffered(final JsonParser jp) throws IOException {
+	protected void buildBuffered(final JsonParseContext context) throws IOException {
 		
+		final JsonParser jp = context.jp;
 		JsonToken jt;
 
 		while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
@@ -50,15 +66,83 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 						jp.getCurrentLocation());
 
 			final String fieldName = jp.getCurrentName();
-			final JsonValue value = new JsonValue(jp);
+			final JsonValue value = new JsonValue(context);
+
+			String[] currentNames = fieldNames;
+			JsonValue[] currentValues = fieldValues;
+
+			if(fieldCount == currentNames.length) {
+
+				final String[] newNames = new String[currentNames.length * 2];
+				final JsonValue[] newValues = new JsonValue[currentNames.length * 2];
+
+				System.arraycopy(currentNames, 0, newNames, 0, fieldCount);
+				System.arraycopy(currentValues, 0, newValues, 0, fieldCount);
 
-			synchronized(this) {
-				properties.put(fieldName, value);
-				notifyAll();
+				fieldNames = currentNames = newNames;
+				fieldValues = currentValues = newValues;
 			}
 
+			currentNames[fieldCount] = fieldName;
+			currentValues[fieldCount] = value;
+			fieldCount++;
+
+			notifyReaders();
+
 			value.buildInThisThread();
 		}
+
+		// Not visible to readers until propertiesComplete is set
+		shape = context.getShape(fieldNames, fieldCount);
+
+		if(shape != null) {
+
+			final JsonValue[] trimmedValues = new JsonValue[fieldCount];
+			System.arraycopy(fieldValues, 0, trimmedValues, 0, fieldCount);
+
+			// The contents below fieldCount are unchanged, so readers may see either version
+			fieldValues = trimmedValues;
+			fieldNames = shape.names;
+		}
+
+		propertiesComplete = true;
+	}
+
+	// Returns the most recent value received for the field, or null if it hasn't been received yet
+	private JsonValue findReceived(final String name) {
+
+		if(propertiesComplete && shape != null) {
+			final int index = shape.indexOf(name);
+			return index < 0 ? null : fieldValues[index];
+		}
+
+		final int count = fieldCount;
+		final String[] names = fieldNames;
+		final JsonValue[] values = fieldValues;
+
+		for(int i = count - 1; i >= 0; i--) {
+			if(names[i].equals(name)) return values[i];
+		}
+
+		return null;
+	}
+
+	// The final value of each field, in the order received. The object must be fully loaded.
+	private ArrayList<Map.Entry<String, JsonValue>> getEntries() {
+
+		final int count = fieldCount;
+		final String[] names = fieldNames;
+		final JsonValue[] values = fieldValues;
+
+		final ArrayList<Map.Entry<String, JsonValue>> result = new ArrayList<Map.Entry<String, JsonValue>>(count);
+
+		for(int i = 0; i < count; i++) {
+			if(shape != null || findReceived(names[i]) == values[i]) {
+				result.add(new AbstractMap.SimpleImmutableEntry<String, JsonValue>(names[i], values[i]));
+			}
+		}
+
+		return result;
 	}
 	
 	/**
@@ -73,15 +157,38 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 	 * @throws java.io.IOException
 	 */
 	public JsonValue get(final String name) throws InterruptedException, IOException {
+
+		JsonValue result = findReceived(name);
+
+		for(int i = 0; i < YIELDS_BEFORE_WAITING && result == null && getStatus() == Status.LOADING; i++) {
+			Thread.yield();
+			result = findReceived(name);
+		}
+
+		if(result != null) {
+			return result;
+		}
+
+		// The field may have arrived between the last check and the object being loaded
+		if(getStatus() == Status.LOADED) {
+			return findReceived(name);
+		}
 		
 		synchronized(this) {
-			
-			while(getStatus() == Status.LOADING && !properties.containsKey(name)) {
-				wait();
+
+			addWaitingReader();
+
+			try {
+				while(getStatus() == Status.LOADING && (result = findReceived(name)) == null) {
+					wait();
+				}
+
+			} finally {
+				removeWaitingReader();
 			}
 
-			if(getStatus() != Status.FAILED || properties.containsKey(name)) {
-				return properties.get(name);
+			if(result != null || (result = findReceived(name)) != null) {
+				return result;
 			}
 			
 			if(getStatus() == Status.FAILED) {
@@ -196,15 +303,14 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 		
 		sb.append('{');
 
-		final Set<String> propertyKeySet = properties.keySet();
-		final String[] fieldNames = propertyKeySet.toArray(new String[propertyKeySet.size()]);
+		final ArrayList<Map.Entry<String, JsonValue>> entries = getEntries();
 		
-		for(int prop = 0; prop < fieldNames.length; prop++) {
+		for(int prop = 0; prop < entries.size(); prop++) {
 			if(prop != 0) sb.append(',');
 			sb.append('\n');
 			for(int i = 0; i < indent + 1; i++) sb.append("   ");
-			sb.append("\"").append(fieldNames[prop].replace("\\", "\\\\").replace("\"", "\\\"")).append("\": ");
-			properties.get(fieldNames[prop]).prettyPrint(indent + 1, sb);
+			sb.append("\"").append(entries.get(prop).getKey().replace("\\", "\\\\").replace("\"", "\\\"")).append("\": ");
+			entries.get(prop).getValue().prettyPrint(indent + 1, sb);
 		}
 		
 		sb.append('\n');
@@ -213,95 +319,23 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 	}
 	
 	public <E> E asObject(final Class<E> clazz) throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
-		final E obj = clazz.getConstructor().newInstance();
-		populateObject(obj);
+		final JsonObjectBinder<E> binder = JsonObjectBinder.forClass(clazz);
+		final E obj = binder.newInstance();
+		populateObject(obj, binder);
 		return obj;
 	}
 	
 	public void populateObject(final Object o) throws InterruptedException, IOException, IllegalArgumentException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+		populateObject(o, JsonObjectBinder.forClass(o.getClass()));
+	}
+
+	private void populateObject(final Object o, final JsonObjectBinder<?> binder) throws InterruptedException, IOException, IllegalArgumentException, InstantiationException, NoSuchMethodException, InvocationTargetException {
 		
 		if(join() != Status.LOADED) {
 			throwFailReasonException();
 		}
-		
-		final Field[] objectFields = o.getClass().getFields();
-		
-		try {
-			
-			for(final Field objectField : objectFields) {
-				
-				if((objectField.getModifiers() & Modifier.TRANSIENT) != 0) {
-					continue;
-				}
-
-				final JsonValue val;
 
-				if(properties.containsKey(objectField.getName())) {
-					val = properties.get(objectField.getName());
-
-				} else if(objectField.getName().startsWith("_json_")) {
-					val = properties.get(objectField.getName().substring("_json_".length()));
-				} else {
-					val = null;
-				}
-
-				if(val == null) {
-					continue;
-				}
-				
-				objectField.setAccessible(true);
-				
-				final Class<?> fieldType = objectField.getType();
-				
-				if(fieldType == Long.class || fieldType == Long.TYPE) {
-					objectField.set(o, val.asLong());
-					
-				} else if(fieldType == Double.class || fieldType == Double.TYPE) {
-					objectField.set(o, val.asDouble());
-					
-				} else if(fieldType == Integer.class || fieldType == Integer.TYPE) {
-					objectField.set(o, val.isNull() ? null : val.asLong().intValue());
-					
-				} else if(fieldType == Float.class || fieldType == Float.TYPE) {
-					objectField.set(o, val.isNull() ? null : val.asDouble().floatValue());
-					
-				} else if(fieldType == Boolean.class || fieldType == Boolean.TYPE) {
-					objectField.set(o, val.asBoolean());
-					
-				} else if(fieldType == String.class) {
-					objectField.set(o, val.asString());
-					
-				} else if(fieldType == JsonBufferedArray.class) {
-					objectField.set(o, val.asArray());
-					
-				} else if(fieldType == JsonBufferedObject.class) {
-					objectField.set(o, val.asObject());
-					
-				} else if(fieldType == JsonValue.class) {
-					objectField.set(o, val);
-
-				} else if(fieldType == Object.class) {
-
-					final Object result;
-
-					switch(val.getType()) {
-						case BOOLEAN: result = val.asBoolean(); break;
-						case INTEGER: result = val.asLong(); break;
-						case STRING: result = val.asString(); break;
-						case FLOAT: result = val.asDouble(); break;
-						default: result = val;
-					}
-
-					objectField.set(o, result);
-					
-				} else {
-					objectField.set(o, val.asObject(fieldType));
-				}
-			}
-			
-		} catch(IllegalAccessException e) {
-			throw new RuntimeException(e);
-		}
+		binder.bind(o, this);
 	}
 
 	public Iterator<Map.Entry<String, JsonValue>> iterator() {
@@ -310,6 +344,6 @@ public final class JsonBufferedObject extends JsonBuffered implements Iterable<M
 		} catch (InterruptedException e) {
 			throw new RuntimeException(e);
 		}
-		return properties.entrySet().iterator();
+		return getEntries().iterator();
 	}
 }
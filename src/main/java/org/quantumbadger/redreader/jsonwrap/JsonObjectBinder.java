@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Copies the fields of a JSON object into the public fields of a Java object.
+ * The fields of each class are examined once, the first time an object of
+ * that class is bound, rather than on every call.
+ */
+final class JsonObjectBinder<E> {
+
+	private static final ConcurrentHashMap<Class<?>, JsonObjectBinder<?>> binders
+			= new ConcurrentHashMap<Class<?>, JsonObjectBinder<?>>();
+
+	private static enum FieldType {
+		LONG, LONG_BOXED,
+		INT, INT_BOXED,
+		DOUBLE, DOUBLE_BOXED,
+		FLOAT, FLOAT_BOXED,
+		BOOLEAN, BOOLEAN_BOXED,
+		STRING, ARRAY, OBJECT, VALUE, ANY, NESTED
+	}
+
+	private static final class FieldBinder {
+
+		private final Field field;
+		private final String jsonName;
+		private final FieldType type;
+
+		private FieldBinder(final Field field) {
+
+			this.field = field;
+
+			// Fields such as "_json_new" bind to JSON properties which are reserved words in Java
+			final String name = field.getName();
+			jsonName = name.startsWith("_json_") ? name.substring("_json_".length()) : name;
+
+			final Class<?> fieldType = field.getType();
+
+			if(fieldType == Long.TYPE) type = FieldType.LONG;
+			else if(fieldType == Long.class) type = FieldType.LONG_BOXED;
+			else if(fieldType == Integer.TYPE) type = FieldType.INT;
+			else if(fieldType == Integer.class) type = FieldType.INT_BOXED;
+			else if(fieldType == Double.TYPE) type = FieldType.DOUBLE;
+			else if(fieldType == Double.class) type = FieldType.DOUBLE_BOXED;
+			else if(fieldType == Float.TYPE) type = FieldType.FLOAT;
+			else if(fieldType == Float.class) type = FieldType.FLOAT_BOXED;
+			else if(fieldType == Boolean.TYPE) type = FieldType.BOOLEAN;
+			else if(fieldType == Boolean.class) type = FieldType.BOOLEAN_BOXED;
+			else if(fieldType == String.class) type = FieldType.STRING;
+			else if(fieldType == JsonBufferedArray.class) type = FieldType.ARRAY;
+			else if(fieldType == JsonBufferedObject.class) type = FieldType.OBJECT;
+			else if(fieldType == JsonValue.class) type = FieldType.VALUE;
+			else if(fieldType == Object.class) type = FieldType.ANY;
+			else type = FieldType.NESTED;
+		}
+
+		private void bind(final Object o, final JsonValue val) throws IllegalAccessException, InterruptedException,
+				IOException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+			switch(type) {
+
+				// A null can't be stored in a primitive, so the field keeps its default
+				case LONG:
+					if(!val.isNull()) field.setLong(o, val.longValue());
+					break;
+
+				case INT:
+					if(!val.isNull()) field.setInt(o, (int)val.longValue());
+					break;
+
+				case DOUBLE:
+					if(!val.isNull()) field.setDouble(o, val.doubleValue());
+					break;
+
+				case FLOAT:
+					if(!val.isNull()) field.setFloat(o, (float)val.doubleValue());
+					break;
+
+				case BOOLEAN:
+					if(!val.isNull()) field.setBoolean(o, val.booleanValue());
+					break;
+
+				case LONG_BOXED:
+					field.set(o, val.asLong());
+					break;
+
+				case INT_BOXED:
+					field.set(o, val.isNull() ? null : (int)val.longValue());
+					break;
+
+				case DOUBLE_BOXED:
+					field.set(o, val.asDouble());
+					break;
+
+				case FLOAT_BOXED:
+					field.set(o, val.isNull() ? null : (float)val.doubleValue());
+					break;
+
+				case BOOLEAN_BOXED:
+					field.set(o, val.asBoolean());
+					break;
+
+				case STRING:
+					field.set(o, val.asString());
+					break;
+
+				case ARRAY:
+					field.set(o, val.asArray());
+					break;
+
+				case OBJECT:
+					field.set(o, val.asObject());
+					break;
+
+				case VALUE:
+					field.set(o, val);
+					break;
+
+				case ANY:
+
+					final Object result;
+
+					switch(val.getType()) {
+						case BOOLEAN: result = val.asBoolean(); break;
+						case INTEGER: result = val.asLong(); break;
+						case STRING: result = val.asString(); break;
+						case FLOAT: result = val.asDouble(); break;
+						default: result = val;
+					}
+
+					field.set(o, result);
+					break;
+
+				case NESTED:
+					field.set(o, val.asObject(field.getType()));
+					break;
+			}
+		}
+
+		// The parser must be positioned on the value's first token
+		private void bind(final Object o, final JsonParser jp, final JsonToken token) throws IllegalAccessException,
+				InterruptedException, IOException, InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+			// The common cases are read straight from the parser
+			if(token == JsonToken.VALUE_STRING && type == FieldType.STRING) {
+				field.set(o, jp.getText());
+
+			} else if(token == JsonToken.VALUE_NUMBER_INT && type == FieldType.INT) {
+				// Narrowed from a long, as the tree does, rather than failing on values outside the int range
+				field.setInt(o, (int)jp.getValueAsLong());
+
+			} else if(token == JsonToken.VALUE_NUMBER_INT && type == FieldType.LONG) {
+				field.setLong(o, jp.getLongValue());
+
+			} else if((token == JsonToken.VALUE_TRUE || token == JsonToken.VALUE_FALSE) && type == FieldType.BOOLEAN) {
+				field.setBoolean(o, token == JsonToken.VALUE_TRUE);
+
+			} else {
+				final JsonValue val = new JsonValue(new JsonParseContext(jp), token);
+				val.buildInThisThread();
+				bind(o, val);
+			}
+		}
+	}
+
+	private final Constructor<E> constructor;
+	private final FieldBinder[] fields;
+	private final HashMap<String, FieldBinder> fieldsByName;
+
+	private JsonObjectBinder(final Class<E> clazz) throws NoSuchMethodException {
+
+		constructor = clazz.getConstructor();
+
+		final ArrayList<FieldBinder> fieldList = new ArrayList<FieldBinder>();
+
+		for(final Field field : clazz.getFields()) {
+
+			if((field.getModifiers() & (Modifier.TRANSIENT | Modifier.STATIC | Modifier.FINAL)) != 0) {
+				continue;
+			}
+
+			field.setAccessible(true);
+			fieldList.add(new FieldBinder(field));
+		}
+
+		fields = fieldList.toArray(new FieldBinder[fieldList.size()]);
+
+		fieldsByName = new HashMap<String, FieldBinder>(fields.length * 2);
+		for(final FieldBinder field : fields) {
+			fieldsByName.put(field.jsonName, field);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <E> JsonObjectBinder<E> forClass(final Class<E> clazz) throws NoSuchMethodException {
+
+		final JsonObjectBinder<E> existing = (JsonObjectBinder<E>)binders.get(clazz);
+		if(existing != null) return existing;
+
+		// Two threads may both create a binder for the same class, but only one is kept
+		final JsonObjectBinder<E> binder = new JsonObjectBinder<E>(clazz);
+		final JsonObjectBinder<E> raced = (JsonObjectBinder<E>)binders.putIfAbsent(clazz, binder);
+
+		return raced != null ? raced : binder;
+	}
+
+	E newInstance() throws IllegalAccessException, InvocationTargetException, InstantiationException {
+		return constructor.newInstance();
+	}
+
+	// The source object must be fully loaded
+	void bind(final Object o, final JsonBufferedObject source) throws InterruptedException, IOException,
+			InstantiationException, NoSuchMethodException, InvocationTargetException {
+
+		try {
+			for(final FieldBinder field : fields) {
+
+				final JsonValue val = source.get(field.jsonName);
+
+				if(val != null) {
+					field.bind(o, val);
+				}
+			}
+
+		} catch(IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	// The parser must be positioned on the START_OBJECT token, and is left on the matching END_OBJECT
+	void bind(final Object o, final JsonParser jp, final JsonStreamReader.PropertyHandler handler)
+			throws InterruptedException, IOException, InstantiationException, NoSuchMethodException,
+			InvocationTargetException {
+
+		try {
+			JsonToken jt;
+
+			while((jt = jp.nextToken()) != JsonToken.END_OBJECT) {
+
+				if(jt != JsonToken.FIELD_NAME) {
+					throw new JsonParseException("Expecting field name, got " + jt, jp.getCurrentLocation());
+				}
+
+				final String name = jp.getCurrentName();
+				final JsonToken valueToken = jp.nextToken();
+
+				if(handler != null && handler.onProperty(name, valueToken, jp)) {
+					continue;
+				}
+
+				final FieldBinder field = fieldsByName.get(name);
+
+				if(field == null) {
+					jp.skipChildren();
+				} else {
+					field.bind(o, jp, valueToken);
+				}
+			}
+
+		} catch(IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import java.util.HashMap;
+
+
+/**
+ * The field names of a JSON object, in the order they were received. Objects
+ * with the same fields share one shape, so the names are stored once per
+ * parse rather than once per object.
+ */
+final class JsonObjectShape {
+
+	// Smaller objects are searched linearly, which is faster than hashing
+	private static final int INDEX_THRESHOLD = 8;
+
+	final String[] names;
+
+	private final int hash;
+	private final HashMap<String, Integer> index;
+	private final boolean hasDuplicates;
+
+	JsonObjectShape(final int hash, final String[] names, final int count) {
+
+		this.hash = hash;
+		this.names = new String[count];
+		System.arraycopy(names, 0, this.names, 0, count);
+
+		final HashMap<String, Integer> index = new HashMap<String, Integer>(count * 2);
+		boolean hasDuplicates = false;
+
+		for(int i = 0; i < count; i++) {
+			if(index.put(names[i], i) != null) {
+				hasDuplicates = true;
+			}
+		}
+
+		this.index = count > INDEX_THRESHOLD ? index : null;
+		this.hasDuplicates = hasDuplicates;
+	}
+
+	static int hash(final String[] names, final int count) {
+
+		int result = count;
+
+		for(int i = 0; i < count; i++) {
+			result = 31 * result + names[i].hashCode();
+		}
+
+		return result ^ (result >>> 16);
+	}
+
+	boolean matches(final int hash, final String[] names, final int count) {
+
+		if(this.hash != hash || this.names.length != count) return false;
+
+		for(int i = 0; i < count; i++) {
+			// Field names from the parser are normally interned already
+			if(this.names[i] != names[i] && !this.names[i].equals(names[i])) return false;
+		}
+
+		return true;
+	}
+
+	// If true, objects with these fields must be searched from the end, so that the last value wins
+	boolean hasDuplicates() {
+		return hasDuplicates;
+	}
+
+	/**
+	 * @return The position of the specified field, or -1 if there is no such
+	 *		 field.
+	 */
+	int indexOf(final String name) {
+
+		if(index != null) {
+			final Integer result = index.get(name);
+			return result == null ? -1 : result;
+		}
+
+		for(int i = 0; i < names.length; i++) {
+			if(names[i].equals(name)) return i;
+		}
+
+		return -1;
+	}
+
+	int getHash() {
+		return hash;
+	}
+}
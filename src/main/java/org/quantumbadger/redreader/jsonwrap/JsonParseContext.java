@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import java.io.IOException;
+
+
+/**
+ * State shared by every value in a single parse. Used only by the parsing
+ * thread.
+ *
+ * <p>
+ * Objects with the same fields in the same order (such as every comment in
+ * a listing) share one JsonObjectShape, and short string values which repeat
+ * (such as authors, subreddits and domains) share one String instance.
+ * </p>
+ */
+final class JsonParseContext {
+
+	// Longer strings are rarely repeated, so aren't worth looking up
+	private static final int MAX_INTERNED_LENGTH = 32;
+
+	// Stops a very large document from building an unbounded table
+	private static final int MAX_INTERNED_STRINGS = 4096;
+
+	final JsonParser jp;
+
+	// Open addressing tables, with a power of two size. Allocated on first use.
+	private JsonObjectShape[] shapes;
+	private int shapeCount = 0;
+
+	private String[] strings;
+	private int stringCount = 0;
+
+	JsonParseContext(final JsonParser jp) {
+		this.jp = jp;
+	}
+
+	/**
+	 * @return The shared shape for an object with the specified fields, or
+	 *		 null if a field name is repeated.
+	 */
+	JsonObjectShape getShape(final String[] names, final int count) {
+
+		if(shapes == null) {
+			shapes = new JsonObjectShape[16];
+		}
+
+		final int hash = JsonObjectShape.hash(names, count);
+		final int mask = shapes.length - 1;
+
+		int slot = hash & mask;
+		JsonObjectShape shape;
+
+		while((shape = shapes[slot]) != null) {
+
+			if(shape.matches(hash, names, count)) {
+				return shape.hasDuplicates() ? null : shape;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		shape = new JsonObjectShape(hash, names, count);
+		shapes[slot] = shape;
+
+		if(++shapeCount * 2 > shapes.length) {
+			shapes = rehash(shapes);
+		}
+
+		return shape.hasDuplicates() ? null : shape;
+	}
+
+	private static JsonObjectShape[] rehash(final JsonObjectShape[] old) {
+
+		final JsonObjectShape[] result = new JsonObjectShape[old.length * 2];
+		final int mask = result.length - 1;
+
+		for(final JsonObjectShape shape : old) {
+
+			if(shape == null) continue;
+
+			int slot = shape.getHash() & mask;
+			while(result[slot] != null) slot = (slot + 1) & mask;
+			result[slot] = shape;
+		}
+
+		return result;
+	}
+
+	/**
+	 * @return The current string value, which is shared with any earlier
+	 *		 equal value from this parse if it is short enough.
+	 */
+	String getText() throws IOException {
+
+		final int length = jp.getTextLength();
+
+		if(length > MAX_INTERNED_LENGTH) {
+			return jp.getText();
+		}
+
+		if(strings == null) {
+			strings = new String[256];
+		}
+
+		// Hashing the parser's buffer avoids creating a String for repeated values
+		final char[] chars = jp.getTextCharacters();
+		final int offset = jp.getTextOffset();
+
+		int hash = 0;
+		for(int i = 0; i < length; i++) {
+			hash = 31 * hash + chars[offset + i];
+		}
+
+		final int mask = strings.length - 1;
+		int slot = (hash ^ (hash >>> 16)) & mask;
+		String existing;
+
+		while((existing = strings[slot]) != null) {
+
+			if(existing.hashCode() == hash && matches(existing, chars, offset, length)) {
+				return existing;
+			}
+
+			slot = (slot + 1) & mask;
+		}
+
+		final String result = new String(chars, offset, length);
+
+		if(stringCount < MAX_INTERNED_STRINGS) {
+
+			strings[slot] = result;
+
+			if(++stringCount * 2 > strings.length) {
+				strings = rehash(strings);
+			}
+		}
+
+		return result;
+	}
+
+	private static boolean matches(final String str, final char[] chars, final int offset, final int length) {
+
+		if(str.length() != length) return false;
+
+		for(int i = 0; i < length; i++) {
+			if(str.charAt(i) != chars[offset + i]) return false;
+		}
+
+		return true;
+	}
+
+	private static String[] rehash(final String[] old) {
+
+		final String[] result = new String[old.length * 2];
+		final int mask = result.length - 1;
+
+		for(final String str : old) {
+
+			if(str == null) continue;
+
+			final int hash = str.hashCode();
+			int slot = (hash ^ (hash >>> 16)) & mask;
+			while(result[slot] != null) slot = (slot + 1) & mask;
+			result[slot] = str;
+		}
+
+		return result;
+	}
+}
@@ -0,0 +1,109 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+
+
+/**
+ * Reads objects directly from a JSON stream into the public fields of Java
+ * objects, without building a JsonValue tree. Properties which don't match a
+ * field are skipped without being parsed.
+ *
+ * <p>
+ * Unlike JsonValue, the stream is read in the calling thread, and nothing is
+ * available until each object has been read in full.
+ * </p>
+ */
+public final class JsonStreamReader {
+
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/**
+	 * Receives each property of an object before it is bound, so that the
+	 * caller can read it from the stream itself.
+	 */
+	public interface PropertyHandler {
+
+		/**
+		 * @param name
+		 *			The name of the property
+		 * @param token
+		 *			The first token of the property's value, on which the
+		 *			parser is positioned
+		 * @return True if the value was consumed, leaving the parser on its
+		 *			last token, or false if it should be bound as normal
+		 */
+		boolean onProperty(String name, JsonToken token, JsonParser jp) throws IOException;
+	}
+
+	private JsonStreamReader() {}
+
+	/**
+	 * @param source
+	 *			The source of incoming JSON data.
+	 * @return A parser for the stream, which should be closed by the caller.
+	 */
+	public static JsonParser createParser(final InputStream source) throws IOException {
+		return jsonFactory.createParser(source);
+	}
+
+	/**
+	 * Reads the object on which the parser is positioned.
+	 *
+	 * @param jp
+	 *			The parser, positioned on a START_OBJECT token. When this
+	 *			method returns, it is positioned on the matching END_OBJECT.
+	 * @param clazz
+	 *			The class of the object to create
+	 * @param handler
+	 *			Receives each property before it is bound, or null
+	 * @return A new object of the specified class
+	 */
+	public static <E> E readObject(final JsonParser jp, final Class<E> clazz, final PropertyHandler handler)
+			throws IOException, InstantiationException, IllegalAccessException, InterruptedException,
+			NoSuchMethodException, InvocationTargetException {
+
+		if(jp.getCurrentToken() != JsonToken.START_OBJECT) {
+			throw new JsonParseException("Expecting an object", jp.getCurrentLocation());
+		}
+
+		final JsonObjectBinder<E> binder = JsonObjectBinder.forClass(clazz);
+		final E obj = binder.newInstance();
+		binder.bind(obj, jp, handler);
+		return obj;
+	}
+
+	/**
+	 * Reads the value on which the parser is positioned into a JsonValue
+	 * tree, for the rare parts of a stream which need one.
+	 */
+	public static JsonValue readValue(final JsonParser jp) throws IOException {
+		final JsonValue value = new JsonValue(new JsonParseContext(jp), jp.getCurrentToken());
+		value.buildInThisThread();
+		return value;
+	}
+}
@@ -46,10 +46,14 @@ public final class JsonValue {
 		OBJECT, ARRAY, NULL, BOOLEAN, STRING, FLOAT, INTEGER
 	}
 	
-	private final Type type;
+	// A JsonBufferedObject, JsonBufferedArray or String. For the other types,
+	// this is the Type itself, and any data is held in "bits". Deriving the
+	// type from the value keeps each JsonValue to a header and two fields.
 	private final Object value;
-	
-	private JsonParser jp = null;
+
+	// Integers, floats (as raw double bits) and booleans (as 1 or 0) are kept
+	// inline, rather than boxed
+	private final long bits;
 	
 	/**
 	 * Begins parsing a JSON stream into a tree structure. The JsonValue object
@@ -64,7 +68,11 @@ public final class JsonValue {
 	 * @throws java.io.IOException
 	 */
 	public JsonValue(final JsonParser jp) throws IOException {
-		this(jp, jp.nextToken());
+		this(new JsonParseContext(jp));
+	}
+
+	JsonValue(final JsonParseContext context) throws IOException {
+		this(context, context.jp.nextToken());
 	}
 	
 	/**
@@ -164,58 +172,58 @@ public final class JsonValue {
 	}
 	
 	// The main constructor
-	protected JsonValue(final JsonParser jp, final JsonToken firstToken) throws IOException {
+	protected JsonValue(final JsonParseContext context, final JsonToken firstToken) throws IOException {
+
+		final JsonParser jp = context.jp;
 		
 		switch(firstToken) {
 			
 			case START_OBJECT:
-				type = Type.OBJECT;
-				value = new JsonBufferedObject();
-				this.jp = jp;
+				value = new JsonBufferedObject(context);
+				bits = 0;
 				break;
 				
 			case START_ARRAY:
-				type = Type.ARRAY;
-				value = new JsonBufferedArray();
-				this.jp = jp;
+				value = new JsonBufferedArray(context);
+				bits = 0;
 				break;
 				
 			case VALUE_FALSE:
-				type = Type.BOOLEAN;
-				value = false;
+				value = Type.BOOLEAN;
+				bits = 0;
 				break;
 				
 			case VALUE_TRUE:
-				type = Type.BOOLEAN;
-				value = true;
+				value = Type.BOOLEAN;
+				bits = 1;
 				break;
 				
 			case VALUE_NULL:
-				type = Type.NULL;
-				value = null;
+				value = Type.NULL;
+				bits = 0;
 				break;
 				
 			case VALUE_STRING:
-				type = Type.STRING;
-				value = jp.getValueAsString();
+				value = context.getText();
+				bits = 0;
 				break;
 				
 			case VALUE_NUMBER_FLOAT:
 
 				//noinspection FloatingPointEquality,UnnecessaryExplicitNumericCast
 				if(jp.getValueAsDouble() == (double)jp.getValueAsLong()) {
-					type = Type.INTEGER;
-					value = jp.getValueAsLong();
+					value = Type.INTEGER;
+					bits = jp.getValueAsLong();
 				} else {
-					type = Type.FLOAT;
-					value = jp.getValueAsDouble();
+					value = Type.FLOAT;
+					bits = Double.doubleToRawLongBits(jp.getValueAsDouble());
 				}
 				
 				break;
 				
 			case VALUE_NUMBER_INT:
-				type = Type.INTEGER;
-				value = jp.getValueAsLong();
+				value = Type.INTEGER;
+				bits = jp.getValueAsLong();
 				break;
 				
 			default:
@@ -234,25 +242,35 @@ public final class JsonValue {
 	 */
 	public void buildInThisThread() throws IOException {
 		
-		if(type == Type.OBJECT || type == Type.ARRAY) {
-			((JsonBuffered)value).build(jp);
+		if(value instanceof JsonBuffered) {
+			((JsonBuffered)value).build();
 		}
-		
-		this.jp = null;
 	}
 	
 	/**
 	 * @return The type of value this JsonValue contains.
 	 */
 	public Type getType() {
-		return type;
+
+		if(value instanceof Type) {
+			return (Type)value;
+
+		} else if(value instanceof String) {
+			return Type.STRING;
+
+		} else if(value instanceof JsonBufferedObject) {
+			return Type.OBJECT;
+
+		} else {
+			return Type.ARRAY;
+		}
 	}
 	
 	/**
 	 * @return True if the type of this value is NULL.
 	 */
 	public boolean isNull() {
-		return type == Type.NULL;
+		return value == Type.NULL;
 	}
 	
 	/**
@@ -262,17 +280,17 @@ public final class JsonValue {
 	 */
 	public JsonBufferedObject asObject() {
 		
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
 			default:
-				return (JsonBufferedObject)value;
+				return (JsonBufferedObject)objectValue();
 		}
 	}
 
 	public <E> E asObject(final Class<E> clazz) throws InstantiationException, IllegalAccessException, InterruptedException, IOException, NoSuchMethodException, InvocationTargetException {
 		
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
 			default:
@@ -287,11 +305,11 @@ public final class JsonValue {
 	 */
 	public JsonBufferedArray asArray() {
 		
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
 			default:
-				return (JsonBufferedArray)value;
+				return (JsonBufferedArray)objectValue();
 		}
 	}
 	
@@ -302,11 +320,11 @@ public final class JsonValue {
 	 */
 	public Boolean asBoolean() {
 		
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
 			default:
-				return (Boolean)value;
+				return booleanValue();
 		}
 	}
 	
@@ -317,17 +335,17 @@ public final class JsonValue {
 	 */
 	public String asString() {
 		
-		switch(type) {
+		switch(getType()) {
 			case FLOAT:
-				return String.valueOf(asDouble());
+				return String.valueOf(doubleValue());
 			case INTEGER:
-				return String.valueOf(asLong());
+				return String.valueOf(longValue());
 			case BOOLEAN:
-				return String.valueOf(asBoolean());
+				return String.valueOf(booleanValue());
 			case NULL:
 				return null;
 			default:
-				return (String)value;
+				return (String)objectValue();
 		}
 	}
 	
@@ -337,15 +355,11 @@ public final class JsonValue {
 	 *		 checked with the getType() method.
 	 */
 	public Double asDouble() {
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
-			case INTEGER:
-				return ((Long)value).doubleValue();
-			case STRING:
-				return Double.parseDouble(asString());
 			default:
-				return (Double)value;
+				return doubleValue();
 		}
 	}
 	
@@ -355,17 +369,82 @@ public final class JsonValue {
 	 *		 checked with the getType() method.
 	 */
 	public Long asLong() {
-		switch(type) {
+		switch(getType()) {
 			case NULL:
 				return null;
+			default:
+				return longValue();
+		}
+	}
+	
+	/**
+	 * The same as asLong(), but without allocating a Long.
+	 *
+	 * @throws NullPointerException
+	 *			 If the type of this value is NULL.
+	 */
+	public long longValue() {
+		switch(getType()) {
+			case INTEGER:
+				return bits;
 			case FLOAT:
-				return ((Double)value).longValue();
+				return (long)Double.longBitsToDouble(bits);
 			case STRING:
-				return Long.parseLong(asString());
+				return Long.parseLong((String)value);
+			case NULL:
+				throw new NullPointerException("JSON value is null");
 			default:
-				return (Long)value;
+				throw new ClassCastException("JSON value is not a number: " + getType());
 		}
 	}
+
+	/**
+	 * The same as asDouble(), but without allocating a Double.
+	 *
+	 * @throws NullPointerException
+	 *			 If the type of this value is NULL.
+	 */
+	public double doubleValue() {
+		switch(getType()) {
+			case FLOAT:
+				return Double.longBitsToDouble(bits);
+			case INTEGER:
+				return (double)bits;
+			case STRING:
+				return Double.parseDouble((String)value);
+			case NULL:
+				throw new NullPointerException("JSON value is null");
+			default:
+				throw new ClassCastException("JSON value is not a number: " + getType());
+		}
+	}
+
+	/**
+	 * The same as asBoolean(), but returning a primitive.
+	 *
+	 * @throws NullPointerException
+	 *			 If the type of this value is NULL.
+	 */
+	public boolean booleanValue() {
+		switch(getType()) {
+			case BOOLEAN:
+				return bits != 0;
+			case NULL:
+				throw new NullPointerException("JSON value is null");
+			default:
+				throw new ClassCastException("JSON value is not a boolean: " + getType());
+		}
+	}
+
+	// Numbers and booleans aren't stored as objects, but still can't be cast to one
+	private Object objectValue() {
+
+		if(value instanceof Type) {
+			throw new ClassCastException("JSON value is not an object: " + getType());
+		}
+
+		return value;
+	}
 	
 	@Override
 	public String toString() {
@@ -387,10 +466,10 @@ public final class JsonValue {
 	
 	protected void prettyPrint(final int indent, final StringBuilder sb) throws InterruptedException, IOException {
 		
-		switch(type) {
-			case BOOLEAN:	sb.append(asBoolean()); break;
-			case FLOAT:		sb.append(asDouble()); break;
-			case INTEGER:	sb.append(asLong()); break;
+		switch(getType()) {
+			case BOOLEAN:	sb.append(booleanValue()); break;
+			case FLOAT:		sb.append(doubleValue()); break;
+			case INTEGER:	sb.append(longValue()); break;
 			case NULL:		sb.append("null"); break;
 			case STRING:	sb.append("\"").append(asString().replace("\\", "\\\\").replace("\"", "\\\"")).append("\""); break;
 			case ARRAY:
@@ -21,32 +21,38 @@ import android.content.Context;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.util.Log;
 import org.quantumbadger.redreader.account.RedditAccount;
+import org.quantumbadger.redreader.cache.CacheEntry;
 import org.quantumbadger.redreader.cache.CacheManager;
 import org.quantumbadger.redreader.cache.CacheRequest;
 import org.quantumbadger.redreader.cache.RequestFailureType;
 import org.quantumbadger.redreader.common.Constants;
 import org.quantumbadger.redreader.common.General;
+import org.quantumbadger.redreader.common.ItemBatcher;
+import org.quantumbadger.redreader.common.OrderedParallelProcessor;
 import org.quantumbadger.redreader.common.PrefsUtility;
 import org.quantumbadger.redreader.common.RRError;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
-import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
-import org.quantumbadger.redreader.jsonwrap.JsonValue;
 import org.quantumbadger.redreader.reddit.prepared.RedditChangeDataManager;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedComment;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedMoreComments;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedPost;
+import org.quantumbadger.redreader.reddit.prepared.markdown.MarkdownParagraphGroup;
 import org.quantumbadger.redreader.reddit.things.RedditComment;
 import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
 import org.quantumbadger.redreader.reddit.things.RedditPost;
-import org.quantumbadger.redreader.reddit.things.RedditThing;
 import org.quantumbadger.redreader.reddit.url.RedditURLParser;
 
 import java.io.IOException;
-import java.lang.reflect.InvocationTargetException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
 
 public class CommentListingRequest {
 
@@ -58,6 +64,7 @@ public class CommentListingRequest {
 			final RedditAccount user,
 			final UUID session,
 			final CacheRequest.DownloadType downloadType,
+			final ItemBatcher.Limits itemBatchLimits,
 			final Listener listener) {
 
 		mContext = context;
@@ -69,9 +76,26 @@ public class CommentListingRequest {
 		mDownloadType = downloadType;
 		mListener = listener;
 
+		mItemBatcher = new ItemBatcher<RedditCommentListItem>(
+				itemBatchLimits,
+				ItemBatcher.UI_THREAD,
+				new ItemBatcher.Listener<RedditCommentListItem>() {
+					public void onItemBatch(final ArrayList<RedditCommentListItem> items) {
+						mListener.onCommentListingRequestItemsDownloaded(items);
+					}
+				});
+
 		mCacheManager = CacheManager.getInstance(context);
 
-		mCacheManager.makeRequest(new CommentListingCacheRequest());
+		// Reopening a cached thread can skip parsing, if a snapshot was made when it was last parsed
+		if(mDownloadType == CacheRequest.DownloadType.IF_NECESSARY
+				&& mSession == null
+				&& mUrl.pathType() == RedditURLParser.PathType.PostCommentListingURL) {
+			mCacheManager.makeRequest(new SnapshotCacheRequest());
+
+		} else {
+			mCacheManager.makeRequest(new CommentListingCacheRequest());
+		}
 	}
 
 	private static enum Event {
@@ -83,7 +107,6 @@ public class CommentListingRequest {
 		EVENT_AUTHORIZING,
 		EVENT_PARSE_START,
 		EVENT_POST_DOWNLOADED,
-		EVENT_ITEM_DOWNLOADED,
 		EVENT_COMPLETE
 	}
 
@@ -100,7 +123,7 @@ public class CommentListingRequest {
 		void onCommentListingRequestCachedCopy(long timestamp);
 		void onCommentListingRequestParseStart();
 		void onCommentListingRequestPostDownloaded(RedditPreparedPost post);
-		void onCommentListingRequestItemDownloaded(RedditCommentListItem item);
+		void onCommentListingRequestItemsDownloaded(ArrayList<RedditCommentListItem> items);
 		void onCommentListingRequestComplete();
 	}
 
@@ -143,10 +166,6 @@ public class CommentListingRequest {
 					mListener.onCommentListingRequestPostDownloaded((RedditPreparedPost)msg.obj);
 					break;
 
-				case EVENT_ITEM_DOWNLOADED:
-					mListener.onCommentListingRequestItemDownloaded((RedditCommentListItem)msg.obj);
-					break;
-
 				case EVENT_COMPLETE:
 					mListener.onCommentListingRequestComplete();
 					break;
@@ -167,16 +186,298 @@ public class CommentListingRequest {
 	private final CacheRequest.DownloadType mDownloadType;
 
 	private final Listener mListener;
+	private final ItemBatcher<RedditCommentListItem> mItemBatcher;
 
 
 	private RedditPreparedPost mParentPost = null;
 
+	// Comments beyond these are prepared when they're first displayed
+	private static final int EAGER_TOP_LEVEL_COMMENTS = 10, EAGER_COMMENTS_PER_THREAD = 20;
+
+	// Batching for the UI thread is done by mItemBatcher, so this only needs to be big enough to save on locking
+	private static final int ITEM_BATCH_SIZE = 4, MAX_ITEMS_IN_PROGRESS = 256;
+
+	// Markdown parsing and header building for comments, shared between all requests
+	private static final ExecutorService PREPARATION_POOL
+			= OrderedParallelProcessor.createWorkerPool("Comment preparation");
+
+	private static final String SNAPSHOT_MIMETYPE = "application/x-redreader-comment-snapshot";
+
+	private static final class PendingItem {
+
+		private final RedditCommentListItem item;
+		private final boolean prepare;
+
+		private PendingItem(final RedditCommentListItem item, final boolean prepare) {
+			this.item = item;
+			this.prepare = prepare;
+		}
+	}
+
+	// Prepares comments in parallel, and passes them on in listing order
+	private final class ItemProcessor extends OrderedParallelProcessor<PendingItem, RedditCommentListItem> {
+
+		public ItemProcessor() {
+			super(PREPARATION_POOL, ITEM_BATCH_SIZE, MAX_ITEMS_IN_PROGRESS);
+		}
+
+		@Override
+		protected RedditCommentListItem process(final PendingItem pendingItem) {
+
+			if(pendingItem.prepare) {
+				pendingItem.item.asComment();
+			}
+
+			return pendingItem.item;
+		}
+
+		@Override
+		protected void onBatch(final ArrayList<RedditCommentListItem> results) {
+			mItemBatcher.addAll(results);
+		}
+	}
+
+	private final class Preparer implements RedditCommentListItem.CommentPreparer {
+
+		private final long mTimestamp;
+		private final HashSet<String> mNeedsChanging;
+
+		// Already parsed body from a snapshot, or null
+		private final MarkdownParagraphGroup mBody;
+
+		private Preparer(final long timestamp, final HashSet<String> needsChanging, final MarkdownParagraphGroup body) {
+			mTimestamp = timestamp;
+			mNeedsChanging = needsChanging;
+			mBody = body;
+		}
+
+		public RedditPreparedComment prepare(final RedditComment comment, final int replyCount) {
+
+			final RedditPreparedComment preparedComment;
+
+			if(mBody == null) {
+				preparedComment = new RedditPreparedComment(
+						mContext,
+						comment,
+						mTimestamp,
+						mNeedsChanging.contains(comment.name),
+						mParentPost,
+						mUser,
+						mCommentHeaderItems);
+
+			} else {
+				preparedComment = new RedditPreparedComment(
+						mContext,
+						comment,
+						mBody,
+						mTimestamp,
+						mNeedsChanging.contains(comment.name),
+						mParentPost,
+						mUser,
+						mCommentHeaderItems);
+			}
+
+			preparedComment.setReplyCount(replyCount);
+			return preparedComment;
+		}
+	}
+
+	private String getParentId() {
+
+		switch(mUrl.pathType()) {
+			case PostCommentListingURL:
+				return "t3_" + mUrl.asPostCommentListURL().postId;
+			case UserCommentListingURL:
+				return "/u/" + mUrl.asUserCommentListURL().user + "/comments";
+			default:
+				throw new RuntimeException("Unknown url type");
+		}
+	}
+
+	private URI getJsonUri() {
+		return General.uriFromString(mUrl.generateJsonUri().toString());
+	}
+
+	private URI getSnapshotUri() {
+		return General.uriFromString(mUrl.generateJsonUri().toString() + "#snapshot");
+	}
+
+	private void onPost(final RedditPost post, final long timestamp) {
+
+		final RedditPreparedPost preparedPost = new RedditPreparedPost(
+				mContext,
+				mCacheManager,
+				0,
+				post,
+				timestamp,
+				true,
+				false,
+				false,
+				false,
+				mUser,
+				mParsePostSelfText);
+
+		notifyListener(Event.EVENT_POST_DOWNLOADED, preparedPost);
+
+		mParentPost = preparedPost;
+	}
+
+	private void writeSnapshot(final CommentListingSnapshot snapshot, final UUID session) {
+
+		try {
+			final CacheManager.WritableCacheFile cacheFile
+					= mCacheManager.openNewCacheFile(new SnapshotCacheRequest(), session, SNAPSHOT_MIMETYPE);
+
+			final OutputStream os = cacheFile.getOutputStream();
+			snapshot.writeTo(os);
+			os.close();
+
+		} catch(Throwable t) {
+			// The listing has already been shown, so the next visit just parses the JSON again
+			Log.e("CommentListingRequest", "Failed to write comment listing snapshot", t);
+		}
+	}
+
+	private static CommentListingSnapshot readSnapshot(final CacheManager.ReadableCacheFile cacheFile) {
+
+		try {
+			final InputStream is = cacheFile.getInputStream();
+
+			try {
+				return CommentListingSnapshot.readFrom(is);
+			} finally {
+				is.close();
+			}
+
+		} catch(IOException e) {
+			Log.e("CommentListingRequest", "Failed to read comment listing snapshot", e);
+			return null;
+		}
+	}
+
+	// Looks for a snapshot of the newest cached copy of the listing, before falling back to the JSON
+	private class SnapshotCacheRequest extends CacheRequest {
+
+		protected SnapshotCacheRequest() {
+
+			super(
+					getSnapshotUri(),
+					mUser,
+					null,
+					Constants.Priority.API_COMMENT_LIST,
+					0,
+					DownloadType.NEVER,
+					Constants.FileType.COMMENT_SNAPSHOT,
+					DownloadQueueType.REDDIT_API,
+					false,
+					false,
+					mContext);
+		}
+
+		private void fallBackToJson() {
+			mCacheManager.makeRequest(new CommentListingCacheRequest());
+		}
+
+		@Override
+		protected void onCallbackException(final Throwable t) {
+			notifyListener(Event.EVENT_EXCEPTION, t);
+		}
+
+		@Override
+		protected void onDownloadNecessary() {}
+
+		@Override
+		protected void onDownloadStarted() {}
+
+		@Override
+		protected void onFailure(final RequestFailureType type, final Throwable t, final Integer status, final String readableMessage) {
+			fallBackToJson();
+		}
+
+		@Override
+		protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+
+		@Override
+		protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {
+
+			// Snapshots share the session of the JSON they were made from
+			final CacheEntry jsonEntry = mCacheManager.getMostRecentEntry(getJsonUri(), mUser);
+
+			if(jsonEntry == null || !jsonEntry.session.equals(session)) {
+				fallBackToJson();
+				return;
+			}
+
+			final CommentListingSnapshot snapshot = readSnapshot(cacheFile);
+
+			if(snapshot == null) {
+				fallBackToJson();
+				return;
+			}
+
+			notifyListener(Event.EVENT_CACHED_COPY, jsonEntry.timestamp);
+			notifyListener(Event.EVENT_PARSE_START);
+
+			final ItemProcessor processor = new ItemProcessor();
+
+			try {
+				final HashSet<String> needsChanging = RedditChangeDataManager
+						.getInstance(context)
+						.getChangedForParent(getParentId(), user);
+
+				if(snapshot.post != null) {
+					onPost(snapshot.post, jsonEntry.timestamp);
+				}
+
+				final Preparer preparer = new Preparer(jsonEntry.timestamp, needsChanging, null);
+
+				final RedditCommentListItem[] listItems = new RedditCommentListItem[snapshot.items.size()];
+
+				for(int i = 0; i < listItems.length; i++) {
+
+					final CommentListingSnapshot.Item item = snapshot.items.get(i);
+					final RedditCommentListItem parent = item.parentIndex < 0 ? null : listItems[item.parentIndex];
+
+					if(!item.isComment()) {
+
+						final RedditPreparedMoreComments preparedMoreComments = new RedditPreparedMoreComments(
+								item.moreCount,
+								item.moreParentId,
+								item.moreChildren,
+								mUrl.asPostCommentListURL());
+
+						listItems[i] = new RedditCommentListItem(parent, preparedMoreComments);
+						processor.add(new PendingItem(listItems[i], false));
+
+					} else if(item.body != null) {
+						listItems[i] = new RedditCommentListItem(parent, item.comment, item.replyCount,
+								new Preparer(jsonEntry.timestamp, needsChanging, item.body));
+						processor.add(new PendingItem(listItems[i], true));
+
+					} else {
+						listItems[i] = new RedditCommentListItem(parent, item.comment, item.replyCount, preparer);
+						processor.add(new PendingItem(listItems[i], false));
+					}
+				}
+
+				processor.finish();
+				mItemBatcher.flush();
+
+				notifyListener(Event.EVENT_COMPLETE);
+
+			} catch(Throwable t) {
+				processor.cancel();
+				notifyListener(Event.EVENT_EXCEPTION, t);
+			}
+		}
+	}
+
 	private class CommentListingCacheRequest extends CacheRequest {
 
 		protected CommentListingCacheRequest() {
 
 			super(
-					General.uriFromString(mUrl.generateJsonUri().toString()),
+					getJsonUri(),
 					mUser,
 					mSession,
 					Constants.Priority.API_COMMENT_LIST,
@@ -221,7 +522,12 @@ public class CommentListingRequest {
 		protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {}
 
 		@Override
-		public void onJsonParseStarted(final JsonValue value, final long timestamp, final UUID session, final boolean fromCache) {
+		public boolean isJsonStreamed() {
+			return true;
+		}
+
+		@Override
+		public void onJsonStream(final InputStream stream, final long timestamp, final UUID session, final boolean fromCache) throws IOException {
 
 			if(fromCache) {
 				notifyListener(Event.EVENT_CACHED_COPY, timestamp);
@@ -229,128 +535,124 @@ public class CommentListingRequest {
 
 			notifyListener(Event.EVENT_PARSE_START);
 
+			final ItemProcessor processor = new ItemProcessor();
+
+			// Only the newest copy of a post's comments is worth keeping a snapshot of
+			final boolean writeSnapshot = mSession == null
+					&& mUrl.pathType() == RedditURLParser.PathType.PostCommentListingURL;
+
+			final ArrayList<CommentListingSnapshot.Item> snapshotItems = new ArrayList<CommentListingSnapshot.Item>();
+			final IdentityHashMap<RedditCommentListItem, Integer> snapshotIndexes
+					= new IdentityHashMap<RedditCommentListItem, Integer>();
+			final ArrayList<RedditCommentListItem> eagerItems = new ArrayList<RedditCommentListItem>();
+
 			try {
-				// Download main post
-				if(value.getType() == JsonValue.Type.ARRAY) {
-
-					// lol, reddit api
-					final JsonBufferedArray root = value.asArray();
-					final JsonBufferedObject thing = root.get(0).asObject();
-					final JsonBufferedObject listing = thing.getObject("data");
-					final JsonBufferedArray postContainer = listing.getArray("children");
-					final RedditThing postThing = postContainer.getObject(0, RedditThing.class);
-					final RedditPost post = postThing.asPost();
-
-					final RedditPreparedPost preparedPost = new RedditPreparedPost(
-							context,
-							mCacheManager,
-							0,
-							post,
-							timestamp,
-							true,
-							false,
-							false,
-							false,
-							user,
-							mParsePostSelfText);
-
-					notifyListener(Event.EVENT_POST_DOWNLOADED, preparedPost);
-
-					mParentPost = preparedPost;
-				}
+				final HashSet<String> needsChanging = RedditChangeDataManager
+						.getInstance(context)
+						.getChangedForParent(getParentId(), user);
 
-				// Download comments
+				final Preparer preparer = new Preparer(timestamp, needsChanging, null);
 
-				final JsonBufferedObject thing;
+				final RedditPost[] post = new RedditPost[1];
 
-				if(value.getType() == JsonValue.Type.ARRAY) {
-					thing = value.asArray().get(1).asObject();
-				} else {
-					thing = value.asObject();
-				}
+				// The main post arrives first, followed by the comments
+				RedditListingParser.parse(stream, new RedditListingParser.Listener<RedditCommentListItem>() {
 
-				final JsonBufferedObject listing = thing.getObject("data");
-				final JsonBufferedArray topLevelComments = listing.getArray("children");
+					public void onPost(final RedditPost redditPost) {
+						post[0] = redditPost;
+						CommentListingRequest.this.onPost(redditPost, timestamp);
+					}
 
-				final String parentId;
+					private int mTopLevelComments = 0;
+					private int mCommentsInThread = 0;
 
-				switch(mUrl.pathType()) {
-					case PostCommentListingURL:
-						parentId = "t3_" + mUrl.asPostCommentListURL().postId;
-						break;
-					case UserCommentListingURL:
-						parentId = "/u/" + mUrl.asUserCommentListURL().user + "/comments";
-						break;
-					default:
-						throw new RuntimeException("Unknown url type");
-				}
+					public RedditCommentListItem onComment(
+							final RedditComment comment,
+							final int replyCount,
+							final RedditCommentListItem parent) {
 
-				final HashSet<String> needsChanging = RedditChangeDataManager
-						.getInstance(context)
-						.getChangedForParent(parentId, user);
+						if(parent == null) {
+							mTopLevelComments++;
+							mCommentsInThread = 0;
+						}
 
-				for(final JsonValue commentThingValue : topLevelComments) {
-					buildComments(commentThingValue, null, timestamp, needsChanging);
-				}
+						mCommentsInThread++;
 
-				notifyListener(Event.EVENT_COMPLETE);
+						final RedditCommentListItem item = new RedditCommentListItem(parent, comment, replyCount, preparer);
 
+						// Only what's likely to be on the first screen is prepared now, so that the time taken
+						// to show it doesn't depend on the size of the thread
+						final boolean prepare = mTopLevelComments <= EAGER_TOP_LEVEL_COMMENTS
+								&& mCommentsInThread <= EAGER_COMMENTS_PER_THREAD;
 
-			} catch (Throwable t) {
-				notifyFailure(RequestFailureType.PARSE, t, null, "Parse failure");
-			}
-		}
-	}
+						processor.add(new PendingItem(item, prepare));
 
-	private void buildComments(final JsonValue value, final RedditCommentListItem parent, final long timestamp, final HashSet<String> needsChanging) throws IOException, InterruptedException, IllegalAccessException, java.lang.InstantiationException, NoSuchMethodException, InvocationTargetException {
+						if(writeSnapshot) {
+							snapshotIndexes.put(item, snapshotItems.size());
+							snapshotItems.add(new CommentListingSnapshot.Item(
+									getSnapshotIndex(parent), comment, replyCount, null));
+							eagerItems.add(prepare ? item : null);
+						}
 
-		final RedditThing commentThing = value.asObject(RedditThing.class);
+						return item;
+					}
 
-		final RedditCommentListItem item;
-		boolean shouldRecurse = false;
+					public void onMoreComments(final RedditMoreComments moreComments, final RedditCommentListItem parent) {
 
-		if(commentThing.getKind() == RedditThing.Kind.MORE_COMMENTS
-				&& mUrl.pathType() == RedditURLParser.PathType.PostCommentListingURL) {
+						if(mUrl.pathType() != RedditURLParser.PathType.PostCommentListingURL) return;
 
-			final RedditMoreComments redditMoreComments = commentThing.asMoreComments();
-			final RedditPreparedMoreComments preparedMoreComments = new RedditPreparedMoreComments(redditMoreComments, mUrl.asPostCommentListURL());
-			item = new RedditCommentListItem(parent, preparedMoreComments);
+						final RedditPreparedMoreComments preparedMoreComments
+								= new RedditPreparedMoreComments(moreComments, mUrl.asPostCommentListURL());
 
-		} else if(commentThing.getKind() == RedditThing.Kind.COMMENT) {
+						processor.add(new PendingItem(new RedditCommentListItem(parent, preparedMoreComments), false));
 
-			final RedditComment comment = commentThing.asComment();
-			final RedditPreparedComment preparedComment = new RedditPreparedComment(
-					mContext,
-					comment,
-					timestamp,
-					needsChanging.contains(comment.name),
-					mParentPost,
-					mUser,
-					mCommentHeaderItems);
+						if(writeSnapshot) {
+							snapshotItems.add(new CommentListingSnapshot.Item(
+									getSnapshotIndex(parent),
+									preparedMoreComments.getCount(),
+									preparedMoreComments.getParentId(),
+									new ArrayList<String>(preparedMoreComments.getChildren())));
+							eagerItems.add(null);
+						}
+					}
 
-			if(parent != null && parent.isComment()) {
-				parent.asComment().addChild(preparedComment);
-			}
+					private int getSnapshotIndex(final RedditCommentListItem item) {
+						return item == null ? -1 : snapshotIndexes.get(item);
+					}
+				});
 
-			item = new RedditCommentListItem(parent, preparedComment);
+				// Waits for the last comments to be prepared, and sends them ahead of EVENT_COMPLETE
+				processor.finish();
+				mItemBatcher.flush();
 
-			if(comment.replies.getType() == JsonValue.Type.OBJECT) {
-				shouldRecurse = true;
-			}
+				notifyListener(Event.EVENT_COMPLETE);
 
-		} else {
-			return;
-		}
+				if(writeSnapshot) {
+
+					// Comments prepared by the processor keep their parsed bodies. The rest are only prepared
+					// if they're scrolled to, which may be happening on the UI thread right now.
+					for(int i = 0; i < eagerItems.size(); i++) {
 
-		notifyListener(Event.EVENT_ITEM_DOWNLOADED, item);
+						final RedditCommentListItem eagerItem = eagerItems.get(i);
 
-		if(shouldRecurse) {
-			final RedditComment comment = commentThing.asComment();
-			final JsonBufferedObject replies = comment.replies.asObject();
-			final JsonBufferedArray children = replies.getObject("data").getArray("children");
+						if(eagerItem != null) {
+							final CommentListingSnapshot.Item item = snapshotItems.get(i);
+							snapshotItems.set(i, new CommentListingSnapshot.Item(item.parentIndex, item.comment,
+									item.replyCount, eagerItem.asComment().getBodyParagraphs()));
+						}
+					}
 
-			for(final JsonValue v : children) {
-				buildComments(v, item, timestamp, needsChanging);
+					writeSnapshot(new CommentListingSnapshot(post[0], snapshotItems), session);
+				}
+
+			} catch(IOException e) {
+				// Let the cache discard the bad data
+				processor.cancel();
+				throw e;
+
+			} catch (Throwable t) {
+				processor.cancel();
+				notifyFailure(RequestFailureType.PARSE, t, null, "Parse failure");
 			}
 		}
 	}
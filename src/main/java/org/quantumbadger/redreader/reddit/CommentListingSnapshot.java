@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+package org.quantumbadger.redreader.reddit;
+
+import org.quantumbadger.redreader.common.General;
+import org.quantumbadger.redreader.reddit.prepared.markdown.MarkdownParagraphGroup;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// A binary copy of a prepared comment listing, so that a cached thread can be shown again without parsing its
+// JSON, or the markdown of the comments which were prepared when it was first shown.
+public final class CommentListingSnapshot {
+
+	private static final int MAGIC = 0x52524353;
+
+	// Increase this whenever the layout below changes. Changes to the fields of RedditPost and RedditComment are
+	// picked up automatically, and the markdown has its own version in MarkdownParagraphGroup.
+	private static final int FORMAT_VERSION = 2;
+
+	private static final int ITEM_COMMENT = 1, ITEM_MORE_COMMENTS = 2;
+
+	public static final class Item {
+
+		// The index of the parent comment in the item list, or -1 for a top-level item
+		public final int parentIndex;
+
+		public final RedditComment comment;
+		public final int replyCount;
+
+		// Null if the comment hadn't been prepared
+		public final MarkdownParagraphGroup body;
+
+		public final int moreCount;
+		public final String moreParentId;
+		public final ArrayList<String> moreChildren;
+
+		public Item(final int parentIndex, final RedditComment comment, final int replyCount,
+					final MarkdownParagraphGroup body) {
+
+			this.parentIndex = parentIndex;
+			this.comment = comment;
+			this.replyCount = replyCount;
+			this.body = body;
+			moreCount = 0;
+			moreParentId = null;
+			moreChildren = null;
+		}
+
+		public Item(final int parentIndex, final int moreCount, final String moreParentId,
+					final ArrayList<String> moreChildren) {
+
+			this.parentIndex = parentIndex;
+			comment = null;
+			replyCount = 0;
+			body = null;
+			this.moreCount = moreCount;
+			this.moreParentId = moreParentId;
+			this.moreChildren = moreChildren;
+		}
+
+		public boolean isComment() {
+			return comment != null;
+		}
+	}
+
+	public final RedditPost post;
+	public final ArrayList<Item> items;
+
+	public CommentListingSnapshot(final RedditPost post, final ArrayList<Item> items) {
+		this.post = post;
+		this.items = items;
+	}
+
+	public void writeTo(final OutputStream os) throws IOException {
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 64 * 1024));
+
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeInt(MarkdownParagraphGroup.SERIALIZED_FORMAT_VERSION);
+		out.writeInt(POST_FIELDS.schemaHash);
+		out.writeInt(COMMENT_FIELDS.schemaHash);
+
+		out.writeBoolean(post != null);
+		if(post != null) POST_FIELDS.write(out, post);
+
+		out.writeInt(items.size());
+
+		for(final Item item : items) {
+
+			out.writeInt(item.parentIndex);
+
+			if(item.isComment()) {
+				out.writeByte(ITEM_COMMENT);
+				COMMENT_FIELDS.write(out, item.comment);
+				out.writeInt(item.replyCount);
+
+				out.writeBoolean(item.body != null);
+				if(item.body != null) item.body.writeTo(out);
+
+			} else {
+				out.writeByte(ITEM_MORE_COMMENTS);
+				out.writeInt(item.moreCount);
+				General.writeUtf8String(out, item.moreParentId);
+
+				out.writeInt(item.moreChildren.size());
+
+				for(final String child : item.moreChildren) {
+					General.writeUtf8String(out, child);
+				}
+			}
+		}
+
+		out.flush();
+	}
+
+	// Returns null if the snapshot was written by a different version of the app
+	public static CommentListingSnapshot readFrom(final InputStream is) throws IOException {
+
+		final DataInputStream in = new DataInputStream(new BufferedInputStream(is, 64 * 1024));
+
+		if(in.readInt() != MAGIC) {
+			throw new IOException("Not a comment listing snapshot");
+		}
+
+		if(in.readInt() != FORMAT_VERSION
+				|| in.readInt() != MarkdownParagraphGroup.SERIALIZED_FORMAT_VERSION
+				|| in.readInt() != POST_FIELDS.schemaHash
+				|| in.readInt() != COMMENT_FIELDS.schemaHash) {
+			return null;
+		}
+
+		final RedditPost post = in.readBoolean() ? POST_FIELDS.read(in) : null;
+
+		final int itemCount = in.readInt();
+
+		if(itemCount < 0) {
+			throw new IOException("Invalid item count");
+		}
+
+		final ArrayList<Item> items = new ArrayList<Item>(Math.min(itemCount, 16 * 1024));
+
+		for(int i = 0; i < itemCount; i++) {
+
+			final int parentIndex = in.readInt();
+
+			if(parentIndex >= i || (parentIndex >= 0 && !items.get(parentIndex).isComment())) {
+				throw new IOException("Invalid parent index");
+			}
+
+			final int type = in.readUnsignedByte();
+
+			if(type == ITEM_COMMENT) {
+
+				final RedditComment comment = COMMENT_FIELDS.read(in);
+				final int replyCount = in.readInt();
+				final MarkdownParagraphGroup body = in.readBoolean() ? MarkdownParagraphGroup.readFrom(in) : null;
+
+				items.add(new Item(parentIndex, comment, replyCount, body));
+
+			} else if(type == ITEM_MORE_COMMENTS) {
+
+				final int count = in.readInt();
+				final String parentId = General.readUtf8String(in);
+				final int childCount = in.readInt();
+
+				if(childCount < 0) {
+					throw new IOException("Invalid child count");
+				}
+
+				final ArrayList<String> children = new ArrayList<String>(Math.min(childCount, 1024));
+
+				for(int j = 0; j < childCount; j++) {
+					children.add(General.readUtf8String(in));
+				}
+
+				items.add(new Item(parentIndex, count, parentId, children));
+
+			} else {
+				throw new IOException("Unknown item type " + type);
+			}
+		}
+
+		return new CommentListingSnapshot(post, items);
+	}
+
+	private static final ThingFields<RedditPost> POST_FIELDS = new ThingFields<RedditPost>(RedditPost.class);
+	private static final ThingFields<RedditComment> COMMENT_FIELDS = new ThingFields<RedditComment>(RedditComment.class);
+
+	// Reads and writes the plain public fields of a thing, in name order. Fields which hold JSON (such as a
+	// comment's replies) aren't written, and are null when read back.
+	private static final class ThingFields<E> {
+
+		private static final int
+				TYPE_NULL = 0,
+				TYPE_STRING = 1,
+				TYPE_BOOLEAN = 2,
+				TYPE_LONG = 3,
+				TYPE_DOUBLE = 4;
+
+		private final Class<E> clazz;
+		private final Field[] fields;
+		private final int schemaHash;
+
+		private ThingFields(final Class<E> clazz) {
+
+			this.clazz = clazz;
+
+			final ArrayList<Field> fieldList = new ArrayList<Field>();
+
+			for(final Field field : clazz.getFields()) {
+
+				final int modifiers = field.getModifiers();
+
+				if(Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers)) continue;
+
+				final Class<?> type = field.getType();
+
+				if(type == String.class || type == Object.class || type == Boolean.class
+						|| type == int.class || type == long.class || type == boolean.class || type == double.class) {
+					fieldList.add(field);
+				}
+			}
+
+			fields = fieldList.toArray(new Field[fieldList.size()]);
+
+			Arrays.sort(fields, new Comparator<Field>() {
+				public int compare(final Field lhs, final Field rhs) {
+					return lhs.getName().compareTo(rhs.getName());
+				}
+			});
+
+			final StringBuilder schema = new StringBuilder(clazz.getName());
+
+			for(final Field field : fields) {
+				schema.append(';').append(field.getName()).append(':').append(field.getType().getName());
+			}
+
+			schemaHash = schema.toString().hashCode();
+		}
+
+		private void write(final DataOutputStream out, final E thing) throws IOException {
+
+			try {
+				for(final Field field : fields) {
+
+					final Class<?> type = field.getType();
+
+					if(type == int.class) {
+						out.writeInt(field.getInt(thing));
+
+					} else if(type == long.class) {
+						out.writeLong(field.getLong(thing));
+
+					} else if(type == boolean.class) {
+						out.writeBoolean(field.getBoolean(thing));
+
+					} else if(type == double.class) {
+						out.writeDouble(field.getDouble(thing));
+
+					} else {
+						writeValue(out, field.get(thing));
+					}
+				}
+
+			} catch(IllegalAccessException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private E read(final DataInputStream in) throws IOException {
+
+			try {
+				final E thing = clazz.getDeclaredConstructor().newInstance();
+
+				for(final Field field : fields) {
+
+					final Class<?> type = field.getType();
+
+					if(type == int.class) {
+						field.setInt(thing, in.readInt());
+
+					} else if(type == long.class) {
+						field.setLong(thing, in.readLong());
+
+					} else if(type == boolean.class) {
+						field.setBoolean(thing, in.readBoolean());
+
+					} else if(type == double.class) {
+						field.setDouble(thing, in.readDouble());
+
+					} else {
+						final Object value = readValue(in);
+
+						if(value != null && !type.isInstance(value)) {
+							throw new IOException("Wrong type for field " + field.getName());
+						}
+
+						field.set(thing, value);
+					}
+				}
+
+				return thing;
+
+			} catch(InstantiationException e) {
+				throw new RuntimeException(e);
+
+			} catch(IllegalAccessException e) {
+				throw new RuntimeException(e);
+
+			} catch(NoSuchMethodException e) {
+				throw new RuntimeException(e);
+
+			} catch(InvocationTargetException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		// For fields with a reference type, such as Boolean, or Object for a comment's "edited" time
+		private static void writeValue(final DataOutputStream out, final Object value) throws IOException {
+
+			if(value instanceof String) {
+				out.writeByte(TYPE_STRING);
+				General.writeUtf8String(out, (String)value);
+
+			} else if(value instanceof Boolean) {
+				out.writeByte(TYPE_BOOLEAN);
+				out.writeBoolean((Boolean)value);
+
+			} else if(value instanceof Long || value instanceof Integer) {
+				out.writeByte(TYPE_LONG);
+				out.writeLong(((Number)value).longValue());
+
+			} else if(value instanceof Double || value instanceof Float) {
+				out.writeByte(TYPE_DOUBLE);
+				out.writeDouble(((Number)value).doubleValue());
+
+			} else {
+				out.writeByte(TYPE_NULL);
+			}
+		}
+
+		private static Object readValue(final DataInputStream in) throws IOException {
+
+			final int type = in.readUnsignedByte();
+
+			switch(type) {
+				case TYPE_NULL:
+					return null;
+				case TYPE_STRING:
+					return General.readUtf8String(in);
+				case TYPE_BOOLEAN:
+					return in.readBoolean();
+				case TYPE_LONG:
+					return in.readLong();
+				case TYPE_DOUBLE:
+					return in.readDouble();
+				default:
+					throw new IOException("Unknown value type " + type);
+			}
+		}
+	}
+}
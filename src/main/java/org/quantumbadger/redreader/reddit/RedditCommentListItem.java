@@ -19,6 +19,7 @@ package org.quantumbadger.redreader.reddit;
 
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedComment;
 import org.quantumbadger.redreader.reddit.prepared.RedditPreparedMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
 
 public class RedditCommentListItem {
 
@@ -30,7 +31,17 @@ public class RedditCommentListItem {
 	private final RedditCommentListItem mParent;
 	private final int mIndent;
 
-	private final RedditPreparedComment mComment;
+	// Called from the UI thread, when a comment which wasn't prepared up front is first needed
+	public interface CommentPreparer {
+		RedditPreparedComment prepare(RedditComment comment, int replyCount);
+	}
+
+	private RedditPreparedComment mComment;
+
+	// Only set until the comment is prepared
+	private RedditComment mRawComment;
+	private int mReplyCount;
+	private CommentPreparer mPreparer;
 
 	private final RedditPreparedMoreComments mMoreComments;
 
@@ -42,6 +53,22 @@ public class RedditCommentListItem {
 		mMoreComments = null;
 	}
 
+	public RedditCommentListItem(
+			final RedditCommentListItem parent,
+			final RedditComment comment,
+			final int replyCount,
+			final CommentPreparer preparer) {
+
+		mParent = parent;
+		mIndent = computeIndent(parent);
+		mType = Type.COMMENT;
+		mComment = null;
+		mRawComment = comment;
+		mReplyCount = replyCount;
+		mPreparer = preparer;
+		mMoreComments = null;
+	}
+
 	public RedditCommentListItem(final RedditCommentListItem parent, final RedditPreparedMoreComments moreComments) {
 		mParent = parent;
 		mIndent = computeIndent(parent);
@@ -70,7 +97,18 @@ public class RedditCommentListItem {
 		return mType == Type.LOAD_MORE;
 	}
 
+	public boolean isPrepared() {
+		return mComment != null;
+	}
+
 	public RedditPreparedComment asComment() {
+
+		if(mComment == null && mType == Type.COMMENT) {
+			mComment = mPreparer.prepare(mRawComment, mReplyCount);
+			mRawComment = null;
+			mPreparer = null;
+		}
+
 		return mComment;
 	}
 
@@ -83,6 +121,7 @@ public class RedditCommentListItem {
 	}
 
 	public boolean isCollapsed() {
-		return mType == Type.COMMENT && mComment.isCollapsed();
+		// Comments start off expanded, so there's no need to prepare one to find out
+		return mType == Type.COMMENT && mComment != null && mComment.isCollapsed();
 	}
 }
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * This file is part of RedReader.
+ *
+ * RedReader is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * RedReader is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with RedReader.  If not, see <http://www.gnu.org/licenses/>.
+ ******************************************************************************/
+
+
+package org.quantumbadger.redreader.reddit;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.quantumbadger.redreader.jsonwrap.JsonStreamReader;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+// Reads posts and comments straight from a listing stream, without building a JsonValue tree of the whole
+// response. Fields which RedditPost and RedditComment don't have (media, previews, etc) are skipped unparsed.
+public final class RedditListingParser {
+
+	public interface Listener<E> {
+
+		// All called from the parsing thread, in the order the items appear in the listing
+		void onPost(RedditPost post);
+
+		// Returns the parent to pass when delivering the replies to this comment. The reply count doesn't
+		// include "load more" items.
+		E onComment(RedditComment comment, int replyCount, E parent);
+
+		void onMoreComments(RedditMoreComments moreComments, E parent);
+	}
+
+	// A comment's replies are part of its data object, so it can't be delivered until they have been read
+	private static final class Node {
+
+		private final Object thing;
+		private final ArrayList<Node> replies;
+
+		private Node(final Object thing, final ArrayList<Node> replies) {
+			this.thing = thing;
+			this.replies = replies;
+		}
+	}
+
+	private RedditListingParser() {}
+
+	// Accepts a single listing, or an array of listings (as returned for a post's comments)
+	public static <E> void parse(final InputStream in, final Listener<E> listener) throws IOException {
+
+		final JsonParser jp = JsonStreamReader.createParser(in);
+
+		try {
+			final JsonToken first = jp.nextToken();
+
+			if(first == JsonToken.START_ARRAY) {
+				while(nextElement(jp)) {
+					readThing(jp, listener, null);
+				}
+
+			} else if(first == JsonToken.START_OBJECT) {
+				readThing(jp, listener, null);
+
+			} else {
+				throw new JsonParseException("Expecting a listing", jp.getCurrentLocation());
+			}
+
+		} finally {
+			jp.close();
+		}
+	}
+
+	// If replies is null, the thing is delivered to the listener as soon as it has been read. Otherwise, it's
+	// added to the list, to be delivered along with its parent.
+	private static <E> void readThing(final JsonParser jp, final Listener<E> listener, final ArrayList<Node> replies)
+			throws IOException {
+
+		if(jp.getCurrentToken() != JsonToken.START_OBJECT) {
+			jp.skipChildren();
+			return;
+		}
+
+		String kind = null;
+		Node node = null;
+
+		while(nextField(jp)) {
+
+			final String name = jp.getCurrentName();
+			final JsonToken valueToken = jp.nextToken();
+
+			if("kind".equals(name) && valueToken == JsonToken.VALUE_STRING) {
+				kind = jp.getText();
+
+			} else if("data".equals(name) && valueToken == JsonToken.START_OBJECT) {
+
+				// Reddit always sends the kind first
+				if(kind == null) {
+					throw new JsonParseException("Expecting kind before data", jp.getCurrentLocation());
+				}
+
+				node = readData(jp, kind, listener, replies);
+
+			} else {
+				jp.skipChildren();
+			}
+		}
+
+		if(node != null) {
+			if(replies != null) {
+				replies.add(node);
+			} else {
+				deliver(node, listener, null);
+			}
+		}
+	}
+
+	private static <E> Node readData(final JsonParser jp, final String kind, final Listener<E> listener,
+									 final ArrayList<Node> replies) throws IOException {
+
+		if("Listing".equals(kind)) {
+
+			while(nextField(jp)) {
+
+				final String name = jp.getCurrentName();
+
+				if(jp.nextToken() == JsonToken.START_ARRAY && "children".equals(name)) {
+					while(nextElement(jp)) {
+						readThing(jp, listener, replies);
+					}
+
+				} else {
+					jp.skipChildren();
+				}
+			}
+
+			return null;
+
+		} else if("t3".equals(kind)) {
+			return new Node(readObject(jp, RedditPost.class, null), null);
+
+		} else if("t1".equals(kind)) {
+
+			final ArrayList<Node> commentReplies = new ArrayList<Node>();
+
+			final RedditComment comment = readObject(jp, RedditComment.class, new JsonStreamReader.PropertyHandler() {
+				public boolean onProperty(final String name, final JsonToken token, final JsonParser jp) throws IOException {
+
+					if(!"replies".equals(name)) return false;
+
+					// Comments with no replies have an empty string here
+					if(token == JsonToken.START_OBJECT) {
+						readThing(jp, listener, commentReplies);
+					} else {
+						jp.skipChildren();
+					}
+
+					return true;
+				}
+			});
+
+			return new Node(comment, commentReplies);
+
+		} else if("more".equals(kind)) {
+			return new Node(readObject(jp, RedditMoreComments.class, null), null);
+
+		} else {
+			jp.skipChildren();
+			return null;
+		}
+	}
+
+	private static <E> E readObject(final JsonParser jp, final Class<E> clazz,
+									final JsonStreamReader.PropertyHandler handler) throws IOException {
+		try {
+			return JsonStreamReader.readObject(jp, clazz, handler);
+
+		} catch(IOException e) {
+			throw e;
+
+		} catch(Exception e) {
+			// Reflection failures are a bug, not bad data
+			throw new RuntimeException(e);
+		}
+	}
+
+	// Advances to the next field name, or returns false at the end of the object
+	private static boolean nextField(final JsonParser jp) throws IOException {
+
+		final JsonToken jt = jp.nextToken();
+
+		if(jt == JsonToken.END_OBJECT) return false;
+
+		if(jt != JsonToken.FIELD_NAME) {
+			throw new JsonParseException("Expecting field name, got " + jt, jp.getCurrentLocation());
+		}
+
+		return true;
+	}
+
+	// Advances to the next array element, or returns false at the end of the array
+	private static boolean nextElement(final JsonParser jp) throws IOException {
+
+		final JsonToken jt = jp.nextToken();
+
+		if(jt == null) {
+			throw new JsonParseException("Unexpected end of stream", jp.getCurrentLocation());
+		}
+
+		return jt != JsonToken.END_ARRAY;
+	}
+
+	private static <E> void deliver(final Node node, final Listener<E> listener, final E parent) {
+
+		if(node.thing instanceof RedditPost) {
+			listener.onPost((RedditPost)node.thing);
+
+		} else if(node.thing instanceof RedditComment) {
+
+			int replyCount = 0;
+
+			for(final Node reply : node.replies) {
+				if(reply.thing instanceof RedditComment) replyCount++;
+			}
+
+			final E item = listener.onComment((RedditComment)node.thing, replyCount, parent);
+
+			for(final Node reply : node.replies) {
+				deliver(reply, listener, item);
+			}
+
+		} else if(node.thing instanceof RedditMoreComments) {
+			listener.onMoreComments((RedditMoreComments)node.thing, parent);
+		}
+	}
+}
@@ -53,7 +53,6 @@ import java.net.URI;
 import java.util.ArrayList;
 import java.util.EnumSet;
 import java.util.HashSet;
-import java.util.LinkedList;
 
 public final class RedditPreparedComment implements RedditPreparedInboxItem {
 
@@ -61,7 +60,7 @@ public final class RedditPreparedComment implements RedditPreparedInboxItem {
 
 	private final MarkdownParagraphGroup body;
 
-	private final LinkedList<RedditPreparedComment> directReplies = new LinkedList<RedditPreparedComment>();
+	private int replyCount = 0;
 
 	private boolean collapsed = false;
 
@@ -125,7 +124,28 @@ public final class RedditPreparedComment implements RedditPreparedInboxItem {
 								 final RedditAccount user,
 								 final EnumSet<PrefsUtility.AppearanceCommentHeaderItems> headerItems) {
 
+		this(context,
+				comment,
+				MarkdownParser.parse(StringEscapeUtils.unescapeHtml4(comment.body).toCharArray()),
+				timestamp,
+				needsUpdating,
+				parentPost,
+				user,
+				headerItems);
+	}
+
+	// For a comment whose body has already been parsed, for example one read from a snapshot
+	public RedditPreparedComment(final Context context,
+								 final RedditComment comment,
+								 final MarkdownParagraphGroup body,
+								 final long timestamp,
+								 final boolean needsUpdating,
+								 final RedditPreparedPost parentPost,
+								 final RedditAccount user,
+								 final EnumSet<PrefsUtility.AppearanceCommentHeaderItems> headerItems) {
+
 		this.src = comment;
+		this.body = body;
 		this.parentPost = parentPost;
 		this.headerItems = headerItems;
 
@@ -154,7 +174,6 @@ public final class RedditPreparedComment implements RedditPreparedInboxItem {
 
 		appearance.recycle();
 
-		body = MarkdownParser.parse(StringEscapeUtils.unescapeHtml4(comment.body).toCharArray());
 		if(comment.author_flair_text != null) {
 			flair = StringEscapeUtils.unescapeHtml4(comment.author_flair_text);
 		} else {
@@ -278,8 +297,8 @@ public final class RedditPreparedComment implements RedditPreparedInboxItem {
 		if(boundView == view) boundView = null;
 	}
 
-	public void addChild(final RedditPreparedComment child) {
-		directReplies.add(child);
+	public void setReplyCount(final int replyCount) {
+		this.replyCount = replyCount;
 	}
 
 	public void toggleVisibility() {
@@ -427,8 +446,12 @@ public final class RedditPreparedComment implements RedditPreparedInboxItem {
 		this.saved = saved;
 	}
 
+	public MarkdownParagraphGroup getBodyParagraphs() {
+		return body;
+	}
+
 	public int replyCount() {
-		return directReplies.size();
+		return replyCount;
 	}
 
 	@Override
@@ -26,11 +26,36 @@ import java.util.List;
 
 public class RedditPreparedMoreComments {
 
-	private final RedditMoreComments mSrc;
+	private final int mCount;
+	private final String mParentId;
+	private final ArrayList<String> mChildren;
 	private final PostCommentListingURL mPostUrl;
 
 	public RedditPreparedMoreComments(final RedditMoreComments src, final PostCommentListingURL postUrl) {
-		mSrc = src;
+
+		mCount = src.count;
+		mParentId = src.parent_id;
+		mChildren = new ArrayList<String>(src.children == null ? 0 : src.children.getCurrentItemCount());
+		mPostUrl = postUrl;
+
+		if(src.children != null) {
+			for(final JsonValue child : src.children) {
+				if(child.getType() == JsonValue.Type.STRING) {
+					mChildren.add(child.asString());
+				}
+			}
+		}
+	}
+
+	public RedditPreparedMoreComments(
+			final int count,
+			final String parentId,
+			final ArrayList<String> children,
+			final PostCommentListingURL postUrl) {
+
+		mCount = count;
+		mParentId = parentId;
+		mChildren = children;
 		mPostUrl = postUrl;
 	}
 
@@ -38,21 +63,27 @@ public class RedditPreparedMoreComments {
 
 		final ArrayList<PostCommentListingURL> urls = new ArrayList<PostCommentListingURL>(16);
 
-		if(mSrc.count > 0) {
-			for(JsonValue child : mSrc.children) {
-				if(child.getType() == JsonValue.Type.STRING) {
-					urls.add(mPostUrl.commentId(child.asString()));
-				}
+		if(mCount > 0) {
+			for(final String child : mChildren) {
+				urls.add(mPostUrl.commentId(child));
 			}
 
 		} else {
-			urls.add(mPostUrl.commentId(mSrc.parent_id));
+			urls.add(mPostUrl.commentId(mParentId));
 		}
 
 		return urls;
 	}
 
 	public int getCount() {
-		return mSrc.count;
+		return mCount;
+	}
+
+	public String getParentId() {
+		return mParentId;
+	}
+
+	public List<String> getChildren() {
+		return mChildren;
 	}
 }
@@ -44,8 +44,12 @@ public class MarkdownParagraph {
 	final int[] tokens;
 	final int level, number;
 
-	final Spanned spanned;
-	final List<Link> links;
+	// Built when first displayed, as they need the UI classes
+	private Spanned spanned;
+	private List<Link> links;
+
+	// The text of a paragraph with no tokens, as it was before its unicode spaces were replaced
+	private final String plainText;
 
 	public class Link {
 		final String title;
@@ -72,12 +76,31 @@ public class MarkdownParagraph {
 		this.level = level;
 		this.number = number;
 
-		links = new ArrayList<Link>();
-		spanned = internalGenerateSpanned();
+		plainText = (tokens == null && raw != null) ? raw.toString() : null;
 
 		if(tokens == null && raw != null) raw.replaceUnicodeSpaces();
 	}
 
+	Spanned getSpanned() {
+
+		if(links == null) {
+			links = new ArrayList<Link>();
+			spanned = internalGenerateSpanned();
+		}
+
+		return spanned;
+	}
+
+	List<Link> getLinks() {
+		getSpanned();
+		return links;
+	}
+
+	// The source text which, with the tokens, makes up this paragraph
+	String getSource() {
+		return plainText != null ? plainText : (raw == null ? null : raw.toString());
+	}
+
 	private Spanned internalGenerateSpanned() {
 
 		if(type == MarkdownParser.MarkdownParagraphType.CODE || type == MarkdownParser.MarkdownParagraphType.HLINE) {
@@ -85,7 +108,7 @@ public class MarkdownParagraph {
 		}
 
 		if(tokens == null) {
-			return new SpannableString(raw.toString());
+			return new SpannableString(plainText);
 		}
 
 		final SpannableStringBuilder builder = new SpannableStringBuilder();
@@ -42,18 +42,145 @@ import org.quantumbadger.redreader.R;
 import org.quantumbadger.redreader.common.General;
 import org.quantumbadger.redreader.views.LinkDetailsView;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 public final class MarkdownParagraphGroup {
 
+	// Increase this whenever writeTo/readFrom change, or the MarkdownParagraph or MarkdownTokenizer values they
+	// write by ordinal are reordered. Snapshots written with another version are discarded.
+	public static final int SERIALIZED_FORMAT_VERSION = 2;
+
 	private final MarkdownParagraph[] paragraphs;
 
 	public MarkdownParagraphGroup(final MarkdownParagraph[] paragraphs) {
 		this.paragraphs = paragraphs;
 	}
 
+	// Writes the tokenized paragraphs, so that they can be read back without parsing the markdown again
+	public void writeTo(final DataOutput out) throws IOException {
+
+		out.writeInt(paragraphs.length);
+
+		for(int i = 0; i < paragraphs.length; i++) {
+
+			final MarkdownParagraph paragraph = paragraphs[i];
+
+			out.writeByte(paragraph.type.ordinal());
+			out.writeInt(paragraph.level);
+			out.writeInt(paragraph.number);
+
+			int parentIndex = -1;
+
+			if(paragraph.parent != null) {
+				for(int j = 0; j < i; j++) {
+					if(paragraphs[j] == paragraph.parent) {
+						parentIndex = j;
+						break;
+					}
+				}
+			}
+
+			out.writeInt(parentIndex);
+
+			General.writeUtf8String(out, paragraph.getSource());
+
+			if(paragraph.tokens == null) {
+				out.writeInt(-1);
+
+			} else {
+				out.writeInt(paragraph.tokens.length);
+
+				// Most tokens are ASCII characters, so are written in one byte
+				for(final int token : paragraph.tokens) {
+					writeVarInt(out, token);
+				}
+			}
+		}
+	}
+
+	public static MarkdownParagraphGroup readFrom(final DataInput in) throws IOException {
+
+		final MarkdownParser.MarkdownParagraphType[] types = MarkdownParser.MarkdownParagraphType.values();
+		final MarkdownParagraph[] paragraphs = new MarkdownParagraph[in.readInt()];
+
+		for(int i = 0; i < paragraphs.length; i++) {
+
+			final int typeOrdinal = in.readUnsignedByte();
+
+			if(typeOrdinal >= types.length) {
+				throw new IOException("Unknown paragraph type " + typeOrdinal);
+			}
+
+			final int level = in.readInt();
+			final int number = in.readInt();
+			final int parentIndex = in.readInt();
+
+			if(parentIndex >= i) {
+				throw new IOException("Paragraph parent must come first");
+			}
+
+			final String source = General.readUtf8String(in);
+			final CharArrSubstring raw = source == null ? null : CharArrSubstring.generate(source.toCharArray());
+
+			final int tokenCount = in.readInt();
+			int[] tokens = null;
+
+			if(tokenCount >= 0) {
+
+				tokens = new int[tokenCount];
+
+				for(int j = 0; j < tokenCount; j++) {
+					tokens[j] = readVarInt(in);
+				}
+			}
+
+			paragraphs[i] = new MarkdownParagraph(
+					raw,
+					parentIndex < 0 ? null : paragraphs[parentIndex],
+					types[typeOrdinal],
+					tokens,
+					level,
+					number);
+		}
+
+		return new MarkdownParagraphGroup(paragraphs);
+	}
+
+	// Zigzag encoded, as tokens are negative
+	private static void writeVarInt(final DataOutput out, final int value) throws IOException {
+
+		int zigzag = (value << 1) ^ (value >> 31);
+
+		while((zigzag & ~0x7F) != 0) {
+			out.writeByte((zigzag & 0x7F) | 0x80);
+			zigzag >>>= 7;
+		}
+
+		out.writeByte(zigzag);
+	}
+
+	private static int readVarInt(final DataInput in) throws IOException {
+
+		int result = 0;
+
+		for(int shift = 0; shift < 35; shift += 7) {
+
+			final int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+
+			if((b & 0x80) == 0) {
+				return (result >>> 1) ^ -(result & 1);
+			}
+		}
+
+		throw new IOException("Malformed varint");
+	}
+
 	@SuppressWarnings("deprecation")
 	public ViewGroup buildView(final Activity activity, final Integer textColor, final Float textSize,
 							   final boolean showLinkButtons) {
@@ -72,7 +199,7 @@ public final class MarkdownParagraphGroup {
 		for(final MarkdownParagraph paragraph : paragraphs) {
 
 			final ActiveTextView tv = new ActiveTextView(activity);
-			tv.setText(paragraph.spanned);
+			tv.setText(paragraph.getSpanned());
 
 			if(textColor != null) tv.setTextColor(textColor);
 			if(textSize != null) tv.setTextSize(textSize);
@@ -134,7 +261,7 @@ public final class MarkdownParagraphGroup {
 					break;
 
 				case HEADER:
-					final SpannableString underlinedText = new SpannableString(paragraph.spanned);
+					final SpannableString underlinedText = new SpannableString(paragraph.getSpanned());
 					underlinedText.setSpan(new UnderlineSpan(), 0, underlinedText.length(), Spanned.SPAN_INCLUSIVE_EXCLUSIVE);
 					tv.setText(underlinedText);
 					layout.addView(tv);
@@ -297,7 +424,7 @@ public final class MarkdownParagraphGroup {
 			}
 
 			if(showLinkButtons) {
-				for(final MarkdownParagraph.Link link : paragraph.links) {
+				for(final MarkdownParagraph.Link link : paragraph.getLinks()) {
 
 					final LinkDetailsView ldv = new LinkDetailsView(activity, link.title, link.subtitle);
 					layout.addView(ldv);
@@ -0,0 +1,94 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.quantumbadger.redreader.cache.CacheBlobDirectory;
+import org.quantumbadger.redreader.common.General;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CacheBlobDirectoryTest {
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	static String hash(final int i) {
+		return General.sha1(String.valueOf(i).getBytes());
+	}
+
+	private File createTempFile(final int i) throws IOException {
+		return mFolder.newFile(i + ".rr_cache_data_tmp");
+	}
+
+	static HashSet<String> hashesOf(final File[] files) {
+
+		final HashSet<String> result = new HashSet<String>();
+
+		for(final File file : files) {
+			result.add(CacheBlobDirectory.getHash(file.getName()));
+		}
+
+		return result;
+	}
+
+	@Test
+	public void bucketPrefixesMatchHashes() {
+		assertEquals("0", CacheBlobDirectory.getBucketPrefix(0));
+		assertEquals("A", CacheBlobDirectory.getBucketPrefix(10));
+		assertEquals("F", CacheBlobDirectory.getBucketPrefix(15));
+	}
+
+	@Test
+	public void recognisesBlobNames() {
+		assertEquals("abc123", CacheBlobDirectory.getHash("abc123.rr_cache_data"));
+		assertNull(CacheBlobDirectory.getHash("abc123.rr_cache_data_tmp"));
+		assertNull(CacheBlobDirectory.getHash("abc.123.rr_cache_data"));
+	}
+
+	@Test
+	public void listsOnlyTheRequestedBucket() throws IOException {
+
+		final CacheBlobDirectory dir = new CacheBlobDirectory(mFolder.getRoot());
+		final HashSet<String> expected = new HashSet<String>();
+
+		for(int i = 0; i < 200; i++) {
+
+			final String hash = hash(i);
+			final File file = dir.moveIntoPlace(createTempFile(i), hash);
+
+			assertEquals(dir.getFile(hash), file);
+			assertTrue(file.exists());
+
+			if(hash.startsWith("A")) expected.add(hash);
+		}
+
+		assertFalse(expected.isEmpty());
+		assertEquals(expected, hashesOf(dir.listBucket(10)));
+
+		// Nothing is left in the top level directory
+		assertEquals(0, dir.listLegacyFiles().length);
+	}
+
+	@Test
+	public void findsLegacyFiles() throws IOException {
+
+		final CacheBlobDirectory dir = new CacheBlobDirectory(mFolder.getRoot());
+		final String hash = hash(1);
+
+		assertTrue(dir.getLegacyFile(hash).createNewFile());
+		assertEquals(1, dir.listLegacyFiles().length);
+
+		dir.moveIntoPlace(dir.listLegacyFiles()[0], hash);
+
+		assertEquals(0, dir.listLegacyFiles().length);
+		assertTrue(dir.getFile(hash).exists());
+	}
+}
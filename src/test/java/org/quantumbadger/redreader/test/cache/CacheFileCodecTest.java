@@ -0,0 +1,190 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.cache.CacheFileCodec;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CacheFileCodecTest {
+
+	static byte[] encode(final CacheFileCodec codec, final byte[] data, final int chunkSize) throws IOException {
+
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		final OutputStream os = codec.wrapOutput(result);
+
+		for(int i = 0; i < data.length; i += chunkSize) {
+			os.write(data, i, Math.min(chunkSize, data.length - i));
+		}
+
+		os.close();
+		return result.toByteArray();
+	}
+
+	private static byte[] decode(final CacheFileCodec codec, final byte[] data, final int chunkSize) throws IOException {
+
+		final InputStream is = codec.wrapInput(new ByteArrayInputStream(data));
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		final byte[] buf = new byte[chunkSize];
+
+		int bytesRead;
+		while((bytesRead = is.read(buf)) > 0) {
+			result.write(buf, 0, bytesRead);
+		}
+
+		is.close();
+		return result.toByteArray();
+	}
+
+	static byte[] generateListing(final int posts) {
+
+		final StringBuilder sb = new StringBuilder("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		for(int i = 0; i < posts; i++) {
+			if(i > 0) sb.append(", ");
+			sb.append("{\"kind\": \"t3\", \"data\": {\"subreddit\": \"pics\", \"author\": \"user").append(i % 17)
+					.append("\", \"score\": ").append(i * 31).append(", \"title\": \"Post \\u00e9 ").append(i)
+					.append("\", \"over_18\": false}}");
+		}
+
+		return sb.append("]}}").toString().getBytes();
+	}
+
+	@Test
+	public void testRoundTripIsByteExact() throws IOException {
+
+		final Random random = new Random(42);
+
+		final byte[][] inputs = {
+				new byte[0],
+				new byte[] {'{', '}'},
+				generateListing(1),
+				generateListing(1000),
+				new byte[200 * 1024]
+		};
+
+		random.nextBytes(inputs[4]);
+
+		for(final CacheFileCodec codec : CacheFileCodec.values()) {
+			for(final byte[] input : inputs) {
+				for(final int chunkSize : new int[] {1, 7, 8 * 1024, 64 * 1024}) {
+					final byte[] encoded = encode(codec, input, chunkSize);
+					assertArrayEquals(input, decode(codec, encoded, chunkSize));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCompressesJson() throws IOException {
+
+		final byte[] listing = generateListing(1000);
+		final byte[] encoded = encode(CacheFileCodec.forRequest(true), listing, 64 * 1024);
+
+		assertTrue(encoded.length < listing.length / 4);
+	}
+
+	@Test
+	public void testEncodingIsDeterministic() throws IOException {
+		// Identical content must produce identical files, so that they share a content hash
+		final byte[] listing = generateListing(100);
+		assertArrayEquals(encode(CacheFileCodec.GZIP, listing, 7), encode(CacheFileCodec.GZIP, listing, 64 * 1024));
+	}
+
+	@Test
+	public void testDbValues() {
+		for(final CacheFileCodec codec : CacheFileCodec.values()) {
+			assertEquals(codec, CacheFileCodec.fromDbValue(codec.dbValue));
+		}
+	}
+
+	@Test
+	public void testJsonParsesFromCompressedStream() throws Exception {
+
+		final byte[] encoded = encode(CacheFileCodec.GZIP, generateListing(500), 64 * 1024);
+
+		final JsonValue value = new JsonValue(CacheFileCodec.GZIP.wrapInput(new ByteArrayInputStream(encoded)));
+		value.buildInThisThread();
+
+		final JsonBufferedArray children = value.asObject().getObject("data").getArray("children");
+		assertEquals(500, children.getCurrentItemCount());
+		assertEquals("user3", children.get(3).asObject().getObject("data").getString("author"));
+	}
+
+	static File writeTempFile(final byte[] data) throws IOException {
+
+		final File file = File.createTempFile("codec", ".cache");
+		file.deleteOnExit();
+
+		final FileOutputStream fos = new FileOutputStream(file);
+		fos.write(data);
+		fos.close();
+
+		return file;
+	}
+
+	private static byte[] readAll(final InputStream is) throws IOException {
+
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+
+		int bytesRead;
+		while((bytesRead = is.read(buf)) > 0) {
+			result.write(buf, 0, bytesRead);
+		}
+
+		is.close();
+		return result.toByteArray();
+	}
+
+	@Test
+	public void testOpenForParsingMatchesInput() throws IOException {
+
+		final byte[][] inputs = {
+				new byte[0],
+				new byte[] {'{', '}'},
+				generateListing(1000)
+		};
+
+		for(final CacheFileCodec codec : CacheFileCodec.values()) {
+			for(final byte[] input : inputs) {
+
+				final File file = writeTempFile(encode(codec, input, 64 * 1024));
+
+				// Read into memory, and streamed from disk
+				assertArrayEquals(input, readAll(codec.openForParsing(file, Integer.MAX_VALUE)));
+				assertArrayEquals(input, readAll(codec.openForParsing(file, 0)));
+
+				file.delete();
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testTruncatedFileFails() throws IOException {
+
+		final byte[] encoded = encode(CacheFileCodec.GZIP, generateListing(100), 64 * 1024);
+		final byte[] truncated = new byte[encoded.length - 6];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+
+		final File file = writeTempFile(truncated);
+
+		try {
+			readAll(CacheFileCodec.GZIP.openForParsing(file, Integer.MAX_VALUE));
+		} finally {
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,189 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.cache.CachePruner;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CachePrunerTest {
+
+	private static final int ENTRY_COUNT = 100000;
+
+	private static final class FakeEntry {
+
+		private final long id;
+		private final long timestamp;
+		private final String hash;
+
+		private FakeEntry(final long id, final long timestamp, final String hash) {
+			this.id = id;
+			this.timestamp = timestamp;
+			this.hash = hash;
+		}
+	}
+
+	// An in-memory stand-in for the web table, with an index on timestamp and a reference count per blob
+	private static final class FakeCache {
+
+		private final TreeMap<Long, HashMap<Long, FakeEntry>> byTimestamp = new TreeMap<Long, HashMap<Long, FakeEntry>>();
+		private final HashMap<String, Integer> references = new HashMap<String, Integer>();
+		private final HashSet<String> blobs = new HashSet<String>();
+		private int entryCount = 0;
+
+		// Every fourth blob is shared between two entries, one of which is recent
+		private FakeCache(final int entries, final long now) {
+
+			final Random random = new Random(1);
+
+			for(int i = 0; i < entries; i++) {
+
+				final long timestamp = now - random.nextInt(1000000);
+				final String hash = (i % 4 == 0) ? "shared" + (i / 8) : "blob" + i;
+
+				add(new FakeEntry(i, timestamp, hash));
+			}
+		}
+
+		private void add(final FakeEntry entry) {
+
+			HashMap<Long, FakeEntry> entries = byTimestamp.get(entry.timestamp);
+
+			if(entries == null) {
+				entries = new HashMap<Long, FakeEntry>();
+				byTimestamp.put(entry.timestamp, entries);
+			}
+
+			entries.put(entry.id, entry);
+
+			final Integer count = references.get(entry.hash);
+			references.put(entry.hash, count == null ? 1 : count + 1);
+			blobs.add(entry.hash);
+			entryCount++;
+		}
+
+		private List<FakeEntry> getExpired(final long before, final int limit) {
+
+			final ArrayList<FakeEntry> result = new ArrayList<FakeEntry>();
+
+			for(final HashMap<Long, FakeEntry> entries : byTimestamp.headMap(before).values()) {
+				for(final FakeEntry entry : entries.values()) {
+					if(result.size() >= limit) return result;
+					result.add(entry);
+				}
+			}
+
+			return result;
+		}
+
+		private Collection<String> delete(final List<FakeEntry> entries) {
+
+			final ArrayList<String> unreferenced = new ArrayList<String>();
+
+			for(final FakeEntry entry : entries) {
+
+				final HashMap<Long, FakeEntry> atTimestamp = byTimestamp.get(entry.timestamp);
+				atTimestamp.remove(entry.id);
+				if(atTimestamp.isEmpty()) byTimestamp.remove(entry.timestamp);
+				entryCount--;
+
+				final int count = references.get(entry.hash) - 1;
+
+				if(count == 0) {
+					references.remove(entry.hash);
+					unreferenced.add(entry.hash);
+				} else {
+					references.put(entry.hash, count);
+				}
+			}
+
+			return unreferenced;
+		}
+	}
+
+	private static class FakeCachePruner extends CachePruner<FakeEntry> {
+
+		private final FakeCache cache;
+		private final long before;
+
+		private FakeCachePruner(final FakeCache cache, final long before, final Object lock, final int batchSize) {
+			super(lock, batchSize);
+			this.cache = cache;
+			this.before = before;
+		}
+
+		@Override
+		protected List<FakeEntry> getExpiredEntries(final int limit) {
+			return cache.getExpired(before, limit);
+		}
+
+		@Override
+		protected Collection<String> deleteEntries(final List<FakeEntry> entries) {
+			return cache.delete(entries);
+		}
+
+		@Override
+		protected void deleteBlob(final String hash) {
+			assertTrue(cache.blobs.remove(hash));
+		}
+	}
+
+	@Test
+	public void removesOnlyExpiredEntriesAndUnreferencedBlobs() {
+
+		final long now = 10000000;
+		final long before = now - 500000;
+
+		final FakeCache cache = new FakeCache(1000, now);
+		final int expiredCount = cache.getExpired(before, Integer.MAX_VALUE).size();
+
+		final CachePruner.Stats stats = new FakeCachePruner(cache, before, new Object(), 64).prune();
+
+		assertEquals(expiredCount, stats.entriesDeleted);
+		assertEquals(1000 - expiredCount, cache.entryCount);
+		assertTrue(cache.getExpired(before, Integer.MAX_VALUE).isEmpty());
+
+		// Every remaining blob is referenced, and every referenced blob remains
+		assertEquals(cache.references.keySet(), cache.blobs);
+		assertEquals(stats.blobsDeleted + cache.blobs.size(), new FakeCache(1000, now).blobs.size());
+	}
+
+	@Test
+	public void resumesAfterInterruption() {
+
+		final long now = 10000000;
+		final long before = now - 500000;
+
+		final FakeCache cache = new FakeCache(1000, now);
+		final int expiredCount = cache.getExpired(before, Integer.MAX_VALUE).size();
+
+		final CachePruner<FakeEntry> interrupted = new FakeCachePruner(cache, before, new Object(), 32) {
+
+			private int batches = 0;
+
+			@Override
+			protected void deleteBlob(final String hash) {
+				super.deleteBlob(hash);
+				if(++batches == 50) Thread.currentThread().interrupt();
+			}
+		};
+
+		final CachePruner.Stats first = interrupted.prune();
+		assertTrue(Thread.interrupted());
+		assertFalse(cache.getExpired(before, Integer.MAX_VALUE).isEmpty());
+
+		final CachePruner.Stats second = new FakeCachePruner(cache, before, new Object(), 32).prune();
+
+		assertEquals(expiredCount, first.entriesDeleted + second.entriesDeleted);
+		assertEquals(cache.references.keySet(), cache.blobs);
+	}
+
+	// A pruner for the older part of a large cache. Deleting a blob which doesn't exist fails.
+	static CachePruner<?> largeCachePruner(final int batchSize) {
+		final long now = 10000000;
+		return new FakeCachePruner(new FakeCache(ENTRY_COUNT, now), now - 400000, new Object(), batchSize);
+	}
+}
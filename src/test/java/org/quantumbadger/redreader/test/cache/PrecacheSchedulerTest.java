@@ -0,0 +1,159 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.account.RedditAccount;
+import org.quantumbadger.redreader.cache.CacheManager;
+import org.quantumbadger.redreader.cache.CacheRequest;
+import org.quantumbadger.redreader.cache.PrecacheScheduler;
+import org.quantumbadger.redreader.cache.RequestFailureType;
+import org.quantumbadger.redreader.common.Constants;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrecacheSchedulerTest {
+
+	private static final RedditAccount ANON = new RedditAccount("", null, 10);
+
+	private static final class FakeRequest extends CacheRequest {
+
+		private FakeRequest(final int position, final int listId) {
+			super(URI.create("http://example.com/" + position), ANON, null, Constants.Priority.COMMENT_PRECACHE,
+					listId, DownloadType.IF_NECESSARY, Constants.FileType.IMAGE, DownloadQueueType.QUEUE_IMAGE_PRECACHE,
+					false, false, null);
+		}
+
+		@Override protected void onCallbackException(final Throwable t) {}
+		@Override protected void onDownloadNecessary() {}
+		@Override protected void onDownloadStarted() {}
+		@Override protected void onFailure(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {}
+		@Override protected void onProgress(final boolean authorizationInProgress, final long bytesRead, final long totalBytes) {}
+		@Override protected void onSuccess(final CacheManager.ReadableCacheFile cacheFile, final long timestamp, final UUID session, final boolean fromCache, final String mimetype) {}
+	}
+
+	private static final class FakePrecache implements PrecacheScheduler.Precache {
+
+		private final int mPosition;
+		private final ArrayList<FakeRequest> mStarted = new ArrayList<FakeRequest>();
+
+		private FakePrecache(final int position) {
+			mPosition = position;
+		}
+
+		public CacheRequest start(final int listId) {
+			final FakeRequest request = new FakeRequest(mPosition, listId);
+			mStarted.add(request);
+			return request;
+		}
+
+		private FakeRequest latest() {
+			return mStarted.get(mStarted.size() - 1);
+		}
+	}
+
+	private static FakePrecache[] addAll(final PrecacheScheduler scheduler, final int count) {
+
+		final FakePrecache[] precaches = new FakePrecache[count];
+
+		for(int i = 0; i < count; i++) {
+			precaches[i] = new FakePrecache(i);
+			scheduler.add(i, precaches[i]);
+		}
+
+		return precaches;
+	}
+
+	@Test
+	public void testOnlyWindowStarted() {
+
+		final PrecacheScheduler scheduler = new PrecacheScheduler(2, 5);
+		final FakePrecache[] precaches = addAll(scheduler, 20);
+
+		for(int i = 0; i < 20; i++) {
+			assertEquals(i <= 5 ? 1 : 0, precaches[i].mStarted.size());
+		}
+	}
+
+	@Test
+	public void testScrollingCancelsAndRestarts() {
+
+		final PrecacheScheduler scheduler = new PrecacheScheduler(2, 5);
+		final FakePrecache[] precaches = addAll(scheduler, 30);
+
+		scheduler.onViewportChanged(10, 14);
+
+		// Positions 0 to 7 are now out of the window, and were cancelled before starting
+		for(int i = 0; i <= 5; i++) {
+			assertEquals(1, precaches[i].mStarted.size());
+			assertTrue(precaches[i].latest().isCancelled());
+		}
+
+		for(int i = 6; i < 30; i++) {
+			assertEquals(i >= 8 && i <= 19 ? 1 : 0, precaches[i].mStarted.size());
+		}
+
+		// Scrolling back makes the requests again
+		scheduler.onViewportChanged(0, 3);
+
+		for(int i = 0; i <= 8; i++) {
+			assertFalse(precaches[i].latest().isCancelled());
+		}
+
+		assertEquals(2, precaches[0].mStarted.size());
+
+		// Requests just outside the window are kept, and only those twice as far away are cancelled
+		for(int i = 9; i <= 13; i++) {
+			assertFalse(precaches[i].latest().isCancelled());
+		}
+
+		for(int i = 14; i <= 19; i++) {
+			assertTrue(precaches[i].latest().isCancelled());
+		}
+	}
+
+	@Test
+	public void testPrioritisedByDistance() {
+
+		final PrecacheScheduler scheduler = new PrecacheScheduler(2, 5);
+		final FakePrecache[] precaches = addAll(scheduler, 30);
+
+		assertEquals(0, precaches[0].latest().getSecondaryPriority());
+		assertEquals(5, precaches[5].latest().getSecondaryPriority());
+
+		scheduler.onViewportChanged(10, 14);
+
+		assertEquals(2, precaches[8].latest().getSecondaryPriority());
+		assertEquals(0, precaches[12].latest().getSecondaryPriority());
+		assertEquals(5, precaches[19].latest().getSecondaryPriority());
+
+		// Items which stay in range move further back in the queue as the list scrolls away from them
+		scheduler.onViewportChanged(16, 18);
+
+		assertTrue(precaches[8].latest().isCancelled());
+		assertEquals(4, precaches[12].latest().getSecondaryPriority());
+		assertEquals(0, precaches[17].latest().getSecondaryPriority());
+		assertEquals(5, precaches[23].latest().getSecondaryPriority());
+	}
+
+	@Test
+	public void testCompletedRequestsDropped() {
+
+		final PrecacheScheduler scheduler = new PrecacheScheduler(0, 0);
+		final FakePrecache[] precaches = addAll(scheduler, 3);
+
+		precaches[0].latest().notifyFailure(RequestFailureType.CONNECTION, null, null, null);
+
+		scheduler.onViewportChanged(2, 2);
+		assertFalse(precaches[0].latest().isCancelled());
+
+		scheduler.onViewportChanged(0, 0);
+		assertEquals(1, precaches[0].mStarted.size());
+		assertEquals(1, precaches[2].mStarted.size());
+		assertTrue(precaches[2].latest().isCancelled());
+	}
+}
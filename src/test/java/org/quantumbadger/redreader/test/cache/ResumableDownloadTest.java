@@ -0,0 +1,496 @@
+package org.quantumbadger.redreader.test.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.quantumbadger.redreader.cache.PartialDownload;
+import org.quantumbadger.redreader.cache.RequestFailureType;
+import org.quantumbadger.redreader.cache.ResumableDownload;
+import org.quantumbadger.redreader.http.HTTPBackend;
+import org.quantumbadger.redreader.http.okhttp.OKHTTPBackend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResumableDownloadTest {
+
+	@Rule
+	public final TemporaryFolder mFolder = new TemporaryFolder();
+
+	private ServerSocket mServer;
+	private URI mUrl;
+
+	private volatile byte[] mData;
+	private volatile String mEtag = "\"v1\"";
+
+	// The next response is cut off after this many body bytes, unless negative
+	private final AtomicLong mDropAfter = new AtomicLong(-1);
+
+	private final AtomicLong mBytesServed = new AtomicLong(0);
+
+	private long mMinResumableBytes = 0;
+	private final List<String> mRanges = Collections.synchronizedList(new ArrayList<String>());
+
+	private static byte[] randomData(final int length, final long seed) {
+		final byte[] result = new byte[length];
+		new Random(seed).nextBytes(result);
+		return result;
+	}
+
+	// Minimal HTTP/1.1 server which supports range requests, with one request per connection
+	@Before
+	public void startServer() throws IOException {
+
+		mData = randomData(1024 * 1024, 1);
+		mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		new Thread("Range server") {
+			@Override
+			public void run() {
+				while(!mServer.isClosed()) {
+
+					final Socket socket;
+
+					try {
+						socket = mServer.accept();
+					} catch(IOException e) {
+						return;
+					}
+
+					new Thread("Range server connection") {
+						@Override
+						public void run() {
+							try {
+								serve(socket);
+							} catch(IOException e) {
+								// Client went away
+							} finally {
+								try {
+									socket.close();
+								} catch(IOException e) {
+									// Ignore
+								}
+							}
+						}
+					}.start();
+				}
+			}
+		}.start();
+
+		mUrl = URI.create("http://127.0.0.1:" + mServer.getLocalPort() + "/image.gif");
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		mServer.close();
+	}
+
+	private static HashMap<String, String> readHeaders(final InputStream is) throws IOException {
+
+		final HashMap<String, String> result = new HashMap<String, String>();
+		final StringBuilder line = new StringBuilder();
+
+		int b;
+		boolean firstLine = true;
+
+		while((b = is.read()) >= 0) {
+
+			if(b == '\r') continue;
+
+			if(b != '\n') {
+				line.append((char)b);
+				continue;
+			}
+
+			if(line.length() == 0) return result;
+
+			final int colon = line.indexOf(":");
+
+			if(!firstLine && colon > 0) {
+				result.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+			}
+
+			firstLine = false;
+			line.setLength(0);
+		}
+
+		throw new IOException("Connection closed");
+	}
+
+	private void serve(final Socket socket) throws IOException {
+
+		final HashMap<String, String> headers = readHeaders(socket.getInputStream());
+		final OutputStream os = socket.getOutputStream();
+
+		final byte[] data = mData;
+		final String etag = mEtag;
+		final String range = headers.get("range");
+		final String ifRange = headers.get("if-range");
+
+		mRanges.add(range);
+
+		long start = 0, end = data.length - 1;
+		final StringBuilder response = new StringBuilder();
+
+		if(range != null && (ifRange == null || ifRange.equals(etag))) {
+
+			final String[] parts = range.substring("bytes=".length()).split("-", -1);
+			start = Long.parseLong(parts[0]);
+			if(parts[1].length() > 0) end = Long.parseLong(parts[1]);
+
+			response.append("HTTP/1.1 206 Partial Content\r\n")
+					.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(data.length).append("\r\n");
+
+		} else {
+			response.append("HTTP/1.1 200 OK\r\n");
+		}
+
+		response.append("Content-Type: image/gif\r\n")
+				.append("Accept-Ranges: bytes\r\n")
+				.append("Connection: close\r\n")
+				.append("Content-Length: ").append(end - start + 1).append("\r\n");
+
+		if(etag != null) {
+			response.append("ETag: ").append(etag).append("\r\n");
+		}
+
+		os.write(response.append("\r\n").toString().getBytes());
+
+		long length = end - start + 1;
+		final long dropAfter = mDropAfter.getAndSet(-1);
+		if(dropAfter >= 0) length = Math.min(length, dropAfter);
+
+		int offset = (int)start;
+		long remaining = length;
+
+		while(remaining > 0) {
+			final int chunk = (int)Math.min(16 * 1024, remaining);
+			os.write(data, offset, chunk);
+			offset += chunk;
+			remaining -= chunk;
+			mBytesServed.addAndGet(chunk);
+		}
+
+		os.flush();
+	}
+
+	private static final class Result implements ResumableDownload.Listener {
+
+		private String mimetype;
+		private RequestFailureType failure;
+		private boolean complete = false;
+
+		public void onDataAvailable(final String mimetype) {}
+
+		public void onProgress(final long bytesDone, final long totalBytes) {}
+
+		public void onError(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+			failure = type;
+		}
+
+		public void onComplete(final String mimetype) {
+			this.mimetype = mimetype;
+			complete = true;
+		}
+	}
+
+	private interface DataListener {
+		void onDataAvailable(PartialDownload partial);
+	}
+
+	private Result download(final int maxSegments, final DataListener dataListener) {
+
+		final PartialDownload partial = PartialDownload.open(mFolder.getRoot(), mUrl.toString());
+		assertNotNull(partial);
+
+		final Result result = new Result();
+
+		try {
+			final HTTPBackend backend = OKHTTPBackend.getHttpBackend();
+
+			new ResumableDownload(backend, null, mUrl, partial, maxSegments, 64 * 1024, mMinResumableBytes).execute(
+					backend.prepareRequest(null, new HTTPBackend.RequestDetails(mUrl, null)),
+					new ResumableDownload.Listener() {
+
+						public void onDataAvailable(final String mimetype) {
+							if(dataListener != null) dataListener.onDataAvailable(partial);
+						}
+
+						public void onProgress(final long bytesDone, final long totalBytes) {}
+
+						public void onError(final RequestFailureType type, final Throwable t, final Integer httpStatus, final String readableMessage) {
+							result.onError(type, t, httpStatus, readableMessage);
+						}
+
+						public void onComplete(final String mimetype) {
+							try {
+								final File dataFile = partial.finishWriting();
+								assertArrayEquals(mData, readFile(dataFile));
+
+								// Still reserved until it's deleted, so it can be moved elsewhere safely
+								assertNull(PartialDownload.open(mFolder.getRoot(), mUrl.toString()));
+
+							} catch(IOException e) {
+								throw new RuntimeException(e);
+							}
+
+							result.onComplete(mimetype);
+							partial.delete();
+						}
+					});
+
+		} finally {
+			partial.close();
+		}
+
+		return result;
+	}
+
+	private static byte[] readFile(final File file) throws IOException {
+
+		final RandomAccessFile raf = new RandomAccessFile(file, "r");
+
+		try {
+			final byte[] result = new byte[(int)raf.length()];
+			raf.readFully(result);
+			return result;
+
+		} finally {
+			raf.close();
+		}
+	}
+
+	private PartialDownload reopen() {
+		final PartialDownload partial = PartialDownload.open(mFolder.getRoot(), mUrl.toString());
+		assertNotNull(partial);
+		return partial;
+	}
+
+	@Test
+	public void testFullDownload() {
+
+		final Result result = download(1, null);
+
+		assertTrue(result.complete);
+		assertEquals("image/gif", result.mimetype);
+		assertEquals(1, mRanges.size());
+		assertNull(mRanges.get(0));
+
+		// Nothing is kept once the data has been used
+		assertEquals(0, mFolder.getRoot().list().length);
+	}
+
+	@Test
+	public void testResumeAfterInterruption() {
+
+		mDropAfter.set(300 * 1024);
+
+		final Result first = download(1, null);
+		assertFalse(first.complete);
+		assertEquals(RequestFailureType.CONNECTION, first.failure);
+
+		final PartialDownload partial = reopen();
+		assertTrue(partial.canResume());
+		assertEquals(300 * 1024, partial.getBytesDone());
+		assertEquals(300 * 1024, partial.getPrefixLength());
+		assertEquals("image/gif", partial.getMimetype());
+		partial.close();
+
+		mBytesServed.set(0);
+
+		final Result second = download(1, null);
+		assertTrue(second.complete);
+		assertEquals("image/gif", second.mimetype);
+
+		assertEquals("bytes=" + (300 * 1024) + "-" + (mData.length - 1), mRanges.get(1));
+		assertEquals(mData.length - 300 * 1024, mBytesServed.get());
+	}
+
+	@Test
+	public void testChangedFileRestarts() {
+
+		mDropAfter.set(300 * 1024);
+		assertFalse(download(1, null).complete);
+
+		mData = randomData(700 * 1024, 2);
+		mEtag = "\"v2\"";
+
+		// The server sees the old ETag in If-Range, and sends the new file in full
+		final Result result = download(1, null);
+		assertTrue(result.complete);
+		assertEquals(700 * 1024, mBytesServed.get() - 300 * 1024);
+	}
+
+	@Test
+	public void testNotResumableWithoutValidator() {
+
+		mEtag = null;
+		mDropAfter.set(300 * 1024);
+		assertFalse(download(1, null).complete);
+
+		final PartialDownload partial = reopen();
+		assertFalse(partial.canResume());
+		partial.close();
+
+		assertEquals(0, mFolder.getRoot().list().length);
+
+		assertTrue(download(1, null).complete);
+		assertNull(mRanges.get(1));
+	}
+
+	@Test
+	public void testSmallFileNotKept() {
+
+		mMinResumableBytes = mData.length + 1;
+		mDropAfter.set(300 * 1024);
+		assertFalse(download(1, null).complete);
+
+		final PartialDownload partial = reopen();
+		assertFalse(partial.canResume());
+		partial.close();
+
+		assertEquals(0, mFolder.getRoot().list().length);
+	}
+
+	@Test
+	public void testFinishedFileCanBeMoved() throws IOException {
+
+		final PartialDownload partial = reopen();
+		partial.reset("\"v1\"", "image/gif", 4);
+		partial.write(0, new byte[] {1, 2, 3, 4}, 0, 4);
+
+		final File moved = new File(mFolder.getRoot(), "moved");
+		assertTrue(partial.finishWriting().renameTo(moved));
+		partial.delete();
+
+		assertArrayEquals(new byte[] {1, 2, 3, 4}, readFile(moved));
+		assertEquals(1, mFolder.getRoot().list().length);
+	}
+
+	@Test
+	public void testParallelSegments() {
+
+		final Result result = download(3, null);
+		assertTrue(result.complete);
+
+		// The first request is for everything, and stops at the end of the first segment
+		assertEquals(3, mRanges.size());
+		assertNull(mRanges.get(0));
+		assertTrue(mRanges.contains("bytes=" + (mData.length / 3) + "-" + (2 * mData.length / 3 - 1)));
+		assertTrue(mRanges.contains("bytes=" + (2 * mData.length / 3) + "-" + (mData.length - 1)));
+	}
+
+	@Test
+	public void testInterruptedSegmentsResume() {
+
+		mDropAfter.set(100 * 1024);
+		assertFalse(download(3, null).complete);
+
+		final PartialDownload partial = reopen();
+		assertTrue(partial.canResume());
+		assertEquals(3, partial.getSegmentCount());
+		assertFalse(partial.isComplete());
+		final long bytesKept = partial.getBytesDone();
+		partial.close();
+
+		mBytesServed.set(0);
+		assertTrue(download(3, null).complete);
+
+		// Only the missing data is fetched again
+		assertEquals(mData.length - bytesKept, mBytesServed.get());
+	}
+
+	// Reads the prefix stream in another thread, as the download continues
+	private static final class PrefixReader extends Thread implements DataListener {
+
+		private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+		private InputStream mStream;
+		private volatile IOException mError;
+
+		public void onDataAvailable(final PartialDownload partial) {
+
+			try {
+				mStream = partial.openPrefixStream();
+			} catch(IOException e) {
+				throw new RuntimeException(e);
+			}
+
+			start();
+		}
+
+		@Override
+		public void run() {
+
+			try {
+				final byte[] buf = new byte[7919];
+
+				int bytesRead;
+				while((bytesRead = mStream.read(buf)) >= 0) {
+					mOut.write(buf, 0, bytesRead);
+				}
+
+			} catch(IOException e) {
+				mError = e;
+
+			} finally {
+				try {
+					mStream.close();
+				} catch(IOException e) {
+					// Ignore
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testPrefixStream() throws InterruptedException {
+
+		mDropAfter.set(300 * 1024);
+		assertFalse(download(3, null).complete);
+
+		// The stream starts with the data kept from the first attempt, and follows the rest of the segments
+		final PrefixReader reader = new PrefixReader();
+		assertTrue(download(3, reader).complete);
+
+		reader.join();
+		assertNull(reader.mError);
+		assertArrayEquals(mData, reader.mOut.toByteArray());
+	}
+
+	@Test
+	public void testPrefixStreamFailsIfInterrupted() throws InterruptedException {
+
+		mDropAfter.set(300 * 1024);
+
+		final PrefixReader reader = new PrefixReader();
+		assertFalse(download(1, reader).complete);
+
+		reader.join();
+		assertNotNull(reader.mError);
+		assertEquals(300 * 1024, reader.mOut.size());
+	}
+}
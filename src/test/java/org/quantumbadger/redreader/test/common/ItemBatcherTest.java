@@ -0,0 +1,233 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.common.ItemBatcher;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ItemBatcherTest {
+
+	// Runs posted tasks only when the test advances the clock, so that every run is identical
+	private static final class FakeScheduler implements ItemBatcher.Scheduler {
+
+		private static final class Task {
+
+			private final long time, sequence;
+			private final Runnable runnable;
+
+			private Task(final long time, final long sequence, final Runnable runnable) {
+				this.time = time;
+				this.sequence = sequence;
+				this.runnable = runnable;
+			}
+		}
+
+		private final ArrayList<Task> mTasks = new ArrayList<Task>();
+		private long mTime = 0, mSequence = 0;
+		private int mPostCount = 0;
+
+		public long currentTimeMillis() {
+			return mTime;
+		}
+
+		public void post(final Runnable runnable, final long delayMillis) {
+			mTasks.add(new Task(mTime + delayMillis, mSequence++, runnable));
+			mPostCount++;
+		}
+
+		public void advanceTo(final long time) {
+
+			while(true) {
+
+				Task next = null;
+
+				for(final Task task : mTasks) {
+					if(task.time <= time && (next == null || task.time < next.time
+							|| (task.time == next.time && task.sequence < next.sequence))) {
+						next = task;
+					}
+				}
+
+				if(next == null) break;
+
+				mTasks.remove(next);
+				mTime = Math.max(mTime, next.time);
+				next.runnable.run();
+			}
+
+			mTime = time;
+		}
+	}
+
+	// Records when each item was added and when it arrived
+	private static final class Recorder implements ItemBatcher.Listener<Long> {
+
+		private final FakeScheduler mScheduler;
+		private final ArrayList<Long> mItems = new ArrayList<Long>();
+		private final ArrayList<Integer> mBatchSizes = new ArrayList<Integer>();
+		private long mMaxLatency = 0, mFirstItemLatency = -1;
+
+		private Recorder(final FakeScheduler scheduler) {
+			mScheduler = scheduler;
+		}
+
+		public void onItemBatch(final ArrayList<Long> items) {
+
+			mBatchSizes.add(items.size());
+
+			if(mFirstItemLatency < 0) {
+				mFirstItemLatency = mScheduler.currentTimeMillis() - items.get(0);
+			}
+
+			for(final Long addedAt : items) {
+				mItems.add(addedAt);
+				mMaxLatency = Math.max(mMaxLatency, mScheduler.currentTimeMillis() - addedAt);
+			}
+		}
+	}
+
+	@Test
+	public void firstItemIsNotDelayed() {
+
+		final FakeScheduler scheduler = new FakeScheduler();
+		final Recorder recorder = new Recorder(scheduler);
+		final ItemBatcher<Long> batcher = new ItemBatcher<Long>(new ItemBatcher.Limits(100, 50), scheduler, recorder);
+
+		scheduler.advanceTo(1000);
+		batcher.add(1000L);
+		scheduler.advanceTo(1000);
+
+		assertEquals(Arrays.asList(1000L), recorder.mItems);
+		assertEquals(0, recorder.mMaxLatency);
+	}
+
+	@Test
+	public void itemsWaitForTheWindow() {
+
+		final FakeScheduler scheduler = new FakeScheduler();
+		final Recorder recorder = new Recorder(scheduler);
+		final ItemBatcher<Long> batcher = new ItemBatcher<Long>(new ItemBatcher.Limits(100, 50), scheduler, recorder);
+
+		batcher.add(0L);
+		scheduler.advanceTo(10);
+
+		batcher.add(10L);
+		batcher.add(10L);
+		scheduler.advanceTo(49);
+		assertEquals(1, recorder.mItems.size());
+
+		scheduler.advanceTo(50);
+		assertEquals(3, recorder.mItems.size());
+		assertEquals(Arrays.asList(1, 2), recorder.mBatchSizes);
+
+		// After a quiet period, the next item goes straight away again
+		scheduler.advanceTo(500);
+		batcher.add(500L);
+		scheduler.advanceTo(500);
+		assertEquals(4, recorder.mItems.size());
+	}
+
+	@Test
+	public void fullBatchIsNotDelayed() {
+
+		final FakeScheduler scheduler = new FakeScheduler();
+		final Recorder recorder = new Recorder(scheduler);
+		final ItemBatcher<Long> batcher = new ItemBatcher<Long>(new ItemBatcher.Limits(10, 1000), scheduler, recorder);
+
+		batcher.add(0L);
+		scheduler.advanceTo(0);
+
+		for(int i = 0; i < 10; i++) {
+			batcher.add(1L);
+		}
+
+		scheduler.advanceTo(1);
+
+		assertEquals(Arrays.asList(1, 10), recorder.mBatchSizes);
+	}
+
+	@Test
+	public void flushIsDeliveredBeforeLaterPosts() {
+
+		final FakeScheduler scheduler = new FakeScheduler();
+		final ArrayList<String> events = new ArrayList<String>();
+
+		final ItemBatcher<Long> batcher = new ItemBatcher<Long>(
+				new ItemBatcher.Limits(100, 50),
+				scheduler,
+				new ItemBatcher.Listener<Long>() {
+					public void onItemBatch(final ArrayList<Long> items) {
+						events.add("batch " + items.size());
+					}
+				});
+
+		batcher.add(0L);
+		scheduler.advanceTo(1);
+		batcher.add(1L);
+		batcher.add(1L);
+		batcher.flush();
+
+		scheduler.post(new Runnable() {
+			public void run() {
+				events.add("complete");
+			}
+		}, 0);
+
+		scheduler.advanceTo(1);
+
+		assertEquals(Arrays.asList("batch 1", "batch 2", "complete"), events);
+
+		// The delayed delivery finds nothing left to send
+		scheduler.advanceTo(100);
+		assertEquals(3, events.size());
+	}
+
+	// Runs a listing arriving at a steady rate through the batcher, and checks that every item arrives in order
+	private static Recorder simulate(final ItemBatcher.Limits limits, final int items, final int itemsPerMilli) {
+
+		final FakeScheduler scheduler = new FakeScheduler();
+		final Recorder recorder = new Recorder(scheduler);
+		final ItemBatcher<Long> batcher = new ItemBatcher<Long>(limits, scheduler, recorder);
+
+		for(int i = 0; i < items; i++) {
+
+			if(i % itemsPerMilli == 0) {
+				scheduler.advanceTo(i / itemsPerMilli);
+			}
+
+			batcher.add(scheduler.currentTimeMillis());
+		}
+
+		batcher.flush();
+		scheduler.advanceTo(items / itemsPerMilli + 1000);
+
+		assertEquals(items, recorder.mItems.size());
+
+		for(int i = 1; i < items; i++) {
+			assertTrue(recorder.mItems.get(i - 1) <= recorder.mItems.get(i));
+		}
+
+		return recorder;
+	}
+
+	@Test
+	public void largeListingPostsFewMessages() {
+
+		final ItemBatcher.Limits limits = new ItemBatcher.Limits(100, 50);
+
+		// Without batching, each of these would post 2000 messages
+		for(final int itemsPerMilli : new int[] {1, 4, 20}) {
+
+			final Recorder recorder = simulate(limits, 2000, itemsPerMilli);
+
+			assertEquals(0, recorder.mFirstItemLatency);
+			assertTrue(recorder.mBatchSizes.size() <= 2000 / 50 + 2);
+			assertTrue(recorder.mScheduler.mPostCount <= 2000 / 50 + 2);
+			assertTrue(recorder.mMaxLatency <= limits.windowMillis);
+		}
+	}
+}
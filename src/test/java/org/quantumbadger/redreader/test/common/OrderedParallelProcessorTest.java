@@ -0,0 +1,225 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.junit.Test;
+import org.quantumbadger.redreader.common.OrderedParallelProcessor;
+import org.quantumbadger.redreader.reddit.RedditListingParser;
+import org.quantumbadger.redreader.reddit.prepared.markdown.CharArrSubstring;
+import org.quantumbadger.redreader.reddit.prepared.markdown.IntArrayLengthPair;
+import org.quantumbadger.redreader.reddit.prepared.markdown.MarkdownTokenizer;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OrderedParallelProcessorTest {
+
+	private static class RecordingProcessor extends OrderedParallelProcessor<Integer, Integer> {
+
+		private final List<Integer> mResults = Collections.synchronizedList(new ArrayList<Integer>());
+		private final List<Integer> mBatchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+		private final AtomicInteger mConcurrentBatches = new AtomicInteger(0);
+		private volatile boolean mOverlapDetected = false;
+
+		public RecordingProcessor(final ExecutorService executor, final int batchSize, final int maxItemsInProgress) {
+			super(executor, batchSize, maxItemsInProgress);
+		}
+
+		@Override
+		protected Integer process(final Integer item) {
+
+			if(item < 0) {
+				throw new IllegalStateException("Negative item");
+			}
+
+			// Later items often finish first
+			try {
+				Thread.sleep(0, (item * 7919) % 100000);
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+
+			return item * 2;
+		}
+
+		@Override
+		protected void onBatch(final ArrayList<Integer> results) {
+
+			if(mConcurrentBatches.incrementAndGet() > 1) {
+				mOverlapDetected = true;
+			}
+
+			mBatchSizes.add(results.size());
+			mResults.addAll(results);
+
+			mConcurrentBatches.decrementAndGet();
+		}
+	}
+
+	@Test
+	public void resultsAreDeliveredInOrder() throws Exception {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(8);
+		final RecordingProcessor processor = new RecordingProcessor(executor, 20, 64);
+
+		for(int i = 0; i < 5000; i++) {
+			processor.add(i);
+		}
+
+		processor.finish();
+		executor.shutdown();
+
+		assertEquals(5000, processor.mResults.size());
+
+		for(int i = 0; i < 5000; i++) {
+			assertEquals(Integer.valueOf(i * 2), processor.mResults.get(i));
+		}
+
+		assertTrue(!processor.mOverlapDetected);
+
+		// Every batch is full apart from the last
+		for(int i = 0; i < processor.mBatchSizes.size() - 1; i++) {
+			assertEquals(Integer.valueOf(20), processor.mBatchSizes.get(i));
+		}
+	}
+
+	@Test
+	public void failureStopsDelivery() throws Exception {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final RecordingProcessor processor = new RecordingProcessor(executor, 10, 64);
+
+		for(int i = 0; i < 100; i++) {
+			processor.add(i == 50 ? -1 : i);
+		}
+
+		try {
+			processor.finish();
+			fail();
+		} catch(IllegalStateException e) {
+			assertEquals("Negative item", e.getMessage());
+		}
+
+		executor.shutdown();
+
+		// Only whole batches from before the failure
+		assertTrue(processor.mResults.size() <= 50);
+
+		for(int i = 0; i < processor.mResults.size(); i++) {
+			assertEquals(Integer.valueOf(i * 2), processor.mResults.get(i));
+		}
+	}
+
+	@Test
+	public void cancelledProcessorDeliversNothingMore() throws Exception {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		final RecordingProcessor processor = new RecordingProcessor(executor, 1000, 2000);
+
+		for(int i = 0; i < 500; i++) {
+			processor.add(i);
+		}
+
+		processor.cancel();
+		processor.finish();
+		executor.shutdown();
+
+		assertTrue(processor.mResults.isEmpty());
+	}
+
+	static byte[] generateCommentPage(final int comments, final long seed) {
+
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder("[{\"kind\": \"Listing\", \"data\": {\"children\": []}}, "
+				+ "{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		for(int i = 0; i < comments; i++) {
+
+			if(i > 0) sb.append(", ");
+
+			sb.append("{\"kind\": \"t1\", \"data\": {\"name\": \"t1_c").append(i).append("\", \"body\": \"");
+
+			final int paragraphs = 1 + random.nextInt(4);
+
+			for(int p = 0; p < paragraphs; p++) {
+				sb.append("Some **bold** and *italic* text with a [link](https://example.com/").append(random.nextInt())
+						.append(") and `code`, &amp; an entity.\\n\\n");
+			}
+
+			sb.append("&gt; A quote\\n\\n* One\\n* Two\", \"ups\": ").append(random.nextInt(5000))
+					.append(", \"replies\": \"\"}}");
+		}
+
+		return sb.append("]}}]").toString().getBytes();
+	}
+
+	// Stands in for RedditPreparedComment, which can't be created outside Android. Unescaping and tokenizing the
+	// markdown are most of the work, and building the spans needs Android.
+	private static final class PreparingProcessor extends OrderedParallelProcessor<RedditComment, Object> {
+
+		private int mCount = 0;
+
+		public PreparingProcessor(final ExecutorService executor) {
+			super(executor, 20, 256);
+		}
+
+		@Override
+		protected Object process(final RedditComment comment) {
+			final CharArrSubstring[] lines
+					= CharArrSubstring.generateFromLines(StringEscapeUtils.unescapeHtml4(comment.body).toCharArray());
+
+			final IntArrayLengthPair[] result = new IntArrayLengthPair[lines.length];
+
+			for(int i = 0; i < lines.length; i++) {
+				result[i] = MarkdownTokenizer.tokenize(lines[i]);
+			}
+
+			return result;
+		}
+
+		@Override
+		protected void onBatch(final ArrayList<Object> results) {
+			mCount += results.size();
+		}
+	}
+
+	static int parseAndPrepare(final byte[] data, final ExecutorService executor) throws Exception {
+
+		final PreparingProcessor processor = new PreparingProcessor(executor);
+
+		RedditListingParser.parse(new ByteArrayInputStream(data), new RedditListingParser.Listener<Object>() {
+
+			public void onPost(final RedditPost post) {}
+
+			public Object onComment(final RedditComment comment, final int replyCount, final Object parent) {
+				processor.add(comment);
+				return null;
+			}
+
+			public void onMoreComments(final RedditMoreComments moreComments, final Object parent) {}
+		});
+
+		processor.finish();
+		return processor.mCount;
+	}
+
+	@Test
+	public void preparesEveryParsedComment() throws Exception {
+
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		assertEquals(200, parseAndPrepare(generateCommentPage(200, 1), executor));
+		executor.shutdown();
+	}
+}
@@ -0,0 +1,277 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.common.PrioritisedCachedThreadPool;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PrioritisedCachedThreadPoolTest {
+
+	static class TestTask extends PrioritisedCachedThreadPool.Task {
+
+		private final String name;
+		int primary, secondary;
+		private final List<String> log;
+		private final CountDownLatch done;
+
+		TestTask(final String name, final int primary, final int secondary, final List<String> log,
+						 final CountDownLatch done) {
+			this.name = name;
+			this.primary = primary;
+			this.secondary = secondary;
+			this.log = log;
+			this.done = done;
+		}
+
+		@Override
+		public int getPrimaryPriority() {
+			return primary;
+		}
+
+		@Override
+		public int getSecondaryPriority() {
+			return secondary;
+		}
+
+		@Override
+		public void run() {
+			if(log != null) log.add(name);
+			done.countDown();
+		}
+	}
+
+	// Occupies the pool's only thread until released, so that everything added meanwhile is queued
+	static final class BlockingTask extends PrioritisedCachedThreadPool.Task {
+
+		private final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		@Override
+		public int getPrimaryPriority() {
+			return 0;
+		}
+
+		@Override
+		public int getSecondaryPriority() {
+			return 0;
+		}
+
+		@Override
+		public void run() {
+			started.countDown();
+			try {
+				release.await();
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	static BlockingTask block(final PrioritisedCachedThreadPool pool) throws InterruptedException {
+		final BlockingTask blocker = new BlockingTask();
+		pool.add(blocker);
+		assertTrue(blocker.started.await(10, TimeUnit.SECONDS));
+		return blocker;
+	}
+
+	@Test
+	public void testPriorityOrder() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test pool");
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(6);
+
+		final BlockingTask blocker = block(pool);
+
+		// The secondary priority only matters between tasks with the same primary priority
+		pool.add(new TestTask("c", 5, -100, log, done));
+		pool.add(new TestTask("a1", 1, 10, log, done));
+		pool.add(new TestTask("b", 1, 20, log, done));
+		pool.add(new TestTask("a2", 1, 10, log, done));
+		pool.add(new TestTask("first", -1, 1000, log, done));
+		pool.add(new TestTask("a3", 1, 10, log, done));
+
+		blocker.release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		final ArrayList<String> expected = new ArrayList<String>();
+		Collections.addAll(expected, "first", "a1", "a2", "a3", "b", "c");
+		assertEquals(expected, log);
+	}
+
+	@Test
+	public void testIsHigherPriorityThan() {
+
+		final ArrayList<String> log = new ArrayList<String>();
+		final TestTask a = new TestTask("a", 1, 50, log, null);
+		final TestTask b = new TestTask("b", 2, 0, log, null);
+		final TestTask c = new TestTask("c", 1, 40, log, null);
+
+		assertTrue(a.isHigherPriorityThan(b));
+		assertFalse(b.isHigherPriorityThan(a));
+		assertTrue(c.isHigherPriorityThan(a));
+		assertFalse(a.isHigherPriorityThan(a));
+	}
+
+	@Test
+	public void testRemoveAndUpdatePriority() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test pool");
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(48);
+
+		final BlockingTask blocker = block(pool);
+
+		final ArrayList<TestTask> tasks = new ArrayList<TestTask>();
+
+		for(int i = 0; i < 50; i++) {
+			final TestTask task = new TestTask("t" + i, 10, i, log, done);
+			tasks.add(task);
+			pool.add(task);
+		}
+
+		assertTrue(pool.remove(tasks.get(20)));
+		assertTrue(pool.remove(tasks.get(0)));
+		assertFalse(pool.remove(tasks.get(0)));
+
+		tasks.get(49).primary = 0;
+		pool.updatePriority(tasks.get(49));
+
+		tasks.get(1).primary = 20;
+		pool.updatePriority(tasks.get(1));
+
+		assertEquals(48, pool.getStats().queued);
+
+		blocker.release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		assertEquals(48, log.size());
+		assertEquals("t49", log.get(0));
+		assertEquals("t2", log.get(1));
+		assertEquals("t1", log.get(47));
+		assertFalse(log.contains("t0"));
+		assertFalse(log.contains("t20"));
+
+		// A task which has already run can't be removed
+		assertFalse(pool.remove(tasks.get(5)));
+	}
+
+	@Test
+	public void testStats() throws InterruptedException {
+
+		final PrioritisedCachedThreadPool pool = new PrioritisedCachedThreadPool(1, "Test pool");
+		final List<String> log = Collections.synchronizedList(new ArrayList<String>());
+		final CountDownLatch done = new CountDownLatch(10);
+
+		final BlockingTask blocker = block(pool);
+
+		for(int i = 0; i < 10; i++) {
+			pool.add(new TestTask("t" + i, 0, 0, log, done));
+		}
+
+		Thread.sleep(20);
+		blocker.release.countDown();
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+
+		// The last task may not have been counted yet
+		Thread.sleep(50);
+
+		final PrioritisedCachedThreadPool.Stats stats = pool.getStats();
+		assertEquals(0, stats.queued);
+		assertEquals(10, stats.maxQueued);
+		assertEquals(11, stats.tasksRun);
+		assertTrue(stats.maxWaitNanos >= TimeUnit.MILLISECONDS.toNanos(20));
+		assertTrue(stats.maxRunNanos >= TimeUnit.MILLISECONDS.toNanos(20));
+	}
+
+	// The order the queue should produce: priority, then the order in which tasks were added
+	private static TestTask findFirst(final List<TestTask> tasks) {
+
+		TestTask result = null;
+
+		for(final TestTask task : tasks) {
+			if(result == null || task.isHigherPriorityThan(result)) {
+				result = task;
+			}
+		}
+
+		return result;
+	}
+
+	@Test
+	public void testTaskQueueRandomOperations() {
+
+		final Random random = new Random(2);
+		final PrioritisedCachedThreadPool.TaskQueue queue = new PrioritisedCachedThreadPool.TaskQueue();
+		final ArrayList<TestTask> expected = new ArrayList<TestTask>();
+
+		for(int i = 0; i < 20000; i++) {
+
+			final int op = random.nextInt(10);
+
+			if(op < 5 || expected.isEmpty()) {
+				final TestTask task = new TestTask("t" + i, random.nextInt(4), random.nextInt(4), null, null);
+				queue.add(task);
+				expected.add(task);
+
+			} else if(op < 7) {
+				assertTrue(findFirst(expected) == queue.poll());
+				expected.remove(findFirst(expected));
+
+			} else if(op < 8) {
+				final TestTask task = expected.remove(random.nextInt(expected.size()));
+				assertTrue(queue.remove(task));
+				assertFalse(queue.contains(task));
+
+			} else {
+				// Reprioritised tasks keep their place among tasks of the same priority
+				final TestTask task = expected.get(random.nextInt(expected.size()));
+				task.primary = random.nextInt(4);
+				assertTrue(queue.updatePriority(task));
+			}
+
+			assertEquals(expected.size(), queue.size());
+			assertTrue(findFirst(expected) == queue.peek());
+		}
+	}
+
+	@Test
+	public void testTaskQueueReprioritise() {
+
+		final PrioritisedCachedThreadPool.TaskQueue queue = new PrioritisedCachedThreadPool.TaskQueue();
+		final ArrayList<TestTask> precaches = new ArrayList<TestTask>();
+
+		for(int i = 0; i < 100; i++) {
+			final TestTask task = new TestTask("precache" + i, 500, 0, null, null);
+			precaches.add(task);
+			queue.add(task);
+		}
+
+		final TestTask other = new TestTask("other", -300, 0, null, null);
+		queue.add(other);
+
+		// The user opens the post that the 50th precache is for
+		precaches.get(50).primary = -300;
+		assertTrue(queue.updatePriority(precaches.get(50)));
+
+		assertTrue(queue.poll() == precaches.get(50));
+		assertTrue(queue.poll() == other);
+
+		for(int i = 0; i < 100; i++) {
+			if(i != 50) assertTrue(queue.poll() == precaches.get(i));
+		}
+
+		assertTrue(queue.isEmpty());
+		assertFalse(queue.updatePriority(other));
+		assertFalse(queue.remove(other));
+	}
+}
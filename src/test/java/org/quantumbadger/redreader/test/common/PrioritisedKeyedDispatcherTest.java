@@ -0,0 +1,214 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.common.PrioritisedKeyedDispatcher;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PrioritisedKeyedDispatcherTest {
+
+	private static final int REQUEST_COUNT = 1000;
+
+	private static final class FakeRequest {
+
+		private int priority;
+		private final String url;
+		private final long workNanos;
+		private final int index;
+
+		private long queuedAt, startedAt;
+
+		private FakeRequest(final int priority, final String url, final long workNanos, final int index) {
+			this.priority = priority;
+			this.url = url;
+			this.workNanos = workNanos;
+			this.index = index;
+		}
+	}
+
+	private abstract static class FakeRequestDispatcher extends PrioritisedKeyedDispatcher<String, FakeRequest> {
+
+		public FakeRequestDispatcher(final int threads) {
+			super(threads, "Test dispatcher");
+		}
+
+		@Override
+		protected String getKey(final FakeRequest item) {
+			return item.url;
+		}
+
+		@Override
+		protected int getPrimaryPriority(final FakeRequest item) {
+			return item.priority;
+		}
+
+		@Override
+		protected int getSecondaryPriority(final FakeRequest item) {
+			return 0;
+		}
+
+		@Override
+		protected void onHandlerException(final FakeRequest item, final Throwable t) {
+			throw new RuntimeException(t);
+		}
+	}
+
+	private static final class TestDispatcher extends FakeRequestDispatcher {
+
+		private final CountDownLatch mRemaining;
+		private final ConcurrentHashMap<String, Boolean> mInProgress = new ConcurrentHashMap<String, Boolean>();
+		private volatile boolean mOverlapDetected = false;
+
+		public TestDispatcher(final int threads, final CountDownLatch remaining) {
+			super(threads);
+			mRemaining = remaining;
+		}
+
+		@Override
+		protected void handle(final FakeRequest item) {
+
+			item.startedAt = System.nanoTime();
+
+			if(mInProgress.put(item.url, true) != null) {
+				mOverlapDetected = true;
+			}
+
+			final long end = System.nanoTime() + item.workNanos;
+			while(System.nanoTime() < end) {
+				Thread.yield();
+			}
+
+			mInProgress.remove(item.url);
+			mRemaining.countDown();
+		}
+	}
+
+	// Mostly fast cache hits, with the occasional slow database lookup and many repeated URLs
+	private static List<FakeRequest> generateRequests() {
+
+		final Random random = new Random(1234);
+		final ArrayList<FakeRequest> result = new ArrayList<FakeRequest>(REQUEST_COUNT);
+
+		for(int i = 0; i < REQUEST_COUNT; i++) {
+
+			final long workNanos = random.nextInt(20) == 0
+					? TimeUnit.MILLISECONDS.toNanos(10)
+					: TimeUnit.MICROSECONDS.toNanos(100);
+
+			result.add(new FakeRequest(random.nextInt(5) - 2, "url" + random.nextInt(200), workNanos, i));
+		}
+
+		return result;
+	}
+
+	// Returns the sorted queueing latencies
+	static long[] runDispatch(final int threads) throws InterruptedException {
+
+		final List<FakeRequest> requests = generateRequests();
+		final CountDownLatch remaining = new CountDownLatch(requests.size());
+		final TestDispatcher dispatcher = new TestDispatcher(threads, remaining);
+
+		for(final FakeRequest request : requests) {
+			request.queuedAt = System.nanoTime();
+			dispatcher.add(request);
+		}
+
+		assertTrue(remaining.await(60, TimeUnit.SECONDS));
+		assertTrue("Two requests for the same URL were handled concurrently", !dispatcher.mOverlapDetected);
+
+		final long[] latencies = new long[requests.size()];
+
+		for(int i = 0; i < requests.size(); i++) {
+			latencies[i] = requests.get(i).startedAt - requests.get(i).queuedAt;
+		}
+
+		Arrays.sort(latencies);
+		return latencies;
+	}
+
+	@Test
+	public void testSameKeyNeverHandledConcurrently() throws InterruptedException {
+		assertEquals(REQUEST_COUNT, runDispatch(4).length);
+	}
+
+	// Handles items one at a time, once the blocker is released, recording the order
+	private static FakeRequestDispatcher orderRecordingDispatcher(
+			final CountDownLatch blocker, final CountDownLatch remaining, final List<Integer> order) {
+
+		return new FakeRequestDispatcher(1) {
+
+			@Override
+			protected void handle(final FakeRequest item) {
+
+				try {
+					blocker.await();
+				} catch(InterruptedException e) {
+					throw new RuntimeException(e);
+				}
+
+				order.add(item.index);
+				remaining.countDown();
+			}
+		};
+	}
+
+	@Test
+	public void testSameKeyHandledInPriorityOrder() throws InterruptedException {
+
+		final CountDownLatch remaining = new CountDownLatch(3);
+		final CountDownLatch blocker = new CountDownLatch(1);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+		final FakeRequestDispatcher dispatcher = orderRecordingDispatcher(blocker, remaining, order);
+
+		dispatcher.add(new FakeRequest(0, "a", 0, 0));
+		Thread.sleep(50);
+
+		dispatcher.add(new FakeRequest(5, "a", 0, 1));
+		dispatcher.add(new FakeRequest(1, "a", 0, 2));
+
+		blocker.countDown();
+
+		assertTrue(remaining.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(0, 2, 1), order);
+	}
+
+	@Test
+	public void testPriorityChangesOnlyTakeEffectThroughUpdate() throws InterruptedException {
+
+		final CountDownLatch remaining = new CountDownLatch(4);
+		final CountDownLatch blocker = new CountDownLatch(1);
+		final List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+
+		final FakeRequestDispatcher dispatcher = orderRecordingDispatcher(blocker, remaining, order);
+
+		// Occupies the only worker until the others are queued
+		dispatcher.add(new FakeRequest(0, "a", 0, 0));
+		Thread.sleep(50);
+
+		final FakeRequest first = new FakeRequest(1, "b", 0, 1);
+		final FakeRequest second = new FakeRequest(2, "c", 0, 2);
+		final FakeRequest third = new FakeRequest(3, "d", 0, 3);
+
+		dispatcher.add(first);
+		dispatcher.add(second);
+		dispatcher.add(third);
+
+		// Changing a priority without telling the dispatcher has no effect, and doesn't corrupt the queue
+		first.priority = 10;
+
+		third.priority = 0;
+		dispatcher.updatePriority(third);
+
+		blocker.countDown();
+
+		assertTrue(remaining.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(0, 3, 1, 2), order);
+	}
+}
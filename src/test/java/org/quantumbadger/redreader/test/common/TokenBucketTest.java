@@ -0,0 +1,132 @@
+package org.quantumbadger.redreader.test.common;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.common.TokenBucket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TokenBucketTest {
+
+	private static final class FakeClock implements TokenBucket.Clock {
+
+		private long mNow = 1000000;
+
+		public long currentTimeMillis() {
+			return mNow;
+		}
+
+		private void advance(final long millis) {
+			mNow += millis;
+		}
+	}
+
+	@Test
+	public void testBurstThenRefill() {
+
+		final FakeClock clock = new FakeClock();
+		final TokenBucket bucket = new TokenBucket(clock, 5, 1000, 2);
+
+		for(int i = 0; i < 5; i++) {
+			assertEquals(0, bucket.tryAcquire(false));
+		}
+
+		assertEquals(1000, bucket.tryAcquire(false));
+
+		clock.advance(400);
+		assertEquals(600, bucket.tryAcquire(false));
+
+		clock.advance(600);
+		assertEquals(0, bucket.tryAcquire(false));
+		assertEquals(1000, bucket.tryAcquire(false));
+
+		// Refills stop at the capacity
+		clock.advance(60000);
+
+		for(int i = 0; i < 5; i++) {
+			assertEquals(0, bucket.tryAcquire(false));
+		}
+
+		assertEquals(1000, bucket.tryAcquire(false));
+	}
+
+	@Test
+	public void testBackgroundLeavesReserve() {
+
+		final FakeClock clock = new FakeClock();
+		final TokenBucket bucket = new TokenBucket(clock, 5, 1000, 2);
+
+		for(int i = 0; i < 3; i++) {
+			assertEquals(0, bucket.tryAcquire(true));
+		}
+
+		// Two tokens are left, but only for interactive requests
+		assertEquals(1000, bucket.tryAcquire(true));
+		assertEquals(0, bucket.tryAcquire(false));
+
+		// With one token left, a background request needs two more
+		assertEquals(2000, bucket.tryAcquire(true));
+
+		clock.advance(1000);
+		assertEquals(1000, bucket.tryAcquire(true));
+		clock.advance(1000);
+		assertEquals(0, bucket.tryAcquire(true));
+	}
+
+	@Test
+	public void testServerLimit() {
+
+		final FakeClock clock = new FakeClock();
+		final TokenBucket bucket = new TokenBucket(clock, 5, 1000, 2);
+
+		bucket.onServerLimit(1, 30000);
+
+		assertEquals(30000, bucket.tryAcquire(true));
+		assertEquals(0, bucket.tryAcquire(false));
+		assertEquals(30000, bucket.tryAcquire(false));
+
+		clock.advance(10000);
+		assertEquals(20000, bucket.tryAcquire(false));
+
+		// Once the server's window resets, only the bucket applies
+		clock.advance(20000);
+		assertEquals(0, bucket.tryAcquire(true));
+
+		// A plentiful server budget doesn't allow more than the bucket
+		bucket.onServerLimit(600, 600000);
+
+		for(int i = 0; i < 4; i++) {
+			assertEquals(0, bucket.tryAcquire(false));
+		}
+
+		assertTrue(bucket.tryAcquire(false) > 0);
+	}
+
+	// A minute of precaching requests, queued faster than the bucket allows, with the user opening a thread
+	// part way through
+	@Test
+	public void testInteractiveNotDelayedByPrecache() {
+
+		final FakeClock clock = new FakeClock();
+		final TokenBucket bucket = new TokenBucket(clock, 5, 1000, 2);
+
+		int precachesSent = 0;
+
+		for(int t = 0; t < 60000; t += 100) {
+
+			if(t == 30000) {
+				assertEquals(0, bucket.tryAcquire(false));
+			}
+
+			if(bucket.tryAcquire(true) == 0) {
+				precachesSent++;
+			}
+
+			clock.advance(100);
+		}
+
+		// One a second, plus the initial burst, minus the token the user took
+		assertTrue(precachesSent <= 63);
+		assertTrue(precachesSent >= 58);
+	}
+}
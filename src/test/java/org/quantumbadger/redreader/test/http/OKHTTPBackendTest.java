@@ -0,0 +1,209 @@
+package org.quantumbadger.redreader.test.http;
+
+import com.squareup.okhttp.OkHttpClient;
+import com.squareup.okhttp.Request;
+import com.squareup.okhttp.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.quantumbadger.redreader.cache.RequestFailureType;
+import org.quantumbadger.redreader.http.HTTPBackend;
+import org.quantumbadger.redreader.http.okhttp.OKHTTPBackend;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OKHTTPBackendTest {
+
+	private static final byte[] BODY = "{\"kind\": \"Listing\", \"data\": {\"children\": []}}".getBytes();
+
+	private ServerSocket mServer;
+	private String mUrl;
+
+	// Minimal keep-alive HTTP/1.1 server which writes each response in a single packet
+	@Before
+	public void startServer() throws IOException {
+
+		mServer = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+		final byte[] header = ("HTTP/1.1 200 OK\r\n"
+				+ "Content-Type: application/json\r\n"
+				+ "X-Ratelimit-Remaining: 598.0\r\n"
+				+ "X-Ratelimit-Reset: 412\r\n"
+				+ "Content-Length: " + BODY.length + "\r\n\r\n").getBytes();
+
+		final byte[] response = new byte[header.length + BODY.length];
+		System.arraycopy(header, 0, response, 0, header.length);
+		System.arraycopy(BODY, 0, response, header.length, BODY.length);
+
+		final Thread serverThread = new Thread("Loopback server") {
+			@Override
+			public void run() {
+				while(!mServer.isClosed()) {
+
+					final Socket socket;
+
+					try {
+						socket = mServer.accept();
+					} catch(IOException e) {
+						return;
+					}
+
+					new Thread("Loopback connection") {
+						@Override
+						public void run() {
+							try {
+								socket.setTcpNoDelay(true);
+
+								final InputStream is = socket.getInputStream();
+								final OutputStream os = socket.getOutputStream();
+
+								int matched = 0, b;
+
+								while((b = is.read()) >= 0) {
+
+									// Wait for the blank line at the end of the request headers
+									if(b == (matched % 2 == 0 ? '\r' : '\n')) {
+										matched++;
+									} else {
+										matched = (b == '\r') ? 1 : 0;
+									}
+
+									if(matched == 4) {
+										os.write(response);
+										os.flush();
+										matched = 0;
+									}
+								}
+
+								socket.close();
+
+							} catch(IOException e) {
+								// Client went away
+							}
+						}
+					}.start();
+				}
+			}
+		};
+
+		// Kept-alive connections must not stop the JVM from exiting. The connection threads inherit this.
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		mUrl = "http://127.0.0.1:" + mServer.getLocalPort() + "/r/all/.json";
+	}
+
+	@After
+	public void stopServer() throws IOException {
+		mServer.close();
+	}
+
+	private static byte[] readFully(final InputStream is) throws IOException {
+
+		final ByteArrayOutputStream result = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+
+		int bytesRead;
+		while((bytesRead = is.read(buf)) > 0) {
+			result.write(buf, 0, bytesRead);
+		}
+
+		is.close();
+		return result.toByteArray();
+	}
+
+	// The previous behaviour: a new client for every request
+	void fetchWithNewClient() throws IOException {
+
+		final OkHttpClient client = new OkHttpClient();
+		client.setFollowRedirects(true);
+		client.setFollowSslRedirects(true);
+		client.setConnectTimeout(15000, TimeUnit.SECONDS);
+		client.setReadTimeout(10000, TimeUnit.SECONDS);
+		client.setRetryOnConnectionFailure(true);
+
+		final Response response = client.newCall(new Request.Builder().url(mUrl).get().build()).execute();
+		assertEquals(BODY.length, readFully(response.body().byteStream()).length);
+	}
+
+	void fetchWithSharedBackend() throws IOException {
+
+		final AtomicReference<byte[]> result = new AtomicReference<byte[]>();
+
+		OKHTTPBackend.getHttpBackend()
+				.prepareRequest(null, new HTTPBackend.RequestDetails(URI.create(mUrl), null))
+				.executeInThisThread(new HTTPBackend.Listener() {
+
+					@Override
+					public void onError(final RequestFailureType failureType, final Throwable exception, final Integer httpStatus) {
+						throw new RuntimeException("Request failed: " + failureType, exception);
+					}
+
+					@Override
+					public void onSuccess(final String mimetype, final Long bodyBytes, final InputStream body) {
+						try {
+							result.set(readFully(body));
+						} catch(IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				});
+
+		assertEquals(BODY.length, result.get().length);
+	}
+
+	@Test
+	public void testResponseHeaders() {
+
+		final HTTPBackend.Request request = OKHTTPBackend.getHttpBackend()
+				.prepareRequest(null, new HTTPBackend.RequestDetails(URI.create(mUrl), null));
+
+		assertNull(request.getResponseHeader("X-Ratelimit-Remaining"));
+
+		final AtomicReference<String> remaining = new AtomicReference<String>();
+
+		request.executeInThisThread(new HTTPBackend.Listener() {
+
+			@Override
+			public void onError(final RequestFailureType failureType, final Throwable exception, final Integer httpStatus) {
+				throw new RuntimeException("Request failed: " + failureType, exception);
+			}
+
+			@Override
+			public void onSuccess(final String mimetype, final Long bodyBytes, final InputStream body) {
+
+				// Available before the body has been read
+				remaining.set(request.getResponseHeader("X-Ratelimit-Remaining"));
+
+				try {
+					readFully(body);
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		});
+
+		assertEquals("598.0", remaining.get());
+		assertEquals("412", request.getResponseHeader("X-Ratelimit-Reset"));
+		assertNull(request.getResponseHeader("X-Missing"));
+	}
+
+	@Test
+	public void testSharedBackendServesRepeatedRequests() throws IOException {
+		for(int i = 0; i < 20; i++) {
+			fetchWithSharedBackend();
+		}
+	}
+}
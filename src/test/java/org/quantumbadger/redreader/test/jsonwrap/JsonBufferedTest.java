@@ -0,0 +1,427 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBuffered;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JsonBufferedTest {
+
+	// Produces a comment page in the same shape as reddit's: the post listing, then the comment tree
+	static byte[] generateCommentPage(final int topLevelComments, final int depth, final long seed) {
+
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append("[{\"kind\": \"Listing\", \"data\": {\"children\": [{\"kind\": \"t3\", \"data\": {")
+				.append("\"id\": \"abc123\", \"title\": \"A post\", \"author\": \"poster\", \"score\": 1234, ")
+				.append("\"num_comments\": 500, \"over_18\": false, \"url\": \"https://i.imgur.com/abcdef.jpg\"}}]}}, ")
+				.append("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		for(int i = 0; i < topLevelComments; i++) {
+			if(i > 0) sb.append(", ");
+			appendComment(sb, random, depth, "c" + i);
+		}
+
+		return sb.append("]}}]").toString().getBytes();
+	}
+
+	private static void appendComment(final StringBuilder sb, final Random random, final int depth, final String id) {
+
+		sb.append("{\"kind\": \"t1\", \"data\": {")
+				.append("\"id\": \"").append(id).append("\", ")
+				.append("\"name\": \"t1_").append(id).append("\", ")
+				.append("\"author\": \"user").append(random.nextInt(200)).append("\", ")
+				.append("\"body\": \"Comment text number ").append(random.nextInt()).append(", with some more words in it\", ")
+				.append("\"body_html\": \"&lt;div class=\\\"md\\\"&gt;&lt;p&gt;Comment text&lt;/p&gt;&lt;/div&gt;\", ")
+				.append("\"score\": ").append(random.nextInt(5000) - 100).append(", ")
+				.append("\"ups\": ").append(random.nextInt(5000)).append(", ")
+				.append("\"created_utc\": ").append(1440000000 + random.nextInt(1000000)).append(".0, ")
+				.append("\"edited\": false, \"archived\": false, \"saved\": false, \"likes\": null, ")
+				.append("\"gilded\": 0, \"score_hidden\": false, \"distinguished\": null, ")
+				.append("\"author_flair_text\": null, \"author_flair_css_class\": null, ")
+				.append("\"subreddit\": \"test\", \"parent_id\": \"t3_abc123\", \"link_id\": \"t3_abc123\", ")
+				.append("\"replies\": ");
+
+		final int replyCount = depth > 0 ? random.nextInt(3) : 0;
+
+		if(replyCount == 0) {
+			sb.append("\"\"");
+
+		} else {
+			sb.append("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+			for(int i = 0; i < replyCount; i++) {
+				if(i > 0) sb.append(", ");
+				appendComment(sb, random, depth - 1, id + "_" + i);
+			}
+
+			sb.append("]}}");
+		}
+
+		sb.append("}}");
+	}
+
+	// Feeds the data in slowly, so that the reader catches up with the parser
+	private static final class TrickleInputStream extends InputStream {
+
+		private final byte[] data;
+		private int position = 0;
+
+		private TrickleInputStream(final byte[] data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return position < data.length ? data[position++] : -1;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+
+			if(position >= data.length) return -1;
+
+			if(position % 4096 == 0) {
+				try {
+					Thread.sleep(1);
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+			}
+
+			final int bytes = Math.min(Math.min(length, 256), data.length - position);
+			System.arraycopy(data, position, buffer, offset, bytes);
+			position += bytes;
+			return bytes;
+		}
+	}
+
+	// Delivers each chunk only when the test adds it, so the parser blocks after publishing each value
+	private static final class LockstepInputStream extends InputStream {
+
+		private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<byte[]>();
+		private byte[] current = new byte[0];
+		private int position = 0;
+
+		private void add(final String chunk) {
+			chunks.add(chunk.getBytes());
+		}
+
+		@Override
+		public int read() throws IOException {
+			final byte[] buffer = new byte[1];
+			return read(buffer, 0, 1) < 0 ? -1 : buffer[0];
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int length) throws IOException {
+
+			while(position >= current.length) {
+
+				try {
+					current = chunks.take();
+				} catch(InterruptedException e) {
+					throw new IOException(e);
+				}
+
+				position = 0;
+				if(current.length == 0) return -1;
+			}
+
+			final int bytes = Math.min(length, current.length - position);
+			System.arraycopy(current, position, buffer, offset, bytes);
+			position += bytes;
+			return bytes;
+		}
+	}
+
+	private interface LockstepReader {
+		void read(JsonValue value, int index) throws Exception;
+	}
+
+	// Feeds one value at a time, only sending the next once the reader has seen the last. The parser is blocked
+	// on the stream while the reader waits, so a lost wake-up leaves the reader waiting until the timeout.
+	private static void readInLockstep(final String start, final String end, final String format, final int count,
+			final LockstepReader lockstepReader) throws Exception {
+
+		final LockstepInputStream is = new LockstepInputStream();
+
+		// Padded, as the parser reads a few bytes to detect the encoding
+		is.add(start + "    ");
+
+		final JsonValue value = new JsonValue(is);
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final Thread parser = buildInBackground(value, error);
+
+		final Semaphore seen = new Semaphore(0);
+
+		final Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					for(int i = 0; i < count; i++) {
+						lockstepReader.read(value, i);
+						seen.release();
+					}
+				} catch(Throwable t) {
+					error.set(t);
+				}
+			}
+		};
+
+		reader.setDaemon(true);
+		reader.start();
+
+		for(int i = 0; i < count; i++) {
+			is.add(String.format(format, i));
+			assertTrue("Reader missed the wake-up for value " + i, seen.tryAcquire(5, TimeUnit.SECONDS));
+		}
+
+		is.add(end);
+		is.add("");
+		parser.join();
+
+		assertNull(error.get());
+	}
+
+	// Several parsers and readers at once, so that the threads are preempted at as many points as possible
+	private static void readInLockstepConcurrently(final String start, final String end, final String format,
+			final LockstepReader lockstepReader) throws Exception {
+
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		final ArrayList<Thread> threads = new ArrayList<Thread>();
+
+		for(int i = 0; i < 4; i++) {
+
+			final Thread thread = new Thread() {
+				@Override
+				public void run() {
+					try {
+						readInLockstep(start, end, format, 10000, lockstepReader);
+					} catch(Throwable t) {
+						error.compareAndSet(null, t);
+					}
+				}
+			};
+
+			threads.add(thread);
+			thread.start();
+		}
+
+		for(final Thread thread : threads) {
+			thread.join();
+		}
+
+		if(error.get() != null) throw new AssertionError(error.get());
+	}
+
+	@Test
+	public void noLostWakeUpsForArrayItems() throws Exception {
+
+		readInLockstepConcurrently("[", "0]", "%d, ", new LockstepReader() {
+			public void read(final JsonValue value, final int index) throws Exception {
+				assertEquals(index, (long)value.asArray().get(index).asLong());
+			}
+		});
+	}
+
+	@Test
+	public void noLostWakeUpsForObjectFields() throws Exception {
+
+		readInLockstepConcurrently("{", "\"end\": 0}", "\"f%1$d\": %1$d, ", new LockstepReader() {
+			public void read(final JsonValue value, final int index) throws Exception {
+				assertEquals(index, (long)value.asObject().getLong("f" + index));
+			}
+		});
+	}
+
+	static Thread buildInBackground(final JsonValue value, final AtomicReference<Throwable> error) {
+
+		final Thread thread = new Thread() {
+			@Override
+			public void run() {
+				try {
+					value.buildInThisThread();
+				} catch(Throwable t) {
+					error.set(t);
+				}
+			}
+		};
+
+		thread.start();
+		return thread;
+	}
+
+	// Walks the comment tree the way the comment listing does, returning the number of comments and a checksum
+	private static long[] consume(final JsonBufferedArray comments) throws InterruptedException, IOException {
+
+		final long[] result = new long[2];
+
+		for(final JsonValue commentValue : comments) {
+
+			final JsonBufferedObject data = commentValue.asObject().getObject("data");
+
+			result[0]++;
+			result[1] += data.getLong("score") + data.getString("author").hashCode() + data.getString("body").length();
+
+			final JsonValue replies = data.get("replies");
+
+			if(replies.getType() == JsonValue.Type.OBJECT) {
+				final long[] childResult = consume(replies.asObject().getObject("data").getArray("children"));
+				result[0] += childResult[0];
+				result[1] += childResult[1];
+			}
+		}
+
+		return result;
+	}
+
+	static long[] consumePage(final JsonValue page) throws InterruptedException, IOException {
+		return consume(page.asArray().get(1).asObject().getObject("data").getArray("children"));
+	}
+
+	@Test
+	public void concurrentReaderSeesWholeTree() throws Exception {
+
+		final byte[] data = generateCommentPage(200, 6, 1);
+
+		final JsonValue reference = new JsonValue(data);
+		reference.buildInThisThread();
+		final long[] expected = consumePage(reference);
+
+		for(int i = 0; i < 5; i++) {
+
+			final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+			final JsonValue value = new JsonValue(new TrickleInputStream(data));
+			final Thread parser = buildInBackground(value, error);
+
+			final long[] actual = consumePage(value);
+			parser.join();
+
+			assertNull(error.get());
+			assertEquals(expected[0], actual[0]);
+			assertEquals(expected[1], actual[1]);
+		}
+	}
+
+	@Test
+	public void readerWaitsForMissingFieldsUntilLoaded() throws Exception {
+
+		final JsonValue value = new JsonValue(new TrickleInputStream(generateCommentPage(50, 2, 2)));
+		final Thread parser = buildInBackground(value, new AtomicReference<Throwable>());
+
+		final JsonBufferedObject post = value.asArray().get(0).asObject().getObject("data").getArray("children")
+				.get(0).asObject().getObject("data");
+
+		assertNull(post.get("no_such_field"));
+		assertEquals(JsonBuffered.Status.LOADED, post.getStatus());
+		assertEquals("poster", post.getString("author"));
+
+		parser.join();
+	}
+
+	@Test
+	public void readerSeesFailure() throws Exception {
+
+		final byte[] data = generateCommentPage(50, 2, 3);
+		final byte[] truncated = new byte[data.length / 2];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+
+		final JsonValue value = new JsonValue(new TrickleInputStream(truncated));
+		final Thread parser = buildInBackground(value, new AtomicReference<Throwable>());
+
+		boolean failed = false;
+
+		try {
+			consumePage(value);
+		} catch(Exception e) {
+			failed = true;
+		}
+
+		parser.join();
+
+		assertTrue(failed);
+		assertEquals(JsonBuffered.Status.FAILED, value.asArray().getStatus());
+	}
+
+	private static JsonBufferedObject parseObject(final String json) throws IOException {
+		final JsonValue value = new JsonValue(json);
+		value.buildInThisThread();
+		return value.asObject();
+	}
+
+	private static ArrayList<String> keys(final JsonBufferedObject object) {
+
+		final ArrayList<String> result = new ArrayList<String>();
+
+		for(final Map.Entry<String, JsonValue> entry : object) {
+			result.add(entry.getKey() + "=" + entry.getValue().asString());
+		}
+
+		return result;
+	}
+
+	@Test
+	public void fieldsAreIteratedInReceivedOrder() throws Exception {
+
+		final JsonBufferedObject object = parseObject(
+				"{\"k\": 1, \"j\": 2, \"i\": 3, \"h\": 4, \"g\": 5, \"f\": 6, \"e\": 7, \"d\": 8, \"c\": 9, \"b\": 10, \"a\": 11}");
+
+		assertEquals(Arrays.asList("k=1", "j=2", "i=3", "h=4", "g=5", "f=6", "e=7", "d=8", "c=9", "b=10", "a=11"), keys(object));
+
+		assertEquals(11L, (long)object.getLong("a"));
+		assertEquals(1L, (long)object.getLong("k"));
+		assertNull(object.get("z"));
+	}
+
+	@Test
+	public void repeatedFieldKeepsLastValue() throws Exception {
+
+		final JsonValue value = new JsonValue("[{\"a\": 1, \"b\": 2, \"a\": 3}, {\"a\": 4, \"b\": 5, \"a\": 6}]");
+		value.buildInThisThread();
+
+		final JsonBufferedObject first = value.asArray().get(0).asObject();
+		final JsonBufferedObject second = value.asArray().get(1).asObject();
+
+		assertEquals(3L, (long)first.getLong("a"));
+		assertEquals(Arrays.asList("b=2", "a=3"), keys(first));
+
+		assertEquals(6L, (long)second.getLong("a"));
+		assertEquals(Arrays.asList("b=5", "a=6"), keys(second));
+	}
+
+	@Test
+	public void repeatedStringsAreShared() throws Exception {
+
+		final JsonValue value = new JsonValue("[{\"author\": \"someone\", \"body\": \"text\"}, {\"author\": \"someone\", \"body\": \"text\"}]");
+		value.buildInThisThread();
+
+		final JsonBufferedObject first = value.asArray().get(0).asObject();
+		final JsonBufferedObject second = value.asArray().get(1).asObject();
+
+		assertEquals("someone", first.getString("author"));
+		assertSame(first.getString("author"), second.getString("author"));
+
+		// Only within a single parse
+		assertNotSame(first.getString("author"), parseObject("{\"author\": \"someone\"}").getString("author"));
+	}
+}
@@ -0,0 +1,231 @@
+package org.quantumbadger.redreader.test.jsonwrap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedArray;
+import org.quantumbadger.redreader.jsonwrap.JsonStreamReader;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMessage;
+import org.quantumbadger.redreader.reddit.things.RedditSubreddit;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.junit.Assume.assumeTrue;
+
+public class JsonObjectBinderTest {
+
+	private static final int COMMENT_COUNT = 10000;
+
+	static byte[] generateComments(final int count) {
+
+		final Random random = new Random(1);
+		final StringBuilder sb = new StringBuilder("[");
+
+		for(int i = 0; i < count; i++) {
+
+			if(i > 0) sb.append(", ");
+
+			sb.append("{\"kind\": \"t1\", \"data\": {")
+					.append("\"id\": \"c").append(i).append("\", ")
+					.append("\"name\": \"t1_c").append(i).append("\", ")
+					.append("\"author\": \"user").append(random.nextInt(200)).append("\", ")
+					.append("\"body\": \"Comment text number ").append(random.nextInt()).append("\", ")
+					.append("\"body_html\": \"&lt;div class=\\\"md\\\"&gt;&lt;p&gt;Comment text&lt;/p&gt;&lt;/div&gt;\", ")
+					.append("\"ups\": ").append(random.nextInt(5000)).append(", ")
+					.append("\"downs\": 0, ")
+					.append("\"gilded\": ").append(random.nextInt(2)).append(", ")
+					.append("\"created\": ").append(1440000000 + i).append(".0, ")
+					.append("\"created_utc\": ").append(1440000000 + i).append(".0, ")
+					.append("\"edited\": ").append(i % 10 == 0 ? "1440001234.0" : "false").append(", ")
+					.append("\"archived\": false, \"saved\": false, \"score_hidden\": false, ")
+					.append("\"likes\": ").append(i % 3 == 0 ? "true" : "null").append(", ")
+					.append("\"distinguished\": null, \"author_flair_text\": null, \"author_flair_css_class\": null, ")
+					.append("\"subreddit\": \"test\", \"subreddit_id\": \"t5_abc\", ")
+					.append("\"parent_id\": \"t3_abc123\", \"link_id\": \"t3_abc123\", ")
+					.append("\"replies\": \"\"}}");
+		}
+
+		return sb.append("]").toString().getBytes();
+	}
+
+	static JsonValue parse(final byte[] data) throws Exception {
+		final JsonValue value = new JsonValue(data);
+		value.buildInThisThread();
+		return value;
+	}
+
+	@Test
+	public void bindsComment() throws Exception {
+
+		final JsonBufferedArray comments = parse(generateComments(20)).asArray();
+
+		final RedditThing thing = comments.get(10).asObject(RedditThing.class);
+		assertEquals(RedditThing.Kind.COMMENT, thing.getKind());
+
+		final RedditComment comment = thing.asComment();
+
+		assertEquals("c10", comment.id);
+		assertEquals("t1_c10", comment.name);
+		assertEquals("test", comment.subreddit);
+		assertEquals(1440000010L, comment.created_utc);
+		assertEquals(0, comment.downs);
+		assertEquals(Long.valueOf(1440001234L), comment.edited);
+		assertEquals(Boolean.FALSE, comment.archived);
+		assertNull(comment.likes);
+		assertNull(comment.author_flair_text);
+		assertEquals(JsonValue.Type.STRING, comment.replies.getType());
+
+		final RedditComment other = comments.get(9).asObject(RedditThing.class).asComment();
+		assertEquals(Boolean.FALSE, other.edited);
+		assertEquals(Boolean.TRUE, other.likes);
+	}
+
+	@Test
+	public void bindsPrefixedAndNullableFields() throws Exception {
+
+		final RedditMessage message = parse(("{\"author\": \"someone\", \"new\": true, \"was_comment\": false, "
+				+ "\"created_utc\": 1440000000.0, \"replies\": \"\"}").getBytes()).asObject(RedditMessage.class);
+
+		assertEquals("someone", message.author);
+		assertTrue(message._json_new);
+		assertFalse(message.was_comment);
+		assertEquals(1440000000L, message.created_utc);
+		assertNull(message.subject);
+
+		final RedditSubreddit subreddit = parse(("{\"display_name\": \"test\", \"subscribers\": 12345, "
+				+ "\"accounts_active\": null}").getBytes()).asObject(RedditSubreddit.class);
+
+		assertEquals("test", subreddit.display_name);
+		assertEquals(Integer.valueOf(12345), subreddit.subscribers);
+		assertNull(subreddit.accounts_active);
+	}
+
+	@Test
+	public void numberTypesAreUnchanged() throws Exception {
+
+		final JsonBufferedArray values = parse("[1, 1.0, 1.5, -2, 1e3, 12345678901, true, null, \"7\"]".getBytes()).asArray();
+
+		assertEquals(JsonValue.Type.INTEGER, values.get(0).getType());
+		assertEquals("1", values.get(0).asString());
+		assertEquals(1.0, values.get(0).asDouble(), 0);
+
+		// A float with no fractional part is stored as an integer
+		assertEquals(JsonValue.Type.INTEGER, values.get(1).getType());
+		assertEquals("1", values.get(1).asString());
+
+		assertEquals(JsonValue.Type.FLOAT, values.get(2).getType());
+		assertEquals("1.5", values.get(2).asString());
+		assertEquals(Long.valueOf(1), values.get(2).asLong());
+		assertEquals(1.5, values.get(2).doubleValue(), 0);
+
+		assertEquals(-2L, values.get(3).longValue());
+		assertEquals(JsonValue.Type.INTEGER, values.get(4).getType());
+		assertEquals(1000L, values.get(4).longValue());
+		assertEquals(12345678901L, values.get(5).longValue());
+
+		assertEquals(JsonValue.Type.BOOLEAN, values.get(6).getType());
+		assertEquals(Boolean.TRUE, values.get(6).asBoolean());
+		assertEquals("true", values.get(6).asString());
+
+		assertNull(values.get(7).asLong());
+		assertNull(values.get(7).asBoolean());
+
+		assertEquals(Long.valueOf(7), values.get(8).asLong());
+		assertEquals(7.0, values.get(8).doubleValue(), 0);
+
+		try {
+			values.get(0).asObject();
+			fail();
+		} catch(ClassCastException e) {
+			// Expected
+		}
+
+		try {
+			values.get(6).longValue();
+			fail();
+		} catch(ClassCastException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void streamedIntFieldsNarrowLikeTheTree() throws Exception {
+
+		final byte[] data = "{\"ups\": 4294967297, \"downs\": -2147483649, \"gilded\": 3}".getBytes();
+
+		final NumericThing fromTree = new NumericThing();
+		parse(data).asObject().populateObject(fromTree);
+
+		final JsonParser jp = JsonStreamReader.createParser(new ByteArrayInputStream(data));
+		jp.nextToken();
+		final NumericThing streamed = JsonStreamReader.readObject(jp, NumericThing.class, null);
+
+		assertEquals(1, fromTree.ups);
+		assertEquals(fromTree.ups, streamed.ups);
+		assertEquals(fromTree.downs, streamed.downs);
+		assertEquals(3, streamed.gilded);
+	}
+
+	public static final class NumericThing {
+		public long created_utc;
+		public int ups, downs, gilded;
+		public double upvote_ratio;
+		public boolean archived, saved;
+	}
+
+	private static long allocatedBytes() {
+		final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Test
+	public void bindingPrimitivesDoesNotAllocate() throws Exception {
+
+		assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+
+		final Random random = new Random(2);
+		final StringBuilder sb = new StringBuilder("[");
+
+		for(int i = 0; i < COMMENT_COUNT; i++) {
+			if(i > 0) sb.append(", ");
+			sb.append("{\"created_utc\": ").append(1440000000 + i).append(".0, ")
+					.append("\"ups\": ").append(random.nextInt(100000)).append(", \"downs\": 0, ")
+					.append("\"gilded\": ").append(random.nextInt(3)).append(", ")
+					.append("\"upvote_ratio\": 0.").append(random.nextInt(1000)).append(", ")
+					.append("\"archived\": false, \"saved\": ").append(i % 2 == 0).append("}");
+		}
+
+		final JsonBufferedArray things = parse(sb.append("]").toString().getBytes()).asArray();
+		final NumericThing target = new NumericThing();
+
+		for(int round = 0; round < 5; round++) {
+
+			final long before = allocatedBytes();
+
+			for(int i = 0; i < COMMENT_COUNT; i++) {
+				things.get(i).asObject().populateObject(target);
+			}
+
+			final long allocated = allocatedBytes() - before;
+
+			// Boxing a single field of each object would allocate at least 16 bytes per object. The
+			// first round also loads classes, and the JIT may allocate a little in any round.
+			if(round > 0) {
+				assertTrue(allocated < COMMENT_COUNT * 8);
+			}
+		}
+
+		assertEquals(1440000000L + COMMENT_COUNT - 1, target.created_utc);
+		assertFalse(target.saved);
+	}
+}
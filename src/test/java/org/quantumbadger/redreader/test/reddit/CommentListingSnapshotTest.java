@@ -0,0 +1,260 @@
+package org.quantumbadger.redreader.test.reddit;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.CommentListingSnapshot;
+import org.quantumbadger.redreader.reddit.RedditListingParser;
+import org.quantumbadger.redreader.reddit.prepared.markdown.MarkdownParser;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CommentListingSnapshotTest {
+
+	private static final String[] BODIES = {
+			"A plain comment, with a few words in it",
+			"Some **bold** text, some *italic* text, and [a link](http://example.com/page)",
+			"> Quoting the parent\\n\\nAnd replying to it with `some code`",
+			"* First item\\n* Second item\\n* Third item with ~~strikethrough~~",
+			"Paragraph one &amp; more.\\n\\nParagraph two, with a ^superscript and a /r/subreddit link",
+			"Non-ASCII text: caf\\u00e9, \\u65e5\\u672c\\u8a9e and an emoji \\ud83d\\ude00"
+	};
+
+	private static void appendComment(final StringBuilder sb, final Random random, final int depth, final String id) {
+
+		sb.append("{\"kind\": \"t1\", \"data\": {")
+				.append("\"id\": \"").append(id).append("\", ")
+				.append("\"name\": \"t1_").append(id).append("\", ")
+				.append("\"author\": \"user").append(random.nextInt(200)).append("\", ")
+				.append("\"body\": \"").append(BODIES[random.nextInt(BODIES.length)]).append("\", ")
+				.append("\"body_html\": \"&lt;div class=\\\"md\\\"&gt;&lt;p&gt;Comment text&lt;/p&gt;&lt;/div&gt;\", ")
+				.append("\"ups\": ").append(random.nextInt(5000)).append(", ")
+				.append("\"created_utc\": ").append(1440000000 + random.nextInt(1000000)).append(", ")
+				.append("\"edited\": ").append(random.nextBoolean() ? "false" : "1440000123").append(", ")
+				.append("\"archived\": false, \"saved\": false, \"likes\": null, ")
+				.append("\"gilded\": 0, \"score_hidden\": false, \"distinguished\": null, ")
+				.append("\"subreddit\": \"test\", \"parent_id\": \"t3_abc123\", \"link_id\": \"t3_abc123\", ")
+				.append("\"replies\": ");
+
+		final int replyCount = depth > 0 ? random.nextInt(3) : 0;
+
+		if(replyCount == 0) {
+			sb.append("\"\"");
+
+		} else {
+			sb.append("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+			for(int i = 0; i < replyCount; i++) {
+				if(i > 0) sb.append(", ");
+				appendComment(sb, random, depth - 1, id + "_" + i);
+			}
+
+			if(random.nextInt(4) == 0) {
+				sb.append(", {\"kind\": \"more\", \"data\": {\"count\": 3, \"parent_id\": \"t1_").append(id)
+						.append("\", \"children\": [\"y1\", \"y2\"]}}");
+			}
+
+			sb.append("]}}");
+		}
+
+		sb.append(", \"score\": ").append(random.nextInt(5000) - 100).append("}}");
+	}
+
+	static byte[] generateCommentPage(final int topLevelComments, final int depth, final long seed) {
+
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder("[{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		sb.append("{\"kind\": \"t3\", \"data\": {\"id\": \"abc123\", \"name\": \"t3_abc123\", \"title\": \"Post title\", ")
+				.append("\"author\": \"poster\", \"domain\": \"self.test\", \"subreddit\": \"test\", ")
+				.append("\"selftext\": \"Some *self* text\", \"is_self\": true, \"score\": 1234, \"num_comments\": 567, ")
+				.append("\"over_18\": false, \"created_utc\": 1440000000, \"edited\": false, \"likes\": true}}");
+
+		sb.append("]}}, {\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		for(int i = 0; i < topLevelComments; i++) {
+			if(i > 0) sb.append(", ");
+			appendComment(sb, random, depth, "c" + i);
+		}
+
+		sb.append(", {\"kind\": \"more\", \"data\": {\"count\": 52, \"parent_id\": \"t3_abc123\", \"children\": [\"x1\", \"x2\"]}}");
+
+		return sb.append("]}}]").toString().getBytes();
+	}
+
+	// Parses the JSON and comment bodies in the same way as opening the thread without a snapshot
+	static CommentListingSnapshot parseJson(final byte[] data, final boolean parseBodies) throws IOException {
+
+		final RedditPost[] post = new RedditPost[1];
+		final ArrayList<CommentListingSnapshot.Item> items = new ArrayList<CommentListingSnapshot.Item>();
+
+		RedditListingParser.parse(new ByteArrayInputStream(data), new RedditListingParser.Listener<Integer>() {
+
+			public void onPost(final RedditPost redditPost) {
+				post[0] = redditPost;
+			}
+
+			public Integer onComment(final RedditComment comment, final int replyCount, final Integer parent) {
+
+				items.add(new CommentListingSnapshot.Item(
+						parent == null ? -1 : parent,
+						comment,
+						replyCount,
+						parseBodies ? MarkdownParser.parse(StringEscapeUtils.unescapeHtml4(comment.body).toCharArray()) : null));
+
+				return items.size() - 1;
+			}
+
+			public void onMoreComments(final RedditMoreComments moreComments, final Integer parent) {
+
+				final ArrayList<String> children = new ArrayList<String>();
+
+				for(final JsonValue child : moreComments.children) {
+					children.add(child.asString());
+				}
+
+				items.add(new CommentListingSnapshot.Item(
+						parent == null ? -1 : parent,
+						moreComments.count,
+						moreComments.parent_id,
+						children));
+			}
+		});
+
+		return new CommentListingSnapshot(post[0], items);
+	}
+
+	static byte[] write(final CommentListingSnapshot snapshot) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		snapshot.writeTo(out);
+		return out.toByteArray();
+	}
+
+	static CommentListingSnapshot read(final byte[] data) throws IOException {
+		return CommentListingSnapshot.readFrom(new ByteArrayInputStream(data));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+
+		final CommentListingSnapshot original = parseJson(generateCommentPage(20, 3, 1), true);
+		final byte[] data = write(original);
+
+		final CommentListingSnapshot copy = read(data);
+		assertNotNull(copy);
+		assertEquals(original.items.size(), copy.items.size());
+
+		assertEquals("t3_abc123", copy.post.name);
+		assertEquals("Some *self* text", copy.post.selftext);
+		assertEquals(Boolean.TRUE, copy.post.likes);
+		assertEquals(1234, copy.post.score);
+		assertTrue(copy.post.is_self);
+
+		boolean sawMoreComments = false;
+
+		for(int i = 0; i < copy.items.size(); i++) {
+
+			final CommentListingSnapshot.Item expected = original.items.get(i);
+			final CommentListingSnapshot.Item actual = copy.items.get(i);
+
+			assertEquals(expected.parentIndex, actual.parentIndex);
+			assertEquals(expected.isComment(), actual.isComment());
+
+			if(actual.isComment()) {
+				assertEquals(expected.comment.name, actual.comment.name);
+				assertEquals(expected.comment.body, actual.comment.body);
+				assertEquals(expected.comment.ups, actual.comment.ups);
+				assertEquals(expected.comment.created_utc, actual.comment.created_utc);
+				assertEquals(expected.comment.edited, actual.comment.edited);
+				assertNull(actual.comment.likes);
+				assertNull(actual.comment.replies);
+				assertEquals(expected.replyCount, actual.replyCount);
+				assertNotNull(actual.body);
+
+			} else {
+				sawMoreComments = true;
+				assertEquals(expected.moreCount, actual.moreCount);
+				assertEquals(expected.moreParentId, actual.moreParentId);
+				assertEquals(expected.moreChildren, actual.moreChildren);
+			}
+		}
+
+		assertTrue(sawMoreComments);
+
+		// Everything read back, including the paragraphs of each body, is written out identically
+		assertArrayEquals(data, write(copy));
+	}
+
+	@Test
+	public void testUnpreparedComments() throws IOException {
+
+		final CommentListingSnapshot original = parseJson(generateCommentPage(5, 2, 2), false);
+		final CommentListingSnapshot copy = read(write(original));
+
+		for(final CommentListingSnapshot.Item item : copy.items) {
+			assertNull(item.body);
+		}
+
+		assertEquals(original.items.size(), copy.items.size());
+	}
+
+	@Test
+	public void testOtherVersionIgnored() throws IOException {
+
+		final byte[] data = write(parseJson(generateCommentPage(5, 2, 3), true));
+
+		// The format version follows the magic number
+		data[7]++;
+		assertNull(read(data));
+		data[7]--;
+
+		// Then the version of the markdown paragraph format
+		data[11]++;
+		assertNull(read(data));
+		data[11]--;
+
+		// Followed by the schema hashes of the post and comment fields
+		data[15]++;
+		assertNull(read(data));
+		data[15]--;
+
+		assertNotNull(read(data));
+	}
+
+	@Test
+	public void testCorruptSnapshotFails() throws IOException {
+
+		final byte[] data = write(parseJson(generateCommentPage(5, 2, 4), true));
+
+		try {
+			read(Arrays.copyOf(data, data.length / 2));
+			fail("Truncated snapshot was read");
+		} catch(IOException e) {
+			// Expected
+		}
+
+		data[0]++;
+
+		try {
+			read(data);
+			fail("Snapshot with bad magic number was read");
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+}
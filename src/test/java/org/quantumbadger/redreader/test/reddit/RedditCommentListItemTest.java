@@ -0,0 +1,70 @@
+package org.quantumbadger.redreader.test.reddit;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.reddit.RedditCommentListItem;
+import org.quantumbadger.redreader.reddit.prepared.RedditPreparedComment;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RedditCommentListItemTest {
+
+	// Records which comments were prepared. RedditPreparedComment needs a real Context, so nothing is returned.
+	private static final class RecordingPreparer implements RedditCommentListItem.CommentPreparer {
+
+		private final ArrayList<String> prepared = new ArrayList<String>();
+
+		public RedditPreparedComment prepare(final RedditComment comment, final int replyCount) {
+			prepared.add(comment.name + ":" + replyCount);
+			return null;
+		}
+	}
+
+	private static RedditComment comment(final String name) {
+		final RedditComment comment = new RedditComment();
+		comment.name = name;
+		return comment;
+	}
+
+	@Test
+	public void layoutDoesNotPrepareComments() {
+
+		final RecordingPreparer preparer = new RecordingPreparer();
+
+		final RedditCommentListItem parent = new RedditCommentListItem(null, comment("t1_a"), 1, preparer);
+		final RedditCommentListItem child = new RedditCommentListItem(parent, comment("t1_b"), 0, preparer);
+
+		// Everything the adapter needs to work out which rows to show
+		assertTrue(child.isComment());
+		assertTrue(child.isVisible());
+		assertFalse(parent.isCollapsed());
+		assertEquals(1, child.getIndent());
+
+		assertFalse(parent.isPrepared());
+		assertFalse(child.isPrepared());
+		assertTrue(preparer.prepared.isEmpty());
+	}
+
+	@Test
+	public void commentIsPreparedWhenFirstNeeded() {
+
+		final RecordingPreparer preparer = new RecordingPreparer();
+
+		final RedditCommentListItem parent = new RedditCommentListItem(null, comment("t1_a"), 3, preparer);
+		final RedditCommentListItem child = new RedditCommentListItem(parent, comment("t1_b"), 0, preparer);
+
+		child.asComment();
+
+		assertEquals(1, preparer.prepared.size());
+		assertEquals("t1_b:0", preparer.prepared.get(0));
+
+		parent.asComment();
+
+		assertEquals(2, preparer.prepared.size());
+		assertEquals("t1_a:3", preparer.prepared.get(1));
+	}
+}
@@ -0,0 +1,269 @@
+package org.quantumbadger.redreader.test.reddit;
+
+import org.junit.Test;
+import org.quantumbadger.redreader.jsonwrap.JsonBufferedObject;
+import org.quantumbadger.redreader.jsonwrap.JsonValue;
+import org.quantumbadger.redreader.reddit.RedditListingParser;
+import org.quantumbadger.redreader.reddit.things.RedditComment;
+import org.quantumbadger.redreader.reddit.things.RedditMoreComments;
+import org.quantumbadger.redreader.reddit.things.RedditPost;
+import org.quantumbadger.redreader.reddit.things.RedditThing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RedditListingParserTest {
+
+	// The fields the app never reads, which make up most of a real response
+	private static final String MEDIA_FIELDS
+			= "\"media_embed\": {\"content\": \"&lt;iframe width=\\\"600\\\" height=\\\"338\\\" src=\\\"https://www.youtube.com/embed/abc\\\"&gt;&lt;/iframe&gt;\", \"width\": 600, \"scrolling\": false, \"height\": 338}, "
+			+ "\"secure_media\": {\"type\": \"youtube.com\", \"oembed\": {\"provider_url\": \"https://www.youtube.com/\", \"title\": \"A video\", \"html\": \"&lt;iframe&gt;&lt;/iframe&gt;\", \"thumbnail_width\": 480, \"height\": 338, \"width\": 600, \"version\": \"1.0\", \"author_name\": \"someone\", \"provider_name\": \"YouTube\", \"thumbnail_url\": \"https://i.ytimg.com/vi/abc/hqdefault.jpg\", \"type\": \"video\", \"thumbnail_height\": 360}}, "
+			+ "\"preview\": {\"images\": [{\"source\": {\"url\": \"https://i.redditmedia.com/abc.jpg\", \"width\": 1920, \"height\": 1080}, \"resolutions\": ["
+			+ "{\"url\": \"https://i.redditmedia.com/abc108.jpg\", \"width\": 108, \"height\": 60}, "
+			+ "{\"url\": \"https://i.redditmedia.com/abc216.jpg\", \"width\": 216, \"height\": 121}, "
+			+ "{\"url\": \"https://i.redditmedia.com/abc320.jpg\", \"width\": 320, \"height\": 180}, "
+			+ "{\"url\": \"https://i.redditmedia.com/abc640.jpg\", \"width\": 640, \"height\": 360}], \"variants\": {}, \"id\": \"abcdef\"}]}, ";
+
+	private static void appendPost(final StringBuilder sb, final Random random, final String id) {
+
+		sb.append("{\"kind\": \"t3\", \"data\": {")
+				.append(MEDIA_FIELDS)
+				.append("\"id\": \"").append(id).append("\", ")
+				.append("\"name\": \"t3_").append(id).append("\", ")
+				.append("\"title\": \"Post title ").append(random.nextInt()).append("\", ")
+				.append("\"author\": \"poster\", \"domain\": \"youtube.com\", \"subreddit\": \"test\", ")
+				.append("\"selftext_html\": null, \"selftext\": \"\", \"is_self\": false, ")
+				.append("\"score\": ").append(random.nextInt(5000)).append(", ")
+				.append("\"num_comments\": ").append(random.nextInt(1000)).append(", ")
+				.append("\"over_18\": ").append(random.nextInt(10) == 0).append(", ")
+				.append("\"created_utc\": ").append(1440000000 + random.nextInt(1000000)).append(".0, ")
+				.append("\"edited\": false, \"likes\": null, \"url\": \"https://www.youtube.com/watch?v=abc\"}}");
+	}
+
+	private static byte[] generatePostListing(final int count, final long seed) {
+
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder("{\"kind\": \"Listing\", \"data\": {\"modhash\": \"\", \"children\": [");
+
+		for(int i = 0; i < count; i++) {
+			if(i > 0) sb.append(", ");
+			appendPost(sb, random, "p" + i);
+		}
+
+		return sb.append("], \"after\": \"t3_p").append(count - 1).append("\", \"before\": null}}").toString().getBytes();
+	}
+
+	static byte[] generateCommentPage(final int topLevelComments, final int depth, final long seed) {
+
+		final Random random = new Random(seed);
+		final StringBuilder sb = new StringBuilder("[{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		appendPost(sb, random, "abc123");
+		sb.append("]}}, {\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+		for(int i = 0; i < topLevelComments; i++) {
+			if(i > 0) sb.append(", ");
+			appendComment(sb, random, depth, "c" + i);
+		}
+
+		sb.append(", {\"kind\": \"more\", \"data\": {\"count\": 52, \"parent_id\": \"t3_abc123\", \"children\": [\"x1\", \"x2\"]}}");
+
+		return sb.append("]}}]").toString().getBytes();
+	}
+
+	private static void appendComment(final StringBuilder sb, final Random random, final int depth, final String id) {
+
+		sb.append("{\"kind\": \"t1\", \"data\": {")
+				.append("\"id\": \"").append(id).append("\", ")
+				.append("\"name\": \"t1_").append(id).append("\", ")
+				.append("\"author\": \"user").append(random.nextInt(200)).append("\", ")
+				.append("\"body\": \"Comment text number ").append(random.nextInt()).append(", with some more words in it\", ")
+				.append("\"body_html\": \"&lt;div class=\\\"md\\\"&gt;&lt;p&gt;Comment text&lt;/p&gt;&lt;/div&gt;\", ")
+				.append("\"ups\": ").append(random.nextInt(5000)).append(", ")
+				.append("\"created_utc\": ").append(1440000000 + random.nextInt(1000000)).append(".0, ")
+				.append("\"edited\": false, \"archived\": false, \"saved\": false, \"likes\": null, ")
+				.append("\"gilded\": 0, \"score_hidden\": false, \"distinguished\": null, ")
+				.append("\"user_reports\": [], \"mod_reports\": [], ")
+				.append("\"subreddit\": \"test\", \"parent_id\": \"t3_abc123\", \"link_id\": \"t3_abc123\", ")
+				.append("\"replies\": ");
+
+		final int replyCount = depth > 0 ? random.nextInt(3) : 0;
+
+		if(replyCount == 0) {
+			sb.append("\"\"");
+
+		} else {
+			sb.append("{\"kind\": \"Listing\", \"data\": {\"children\": [");
+
+			for(int i = 0; i < replyCount; i++) {
+				if(i > 0) sb.append(", ");
+				appendComment(sb, random, depth - 1, id + "_" + i);
+			}
+
+			if(random.nextInt(4) == 0) {
+				sb.append(", {\"kind\": \"more\", \"data\": {\"count\": 3, \"parent_id\": \"t1_").append(id)
+						.append("\", \"children\": [\"y1\"]}}");
+			}
+
+			sb.append("]}}");
+		}
+
+		// Reddit puts some fields after the replies
+		sb.append(", \"score\": ").append(random.nextInt(5000) - 100).append("}}");
+	}
+
+	// Records each item as "parent > item:score", in the order it was delivered
+	static final class RecordingListener implements RedditListingParser.Listener<String> {
+
+		final ArrayList<String> items = new ArrayList<String>();
+
+		public void onPost(final RedditPost post) {
+			items.add("post " + post.name + ":" + post.score + ":" + post.title);
+		}
+
+		public String onComment(final RedditComment comment, final int replyCount, final String parent) {
+			items.add(parent + " > " + comment.name + ":" + comment.ups + ":" + comment.body + " (" + replyCount + ")");
+			return comment.name;
+		}
+
+		public void onMoreComments(final RedditMoreComments moreComments, final String parent) {
+			items.add(parent + " > more:" + moreComments.count + ":" + moreComments.children.getCurrentItemCount());
+		}
+	}
+
+	// The way the listing was read before the streaming parser
+	private static void readTree(final JsonValue value, final RecordingListener listener) throws Exception {
+
+		if(value.getType() == JsonValue.Type.ARRAY) {
+			for(final JsonValue listing : value.asArray()) {
+				readTree(listing, listener);
+			}
+			return;
+		}
+
+		for(final JsonValue child : value.asObject().getObject("data").getArray("children")) {
+			readTreeThing(child, listener, null);
+		}
+	}
+
+	private static void readTreeThing(final JsonValue value, final RecordingListener listener, final String parent) throws Exception {
+
+		final RedditThing thing = value.asObject(RedditThing.class);
+
+		switch(thing.getKind()) {
+
+			case POST:
+				listener.onPost(thing.asPost());
+				break;
+
+			case MORE_COMMENTS:
+				listener.onMoreComments(thing.asMoreComments(), parent);
+				break;
+
+			case COMMENT:
+
+				final RedditComment comment = thing.asComment();
+				int replyCount = 0;
+
+				if(comment.replies.getType() == JsonValue.Type.OBJECT) {
+					for(final JsonValue reply : comment.replies.asObject().getObject("data").getArray("children")) {
+						if(reply.asObject(RedditThing.class).getKind() == RedditThing.Kind.COMMENT) replyCount++;
+					}
+				}
+
+				final String item = listener.onComment(comment, replyCount, parent);
+
+				if(comment.replies.getType() == JsonValue.Type.OBJECT) {
+					final JsonBufferedObject replies = comment.replies.asObject();
+					for(final JsonValue reply : replies.getObject("data").getArray("children")) {
+						readTreeThing(reply, listener, item);
+					}
+				}
+
+				break;
+		}
+	}
+
+	static RecordingListener parseTree(final byte[] data) throws Exception {
+		final RecordingListener listener = new RecordingListener();
+		final JsonValue value = new JsonValue(data);
+		value.buildInThisThread();
+		readTree(value, listener);
+		return listener;
+	}
+
+	static RecordingListener parseStream(final byte[] data) throws IOException {
+		final RecordingListener listener = new RecordingListener();
+		RedditListingParser.parse(new ByteArrayInputStream(data), listener);
+		return listener;
+	}
+
+	@Test
+	public void commentPageMatchesTree() throws Exception {
+
+		final byte[] data = generateCommentPage(100, 5, 1);
+
+		final RecordingListener expected = parseTree(data);
+		final RecordingListener actual = parseStream(data);
+
+		assertTrue(expected.items.size() > 300);
+		assertEquals(expected.items, actual.items);
+
+		assertTrue(actual.items.get(0).startsWith("post t3_abc123:"));
+		assertTrue(actual.items.get(1).startsWith("null > t1_c0:"));
+		assertTrue(actual.items.get(actual.items.size() - 1).startsWith("null > more:52:2"));
+	}
+
+	@Test
+	public void postListingMatchesTree() throws Exception {
+
+		final byte[] data = generatePostListing(100, 2);
+
+		final RecordingListener expected = parseTree(data);
+		final RecordingListener actual = parseStream(data);
+
+		assertEquals(100, actual.items.size());
+		assertEquals(expected.items, actual.items);
+	}
+
+	@Test
+	public void repliesAreDeliveredAfterTheirParent() throws IOException {
+
+		final byte[] data = ("{\"kind\": \"Listing\", \"data\": {\"children\": [{\"kind\": \"t1\", \"data\": {\"name\": \"t1_a\", "
+				+ "\"replies\": {\"kind\": \"Listing\", \"data\": {\"children\": [{\"kind\": \"t1\", \"data\": {\"name\": \"t1_b\", \"replies\": \"\", \"ups\": 2, \"body\": \"b\"}}]}}, "
+				+ "\"ups\": 1, \"body\": \"a\"}}, {\"kind\": \"t5\", \"data\": {\"display_name\": \"ignored\"}}]}}").getBytes();
+
+		assertEquals(Arrays.asList("null > t1_a:1:a (1)", "t1_a > t1_b:2:b (0)"), parseStream(data).items);
+	}
+
+	@Test
+	public void truncatedStreamThrows() {
+
+		final byte[] data = generateCommentPage(20, 3, 3);
+
+		try {
+			parseStream(Arrays.copyOf(data, data.length / 2));
+			fail();
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+
+	@Test
+	public void kindAfterDataIsRejected() {
+
+		try {
+			parseStream("{\"data\": {\"children\": []}, \"kind\": \"Listing\"}".getBytes());
+			fail();
+		} catch(IOException e) {
+			// Expected
+		}
+	}
+}